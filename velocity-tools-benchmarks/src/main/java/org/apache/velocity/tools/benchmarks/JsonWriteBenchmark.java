@@ -0,0 +1,199 @@
+package org.apache.velocity.tools.benchmarks;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.app.VelocityEngine;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.resource.loader.StringResourceLoader;
+import org.apache.velocity.runtime.resource.util.StringResourceRepository;
+import org.apache.velocity.tools.generic.JsonTool;
+import org.apache.velocity.tools.generic.JsonWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.cliftonlabs.json_simple.JsonArray;
+import com.github.cliftonlabs.json_simple.JsonObject;
+
+/**
+ * <p>Serialization of a list of beans as JSON: streamed by {@link JsonWriter},
+ * streamed from a template by <code>$json.write($items)</code>, and, as a
+ * baseline, copied into a {@link JsonArray} of {@link JsonObject}s whose
+ * <code>toJson()</code> string is then written.</p>
+ *
+ * @version $Id$
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JsonWriteBenchmark
+{
+    /**
+     * Serialized bean.
+     */
+    public static class Item
+    {
+        private final int id;
+
+        public Item(int id)
+        {
+            this.id = id;
+        }
+
+        public int getId()
+        {
+            return id;
+        }
+
+        public String getName()
+        {
+            return "item \"" + id + "\"";
+        }
+
+        public double getPrice()
+        {
+            return id * 1.25;
+        }
+
+        public List<String> getTags()
+        {
+            return Arrays.asList("new", "sale");
+        }
+    }
+
+    /**
+     * Writer which only counts characters.
+     */
+    static final class CountingWriter extends Writer
+    {
+        long count;
+
+        @Override
+        public void write(int c)
+        {
+            ++count;
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int length)
+        {
+            count += length;
+        }
+
+        @Override
+        public void write(String string, int offset, int length)
+        {
+            count += length;
+        }
+
+        @Override
+        public void flush() {}
+
+        @Override
+        public void close() {}
+    }
+
+    @Param({"10", "1000"})
+    public int size;
+
+    List<Item> items;
+    Template template;
+    VelocityContext context;
+
+    @Setup
+    public void setup()
+    {
+        items = new ArrayList<Item>(size);
+        for (int i = 0; i < size; ++i)
+        {
+            items.add(new Item(i));
+        }
+
+        VelocityEngine engine = new VelocityEngine();
+        engine.setProperty(RuntimeConstants.RESOURCE_LOADERS, "string");
+        engine.setProperty("resource.loader.string.class", StringResourceLoader.class.getName());
+        engine.init();
+        StringResourceRepository repository = StringResourceLoader.getRepository();
+        repository.putStringResource("items.vm", "$json.write($items)");
+        template = engine.getTemplate("items.vm");
+        JsonTool json = new JsonTool();
+        HashMap config = new HashMap();
+        config.put(JsonTool.WRITE_BEANS_KEY, "true");
+        json.configure(config);
+        context = new VelocityContext();
+        context.put("json", json);
+        context.put("items", items);
+    }
+
+    @Benchmark
+    public long streaming() throws IOException
+    {
+        CountingWriter writer = new CountingWriter();
+        JsonWriter.write(items, writer, true);
+        return writer.count;
+    }
+
+    @Benchmark
+    public long template()
+    {
+        CountingWriter writer = new CountingWriter();
+        template.merge(context, writer);
+        return writer.count;
+    }
+
+    @Benchmark
+    public long jsonObject() throws IOException
+    {
+        CountingWriter writer = new CountingWriter();
+        JsonArray array = new JsonArray();
+        for (Item item : items)
+        {
+            JsonObject object = new JsonObject();
+            object.put("id", item.getId());
+            object.put("name", item.getName());
+            object.put("price", item.getPrice());
+            object.put("tags", new JsonArray(item.getTags()));
+            array.add(object);
+        }
+        writer.write(array.toJson());
+        return writer.count;
+    }
+}
@@ -0,0 +1,138 @@
+package org.apache.velocity.tools.benchmarks;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.beanutils.PropertyUtils;
+import org.apache.velocity.app.VelocityEngine;
+import org.apache.velocity.tools.ToolContext;
+import org.apache.velocity.tools.ToolInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Throughput of {@link ToolInfo#create(Map)} with the dynamic
+ * properties a request toolbox typically provides. The <code>legacy</code>
+ * variant reproduces the former behavior: one combined map and one
+ * {@link PropertyUtils} lookup per property and per instance.</p>
+ *
+ * @version $Id$
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ToolInfoBenchmark
+{
+    /**
+     * ToolInfo configuring tools the way it used to.
+     */
+    public static class LegacyToolInfo extends ToolInfo
+    {
+        public LegacyToolInfo(String key, Class clazz)
+        {
+            super(key, clazz);
+        }
+
+        @Override
+        public Object create(Map<String,Object> dynamicProperties)
+        {
+            Object tool = newInstance();
+            Map<String,Object> props = combine(dynamicProperties, getProperties());
+            try
+            {
+                for (Map.Entry<String,Object> conf : props.entrySet())
+                {
+                    if (PropertyUtils.isWriteable(tool, conf.getKey()))
+                    {
+                        PropertyUtils.setProperty(tool, conf.getKey(), conf.getValue());
+                    }
+                }
+            }
+            catch (Exception e)
+            {
+                throw new RuntimeException(e);
+            }
+            if (hasConfigure())
+            {
+                invoke(getConfigure(), tool, props);
+            }
+            return tool;
+        }
+    }
+
+    @Param({"compiled", "legacy"})
+    public String setters;
+
+    @Param({"org.apache.velocity.tools.generic.DateTool",
+            "org.apache.velocity.tools.generic.NumberTool",
+            "org.apache.velocity.tools.generic.EscapeTool"})
+    public String tool;
+
+    ToolInfo info;
+    Map<String,Object> dynamicProperties;
+
+    @Setup
+    public void setup() throws ClassNotFoundException
+    {
+        Class clazz = Class.forName(tool);
+        info = "legacy".equals(setters) ?
+            new LegacyToolInfo("tool", clazz) : new ToolInfo("tool", clazz);
+        info.putProperty("locale", Locale.FRANCE);
+
+        /* what a ToolContext provides, plus placeholders
+           for the usual servlet related properties */
+        VelocityEngine engine = new VelocityEngine();
+        engine.init();
+        ToolContext context = new ToolContext(engine);
+        dynamicProperties = new HashMap<String,Object>();
+        dynamicProperties.put(ToolContext.CONTEXT_KEY, context);
+        dynamicProperties.put(ToolContext.ENGINE_KEY, engine);
+        dynamicProperties.put(ToolContext.LOG_KEY, engine.getLog());
+        dynamicProperties.put(ToolContext.LOCALE_KEY, Locale.US);
+        dynamicProperties.put(ToolContext.PATH_KEY, "/index.vm");
+        dynamicProperties.put(ToolContext.TOOLKEY_KEY, "tool");
+        dynamicProperties.put("request", new Object());
+        dynamicProperties.put("response", new Object());
+        dynamicProperties.put("session", new Object());
+        dynamicProperties.put("servletContext", new Object());
+    }
+
+    @Benchmark
+    public Object create()
+    {
+        return info.create(dynamicProperties);
+    }
+}
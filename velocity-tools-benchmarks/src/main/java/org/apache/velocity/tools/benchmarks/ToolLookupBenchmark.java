@@ -0,0 +1,125 @@
+package org.apache.velocity.tools.benchmarks;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.velocity.tools.ToolContext;
+import org.apache.velocity.tools.ToolManager;
+import org.apache.velocity.tools.ToolMetrics;
+import org.apache.velocity.tools.Toolbox;
+import org.apache.velocity.tools.config.ConfigurationUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Tool lookups with the generic default tools: <code>Toolbox.get</code>
+ * on the warm application toolbox, creation of a request toolbox followed
+ * by the creation of one of its tools, and <code>ToolContext.get</code> of
+ * a tool and of a missing key. The <code>Threaded</code> variants hit the
+ * shared application toolbox from several threads.</p>
+ *
+ * @version $Id$
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ToolLookupBenchmark
+{
+    /* whether per-tool metrics are recorded */
+    @Param({"false", "true"})
+    public boolean metrics;
+
+    ToolManager manager;
+    Toolbox application;
+    ToolContext context;
+
+    @Setup
+    public void setup()
+    {
+        manager = new ToolManager(false, false);
+        if (metrics)
+        {
+            manager.setMetrics(new ToolMetrics());
+        }
+        manager.configure(ConfigurationUtils.getGenericTools());
+        application = manager.getApplicationToolbox();
+        context = manager.createContext();
+        // warm up the tools used here
+        context.get("math");
+    }
+
+    @Benchmark
+    public Object toolboxGet()
+    {
+        return application.get("math");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object toolboxGetThreaded()
+    {
+        return application.get("math");
+    }
+
+    @Benchmark
+    public Object requestToolboxGet()
+    {
+        return manager.getRequestToolbox().get("loop");
+    }
+
+    @Benchmark
+    public Object contextGet()
+    {
+        return context.get("math");
+    }
+
+    @Benchmark
+    public Object contextGetMissing()
+    {
+        return context.get("missing");
+    }
+
+    @Benchmark
+    public Object newContextGet()
+    {
+        return manager.createContext().get("math");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object newContextGetThreaded()
+    {
+        return manager.createContext().get("math");
+    }
+}
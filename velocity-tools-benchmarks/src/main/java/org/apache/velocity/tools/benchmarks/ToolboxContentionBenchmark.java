@@ -0,0 +1,159 @@
+package org.apache.velocity.tools.benchmarks;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.velocity.tools.ToolInfo;
+import org.apache.velocity.tools.Toolbox;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Cold application toolbox under contention: every iteration starts
+ * with a fresh toolbox, and each of the 200 threads does one <code>get()</code>
+ * for one of the tools, so every sample is either the creation of a tool or
+ * a wait on it. Single shot samples are aggregated by JMH into the
+ * p50/p90/p99 latency percentiles.</p>
+ * <p>The <code>synchronized</code> variant reproduces the former locking
+ * strategy, where all misses were serialized on the toolbox monitor.</p>
+ *
+ * @version $Id$
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 20)
+@Measurement(iterations = 200)
+@Fork(1)
+@Threads(200)
+public class ToolboxContentionBenchmark
+{
+    /**
+     * Stands for tools with an expensive configuration
+     * (bundle loading, field inspection...).
+     */
+    public static class SlowTool
+    {
+        public void configure(Map<String,Object> props)
+        {
+            LockSupport.parkNanos(((Number)props.get("cost")).longValue() * 1000L);
+        }
+    }
+
+    /**
+     * Toolbox serializing all misses on its monitor,
+     * as it used to be done.
+     */
+    public static class LockingToolbox extends Toolbox
+    {
+        public LockingToolbox(Map<String,ToolInfo> toolInfo)
+        {
+            super(toolInfo);
+        }
+
+        @Override
+        public Object get(String key, String path, Map<String,Object> context)
+        {
+            Object tool = getFromCache(key, path);
+            if (tool == null)
+            {
+                synchronized (this)
+                {
+                    tool = getFromCache(key, path);
+                    if (tool == null)
+                    {
+                        tool = getFromInfo(key, path, context);
+                    }
+                }
+            }
+            return tool;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class ApplicationToolbox
+    {
+        @Param({"concurrent", "synchronized"})
+        public String locking;
+
+        @Param({"16"})
+        public int tools;
+
+        /* simulated configuration cost, in microseconds */
+        @Param({"200"})
+        public int cost;
+
+        Map<String,ToolInfo> infos;
+        Toolbox toolbox;
+        final AtomicInteger threads = new AtomicInteger();
+
+        @Setup(Level.Trial)
+        public void configure()
+        {
+            infos = new HashMap<String,ToolInfo>();
+            for (int i = 0; i < tools; i++)
+            {
+                ToolInfo info = new ToolInfo("tool" + i, SlowTool.class);
+                info.putProperty("cost", cost);
+                infos.put(info.getKey(), info);
+            }
+        }
+
+        @Setup(Level.Iteration)
+        public void coldStart()
+        {
+            toolbox = "synchronized".equals(locking) ?
+                new LockingToolbox(infos) : new Toolbox(infos);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Requester
+    {
+        String key;
+
+        @Setup(Level.Trial)
+        public void pickTool(ApplicationToolbox app)
+        {
+            key = "tool" + (app.threads.getAndIncrement() % app.tools);
+        }
+    }
+
+    @Benchmark
+    public Object get(ApplicationToolbox app, Requester requester)
+    {
+        return app.toolbox.get(requester.key);
+    }
+}
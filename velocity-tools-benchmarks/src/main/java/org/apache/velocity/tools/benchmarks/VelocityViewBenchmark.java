@@ -0,0 +1,220 @@
+package org.apache.velocity.tools.benchmarks;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.tools.view.VelocityView;
+import org.apache.velocity.tools.view.ViewToolContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Request handling paths of {@link VelocityView}, running against the
+ * default tools in an in-memory {@link Webapp}: creation and preparation
+ * of the {@link ViewToolContext} (toolboxes publication included), lookup
+ * of a request tool in a fresh context, and complete rendering of a small
+ * page using a few tools, into a writer or as bytes into an output
+ * stream.</p>
+ * <p>Each request object is recycled between invocations, so that its
+ * toolbox gets published again. The <code>Threaded</code> variants run
+ * the same paths from several threads sharing the view.</p>
+ *
+ * @version $Id$
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VelocityViewBenchmark
+{
+    static final String TEMPLATE =
+        "<html><head><title>$esc.html($title)</title></head><body>\n" +
+        "<p>$number.format('integer', $math.mul(6, 7))</p>\n" +
+        "<ul>\n" +
+        "#foreach($i in [1..20])\n" +
+        "  <li class=\"#if($foreach.count % 2 == 0)even#{else}odd#end\">$esc.html(\"<item $i>\")</li>\n" +
+        "#end\n" +
+        "</ul>\n" +
+        "<a href=\"$link.relative('/other.vm').param('page', 2)\">next</a>\n" +
+        "</body></html>\n";
+
+    @State(Scope.Benchmark)
+    public static class Application
+    {
+        /* whether per-tool metrics are recorded */
+        @Param({"false", "true"})
+        public boolean metrics;
+
+        Webapp webapp;
+        VelocityView view;
+        Template template;
+
+        @Setup
+        public void init()
+        {
+            Map<String,String> resources = new HashMap<String,String>();
+            resources.put("/page.vm", TEMPLATE);
+            Map<String,String> params = new HashMap<String,String>();
+            params.put(VelocityView.LOAD_DEFAULTS_KEY, "true");
+            params.put(VelocityView.METRICS_KEY, String.valueOf(metrics));
+            webapp = new Webapp(resources, params);
+            view = new VelocityView(webapp.getConfig());
+            template = view.getTemplate("/page.vm");
+        }
+
+        @TearDown
+        public void destroy()
+        {
+            view.destroy();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Exchange
+    {
+        HttpServletRequest request;
+        HttpServletResponse response;
+        Writer writer;
+        OutputStream output;
+
+        @Setup
+        public void init(Application app)
+        {
+            request = app.webapp.newRequest("/page.vm");
+            writer = new CountingWriter();
+            output = new CountingOutputStream();
+            response = app.webapp.newResponse(writer);
+        }
+    }
+
+    @Benchmark
+    public ViewToolContext createContext(Application app, Exchange exchange)
+    {
+        Webapp.recycle(exchange.request);
+        return app.view.createContext(exchange.request, exchange.response);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public ViewToolContext createContextThreaded(Application app, Exchange exchange)
+    {
+        return createContext(app, exchange);
+    }
+
+    @Benchmark
+    public Object lookupRequestTool(Application app, Exchange exchange)
+    {
+        return createContext(app, exchange).get("link");
+    }
+
+    @Benchmark
+    public void render(Application app, Exchange exchange) throws IOException
+    {
+        ViewToolContext context = createContext(app, exchange);
+        context.put("title", "Benchmark & co");
+        app.view.merge(app.template, context, exchange.writer);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void renderThreaded(Application app, Exchange exchange) throws IOException
+    {
+        render(app, exchange);
+    }
+
+    @Benchmark
+    public void renderBytes(Application app, Exchange exchange) throws IOException
+    {
+        ViewToolContext context = createContext(app, exchange);
+        context.put("title", "Benchmark & co");
+        app.view.merge(app.template, context, exchange.output, "UTF-8");
+    }
+
+    /**
+     * Only counts what is written, so that rendering cannot be optimized away.
+     */
+    static class CountingWriter extends Writer
+    {
+        long count;
+
+        @Override
+        public void write(char[] buffer, int offset, int length)
+        {
+            count += length;
+        }
+
+        @Override
+        public void write(String str, int offset, int length)
+        {
+            count += length;
+        }
+
+        @Override
+        public void flush()
+        {
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+
+    /**
+     * Only counts what is written, as {@link CountingWriter}.
+     */
+    static class CountingOutputStream extends OutputStream
+    {
+        long count;
+
+        @Override
+        public void write(int b)
+        {
+            ++count;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length)
+        {
+            count += length;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package org.apache.velocity.tools.benchmarks;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import org.apache.velocity.tools.test.blackbox.RequestAdaptor;
+import org.apache.velocity.tools.test.blackbox.ResponseAdaptor;
+import org.apache.velocity.tools.test.blackbox.ServletContextAdaptor;
+import org.apache.velocity.tools.view.JeeConfig;
+
+/**
+ * <p>In-memory web application for the view benchmarks, built upon the
+ * servlet API adaptors of the velocity-tools-view tests. Resources are
+ * served from a map, and the application and request attributes are
+ * actually kept, so that toolboxes get published as in a container.</p>
+ *
+ * @version $Id$
+ */
+public class Webapp
+{
+    private final Map<String,String> resources;
+    private final Map<String,String> initParameters;
+    private final Map<String,Object> attributes = new ConcurrentHashMap<String,Object>();
+    private final ServletContext servletContext;
+
+    /**
+     * @param resources resources content, by path
+     * @param initParameters init parameters of both the
+     *        servlet context and the servlet
+     */
+    public Webapp(Map<String,String> resources, Map<String,String> initParameters)
+    {
+        this.resources = resources;
+        this.initParameters = initParameters;
+        this.servletContext = (ServletContext)Proxy.newProxyInstance(
+            getClass().getClassLoader(), new Class[] { ServletContext.class },
+            new Context());
+    }
+
+    public ServletContext getServletContext()
+    {
+        return servletContext;
+    }
+
+    /**
+     * @return configuration of the servlet running the benchmarked view
+     */
+    public JeeConfig getConfig()
+    {
+        return new Config();
+    }
+
+    /**
+     * @param path request path
+     * @return new request, without session
+     */
+    public HttpServletRequest newRequest(String path)
+    {
+        return (HttpServletRequest)Proxy.newProxyInstance(
+            getClass().getClassLoader(), new Class[] { HttpServletRequest.class },
+            new Request(path));
+    }
+
+    /**
+     * @param writer where the response content goes
+     * @return new response
+     */
+    public HttpServletResponse newResponse(Writer writer)
+    {
+        return (HttpServletResponse)Proxy.newProxyInstance(
+            getClass().getClassLoader(), new Class[] { HttpServletResponse.class },
+            new Response(new PrintWriter(writer)));
+    }
+
+    /**
+     * Clears the attributes of a request created by
+     * {@link #newRequest(String)}, so that it can be used again.
+     * @param request request
+     */
+    public static void recycle(HttpServletRequest request)
+    {
+        ((Request)Proxy.getInvocationHandler(request)).attributes.clear();
+    }
+
+    class Context extends ServletContextAdaptor
+    {
+        @Override
+        protected Object context(Object proxy, Method method, Object[] args)
+        {
+            switch (method.getName())
+            {
+                case "getInitParameter":
+                    return initParameters.get(args[0]);
+                case "getInitParameterNames":
+                    return Collections.enumeration(initParameters.keySet());
+                case "getAttribute":
+                    return attributes.get(args[0]);
+                case "setAttribute":
+                    if (args[1] == null)
+                    {
+                        attributes.remove(args[0]);
+                    }
+                    else
+                    {
+                        attributes.put((String)args[0], args[1]);
+                    }
+                    return null;
+                case "removeAttribute":
+                    attributes.remove(args[0]);
+                    return null;
+                case "getRealPath":
+                    // not in the file system
+                    return null;
+                case "getServletContextName":
+                    return "benchmarks";
+                case "log":
+                    return null;
+                default:
+                    return super.context(proxy, method, args);
+            }
+        }
+
+        @Override
+        protected InputStream getResourceAsStream(String path)
+        {
+            String content = resources.get(path);
+            return content == null ? null :
+                new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    class Config implements JeeConfig
+    {
+        public String getInitParameter(String name)
+        {
+            return initParameters.get(name);
+        }
+
+        public String findInitParameter(String key)
+        {
+            return initParameters.get(key);
+        }
+
+        public Enumeration getInitParameterNames()
+        {
+            return Collections.enumeration(initParameters.keySet());
+        }
+
+        public String getName()
+        {
+            return "benchmark";
+        }
+
+        public ServletContext getServletContext()
+        {
+            return servletContext;
+        }
+    }
+
+    static class Request extends RequestAdaptor
+    {
+        final Map<String,Object> attributes = new HashMap<String,Object>();
+
+        Request(String path)
+        {
+            super("", path, null);
+        }
+
+        @Override
+        protected Object request(Object proxy, Method method, Object[] args)
+        {
+            switch (method.getName())
+            {
+                case "getAttribute":
+                    return attributes.get(args[0]);
+                case "setAttribute":
+                    attributes.put((String)args[0], args[1]);
+                    return null;
+                case "removeAttribute":
+                    attributes.remove(args[0]);
+                    return null;
+                case "getLocale":
+                    return Locale.US;
+                case "getMethod":
+                    return "GET";
+                case "getQueryString":
+                    return null;
+                case "getHeader":
+                    return null;
+                default:
+                    return super.request(proxy, method, args);
+            }
+        }
+    }
+
+    static class Response extends ResponseAdaptor
+    {
+        private final PrintWriter writer;
+
+        Response(PrintWriter writer)
+        {
+            this.writer = writer;
+        }
+
+        @Override
+        protected Object response(Object proxy, Method method, Object[] args)
+        {
+            switch (method.getName())
+            {
+                case "getWriter":
+                    return writer;
+                case "setContentType":
+                case "setCharacterEncoding":
+                case "setHeader":
+                    return null;
+                case "isCommitted":
+                    return false;
+                default:
+                    return super.response(proxy, method, args);
+            }
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package org.apache.velocity.tools;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>{@link Toolbox} whose tool instances are kept in an array, in the
+ * slots given by an immutable {@link Index} shared by all the toolboxes
+ * of a scope. Creating one of those toolboxes only costs the allocation
+ * of that array, and finding a tool one probe in the index.</p>
+ * <p>This is what {@link ToolboxFactory} uses for request scoped tools,
+ * which are created anew for each request. Since such a toolbox is not
+ * supposed to be shared between threads, tool creations are serialized.
+ * </p>
+ *
+ * @since VelocityTools 4.1
+ * @version $Id$
+ */
+public class IndexedToolbox extends Toolbox
+{
+    private static final long serialVersionUID = 5203528390212455761L;
+
+    private final Index index;
+    private final AtomicReferenceArray<Object> tools;
+
+    protected IndexedToolbox(Index index, Map<String,Object> properties)
+    {
+        super(index.getInfoMap(), properties);
+        this.index = index;
+        this.tools = new AtomicReferenceArray<Object>(index.size());
+        setRestrictions(index.getRestrictions());
+    }
+
+    @Override
+    protected void cacheData(Map<String,Object> data)
+    {
+        super.cacheData(data);
+        if (data != null)
+        {
+            // data used to shadow tools with the same key
+            for (Map.Entry<String,Object> datum : data.entrySet())
+            {
+                int slot = index.slot(datum.getKey());
+                if (slot >= 0 && datum.getValue() != null)
+                {
+                    tools.set(slot, datum.getValue());
+                }
+            }
+        }
+    }
+
+    @Override
+    public Object get(String key, String path, Map<String,Object> context)
+    {
+        int slot = index.slot(key);
+        if (slot < 0)
+        {
+            // no such tool, but there may be data
+            return super.get(key, path, context);
+        }
+        ToolInfo info = index.getInfo(slot);
+        if (path != null && !info.hasPermission(path))
+        {
+            return null;
+        }
+        Object tool = tools.get(slot);
+        ToolMetrics.Recorder recorder = info.getRecorder();
+        if (recorder != null)
+        {
+            recorder.recordCacheAccess(tool != null);
+        }
+        if (tool == null)
+        {
+            synchronized (tools)
+            {
+                tool = tools.get(slot);
+                if (tool == null)
+                {
+                    tool = info.create(context);
+                    tools.set(slot, tool);
+                }
+            }
+        }
+        return tool;
+    }
+
+    @Override
+    protected Object getFromCache(String key, String path)
+    {
+        int slot = index.slot(key);
+        if (slot < 0)
+        {
+            return super.getFromCache(key, path);
+        }
+        Object tool = tools.get(slot);
+        if (tool != null && path != null && !index.getInfo(slot).hasPermission(path))
+        {
+            return null;
+        }
+        return tool;
+    }
+
+    @Override
+    protected Object getFromInfo(String key, String path,
+                                 Map<String,Object> context)
+    {
+        return index.slot(key) < 0 ? null : get(key, path, context);
+    }
+
+    @Override
+    public boolean containsKey(String key)
+    {
+        return index.slot(key) >= 0 || super.containsKey(key);
+    }
+
+    @Override
+    protected Map<String,Object> getCached()
+    {
+        Map<String,Object> cached = super.getCached();
+        for (int slot = 0; slot < index.size(); slot++)
+        {
+            Object tool = tools.get(slot);
+            if (tool != null)
+            {
+                cached.put(index.getInfo(slot).getKey(), tool);
+            }
+        }
+        return cached;
+    }
+
+    /**
+     * <p>Immutable assignment of the tools of a scope to slots, with an
+     * open addressing hash table to find the slot of a key.</p>
+     */
+    public static final class Index implements java.io.Serializable
+    {
+        private static final long serialVersionUID = -2797021563848290357L;
+
+        private final Map<String,ToolInfo> infoMap;
+        private final ToolInfo[] infos;
+        private final String[] keys;
+        /* slot + 1 for each used bucket, 0 for empty ones */
+        private final int[] table;
+        private final int mask;
+        private transient volatile PathRestrictions restrictions;
+
+        /**
+         * Builds the index of a set of tools.
+         * @param tools tools info, by key
+         */
+        public Index(Map<String,ToolInfo> tools)
+        {
+            Map<String,ToolInfo> copy = tools == null ?
+                new HashMap<String,ToolInfo>() : new HashMap<String,ToolInfo>(tools);
+            this.infoMap = Collections.unmodifiableMap(copy);
+
+            // sorted, so that slots do not depend upon the map ordering
+            this.keys = copy.keySet().toArray(new String[copy.size()]);
+            Arrays.sort(keys);
+            this.infos = new ToolInfo[keys.length];
+
+            // keep the load factor under 1/2, so that probes remain short
+            int capacity = 2;
+            while (capacity < keys.length * 2)
+            {
+                capacity <<= 1;
+            }
+            this.table = new int[capacity];
+            this.mask = capacity - 1;
+            for (int slot = 0; slot < keys.length; slot++)
+            {
+                infos[slot] = copy.get(keys[slot]);
+                int bucket = hash(keys[slot]) & mask;
+                while (table[bucket] != 0)
+                {
+                    bucket = (bucket + 1) & mask;
+                }
+                table[bucket] = slot + 1;
+            }
+        }
+
+        private static int hash(String key)
+        {
+            int h = key.hashCode();
+            return h ^ (h >>> 16);
+        }
+
+        /**
+         * @param key tool key
+         * @return slot of this tool, or -1 if there is no such tool
+         */
+        public int slot(String key)
+        {
+            if (key == null)
+            {
+                return -1;
+            }
+            int bucket = hash(key) & mask;
+            int entry;
+            while ((entry = table[bucket]) != 0)
+            {
+                String candidate = keys[entry - 1];
+                if (candidate == key || candidate.equals(key))
+                {
+                    return entry - 1;
+                }
+                bucket = (bucket + 1) & mask;
+            }
+            return -1;
+        }
+
+        /**
+         * @return number of slots
+         */
+        public int size()
+        {
+            return keys.length;
+        }
+
+        /**
+         * @param slot tool slot
+         * @return info of the tool in this slot
+         */
+        public ToolInfo getInfo(int slot)
+        {
+            return infos[slot];
+        }
+
+        /**
+         * @return compiled path restrictions of the indexed tools
+         */
+        public PathRestrictions getRestrictions()
+        {
+            PathRestrictions restrictions = this.restrictions;
+            if (restrictions == null)
+            {
+                restrictions = PathRestrictions.compile(infoMap.values());
+                this.restrictions = restrictions;
+            }
+            return restrictions;
+        }
+
+        /**
+         * @return read-only map of the indexed tools info
+         */
+        public Map<String,ToolInfo> getInfoMap()
+        {
+            return infoMap;
+        }
+
+        /**
+         * Creates a new toolbox for this set of tools.
+         * @param properties toolbox properties
+         * @return new toolbox
+         */
+        public IndexedToolbox createToolbox(Map<String,Object> properties)
+        {
+            return new IndexedToolbox(this, properties);
+        }
+    }
+}
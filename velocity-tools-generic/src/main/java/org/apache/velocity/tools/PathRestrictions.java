@@ -0,0 +1,222 @@
+package org.apache.velocity.tools;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>The <code>restrictTo</code> paths of a set of tools, compiled into
+ * a trie. For a given request path, it gives the keys of the tools which
+ * are restricted to other paths. Results are memoized per request path,
+ * in a cache which is cleared whenever it reaches its maximum size.</p>
+ * <p>Instances are immutable, and safe for concurrent use.</p>
+ *
+ * @since VelocityTools 4.1
+ * @version $Id$
+ * @see ToolInfo#restrictTo(String)
+ */
+public final class PathRestrictions
+{
+    /**
+     * Default maximum number of memoized paths.
+     */
+    public static final int DEFAULT_CACHE_SIZE = 1024;
+
+    private static final PathRestrictions NONE =
+        new PathRestrictions(Collections.<ToolInfo>emptyList(), 0);
+
+    private final Node root = new Node();
+    private final Set<String> restricted;
+    private final int cacheSize;
+    private final ConcurrentMap<String,Set<String>> cache;
+
+    private PathRestrictions(Collection<ToolInfo> tools, int cacheSize)
+    {
+        Set<String> keys = new HashSet<String>();
+        for (ToolInfo info : tools)
+        {
+            String restrictTo = info.getRestrictTo();
+            if (restrictTo == null)
+            {
+                continue;
+            }
+            keys.add(info.getKey());
+            boolean prefix = restrictTo.endsWith("*");
+            if (prefix)
+            {
+                restrictTo = restrictTo.substring(0, restrictTo.length() - 1);
+            }
+            Node node = root;
+            for (int i = 0; i < restrictTo.length(); i++)
+            {
+                node = node.child(restrictTo.charAt(i), true);
+            }
+            if (prefix)
+            {
+                node.prefixOf = add(node.prefixOf, info.getKey());
+            }
+            else
+            {
+                node.exactly = add(node.exactly, info.getKey());
+            }
+        }
+        this.restricted = Collections.unmodifiableSet(keys);
+        this.cacheSize = cacheSize;
+        this.cache = keys.isEmpty() ? null : new ConcurrentHashMap<String,Set<String>>();
+    }
+
+    /**
+     * Compiles the path restrictions of the given tools.
+     * @param tools tools info
+     * @return compiled path restrictions
+     */
+    public static PathRestrictions compile(Collection<ToolInfo> tools)
+    {
+        return compile(tools, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Compiles the path restrictions of the given tools.
+     * @param tools tools info
+     * @param cacheSize maximum number of memoized paths
+     * @return compiled path restrictions
+     */
+    public static PathRestrictions compile(Collection<ToolInfo> tools, int cacheSize)
+    {
+        if (tools == null || tools.isEmpty())
+        {
+            return NONE;
+        }
+        return new PathRestrictions(tools, cacheSize);
+    }
+
+    private static String[] add(String[] keys, String key)
+    {
+        if (keys == null)
+        {
+            return new String[] { key };
+        }
+        String[] more = new String[keys.length + 1];
+        System.arraycopy(keys, 0, more, 0, keys.length);
+        more[keys.length] = key;
+        return more;
+    }
+
+    /**
+     * @return keys of all the tools having a path restriction
+     */
+    public Set<String> getRestrictedKeys()
+    {
+        return restricted;
+    }
+
+    /**
+     * @param path request path
+     * @return read-only set of the keys of the tools which are
+     *         not available for this path
+     */
+    public Set<String> getUnavailableKeys(String path)
+    {
+        if (cache == null)
+        {
+            return Collections.emptySet();
+        }
+        if (path == null)
+        {
+            // matches no restriction at all
+            return restricted;
+        }
+        Set<String> unavailable = cache.get(path);
+        if (unavailable == null)
+        {
+            unavailable = resolve(path);
+            if (cache.size() >= cacheSize)
+            {
+                cache.clear();
+            }
+            cache.put(path, unavailable);
+        }
+        return unavailable;
+    }
+
+    private Set<String> resolve(String path)
+    {
+        List<String> available = new ArrayList<String>();
+        Node node = root;
+        int i = 0;
+        while (node != null)
+        {
+            if (node.prefixOf != null)
+            {
+                Collections.addAll(available, node.prefixOf);
+            }
+            if (i == path.length())
+            {
+                if (node.exactly != null)
+                {
+                    Collections.addAll(available, node.exactly);
+                }
+                break;
+            }
+            node = node.child(path.charAt(i++), false);
+        }
+        if (available.isEmpty())
+        {
+            return restricted;
+        }
+        Set<String> unavailable = new HashSet<String>(restricted);
+        unavailable.removeAll(available);
+        return unavailable.isEmpty() ?
+            Collections.<String>emptySet() : Collections.unmodifiableSet(unavailable);
+    }
+
+    private static final class Node
+    {
+        private Map<Character,Node> children;
+        /* keys of tools restricted to paths starting with this node's */
+        private String[] prefixOf;
+        /* keys of tools restricted to exactly this node's path */
+        private String[] exactly;
+
+        Node child(char c, boolean create)
+        {
+            Node child = children == null ? null : children.get(c);
+            if (child == null && create)
+            {
+                if (children == null)
+                {
+                    children = new HashMap<Character,Node>(4);
+                }
+                child = new Node();
+                children.put(c, child);
+            }
+            return child;
+        }
+    }
+}
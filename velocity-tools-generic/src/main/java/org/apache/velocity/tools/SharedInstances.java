@@ -0,0 +1,135 @@
+package org.apache.velocity.tools;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>Bounded cache of the shared instances of a
+ * {@link org.apache.velocity.tools.config.ThreadSafe} tool, keyed on the
+ * values of the properties the tool declared it depends upon. Once the
+ * cache is full, newly seen tuples get their own private instance.</p>
+ *
+ * @since VelocityTools 4.1
+ * @version $Id$
+ */
+final class SharedInstances
+{
+    /**
+     * Default maximum number of shared instances per tool.
+     */
+    static final int DEFAULT_MAX_INSTANCES = 64;
+
+    /* stands for null values, which a ConcurrentHashMap cannot hold */
+    private static final Object NULL = new Object();
+
+    private final String[] keyedOn;
+    private final int maxInstances;
+    private final ConcurrentMap<Object,Object> instances =
+        new ConcurrentHashMap<Object,Object>();
+
+    SharedInstances(String[] keyedOn, int maxInstances)
+    {
+        this.keyedOn = keyedOn;
+        this.maxInstances = maxInstances;
+    }
+
+    /**
+     * @param configured configured properties, which win over dynamic ones
+     * @param dynamic dynamic properties
+     * @return identity of the instance these properties correspond to
+     */
+    Object key(Map<String,Object> configured, Map<String,Object> dynamic)
+    {
+        switch (keyedOn.length)
+        {
+            case 0:
+                return NULL;
+            case 1:
+                return value(keyedOn[0], configured, dynamic);
+            default:
+                Object[] values = new Object[keyedOn.length];
+                for (int i = 0; i < values.length; i++)
+                {
+                    values[i] = value(keyedOn[i], configured, dynamic);
+                }
+                return Arrays.asList(values);
+        }
+    }
+
+    private static Object value(String name, Map<String,Object> configured,
+                                Map<String,Object> dynamic)
+    {
+        Object value = null;
+        if (configured != null && configured.containsKey(name))
+        {
+            value = configured.get(name);
+        }
+        else if (dynamic != null)
+        {
+            value = dynamic.get(name);
+        }
+        return value == null ? NULL : value;
+    }
+
+    /**
+     * @param key instance identity
+     * @return shared instance, or <code>null</code> if there is none yet
+     */
+    Object get(Object key)
+    {
+        return instances.get(key);
+    }
+
+    /**
+     * Shares a newly created instance, unless the cache is full.
+     * @param key instance identity
+     * @param tool newly created instance
+     * @return instance to use, which may have been shared meanwhile
+     */
+    Object share(Object key, Object tool)
+    {
+        if (instances.size() >= maxInstances)
+        {
+            return tool;
+        }
+        Object shared = instances.putIfAbsent(key, tool);
+        return shared == null ? tool : shared;
+    }
+
+    /**
+     * Forgets all the shared instances.
+     */
+    void clear()
+    {
+        instances.clear();
+    }
+
+    /**
+     * @return number of shared instances
+     */
+    int size()
+    {
+        return instances.size();
+    }
+}
@@ -55,6 +55,10 @@ public class ToolContext implements Context
     // this is only for values added during use of this context
     private Map<String,Object> localContext = new HashMap<String,Object>();
     private boolean userOverwrite = true;
+    // keys of the tools each toolbox restricts to other paths than this one
+    private String resolvedPath;
+    private List<Set<String>> unavailable;
+    private ToolMetrics metrics;
 
     public ToolContext()
     {
@@ -110,6 +114,17 @@ public class ToolContext implements Context
         return this.userOverwrite;
     }
 
+    /**
+     * Set the metrics in which to record the time spent looking
+     * up tools, or <code>null</code> not to record it.
+     * @param metrics tool metrics
+     * @since VelocityTools 4.1
+     */
+    public void setMetrics(ToolMetrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
     public void addToolbox(Toolbox toolbox)
     {
         toolboxes.add(toolbox);
@@ -223,11 +238,36 @@ public class ToolContext implements Context
     }
 
     protected Object findTool(String key)
+    {
+        ToolMetrics metrics = this.metrics;
+        if (metrics == null)
+        {
+            return lookupTool(key);
+        }
+        long start = System.nanoTime();
+        try
+        {
+            return lookupTool(key);
+        }
+        finally
+        {
+            metrics.recordLookup(key, System.nanoTime() - start);
+        }
+    }
+
+    private Object lookupTool(String key)
     {
         String path = (String)toolProps.get(PATH_KEY);
-        for (Toolbox toolbox : getToolboxes())
+        List<Toolbox> toolboxes = getToolboxes();
+        for (int i = 0; i < toolboxes.size(); i++)
         {
-            Object tool = toolbox.get(key, path, toolProps);
+            Toolbox toolbox = toolboxes.get(i);
+            if (path != null && getUnavailableKeys(toolboxes, i, path).contains(key))
+            {
+                continue;
+            }
+            // permissions already checked, no need to pass the path
+            Object tool = toolbox.get(key, null, toolProps);
             if (tool != null)
             {
                 return tool;
@@ -235,7 +275,34 @@ public class ToolContext implements Context
         }
         return null;
     }
-        
+
+    /**
+     * Get the keys of the tools of a toolbox that are restricted
+     * to other paths, resolved once per path and per toolbox.
+     * @param toolboxes toolboxes of this context
+     * @param i index of the toolbox
+     * @param path current request path
+     * @return read-only set of keys
+     */
+    private Set<String> getUnavailableKeys(List<Toolbox> toolboxes, int i, String path)
+    {
+        if (unavailable == null)
+        {
+            unavailable = new ArrayList<Set<String>>(3);
+        }
+        if (!path.equals(resolvedPath))
+        {
+            unavailable.clear();
+            resolvedPath = path;
+        }
+        // toolboxes can only be appended
+        while (unavailable.size() <= i)
+        {
+            unavailable.add(toolboxes.get(unavailable.size()).getUnavailableKeys(path));
+        }
+        return unavailable.get(i);
+    }
+
 
     public Set<String> keySet()
     {
@@ -250,7 +317,19 @@ public class ToolContext implements Context
 
     public boolean containsKey(String key)
     {
-        return keySet().contains(key);
+        // local values are the cheapest to check
+        if (localContext.containsKey(key))
+        {
+            return true;
+        }
+        for (Toolbox toolbox : getToolboxes())
+        {
+            if (toolbox.containsKey(key))
+            {
+                return true;
+            }
+        }
+        return false;
     }
 
     public String[] getKeys()
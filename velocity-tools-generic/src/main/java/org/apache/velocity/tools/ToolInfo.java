@@ -21,10 +21,15 @@ package org.apache.velocity.tools;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
-import org.apache.commons.beanutils.PropertyUtils;
+import java.util.Set;
 import org.apache.velocity.tools.config.SkipSetters;
+import org.apache.velocity.tools.config.ThreadSafe;
 
 /**
  * Manages data needed to create instances of a tool. New instances
@@ -39,6 +44,33 @@ public class ToolInfo implements java.io.Serializable
     private static final long serialVersionUID = -8145087882015742757L;
     public static final String CONFIGURE_METHOD_NAME = "configure";
 
+    /**
+     * Whether ToolInfo subclasses override the configuration hooks.
+     */
+    private static final ClassValue<Boolean> OVERRIDDEN_HOOKS = new ClassValue<Boolean>()
+    {
+        @Override
+        protected Boolean computeValue(Class<?> type)
+        {
+            return overrides(type, "configure", Object.class, Map.class) ||
+                overrides(type, "setProperty", Object.class, String.class, Object.class);
+        }
+    };
+
+    private static boolean overrides(Class<?> type, String name, Class<?>... parameterTypes)
+    {
+        for (Class<?> c = type; c != ToolInfo.class; c = c.getSuperclass())
+        {
+            try
+            {
+                c.getDeclaredMethod(name, parameterTypes);
+                return true;
+            }
+            catch (NoSuchMethodException nsme) {}
+        }
+        return false;
+    }
+
     private String key;
     private Class clazz;
     private Class factory;
@@ -48,6 +80,9 @@ public class ToolInfo implements java.io.Serializable
     private Map<String,Object> properties;
     private Boolean skipSetters;
     private transient Method configure = null;
+    private transient volatile ToolSetters.Plan setterPlan = null;
+    private transient volatile SharedInstances shared = null;
+    private transient volatile ToolMetrics.Recorder recorder = null;
 
     /**
      * Creates a new instance using the minimum required info
@@ -100,6 +135,8 @@ public class ToolInfo implements java.io.Serializable
             throw new NullPointerException("Tool class must not be null");
         }
         this.clazz = clazz;
+        this.setterPlan = null;
+        this.shared = null;
 
         //NOTE: we used to check here that we could get an instance of
         //      the tool class, but that's been moved to ToolConfiguration
@@ -163,6 +200,67 @@ public class ToolInfo implements java.io.Serializable
     public void setSkipSetters(boolean cfgOnly)
     {
         this.skipSetters = cfgOnly;
+        this.setterPlan = null;
+        clearShared();
+    }
+
+    /**
+     * <p>Set whether instances of this tool are to be shared between the
+     * callers of {@link #create(Map)} which provide the same values for the
+     * properties listed in the {@link ThreadSafe} annotation of the tool
+     * class. At most 64 instances are shared; beyond that, new instances
+     * are created as usual.</p>
+     * @param share flag value
+     * @throws IllegalStateException if the tool class is not annotated
+     *         with {@link ThreadSafe}
+     * @since VelocityTools 4.1
+     */
+    public void setShared(boolean share)
+    {
+        if (!share)
+        {
+            this.shared = null;
+        }
+        else if (!isThreadSafe())
+        {
+            throw new IllegalStateException("Tool class " + getClassname() +
+                                            " is not declared as @ThreadSafe");
+        }
+        else
+        {
+            ThreadSafe threadSafe = (ThreadSafe)clazz.getAnnotation(ThreadSafe.class);
+            this.shared = new SharedInstances(threadSafe.keyedOn(),
+                                              SharedInstances.DEFAULT_MAX_INSTANCES);
+        }
+    }
+
+    /**
+     * Set the recorder of the creations of this tool's instances.
+     * @param recorder tool recorder, or <code>null</code> to stop recording
+     * @since VelocityTools 4.1
+     */
+    void setRecorder(ToolMetrics.Recorder recorder)
+    {
+        this.recorder = recorder;
+    }
+
+    /**
+     * @return tool recorder, or <code>null</code> if metrics are disabled
+     * @since VelocityTools 4.1
+     */
+    ToolMetrics.Recorder getRecorder()
+    {
+        return recorder;
+    }
+
+    /* shared instances are stale once the configuration changes */
+    private void clearShared()
+    {
+        SharedInstances shared = this.shared;
+        if (shared != null)
+        {
+            shared.clear();
+        }
     }
 
     /**
@@ -183,6 +281,7 @@ public class ToolInfo implements java.io.Serializable
                 properties.put(prop.getKey(), prop.getValue());
             }
         }
+        propertiesChanged();
     }
 
     /**
@@ -193,7 +292,23 @@ public class ToolInfo implements java.io.Serializable
      */
     public Object putProperty(String name, Object value)
     {
-        return getProps().put(name, value);
+        Object previous = getProps().put(name, value);
+        propertiesChanged();
+        return previous;
+    }
+
+    /**
+     * Drops what was derived from the properties.
+     */
+    private void propertiesChanged()
+    {
+        // under the lock the plans are compiled with, so that
+        // a plan compiled from stale properties cannot stay
+        synchronized (this)
+        {
+            this.setterPlan = null;
+        }
+        clearShared();
     }
 
     /**
@@ -249,12 +364,125 @@ public class ToolInfo implements java.io.Serializable
     }
 
     /**
-     * Get tool properties
+     * Get tool properties. Changes made to the returned map are
+     * taken into account by the tools created afterwards.
      * @return tools properties
      */
     public Map<String,Object> getProperties()
     {
-        return getProps();
+        return new PropertiesView();
+    }
+
+    /**
+     * View of the properties which notices their changes.
+     */
+    private final class PropertiesView extends AbstractMap<String,Object>
+    {
+        @Override
+        public int size()
+        {
+            return getProps().size();
+        }
+
+        @Override
+        public boolean containsKey(Object name)
+        {
+            return getProps().containsKey(name);
+        }
+
+        @Override
+        public Object get(Object name)
+        {
+            return getProps().get(name);
+        }
+
+        @Override
+        public Object put(String name, Object value)
+        {
+            return putProperty(name, value);
+        }
+
+        @Override
+        public Object remove(Object name)
+        {
+            Object previous = getProps().remove(name);
+            propertiesChanged();
+            return previous;
+        }
+
+        @Override
+        public void clear()
+        {
+            getProps().clear();
+            propertiesChanged();
+        }
+
+        @Override
+        public Set<Map.Entry<String,Object>> entrySet()
+        {
+            return new AbstractSet<Map.Entry<String,Object>>()
+            {
+                @Override
+                public int size()
+                {
+                    return getProps().size();
+                }
+
+                @Override
+                public Iterator<Map.Entry<String,Object>> iterator()
+                {
+                    final Iterator<Map.Entry<String,Object>> entries = getProps().entrySet().iterator();
+                    return new Iterator<Map.Entry<String,Object>>()
+                    {
+                        @Override
+                        public boolean hasNext()
+                        {
+                            return entries.hasNext();
+                        }
+
+                        @Override
+                        public Map.Entry<String,Object> next()
+                        {
+                            final Map.Entry<String,Object> entry = entries.next();
+                            return new AbstractMap.SimpleEntry<String,Object>(entry)
+                            {
+                                @Override
+                                public Object setValue(Object value)
+                                {
+                                    super.setValue(value);
+                                    Object previous = entry.setValue(value);
+                                    propertiesChanged();
+                                    return previous;
+                                }
+                            };
+                        }
+
+                        @Override
+                        public void remove()
+                        {
+                            entries.remove();
+                            propertiesChanged();
+                        }
+                    };
+                }
+            };
+        }
+    }
+
+    /**
+     * Get the request path restriction of this tool
+     * @return the path this tool is restricted to, ending with a
+     *         <code>*</code> if it is a path prefix, or <code>null</code>
+     *         if this tool is available for all paths
+     * @since VelocityTools 4.1
+     */
+    public String getRestrictTo()
+    {
+        if (this.restrictTo == null || restrictToIsExact)
+        {
+            return this.restrictTo;
+        }
+        return this.restrictTo + "*";
     }
 
     /**
@@ -279,6 +507,27 @@ public class ToolInfo implements java.io.Serializable
         return skipSetters;
     }
 
+    /**
+     * Get whether the tool class is annotated with {@link ThreadSafe}
+     * @return whether instances of this tool may be shared
+     * @since VelocityTools 4.1
+     */
+    public boolean isThreadSafe()
+    {
+        return clazz.getAnnotation(ThreadSafe.class) != null;
+    }
+
+    /**
+     * Get whether instances of this tool are shared
+     * @return whether instances of this tool are shared
+     * @see #setShared(boolean)
+     * @since VelocityTools 4.1
+     */
+    public boolean isShared()
+    {
+        return shared != null;
+    }
+
     /**
      * @param path the path of a template requesting this tool
      * @return <code>true</code> if the specified
@@ -311,14 +560,72 @@ public class ToolInfo implements java.io.Serializable
      * has an configure(Map) method, the new instance
      * will be initialized using the given properties combined with
      * whatever "constant" properties have been put into this
-     * ToolInfo.
+     * ToolInfo. If instances of this tool are shared, an instance
+     * previously created for the same key property values is returned
+     * instead.
      * @param dynamicProperties map of dynamic properties
      * @return newly created and configured object
+     * @see #setShared(boolean)
      */
     public Object create(Map<String,Object> dynamicProperties)
     {
-        /* Get the tool instance */
+        SharedInstances shared = this.shared;
+        if (shared == null)
+        {
+            return newTool(dynamicProperties);
+        }
+        Object key = shared.key(properties, dynamicProperties);
+        Object tool = shared.get(key);
+        if (tool == null)
+        {
+            tool = shared.share(key, newTool(dynamicProperties));
+        }
+        return tool;
+    }
+
+    private Object newTool(Map<String,Object> dynamicProperties)
+    {
+        ToolMetrics.Recorder recorder = this.recorder;
+        if (recorder == null)
+        {
+            return configureTool(newInstance(), dynamicProperties);
+        }
+        long start = System.nanoTime();
         Object tool = newInstance();
+        long created = System.nanoTime();
+        recorder.recordNewInstance(created - start);
+        configureTool(tool, dynamicProperties);
+        recorder.recordConfigure(System.nanoTime() - created);
+        return tool;
+    }
+
+    private Object configureTool(Object tool, Map<String,Object> dynamicProperties)
+    {
+        ToolSetters.Plan plan = getSetterPlan(tool);
+        if (plan != null)
+        {
+            /* setters for the configured properties are already
+               resolved, only the dynamic ones need a lookup */
+            try
+            {
+                plan.apply(tool, dynamicProperties);
+            }
+            catch (RuntimeException re)
+            {
+                throw re;
+            }
+            catch (Exception e)
+            {
+                // convert to a runtime exception, and re-throw
+                throw new RuntimeException(e);
+            }
+            if (hasConfigure())
+            {
+                invoke(getConfigure(), tool, properties == null ?
+                       dynamicProperties : combine(dynamicProperties, properties));
+            }
+            return tool;
+        }
 
         /* put configured props into the combo last, since
            dynamic properties will almost always be conventions
@@ -341,6 +648,47 @@ public class ToolInfo implements java.io.Serializable
 
     /***********************  protected methods *************************/
 
+    /**
+     * Get the setters plan for the configured properties of this tool,
+     * compiling it if needed.
+     * @param tool newly created tool
+     * @return setters plan, or <code>null</code> if setters are to be skipped,
+     *         if the tool is not an instance of the exact tool class, or if
+     *         {@link #configure(Object, Map)} or {@link #setProperty(Object, String, Object)}
+     *         are overridden
+     */
+    private ToolSetters.Plan getSetterPlan(Object tool)
+    {
+        // a factory may return a subclass, left to configure()
+        if (isSkipSetters() || tool.getClass() != clazz)
+        {
+            return null;
+        }
+        // overridden configuration hooks must keep being called
+        if (OVERRIDDEN_HOOKS.get(getClass()))
+        {
+            return null;
+        }
+        ToolSetters.Plan plan = this.setterPlan;
+        if (plan != null)
+        {
+            return plan;
+        }
+        // only lock to compile the plan, which property changes drop
+        synchronized (this)
+        {
+            plan = this.setterPlan;
+            if (plan == null)
+            {
+                Map<String,Object> props = properties == null ?
+                    Collections.<String,Object>emptyMap() : properties;
+                plan = ToolSetters.of(clazz).compile(tool, new HashMap<String,Object>(props));
+                this.setterPlan = plan;
+            }
+            return plan;
+        }
+    }
+
     /**
      * Actually performs configuration of the newly instantiated tool
      * using the combined final set of configuration properties. First,
@@ -407,18 +755,6 @@ public class ToolInfo implements java.io.Serializable
         return this.configure;
     }
 
-    /* TODO? if we have performance issues with copyProperties,
-             look at possibly finding and caching these common setters
-                setContext(VelocityContext)
-                setVelocityEngine(VelocityEngine)
-                setLog(Log)
-                setLocale(Locale)
-             these four are tricky since we may not want servlet deps here
-                setRequest(ServletRequest)
-                setSession(HttpSession)
-                setResponse(ServletResponse)
-                setServletContext(ServletContext)    */
-
     /**
      * Creates a new instance for this tool.
      * @return newly created tool
@@ -494,11 +830,12 @@ public class ToolInfo implements java.io.Serializable
      */
     protected void setProperty(Object tool, String name, Object value) throws Exception
     {
-        if (PropertyUtils.isWriteable(tool, name))
+        ToolSetters.Setter setter = ToolSetters.of(tool.getClass()).get(tool, name);
+        if (setter != null)
         {
             //TODO? support property conversion here?
             //      heavy-handed way is BeanUtils.copyProperty(...)
-            PropertyUtils.setProperty(tool, name, value);
+            setter.set(tool, value);
         }
     }
 
@@ -510,7 +847,16 @@ public class ToolInfo implements java.io.Serializable
      */
     protected Map<String,Object> combine(Map<String,Object>... maps)
     {
-        Map<String,Object> combined = new HashMap<String,Object>();
+        int size = 0;
+        for (Map<String,Object> map : maps)
+        {
+            if (map != null)
+            {
+                size += map.size();
+            }
+        }
+        // sized so that it never has to be rehashed
+        Map<String,Object> combined = new HashMap<String,Object>(size * 4 / 3 + 1);
         for (Map<String,Object> map : maps)
         {
             if (map != null)
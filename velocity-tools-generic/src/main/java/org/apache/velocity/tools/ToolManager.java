@@ -19,6 +19,7 @@ package org.apache.velocity.tools;
  * under the License.
  */
 
+import java.util.HashMap;
 import java.util.Map;
 
 import org.apache.velocity.app.VelocityEngine;
@@ -41,10 +42,12 @@ import org.slf4j.LoggerFactory;
 public class ToolManager
 {
     protected VelocityEngine velocity;
-    protected ToolboxFactory factory;
+    protected volatile ToolboxFactory factory;
     protected Logger log = null;
-    private Toolbox application;
+    private volatile Toolbox application;
+    private volatile long version = 0;
     private boolean userOverwrite = true;
+    private ToolMetrics metrics;
 
     /**
      * Constructs an instance already configured to use the default tools and
@@ -111,6 +114,16 @@ public class ToolManager
         // clear the cached application toolbox
         this.application = null;
         this.factory.configure(config);
+        logSharedTools(this.factory);
+    }
+
+    private void logSharedTools(ToolboxFactory factory)
+    {
+        for (ToolInfo info : factory.getSharedTools())
+        {
+            getLog().info("Instances of thread-safe tool '{}' ({}) are shared between toolboxes",
+                          info.getKey(), info.getClassname());
+        }
     }
 
     /**
@@ -130,6 +143,84 @@ public class ToolManager
         }
     }
 
+    /**
+     * <p>Replaces the whole tools configuration of a running application.
+     * A new {@link ToolboxFactory} is configured off to the side, then
+     * swapped in at once: contexts prepared before the swap keep the tools
+     * of the previous configuration, those prepared after it only see the
+     * new one. Unlike {@link #configure(FactoryConfiguration)}, this does
+     * not add to the current configuration.</p>
+     * <p>If the new configuration is invalid, an exception is thrown
+     * and the current configuration is left untouched.</p>
+     * @param config the complete new toolbox factory config
+     * @param prewarm whether to create all the application tools
+     *        before the swap, so that no request has to wait for them
+     * @since VelocityTools 4.1
+     */
+    public void reconfigure(FactoryConfiguration config, boolean prewarm)
+    {
+        ToolboxFactory fresh = new ToolboxFactory();
+        fresh.setMetrics(this.metrics);
+        fresh.configure(config);
+        Toolbox toolbox = null;
+        if (prewarm && fresh.hasTools(Scope.APPLICATION))
+        {
+            toolbox = fresh.createToolbox(Scope.APPLICATION);
+            toolbox.getAll(getPrewarmProperties());
+        }
+        long version;
+        synchronized (this)
+        {
+            // the application toolbox is created under this lock, from
+            // the current factory, so it cannot outlive the swap
+            this.application = toolbox;
+            this.factory = fresh;
+            version = ++this.version;
+            reconfigured();
+        }
+        getLog().info("Tools configuration reloaded (version {})", version);
+        logSharedTools(fresh);
+    }
+
+    /**
+     * Called by {@link #reconfigure(FactoryConfiguration, boolean)} right
+     * after the new configuration replaced the previous one, while still
+     * holding this manager's lock, so that subclasses can drop any state
+     * derived from the previous configuration atomically with the swap.
+     * @since VelocityTools 4.1
+     */
+    protected void reconfigured()
+    {
+    }
+
+    /**
+     * Get the number of times the configuration was replaced by
+     * {@link #reconfigure(FactoryConfiguration, boolean)}.
+     * @return configuration version
+     * @since VelocityTools 4.1
+     */
+    public long getConfigurationVersion()
+    {
+        return this.version;
+    }
+
+    /**
+     * Get the properties application tools are created with when
+     * pre-warmed by {@link #reconfigure(FactoryConfiguration, boolean)}.
+     * @return tool properties
+     * @since VelocityTools 4.1
+     */
+    protected Map<String,Object> getPrewarmProperties()
+    {
+        Map<String,Object> props = new HashMap<String,Object>();
+        if (this.velocity != null)
+        {
+            props.put(ToolContext.ENGINE_KEY, this.velocity);
+            props.put(ToolContext.LOG_KEY, ConfigurationUtils.getLog(this.velocity, "tools"));
+        }
+        return props;
+    }
+
     /**
      * Find a configuration file
      * @param path path to a configuration file
@@ -164,10 +255,40 @@ public class ToolManager
                 throw new NullPointerException("ToolboxFactory cannot be null");
             }
             getLog().debug("ToolboxFactory instance was changed to {}", factory);
+            if (this.metrics != null)
+            {
+                factory.setMetrics(this.metrics);
+            }
             this.factory = factory;
         }
     }
 
+    /**
+     * <p>Starts recording per-tool metrics (see {@link ToolMetrics}), or
+     * stops it if <code>null</code> is given. Metrics should be set before
+     * any context is created: the already created toolboxes would not
+     * record their cache hits and misses.</p>
+     * <p>The same metrics keep on being recorded across
+     * {@link #reconfigure(FactoryConfiguration, boolean)} calls.</p>
+     * @param metrics tool metrics
+     * @since VelocityTools 4.1
+     */
+    public void setMetrics(ToolMetrics metrics)
+    {
+        this.metrics = metrics;
+        this.factory.setMetrics(metrics);
+    }
+
+    /**
+     * Get the per-tool metrics being recorded
+     * @return tool metrics, or <code>null</code> if disabled
+     * @since VelocityTools 4.1
+     */
+    public ToolMetrics getMetrics()
+    {
+        return this.metrics;
+    }
+
     /**
      * Sets the underlying VelocityEngine being used.
      * <b>If you use this, be sure that your VelocityEngine
@@ -273,6 +394,7 @@ public class ToolManager
     protected void prepareContext(ToolContext context)
     {
         context.setUserCanOverwriteTools(this.userOverwrite);
+        context.setMetrics(this.metrics);
         if (this.velocity != null)
         {
             context.putVelocityEngine(this.velocity);
@@ -351,11 +473,21 @@ public class ToolManager
      */
     public Toolbox getApplicationToolbox()
     {
-        if (this.application == null && hasApplicationTools())
+        Toolbox toolbox = this.application;
+        if (toolbox == null && hasApplicationTools())
         {
-            this.application = createToolbox(Scope.APPLICATION);
+            synchronized (this)
+            {
+                toolbox = this.application;
+                if (toolbox == null)
+                {
+                    // only one shared toolbox, lest its tools be created twice
+                    toolbox = createToolbox(Scope.APPLICATION);
+                    this.application = toolbox;
+                }
+            }
         }
-        return this.application;
+        return toolbox;
     }
 
 }
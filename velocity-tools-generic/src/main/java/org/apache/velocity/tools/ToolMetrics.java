@@ -0,0 +1,460 @@
+package org.apache.velocity.tools;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * <p>Per-tool instrumentation of the toolboxes of a {@link ToolManager}:
+ * for each tool key and scope, it counts instance creations and cache hits
+ * and misses, and records the latency of the tool instantiations,
+ * of their configuration, and of their lookups by {@link ToolContext}.</p>
+ * <p>Recording is meant to stay on in production: counters are striped
+ * {@link LongAdder}s, and latencies go to fixed power-of-two buckets.
+ * When no metrics are set, the toolboxes only pay for a null check.</p>
+ * <p>Statistics are available through {@link #getSnapshot()}, and through
+ * JMX since this class is a {@link ToolMetricsMXBean}.</p>
+ *
+ * @see ToolManager#setMetrics(ToolMetrics)
+ * @since VelocityTools 4.1
+ * @version $Id$
+ */
+public class ToolMetrics implements ToolMetricsMXBean
+{
+    private final ConcurrentMap<String,Recorder> recorders =
+        new ConcurrentHashMap<String,Recorder>();
+    private final ConcurrentMap<String,Histogram> lookups =
+        new ConcurrentHashMap<String,Histogram>();
+    private final Histogram unmatchedLookups = new Histogram();
+
+    /**
+     * Get the recorder of a tool, creating it if needed.
+     * @param scope tool scope
+     * @param key tool key
+     * @return tool recorder
+     */
+    public Recorder getRecorder(String scope, String key)
+    {
+        String id = scope + '/' + key;
+        Recorder recorder = recorders.get(id);
+        if (recorder == null)
+        {
+            Histogram lookup = lookups.get(key);
+            if (lookup == null)
+            {
+                lookup = new Histogram();
+                Histogram previous = lookups.putIfAbsent(key, lookup);
+                if (previous != null)
+                {
+                    lookup = previous;
+                }
+            }
+            recorder = new Recorder(scope, key, lookup);
+            Recorder previous = recorders.putIfAbsent(id, recorder);
+            if (previous != null)
+            {
+                recorder = previous;
+            }
+        }
+        return recorder;
+    }
+
+    /**
+     * Records the time a {@link ToolContext} spent looking up a key
+     * in its toolboxes. Lookups of keys which are not those of a tool
+     * are gathered together.
+     * @param key looked up key
+     * @param nanos lookup duration, in nanoseconds
+     */
+    public void recordLookup(String key, long nanos)
+    {
+        Histogram lookup = key == null ? null : lookups.get(key);
+        if (lookup == null)
+        {
+            lookup = unmatchedLookups;
+        }
+        lookup.record(nanos);
+    }
+
+    public List<ToolStatistics> getSnapshot()
+    {
+        List<ToolStatistics> snapshot = new ArrayList<ToolStatistics>(recorders.size());
+        for (Recorder recorder : recorders.values())
+        {
+            snapshot.add(recorder.snapshot());
+        }
+        Collections.sort(snapshot, new Comparator<ToolStatistics>()
+        {
+            public int compare(ToolStatistics one, ToolStatistics other)
+            {
+                int result = one.getScope().compareTo(other.getScope());
+                return result != 0 ? result : one.getKey().compareTo(other.getKey());
+            }
+        });
+        return snapshot;
+    }
+
+    /**
+     * Get the statistics of a single tool.
+     * @param scope tool scope
+     * @param key tool key
+     * @return tool statistics, or <code>null</code> if nothing was recorded
+     */
+    public ToolStatistics getStatistics(String scope, String key)
+    {
+        Recorder recorder = recorders.get(scope + '/' + key);
+        return recorder == null ? null : recorder.snapshot();
+    }
+
+    public Latency getUnmatchedLookups()
+    {
+        return unmatchedLookups.snapshot();
+    }
+
+    public void reset()
+    {
+        for (Recorder recorder : recorders.values())
+        {
+            recorder.reset();
+        }
+        for (Histogram lookup : lookups.values())
+        {
+            lookup.reset();
+        }
+        unmatchedLookups.reset();
+    }
+
+    /**
+     * Records the events of one tool.
+     */
+    public static final class Recorder
+    {
+        private final String scope;
+        private final String key;
+        private final LongAdder creations = new LongAdder();
+        private final LongAdder cacheHits = new LongAdder();
+        private final LongAdder cacheMisses = new LongAdder();
+        private final Histogram newInstance = new Histogram();
+        private final Histogram configure = new Histogram();
+        private final Histogram lookup;
+
+        Recorder(String scope, String key, Histogram lookup)
+        {
+            this.scope = scope;
+            this.key = key;
+            this.lookup = lookup;
+        }
+
+        /**
+         * @param nanos duration of the tool instantiation, in nanoseconds
+         */
+        public void recordNewInstance(long nanos)
+        {
+            creations.increment();
+            newInstance.record(nanos);
+        }
+
+        /**
+         * @param nanos duration of the tool configuration, in nanoseconds
+         */
+        public void recordConfigure(long nanos)
+        {
+            configure.record(nanos);
+        }
+
+        /**
+         * @param hit whether the tool was found in the toolbox cache
+         */
+        public void recordCacheAccess(boolean hit)
+        {
+            (hit ? cacheHits : cacheMisses).increment();
+        }
+
+        ToolStatistics snapshot()
+        {
+            return new ToolStatistics(scope, key, creations.sum(),
+                                      cacheHits.sum(), cacheMisses.sum(),
+                                      newInstance.snapshot(), configure.snapshot(),
+                                      lookup.snapshot());
+        }
+
+        void reset()
+        {
+            creations.reset();
+            cacheHits.reset();
+            cacheMisses.reset();
+            newInstance.reset();
+            configure.reset();
+        }
+    }
+
+    /**
+     * Latency histogram, with one bucket per power of two nanoseconds.
+     */
+    static final class Histogram
+    {
+        /* the last bucket gathers everything above 2^38 ns, about 4.5 minutes */
+        static final int BUCKETS = 40;
+
+        private static final LongBinaryOperator MAX = new LongBinaryOperator()
+        {
+            public long applyAsLong(long left, long right)
+            {
+                return Math.max(left, right);
+            }
+        };
+
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(MAX, 0L);
+
+        Histogram()
+        {
+            for (int i = 0; i < BUCKETS; i++)
+            {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos)
+        {
+            if (nanos < 0)
+            {
+                nanos = 0;
+            }
+            buckets[Math.min(64 - Long.numberOfLeadingZeros(nanos), BUCKETS - 1)].increment();
+            total.add(nanos);
+            max.accumulate(nanos);
+        }
+
+        Latency snapshot()
+        {
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++)
+            {
+                counts[i] = buckets[i].sum();
+            }
+            return new Latency(counts, total.sum(), max.get());
+        }
+
+        void reset()
+        {
+            for (LongAdder bucket : buckets)
+            {
+                bucket.reset();
+            }
+            total.reset();
+            max.reset();
+        }
+    }
+
+    /**
+     * Snapshot of the statistics of one tool.
+     */
+    public static final class ToolStatistics
+    {
+        private final String scope;
+        private final String key;
+        private final long creations;
+        private final long cacheHits;
+        private final long cacheMisses;
+        private final Latency newInstance;
+        private final Latency configure;
+        private final Latency lookup;
+
+        ToolStatistics(String scope, String key, long creations,
+                       long cacheHits, long cacheMisses, Latency newInstance,
+                       Latency configure, Latency lookup)
+        {
+            this.scope = scope;
+            this.key = key;
+            this.creations = creations;
+            this.cacheHits = cacheHits;
+            this.cacheMisses = cacheMisses;
+            this.newInstance = newInstance;
+            this.configure = configure;
+            this.lookup = lookup;
+        }
+
+        public String getScope()
+        {
+            return scope;
+        }
+
+        public String getKey()
+        {
+            return key;
+        }
+
+        /**
+         * @return number of tool instances created
+         */
+        public long getCreations()
+        {
+            return creations;
+        }
+
+        /**
+         * @return number of times an instance was found in a toolbox
+         */
+        public long getCacheHits()
+        {
+            return cacheHits;
+        }
+
+        /**
+         * @return number of times an instance had to be created,
+         *         or shared, for a toolbox
+         */
+        public long getCacheMisses()
+        {
+            return cacheMisses;
+        }
+
+        /**
+         * @return latency of the tool instantiations
+         */
+        public Latency getNewInstance()
+        {
+            return newInstance;
+        }
+
+        /**
+         * @return latency of the configuration of new instances,
+         *         setters and <code>configure()</code> method included
+         */
+        public Latency getConfigure()
+        {
+            return configure;
+        }
+
+        /**
+         * @return latency of the lookups of this key by tool contexts,
+         *         whatever the scope of the tool found
+         */
+        public Latency getLookup()
+        {
+            return lookup;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Tool '" + key + "' (" + scope + "): " + creations + " creations, " +
+                cacheHits + " hits, " + cacheMisses + " misses, newInstance " +
+                newInstance + ", configure " + configure + ", lookup " + lookup;
+        }
+    }
+
+    /**
+     * Snapshot of a latency histogram. Percentiles are
+     * upper bounds, precise to a power of two.
+     */
+    public static final class Latency
+    {
+        private final long[] counts;
+        private final long count;
+        private final long totalNanos;
+        private final long maxNanos;
+
+        Latency(long[] counts, long totalNanos, long maxNanos)
+        {
+            long count = 0;
+            for (long bucket : counts)
+            {
+                count += bucket;
+            }
+            this.counts = counts;
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        public long getCount()
+        {
+            return count;
+        }
+
+        public long getTotalNanos()
+        {
+            return totalNanos;
+        }
+
+        public long getMeanNanos()
+        {
+            return count == 0 ? 0 : totalNanos / count;
+        }
+
+        public long getMaxNanos()
+        {
+            return maxNanos;
+        }
+
+        public long getMedianNanos()
+        {
+            return getPercentileNanos(50);
+        }
+
+        public long get99thPercentileNanos()
+        {
+            return getPercentileNanos(99);
+        }
+
+        /**
+         * @param percentile percentile, between 0 and 100
+         * @return upper bound of the latency under which this
+         *         percentage of the events fall, in nanoseconds
+         */
+        public long getPercentileNanos(double percentile)
+        {
+            if (count == 0)
+            {
+                return 0;
+            }
+            long rank = (long)Math.ceil(count * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++)
+            {
+                seen += counts[i];
+                if (seen >= rank && seen > 0)
+                {
+                    // bucket i holds values below 2^i
+                    return Math.min(i == 0 ? 0 : (1L << i) - 1, maxNanos);
+                }
+            }
+            return maxNanos;
+        }
+
+        @Override
+        public String toString()
+        {
+            return count + " in " + totalNanos + "ns (median " + getMedianNanos() +
+                "ns, 99% " + get99thPercentileNanos() + "ns, max " + maxNanos + "ns)";
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package org.apache.velocity.tools;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.List;
+
+/**
+ * JMX management interface of {@link ToolMetrics}.
+ *
+ * @since VelocityTools 4.1
+ * @version $Id$
+ */
+public interface ToolMetricsMXBean
+{
+    /**
+     * @return statistics of each instrumented tool, by scope and key
+     */
+    List<ToolMetrics.ToolStatistics> getSnapshot();
+
+    /**
+     * @return latency of the tool context lookups which did not
+     *         concern a tool key, like data or missing references
+     */
+    ToolMetrics.Latency getUnmatchedLookups();
+
+    /**
+     * Zeroes all the counters and histograms.
+     */
+    void reset();
+}
@@ -0,0 +1,257 @@
+package org.apache.velocity.tools;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.beans.IndexedPropertyDescriptor;
+import java.beans.PropertyDescriptor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.commons.beanutils.MethodUtils;
+import org.apache.commons.beanutils.PropertyUtils;
+import org.apache.commons.lang3.ClassUtils;
+
+/**
+ * <p>Setters of a tool class, resolved once per class (and held
+ * in a {@link ClassValue}) rather than introspected for each
+ * new tool instance.</p>
+ * <p>Simple JavaBeans properties are bound to {@link MethodHandle}s.
+ * Anything else {@link PropertyUtils} considers writeable (mapped,
+ * indexed or nested properties) keeps being set through
+ * {@link PropertyUtils}, so that the properties a tool accepts are
+ * exactly the same as before.</p>
+ *
+ * @since VelocityTools 4.1
+ * @version $Id$
+ */
+final class ToolSetters
+{
+    private static final ClassValue<ToolSetters> SETTERS = new ClassValue<ToolSetters>()
+    {
+        @Override
+        protected ToolSetters computeValue(Class<?> type)
+        {
+            return new ToolSetters(type);
+        }
+    };
+
+    private static final MethodType SETTER_TYPE =
+        MethodType.methodType(void.class, Object.class, Object.class);
+
+    /* marks names for which there is no setter */
+    private static final Setter NONE = new Setter(null, null, null);
+
+    private final ConcurrentMap<String,Setter> setters =
+        new ConcurrentHashMap<String,Setter>();
+
+    private ToolSetters(Class<?> type)
+    {
+        for (PropertyDescriptor descriptor : PropertyUtils.getPropertyDescriptors(type))
+        {
+            if (descriptor instanceof IndexedPropertyDescriptor ||
+                descriptor.getWriteMethod() == null)
+            {
+                // left to PropertyUtils, see get()
+                continue;
+            }
+            Method method = MethodUtils.getAccessibleMethod(type, descriptor.getWriteMethod());
+            if (method != null)
+            {
+                try
+                {
+                    MethodHandle handle = MethodHandles.publicLookup().unreflect(method);
+                    setters.put(descriptor.getName(),
+                                new Setter(descriptor.getName(),
+                                           method.getParameterTypes()[0],
+                                           handle.asType(SETTER_TYPE)));
+                }
+                catch (IllegalAccessException iae)
+                {
+                    // left to PropertyUtils
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the setters of the given tool class
+     * @param type tool class
+     * @return setters of this class
+     */
+    static ToolSetters of(Class<?> type)
+    {
+        return SETTERS.get(type);
+    }
+
+    /**
+     * Get the setter of a property
+     * @param tool tool instance, of this class
+     * @param name property name
+     * @return property setter, or <code>null</code> if this
+     *         property is not writeable
+     */
+    Setter get(Object tool, String name)
+    {
+        Setter setter = setters.get(name);
+        if (setter == null)
+        {
+            // nested names depend upon the state of the tool, they cannot be cached
+            if (name.indexOf('.') >= 0 || name.indexOf('(') >= 0 || name.indexOf('[') >= 0)
+            {
+                return isWriteable(tool, name) ? new Setter(name, null, null) : null;
+            }
+            setter = isWriteable(tool, name) ? new Setter(name, null, null) : NONE;
+            Setter previous = setters.putIfAbsent(name, setter);
+            if (previous != null)
+            {
+                setter = previous;
+            }
+        }
+        return setter == NONE ? null : setter;
+    }
+
+    private static boolean isWriteable(Object tool, String name)
+    {
+        return PropertyUtils.isWriteable(tool, name);
+    }
+
+    /**
+     * Compiles a map of configuration properties into a {@link Plan}.
+     * @param tool tool instance used to resolve setters
+     * @param properties configuration properties
+     * @return configuration plan
+     */
+    Plan compile(Object tool, Map<String,Object> properties)
+    {
+        return new Plan(this, tool, properties);
+    }
+
+    /**
+     * A property setter
+     */
+    static final class Setter
+    {
+        private final String name;
+        private final Class<?> type;
+        private final boolean primitive;
+        private final MethodHandle handle;
+
+        private Setter(String name, Class<?> type, MethodHandle handle)
+        {
+            this.name = name;
+            this.primitive = type != null && type.isPrimitive();
+            this.type = primitive ? ClassUtils.primitiveToWrapper(type) : type;
+            this.handle = handle;
+        }
+
+        void set(Object tool, Object value) throws Exception
+        {
+            if (handle == null || (value == null ? primitive : !type.isInstance(value)))
+            {
+                // let PropertyUtils deal with widenings and report mismatches
+                PropertyUtils.setProperty(tool, name, value);
+                return;
+            }
+            try
+            {
+                handle.invokeExact(tool, value);
+            }
+            catch (Exception | Error e)
+            {
+                throw e;
+            }
+            catch (Throwable t)
+            {
+                throw new RuntimeException(t);
+            }
+        }
+    }
+
+    /**
+     * <p>Configuration properties compiled against the setters
+     * of a tool class: the properties having a setter are
+     * resolved once, and the dynamic properties that they
+     * override are skipped.</p>
+     */
+    static final class Plan
+    {
+        private final ToolSetters setters;
+        private final Set<String> keys;
+        private final Setter[] staticSetters;
+        private final Object[] staticValues;
+
+        private Plan(ToolSetters setters, Object tool, Map<String,Object> properties)
+        {
+            this.setters = setters;
+            this.keys = new HashSet<String>(properties.keySet());
+            List<Setter> found = new ArrayList<Setter>(properties.size());
+            List<Object> values = new ArrayList<Object>(properties.size());
+            for (Map.Entry<String,Object> property : properties.entrySet())
+            {
+                Setter setter = setters.get(tool, property.getKey());
+                if (setter != null)
+                {
+                    found.add(setter);
+                    values.add(property.getValue());
+                }
+            }
+            this.staticSetters = found.toArray(new Setter[found.size()]);
+            this.staticValues = values.toArray();
+        }
+
+        /**
+         * Calls the setters matching the dynamic properties, then
+         * the setters for the configured properties, which win.
+         * @param tool tool instance
+         * @param dynamicProperties dynamic properties, may be <code>null</code>
+         * @throws Exception if a setter threw
+         */
+        void apply(Object tool, Map<String,Object> dynamicProperties) throws Exception
+        {
+            if (dynamicProperties != null)
+            {
+                for (Map.Entry<String,Object> property : dynamicProperties.entrySet())
+                {
+                    String name = property.getKey();
+                    if (!keys.contains(name))
+                    {
+                        Setter setter = setters.get(tool, name);
+                        if (setter != null)
+                        {
+                            setter.set(tool, property.getValue());
+                        }
+                    }
+                }
+            }
+            for (int i = 0; i < staticSetters.length; i++)
+            {
+                staticSetters[i].set(tool, staticValues[i]);
+            }
+        }
+    }
+}
@@ -19,11 +19,18 @@ package org.apache.velocity.tools;
  * under the License.
  */
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * <p>Instances of this class are typically created by a {@link ToolboxFactory}
@@ -35,6 +42,11 @@ import java.util.Set;
  * </p><p>
  * When a Toolbox creates a tool instance asked of it (see {@link #get}),
  * it will cache that instance for future requests.
+ * </p><p>
+ * Toolboxes are safe for concurrent use. Tool creation happens at most
+ * once per key: threads racing for the same missing tool wait for the
+ * single creation in progress, while threads asking for other tools
+ * are never blocked by it.
  * </p>
  *
  * @author Nathan Bubna
@@ -51,7 +63,12 @@ public class Toolbox implements java.io.Serializable
 
     private Map<String,ToolInfo> infoMap;
     private Map<String,Object> properties;
-    private Map<String,Object> cache;
+    // always a ConcurrentMap, but declared as a Map so that toolboxes
+    // serialized by previous versions can still be deserialized
+    private volatile Map<String,Object> cache;
+    private transient volatile ConcurrentMap<String,Creation> pending;
+    private transient volatile PathRestrictions restrictions;
+    private transient boolean instrumented;
 
     public Toolbox(Map<String,ToolInfo> toolInfo)
     {
@@ -73,9 +90,17 @@ public class Toolbox implements java.io.Serializable
 
     protected void cacheData(Map<String,Object> data)
     {
-        if (data != null && !data.isEmpty())
+        if (data != null)
         {
-            cache = new HashMap<String,Object>(data);
+            for (Map.Entry<String,Object> datum : data.entrySet())
+            {
+                // a concurrent map cannot hold null values,
+                // and a null datum is the same as a missing one
+                if (datum.getValue() != null)
+                {
+                    getCache().put(datum.getKey(), datum.getValue());
+                }
+            }
         }
     }
 
@@ -107,15 +132,8 @@ public class Toolbox implements java.io.Serializable
 
         if (tool == null)
         {
-            /* synchronize and try again */
-            synchronized (this)
-            {
-                tool = getFromCache(key, path);
-                if (tool == null)
-                {
-                    tool = getFromInfo(key, path, context);
-                }
-            }
+            /* create it, or wait for whoever is already creating it */
+            tool = getFromInfo(key, path, context);
         }
         return tool;
     }
@@ -123,47 +141,225 @@ public class Toolbox implements java.io.Serializable
 
     protected Object getFromCache(String key, String path)
     {
-        if (cache == null)
+        Map<String,Object> cache = this.cache;
+        Object tool = cache == null ? null : cache.get(key);
+        if (instrumented)
+        {
+            recordCacheAccess(key, tool != null);
+        }
+        if (tool == null)
         {
             return null;
         }
+        else if (path == null)
+        {
+            return tool;
+        }
+        else if (hasPermission(infoMap.get(key), path))
+        {
+            return tool;
+        }
         else
         {
-            Object tool = cache.get(key);
-            if (tool == null)
+            return null;
+        }
+    }
+
+    private void recordCacheAccess(String key, boolean hit)
+    {
+        ToolInfo info = infoMap.get(key);
+        ToolMetrics.Recorder recorder = info == null ? null : info.getRecorder();
+        if (recorder != null)
+        {
+            recorder.recordCacheAccess(hit);
+        }
+    }
+
+    /**
+     * Set whether cache hits and misses are to be recorded, in the
+     * recorders of the tools (see {@link ToolMetrics}).
+     * @param instrumented flag value
+     */
+    void setInstrumented(boolean instrumented)
+    {
+        this.instrumented = instrumented;
+    }
+
+    protected Object getFromInfo(String key, String path,
+                                 Map<String,Object> context)
+    {
+        ToolInfo info = infoMap.get(key);
+        if (info != null && (path == null || hasPermission(info, path)))
+        {
+            return create(info, context);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the cached instance of the specified tool, creating
+     * and caching it if needed. Only one thread ever creates a given
+     * tool; any other thread asking for the same tool meanwhile
+     * waits for that creation to complete and gets its result.
+     * @param info tool info
+     * @param context dynamic properties for the tool creation
+     * @return the tool instance
+     * @since VelocityTools 4.1
+     */
+    protected Object create(final ToolInfo info, final Map<String,Object> context)
+    {
+        String key = info.getKey();
+        ConcurrentMap<String,Object> cache = getCache();
+        Object tool = cache.get(key);
+        if (tool != null)
+        {
+            return tool;
+        }
+
+        Creation creation = new Creation(new Callable<Object>()
+        {
+            public Object call()
             {
-                return null;
+                return info.create(context);
             }
-            else if (path == null)
+        });
+        ConcurrentMap<String,Creation> pending = getPending();
+        Creation running = pending.putIfAbsent(key, creation);
+        if (running != null && running.creator == Thread.currentThread())
+        {
+            // waiting for ourselves would never end
+            throw new IllegalStateException("tool '" + key + "' was requested again while being created");
+        }
+        if (running == null)
+        {
+            running = creation;
+            try
             {
+                /* the creation we may have missed is either still pending
+                   or it has already been cached, since tools are cached
+                   before their pending creation gets removed */
+                tool = cache.get(key);
+                if (tool != null)
+                {
+                    return tool;
+                }
+                creation.run();
+                tool = unwrap(creation);
+                if (tool != null)
+                {
+                    cache.put(key, tool);
+                }
                 return tool;
             }
-            else if (hasPermission(infoMap.get(key), path))
+            finally
             {
-                return tool;
+                pending.remove(key, creation);
             }
-            else
+        }
+        return unwrap(running);
+    }
+
+    private ConcurrentMap<String,Object> getCache()
+    {
+        // only allocated once there is something to cache
+        if (cache == null)
+        {
+            synchronized (this)
             {
-                return null;
+                if (cache == null)
+                {
+                    cache = new ConcurrentHashMap<String,Object>();
+                }
             }
         }
+        return (ConcurrentMap<String,Object>)cache;
     }
 
-    protected Object getFromInfo(String key, String path,
-                                 Map<String,Object> context)
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
     {
-        ToolInfo info = infoMap.get(key);
-        if (info != null && (path == null || hasPermission(info, path)))
+        in.defaultReadObject();
+        if (cache != null && !(cache instanceof ConcurrentMap))
         {
-            Object tool = info.create(context);
-            if (cache == null)
+            // a concurrent map cannot hold null values
+            Map<String,Object> concurrent = new ConcurrentHashMap<String,Object>();
+            for (Map.Entry<String,Object> entry : cache.entrySet())
             {
-                cache = new HashMap<String,Object>();
+                if (entry.getValue() != null)
+                {
+                    concurrent.put(entry.getKey(), entry.getValue());
+                }
+            }
+            cache = concurrent;
+        }
+    }
+
+    private ConcurrentMap<String,Creation> getPending()
+    {
+        // transient, so it has to be lazily restored after deserialization
+        if (pending == null)
+        {
+            synchronized (this)
+            {
+                if (pending == null)
+                {
+                    pending = new ConcurrentHashMap<String,Creation>();
+                }
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Creation of a tool, which remembers the thread running it.
+     */
+    private static final class Creation extends FutureTask<Object>
+    {
+        final Thread creator = Thread.currentThread();
+
+        Creation(Callable<Object> callable)
+        {
+            super(callable);
+        }
+    }
+
+    private static Object unwrap(FutureTask<Object> creation)
+    {
+        boolean interrupted = false;
+        try
+        {
+            while (true)
+            {
+                try
+                {
+                    return creation.get();
+                }
+                catch (InterruptedException ie)
+                {
+                    // another thread is creating the tool, we must wait for it
+                    interrupted = true;
+                }
+            }
+        }
+        catch (ExecutionException ee)
+        {
+            Throwable cause = ee.getCause();
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException)cause;
+            }
+            else if (cause instanceof Error)
+            {
+                throw (Error)cause;
+            }
+            throw new RuntimeException(cause);
+        }
+        finally
+        {
+            if (interrupted)
+            {
+                Thread.currentThread().interrupt();
             }
-            cache.put(key, tool);
-            return tool;
         }
-        return null;
     }
 
     protected boolean hasPermission(ToolInfo info, String path)
@@ -175,11 +371,70 @@ public class Toolbox implements java.io.Serializable
         return info.hasPermission(path);
     }
 
+    /**
+     * Get the keys of the tools which are restricted to other paths
+     * than the given one. This is meant for callers resolving tools
+     * availability once per path, which can then skip permission
+     * checks by passing a <code>null</code> path to {@link #get}.
+     * @param path request path
+     * @return read-only set of keys
+     * @since VelocityTools 4.1
+     */
+    public Set<String> getUnavailableKeys(String path)
+    {
+        return getRestrictions().getUnavailableKeys(path);
+    }
+
+    /**
+     * Get the compiled path restrictions of this toolbox's tools
+     * @return path restrictions
+     * @since VelocityTools 4.1
+     */
+    protected PathRestrictions getRestrictions()
+    {
+        PathRestrictions restrictions = this.restrictions;
+        if (restrictions == null)
+        {
+            // not shared with other toolboxes, so compile our own
+            restrictions = PathRestrictions.compile(infoMap.values());
+            this.restrictions = restrictions;
+        }
+        return restrictions;
+    }
+
+    /**
+     * Share already compiled path restrictions, which must
+     * match the tools of this toolbox.
+     * @param restrictions path restrictions
+     */
+    void setRestrictions(PathRestrictions restrictions)
+    {
+        this.restrictions = restrictions;
+    }
+
+    /**
+     * Tells whether this toolbox has a tool or a datum for this key,
+     * regardless of path restrictions, without creating any tool.
+     * @param key tool or data key
+     * @return <code>true</code> if {@link #getKeys} contains this key
+     * @since VelocityTools 4.1
+     */
+    public boolean containsKey(String key)
+    {
+        if (infoMap.containsKey(key))
+        {
+            return true;
+        }
+        Map<String,Object> cache = this.cache;
+        return cache != null && cache.containsKey(key);
+    }
+
     public Set<String> getKeys()
     {
         // add keys for all available tools
         Set<String> keys = new HashSet<String>(infoMap.keySet());
         // be sure to add cache, which holds data keys
+        Map<String,Object> cache = this.cache;
         if (cache != null)
         {
             keys.addAll(cache.keySet());
@@ -213,7 +468,23 @@ public class Toolbox implements java.io.Serializable
             get(info.getKey(), context);
         }
         // then return a copy of the cache
-        return new HashMap<String,Object>(this.cache);
+        return getCached();
+    }
+
+    /**
+     * Returns a new {@link Map} of the tool instances created so far
+     * and of the cached data, indexed by key.
+     * @return cached tools and data
+     * @since VelocityTools 4.1
+     */
+    protected Map<String,Object> getCached()
+    {
+        Map<String,Object> cache = this.cache;
+        if (cache == null)
+        {
+            return new HashMap<String,Object>();
+        }
+        return new HashMap<String,Object>(cache);
     }
 
     /**
@@ -226,13 +497,20 @@ public class Toolbox implements java.io.Serializable
     public Toolbox combine(Toolbox... toolboxes)
     {
         Map<String,ToolInfo> info = new HashMap<String,ToolInfo>(this.infoMap);
-        Map<String,Object> props = new HashMap<String,Object>(this.properties);
-        Map<String,Object> data = new HashMap<String,Object>(this.cache);
+        Map<String,Object> props = new HashMap<String,Object>();
+        if (this.properties != null)
+        {
+            props.putAll(this.properties);
+        }
+        Map<String,Object> data = getCached();
         for (Toolbox toolbox : toolboxes)
         {
             info.putAll(toolbox.infoMap);
-            props.putAll(toolbox.properties);
-            data.putAll(toolbox.cache);
+            if (toolbox.properties != null)
+            {
+                props.putAll(toolbox.properties);
+            }
+            data.putAll(toolbox.getCached());
         }
         Toolbox combination = new Toolbox(info, props);
         combination.cacheData(data);
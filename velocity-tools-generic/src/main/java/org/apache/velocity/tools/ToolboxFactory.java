@@ -19,13 +19,18 @@ package org.apache.velocity.tools;
  * under the License.
  */
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.velocity.tools.config.Data;
 import org.apache.velocity.tools.config.FactoryConfiguration;
 import org.apache.velocity.tools.Scope;
+import org.apache.velocity.tools.config.ThreadSafe;
 import org.apache.velocity.tools.config.ToolboxConfiguration;
 import org.apache.velocity.tools.config.ToolConfiguration;
+import org.apache.velocity.tools.generic.SafeConfig;
 
 /**
  * <p>This class is the central point of action for VelocityTools.
@@ -54,6 +59,16 @@ import org.apache.velocity.tools.config.ToolConfiguration;
  * at any time, that data will only affect {@link Toolbox}es created subsequently.
  * Any previously created toolboxes will have to be re-created and replaced to
  * reflect the changes to the configuration.
+ * </p><p>
+ * The tools and properties of each scope are compiled once per configuration
+ * into a prototype from which toolboxes are created. Request toolboxes are
+ * {@link IndexedToolbox}es, sharing the immutable slot index of their scope,
+ * and all toolboxes of a scope share its compiled {@link PathRestrictions}.
+ * </p><p>
+ * Tools declared {@link ThreadSafe} which are configured for a request or
+ * session scope have their instances shared between all the toolboxes of
+ * that scope, one per distinct value of the properties they are keyed on
+ * (see {@link #getSharedTools()}).
  * </p>
  *
  * @author Nathan Bubna
@@ -67,7 +82,10 @@ public class ToolboxFactory
     private final Map<String,Map<String,Object>> scopedProperties;
     private Map<String,Object> data;
     private Map<String,Object> globalProperties;
-    
+    private final Map<String,Prototype> prototypes =
+        new ConcurrentHashMap<String,Prototype>();
+    private volatile ToolMetrics metrics;
+
     public ToolboxFactory()
     {
         this.scopedToolInfo = new HashMap<String,Map<String,ToolInfo>>();
@@ -130,9 +148,106 @@ public class ToolboxFactory
                 info.addProperties(newGlobalProps);
             }
         }
+
+        // share what can be shared, now that tools are fully configured
+        for (Map.Entry<String,Map<String,ToolInfo>> toolbox : scopedToolInfo.entrySet())
+        {
+            if (!Scope.APPLICATION.equals(toolbox.getKey()))
+            {
+                for (ToolInfo info : toolbox.getValue().values())
+                {
+                    info.setShared(isShareable(info));
+                }
+            }
+        }
+
+        // new tools have to be instrumented too
+        if (metrics != null)
+        {
+            instrument(metrics);
+        }
+
+        // toolboxes will have to be compiled again
+        prototypes.clear();
+    }
+
+    /**
+     * Set the metrics recording the activity of the tools of this
+     * factory, or <code>null</code> to stop recording. Toolboxes created
+     * before this call do not record their cache hits and misses.
+     * @param metrics tool metrics
+     * @since VelocityTools 4.1
+     */
+    public synchronized void setMetrics(ToolMetrics metrics)
+    {
+        this.metrics = metrics;
+        instrument(metrics);
+        prototypes.clear();
     }
 
+    /**
+     * @return tool metrics, or <code>null</code> if none are recorded
+     * @since VelocityTools 4.1
+     */
+    public ToolMetrics getMetrics()
+    {
+        return metrics;
+    }
 
+    private void instrument(ToolMetrics metrics)
+    {
+        for (Map.Entry<String,Map<String,ToolInfo>> toolbox : scopedToolInfo.entrySet())
+        {
+            for (ToolInfo info : toolbox.getValue().values())
+            {
+                info.setRecorder(metrics == null ? null :
+                                 metrics.getRecorder(toolbox.getKey(), info.getKey()));
+            }
+        }
+    }
+
+
+
+    /**
+     * Whether instances of a request or session scoped tool can be shared
+     * between toolboxes: its class has to be annotated with {@link ThreadSafe},
+     * and its configuration must not have been left unlocked.
+     * @param info tool info
+     * @return whether to share instances of this tool
+     * @since VelocityTools 4.1
+     */
+    protected boolean isShareable(ToolInfo info)
+    {
+        if (!info.isThreadSafe())
+        {
+            return false;
+        }
+        // an unlocked tool can be reconfigured from templates
+        Object lock = info.getProperties().get(SafeConfig.LOCK_CONFIG_KEY);
+        return lock == null || !"false".equalsIgnoreCase(String.valueOf(lock));
+    }
+
+    /**
+     * Get the tools whose instances are shared between the toolboxes
+     * of their scope.
+     * @return shared tools info
+     * @since VelocityTools 4.1
+     */
+    public synchronized List<ToolInfo> getSharedTools()
+    {
+        List<ToolInfo> shared = new ArrayList<ToolInfo>();
+        for (Map<String,ToolInfo> toolbox : scopedToolInfo.values())
+        {
+            for (ToolInfo info : toolbox.values())
+            {
+                if (info.isShared())
+                {
+                    shared.add(info);
+                }
+            }
+        }
+        return shared;
+    }
 
     protected synchronized Object putData(String key, Object value)
     {
@@ -149,6 +264,7 @@ public class ToolboxFactory
         //      annotation on the tool class, or do we leave
         //      validation like this to FactoryConfiguration?
         getToolInfo(scope).put(tool.getKey(), tool);
+        prototypes.remove(scope);
     }
 
     protected synchronized Map<String,ToolInfo> getToolInfo(String scope)
@@ -174,6 +290,7 @@ public class ToolboxFactory
             {
                 globalProperties.putAll(props);
             }
+            prototypes.clear();
         }
     }
 
@@ -191,6 +308,7 @@ public class ToolboxFactory
             {
                 properties.putAll(props);
             }
+            prototypes.remove(scope);
         }
     }
 
@@ -226,31 +344,19 @@ public class ToolboxFactory
 
     public Toolbox createToolbox(String scope)
     {
-        Map<String,ToolInfo> tools = scopedToolInfo.get(scope);
-        Map properties = scopedProperties.get(scope);
+        Prototype prototype = getPrototype(scope);
 
         Toolbox toolbox;
-        if (properties == null)
+        if (prototype.index == null)
         {
-            if (globalProperties == null)
-            {
-                toolbox = new Toolbox(tools);
-            }
-            else
-            {
-                toolbox = new Toolbox(tools, globalProperties);
-            }
+            toolbox = new Toolbox(prototype.tools, prototype.properties);
+            toolbox.setRestrictions(prototype.restrictions);
         }
         else
         {
-            //TODO: this will waste cycles on subsequent retrievals
-            //      of the same toolbox. consider improving...
-            if (globalProperties != null)
-            {
-                properties.putAll(globalProperties);
-            }
-            toolbox = new Toolbox(tools, properties);
+            toolbox = prototype.index.createToolbox(prototype.properties);
         }
+        toolbox.setInstrumented(metrics != null);
 
         // if application scoped or if there's only one toolbox,
         // then automatically include data, if we have any.
@@ -262,4 +368,74 @@ public class ToolboxFactory
         return toolbox;
     }
 
+    /**
+     * Get the compiled prototype of a scope, compiling it if needed.
+     * @param scope toolbox scope
+     * @return scope prototype
+     */
+    private Prototype getPrototype(String scope)
+    {
+        Prototype prototype = prototypes.get(scope);
+        if (prototype == null)
+        {
+            prototype = compile(scope);
+        }
+        return prototype;
+    }
+
+    /* synchronized with configure(), so that prototypes are
+       never compiled from a half updated configuration */
+    private synchronized Prototype compile(String scope)
+    {
+        Prototype prototype = prototypes.get(scope);
+        if (prototype == null)
+        {
+            Map<String,ToolInfo> tools = scopedToolInfo.get(scope);
+            Map<String,Object> properties = scopedProperties.get(scope);
+            if (properties == null)
+            {
+                properties = globalProperties;
+            }
+            else if (globalProperties != null)
+            {
+                properties = new HashMap<String,Object>(properties);
+                properties.putAll(globalProperties);
+            }
+            IndexedToolbox.Index index = null;
+            PathRestrictions restrictions;
+            if (Scope.REQUEST.equals(scope))
+            {
+                index = new IndexedToolbox.Index(tools);
+                restrictions = index.getRestrictions();
+            }
+            else
+            {
+                restrictions = PathRestrictions.compile(tools == null ? null : tools.values());
+            }
+            prototype = new Prototype(tools, properties, index, restrictions);
+            prototypes.put(scope, prototype);
+        }
+        return prototype;
+    }
+
+    /**
+     * What the toolboxes of a scope are created from.
+     */
+    private static final class Prototype
+    {
+        final Map<String,ToolInfo> tools;
+        final Map<String,Object> properties;
+        final IndexedToolbox.Index index;
+        final PathRestrictions restrictions;
+
+        Prototype(Map<String,ToolInfo> tools, Map<String,Object> properties,
+                  IndexedToolbox.Index index, PathRestrictions restrictions)
+        {
+            this.tools = tools;
+            this.properties = properties;
+            this.index = index;
+            this.restrictions = restrictions;
+        }
+    }
+
 }
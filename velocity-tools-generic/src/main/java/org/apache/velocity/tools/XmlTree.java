@@ -0,0 +1,1313 @@
+package org.apache.velocity.tools;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.CDATASection;
+import org.w3c.dom.Comment;
+import org.w3c.dom.DOMConfiguration;
+import org.w3c.dom.DOMException;
+import org.w3c.dom.DOMImplementation;
+import org.w3c.dom.Document;
+import org.w3c.dom.DocumentFragment;
+import org.w3c.dom.DocumentType;
+import org.w3c.dom.Element;
+import org.w3c.dom.EntityReference;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.w3c.dom.ProcessingInstruction;
+import org.w3c.dom.Text;
+import org.w3c.dom.TypeInfo;
+import org.w3c.dom.UserDataHandler;
+
+/**
+ * <p>Compact, read-only implementation of the DOM, for XML documents which
+ * are parsed once and then read by many threads at once, like configuration
+ * files. Nodes keep their children and attributes in arrays, and all the
+ * names and short strings of a document are shared through a string table.
+ * Comments and processing instructions are dropped, and adjacent text and
+ * CDATA sections are merged.</p>
+ * <p>Since nothing in the tree ever changes once it is built, it can be
+ * read concurrently, including through XPath expressions, as long as it
+ * has been safely published. All the methods which would modify the tree
+ * throw a {@link DOMException}.</p>
+ *
+ * @since VelocityTools 4.1
+ * @version $Id$
+ */
+public final class XmlTree
+{
+    /**
+     * Strings up to this length are shared through the string table.
+     */
+    private static final int MAX_SHARED_LENGTH = 64;
+
+    private static final XMLInputFactory inputFactory = XmlUtils.createXMLInputFactory();
+
+    private static final TreeNode[] NO_NODES = new TreeNode[0];
+
+    private static final TreeAttr[] NO_ATTRIBUTES = new TreeAttr[0];
+
+    private static final NodeList EMPTY_LIST = new Nodes(NO_NODES);
+
+    private XmlTree() {}
+
+    /**
+     * Parses an XML document into a read-only tree.
+     * @param xml XML source
+     * @return document
+     * @throws XMLStreamException if the document is not well-formed
+     */
+    public static Document parse(Reader xml) throws XMLStreamException
+    {
+        XMLStreamReader reader;
+        synchronized (inputFactory)
+        {
+            reader = inputFactory.createXMLStreamReader(xml);
+        }
+        try
+        {
+            return new Builder(reader).build();
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    private static DOMException readOnly()
+    {
+        return new DOMException(DOMException.NO_MODIFICATION_ALLOWED_ERR, "read-only XML tree");
+    }
+
+    private static DOMException notSupported()
+    {
+        return new DOMException(DOMException.NOT_SUPPORTED_ERR, "not supported by read-only XML tree");
+    }
+
+    private static boolean same(String a, String b)
+    {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Builds a tree from StAX events.
+     */
+    private static final class Builder
+    {
+        private final XMLStreamReader reader;
+        private final Map<String, String> strings = new HashMap<String, String>();
+        private final TreeDocument document = new TreeDocument();
+        private int order = 1;
+
+        Builder(XMLStreamReader reader)
+        {
+            this.reader = reader;
+        }
+
+        private String share(String string)
+        {
+            if (string == null || string.length() > MAX_SHARED_LENGTH)
+            {
+                return string;
+            }
+            String shared = strings.get(string);
+            if (shared == null)
+            {
+                strings.put(string, string);
+                shared = string;
+            }
+            return shared;
+        }
+
+        private String qualifiedName(String prefix, String localName)
+        {
+            return share(prefix == null || prefix.length() == 0 ? localName : prefix + ':' + localName);
+        }
+
+        private String uri(String uri)
+        {
+            return uri == null || uri.length() == 0 ? null : share(uri);
+        }
+
+        Document build() throws XMLStreamException
+        {
+            List<TreeParent> parents = new ArrayList<TreeParent>();
+            List<List<TreeNode>> children = new ArrayList<List<TreeNode>>();
+            parents.add(document);
+            children.add(new ArrayList<TreeNode>(1));
+            while (reader.hasNext())
+            {
+                int top = parents.size() - 1;
+                switch (reader.next())
+                {
+                    case XMLStreamConstants.START_ELEMENT:
+                        TreeElement element = createElement();
+                        children.get(top).add(element);
+                        parents.add(element);
+                        children.add(new ArrayList<TreeNode>());
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        parents.remove(top).setChildren(children.remove(top));
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        if (top > 0)
+                        {
+                            List<TreeNode> siblings = children.get(top);
+                            int last = siblings.size() - 1;
+                            if (last >= 0 && siblings.get(last) instanceof TreeText)
+                            {
+                                TreeText previous = (TreeText)siblings.get(last);
+                                siblings.set(last, new TreeText(document, previous.order,
+                                                                share(previous.data + reader.getText())));
+                            }
+                            else
+                            {
+                                siblings.add(new TreeText(document, order++, share(reader.getText())));
+                            }
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            document.setChildren(children.get(0));
+            return document;
+        }
+
+        private TreeElement createElement()
+        {
+            TreeElement element = new TreeElement(document, order++,
+                                                  qualifiedName(reader.getPrefix(), reader.getLocalName()),
+                                                  share(reader.getLocalName()),
+                                                  uri(reader.getNamespaceURI()));
+            int namespaces = reader.getNamespaceCount();
+            int count = namespaces + reader.getAttributeCount();
+            if (count > 0)
+            {
+                TreeAttr[] attributes = new TreeAttr[count];
+                for (int i = 0; i < namespaces; ++i)
+                {
+                    String prefix = reader.getNamespacePrefix(i);
+                    boolean isDefault = prefix == null || prefix.length() == 0;
+                    attributes[i] = new TreeAttr(element, order++,
+                                                 share(isDefault ? "xmlns" : "xmlns:" + prefix),
+                                                 isDefault ? "xmlns" : share(prefix),
+                                                 XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
+                                                 share(reader.getNamespaceURI(i)));
+                }
+                for (int i = 0; i < reader.getAttributeCount(); ++i)
+                {
+                    attributes[namespaces + i] =
+                        new TreeAttr(element, order++,
+                                     qualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i)),
+                                     share(reader.getAttributeLocalName(i)),
+                                     uri(reader.getAttributeNamespace(i)),
+                                     share(reader.getAttributeValue(i)));
+                }
+                element.attributes = attributes;
+            }
+            return element;
+        }
+    }
+
+    /**
+     * Read-only node list.
+     */
+    private static final class Nodes implements NodeList
+    {
+        private final Node[] nodes;
+
+        Nodes(Node[] nodes)
+        {
+            this.nodes = nodes;
+        }
+
+        public Node item(int index)
+        {
+            return index >= 0 && index < nodes.length ? nodes[index] : null;
+        }
+
+        public int getLength()
+        {
+            return nodes.length;
+        }
+    }
+
+    /**
+     * Base node.
+     */
+    private abstract static class TreeNode implements Node
+    {
+        final TreeDocument document;
+        /* document order */
+        final int order;
+        /* parent, or owner element for attributes */
+        TreeNode parent;
+        /* index among the parent children */
+        int index;
+
+        TreeNode(TreeDocument document, int order)
+        {
+            this.document = document;
+            this.order = order;
+        }
+
+        TreeNode[] children()
+        {
+            return NO_NODES;
+        }
+
+        TreeDocument tree()
+        {
+            return document == null ? (TreeDocument)this : document;
+        }
+
+        public String getNodeValue()
+        {
+            return null;
+        }
+
+        public void setNodeValue(String nodeValue)
+        {
+            throw readOnly();
+        }
+
+        public Node getParentNode()
+        {
+            return parent;
+        }
+
+        public NodeList getChildNodes()
+        {
+            return EMPTY_LIST;
+        }
+
+        public Node getFirstChild()
+        {
+            TreeNode[] children = children();
+            return children.length == 0 ? null : children[0];
+        }
+
+        public Node getLastChild()
+        {
+            TreeNode[] children = children();
+            return children.length == 0 ? null : children[children.length - 1];
+        }
+
+        public Node getPreviousSibling()
+        {
+            Node parentNode = getParentNode();
+            return parentNode == null || index == 0 ? null : parent.children()[index - 1];
+        }
+
+        public Node getNextSibling()
+        {
+            Node parentNode = getParentNode();
+            if (parentNode == null)
+            {
+                return null;
+            }
+            TreeNode[] siblings = parent.children();
+            return index + 1 < siblings.length ? siblings[index + 1] : null;
+        }
+
+        public NamedNodeMap getAttributes()
+        {
+            return null;
+        }
+
+        public Document getOwnerDocument()
+        {
+            return document;
+        }
+
+        public Node insertBefore(Node newChild, Node refChild)
+        {
+            throw readOnly();
+        }
+
+        public Node replaceChild(Node newChild, Node oldChild)
+        {
+            throw readOnly();
+        }
+
+        public Node removeChild(Node oldChild)
+        {
+            throw readOnly();
+        }
+
+        public Node appendChild(Node newChild)
+        {
+            throw readOnly();
+        }
+
+        public boolean hasChildNodes()
+        {
+            return children().length > 0;
+        }
+
+        public Node cloneNode(boolean deep)
+        {
+            throw notSupported();
+        }
+
+        public void normalize()
+        {
+            // always normalized
+        }
+
+        public boolean isSupported(String feature, String version)
+        {
+            return false;
+        }
+
+        public String getNamespaceURI()
+        {
+            return null;
+        }
+
+        public String getPrefix()
+        {
+            return null;
+        }
+
+        public void setPrefix(String prefix)
+        {
+            throw readOnly();
+        }
+
+        public String getLocalName()
+        {
+            return null;
+        }
+
+        public boolean hasAttributes()
+        {
+            return false;
+        }
+
+        public String getBaseURI()
+        {
+            return null;
+        }
+
+        public short compareDocumentPosition(Node other)
+        {
+            if (other == this)
+            {
+                return 0;
+            }
+            if (!(other instanceof TreeNode) || ((TreeNode)other).tree() != tree())
+            {
+                return (short)(DOCUMENT_POSITION_DISCONNECTED | DOCUMENT_POSITION_IMPLEMENTATION_SPECIFIC |
+                    (System.identityHashCode(other) < System.identityHashCode(this) ? DOCUMENT_POSITION_PRECEDING : DOCUMENT_POSITION_FOLLOWING));
+            }
+            TreeNode node = (TreeNode)other;
+            if (isAncestorOf(node))
+            {
+                return (short)(DOCUMENT_POSITION_CONTAINED_BY | DOCUMENT_POSITION_FOLLOWING);
+            }
+            if (node.isAncestorOf(this))
+            {
+                return (short)(DOCUMENT_POSITION_CONTAINS | DOCUMENT_POSITION_PRECEDING);
+            }
+            return node.order < order ? DOCUMENT_POSITION_PRECEDING : DOCUMENT_POSITION_FOLLOWING;
+        }
+
+        private boolean isAncestorOf(TreeNode node)
+        {
+            for (TreeNode ancestor = node.parent; ancestor != null; ancestor = ancestor.parent)
+            {
+                if (ancestor == this)
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public String getTextContent()
+        {
+            return getNodeValue();
+        }
+
+        public void setTextContent(String textContent)
+        {
+            throw readOnly();
+        }
+
+        public boolean isSameNode(Node other)
+        {
+            return other == this;
+        }
+
+        public String lookupPrefix(String namespaceURI)
+        {
+            return parent == null ? null : parent.lookupPrefix(namespaceURI);
+        }
+
+        public boolean isDefaultNamespace(String namespaceURI)
+        {
+            return same(lookupNamespaceURI(null), namespaceURI);
+        }
+
+        public String lookupNamespaceURI(String prefix)
+        {
+            return parent == null ? null : parent.lookupNamespaceURI(prefix);
+        }
+
+        public boolean isEqualNode(Node other)
+        {
+            if (other == this)
+            {
+                return true;
+            }
+            if (other == null || other.getNodeType() != getNodeType() ||
+                !same(getNodeName(), other.getNodeName()) ||
+                !same(getLocalName(), other.getLocalName()) ||
+                !same(getNamespaceURI(), other.getNamespaceURI()) ||
+                !same(getNodeValue(), other.getNodeValue()))
+            {
+                return false;
+            }
+            NodeList otherChildren = other.getChildNodes();
+            TreeNode[] children = children();
+            if (otherChildren.getLength() != children.length)
+            {
+                return false;
+            }
+            for (int i = 0; i < children.length; ++i)
+            {
+                if (!children[i].isEqualNode(otherChildren.item(i)))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public Object getFeature(String feature, String version)
+        {
+            return null;
+        }
+
+        public Object setUserData(String key, Object data, UserDataHandler handler)
+        {
+            throw notSupported();
+        }
+
+        public Object getUserData(String key)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Node with children.
+     */
+    private abstract static class TreeParent extends TreeNode implements NodeList
+    {
+        private TreeNode[] children = NO_NODES;
+
+        TreeParent(TreeDocument document, int order)
+        {
+            super(document, order);
+        }
+
+        void setChildren(List<TreeNode> list)
+        {
+            if (!list.isEmpty())
+            {
+                children = list.toArray(new TreeNode[list.size()]);
+                for (int i = 0; i < children.length; ++i)
+                {
+                    children[i].parent = this;
+                    children[i].index = i;
+                }
+            }
+        }
+
+        @Override
+        TreeNode[] children()
+        {
+            return children;
+        }
+
+        @Override
+        public NodeList getChildNodes()
+        {
+            return this;
+        }
+
+        public Node item(int index)
+        {
+            return index >= 0 && index < children.length ? children[index] : null;
+        }
+
+        public int getLength()
+        {
+            return children.length;
+        }
+
+        @Override
+        public String getTextContent()
+        {
+            StringBuilder text = new StringBuilder();
+            appendText(this, text);
+            return text.toString();
+        }
+
+        private static void appendText(TreeNode node, StringBuilder text)
+        {
+            for (TreeNode child : node.children())
+            {
+                if (child instanceof TreeText)
+                {
+                    text.append(((TreeText)child).data);
+                }
+                else
+                {
+                    appendText(child, text);
+                }
+            }
+        }
+
+        NodeList getElementsByTagName(String namespaceURI, String name, boolean useNamespaces)
+        {
+            List<Node> found = new ArrayList<Node>();
+            collect(this, namespaceURI, name, useNamespaces, found);
+            return new Nodes(found.toArray(new Node[found.size()]));
+        }
+
+        private static void collect(TreeNode node, String namespaceURI, String name,
+                                    boolean useNamespaces, List<Node> found)
+        {
+            for (TreeNode child : node.children())
+            {
+                if (child instanceof TreeElement)
+                {
+                    TreeElement element = (TreeElement)child;
+                    if (useNamespaces
+                        ? ("*".equals(namespaceURI) || same(namespaceURI, element.namespaceURI)) &&
+                          ("*".equals(name) || name.equals(element.localName))
+                        : "*".equals(name) || name.equals(element.name))
+                    {
+                        found.add(element);
+                    }
+                    collect(element, namespaceURI, name, useNamespaces, found);
+                }
+            }
+        }
+    }
+
+    /**
+     * Document node.
+     */
+    private static final class TreeDocument extends TreeParent implements Document
+    {
+        TreeDocument()
+        {
+            super(null, 0);
+        }
+
+        public String getNodeName()
+        {
+            return "#document";
+        }
+
+        public short getNodeType()
+        {
+            return DOCUMENT_NODE;
+        }
+
+        @Override
+        public Document getOwnerDocument()
+        {
+            return null;
+        }
+
+        @Override
+        public String getTextContent()
+        {
+            return null;
+        }
+
+        public DocumentType getDoctype()
+        {
+            return null;
+        }
+
+        public DOMImplementation getImplementation()
+        {
+            return null;
+        }
+
+        public Element getDocumentElement()
+        {
+            for (TreeNode child : children())
+            {
+                if (child instanceof TreeElement)
+                {
+                    return (TreeElement)child;
+                }
+            }
+            return null;
+        }
+
+        public Element createElement(String tagName)
+        {
+            throw readOnly();
+        }
+
+        public DocumentFragment createDocumentFragment()
+        {
+            throw readOnly();
+        }
+
+        public Text createTextNode(String data)
+        {
+            throw readOnly();
+        }
+
+        public Comment createComment(String data)
+        {
+            throw readOnly();
+        }
+
+        public CDATASection createCDATASection(String data)
+        {
+            throw readOnly();
+        }
+
+        public ProcessingInstruction createProcessingInstruction(String target, String data)
+        {
+            throw readOnly();
+        }
+
+        public Attr createAttribute(String name)
+        {
+            throw readOnly();
+        }
+
+        public EntityReference createEntityReference(String name)
+        {
+            throw readOnly();
+        }
+
+        public NodeList getElementsByTagName(String tagname)
+        {
+            return getElementsByTagName(null, tagname, false);
+        }
+
+        public Node importNode(Node importedNode, boolean deep)
+        {
+            throw readOnly();
+        }
+
+        public Element createElementNS(String namespaceURI, String qualifiedName)
+        {
+            throw readOnly();
+        }
+
+        public Attr createAttributeNS(String namespaceURI, String qualifiedName)
+        {
+            throw readOnly();
+        }
+
+        public NodeList getElementsByTagNameNS(String namespaceURI, String localName)
+        {
+            return getElementsByTagName(namespaceURI, localName, true);
+        }
+
+        public Element getElementById(String elementId)
+        {
+            return null;
+        }
+
+        public String getInputEncoding()
+        {
+            return null;
+        }
+
+        public String getXmlEncoding()
+        {
+            return null;
+        }
+
+        public boolean getXmlStandalone()
+        {
+            return false;
+        }
+
+        public void setXmlStandalone(boolean xmlStandalone)
+        {
+            throw readOnly();
+        }
+
+        public String getXmlVersion()
+        {
+            return "1.0";
+        }
+
+        public void setXmlVersion(String xmlVersion)
+        {
+            throw readOnly();
+        }
+
+        public boolean getStrictErrorChecking()
+        {
+            return true;
+        }
+
+        public void setStrictErrorChecking(boolean strictErrorChecking)
+        {
+            throw readOnly();
+        }
+
+        public String getDocumentURI()
+        {
+            return null;
+        }
+
+        public void setDocumentURI(String documentURI)
+        {
+            throw readOnly();
+        }
+
+        public Node adoptNode(Node source)
+        {
+            throw readOnly();
+        }
+
+        public DOMConfiguration getDomConfig()
+        {
+            return null;
+        }
+
+        public void normalizeDocument()
+        {
+            // always normalized
+        }
+
+        public Node renameNode(Node n, String namespaceURI, String qualifiedName)
+        {
+            throw readOnly();
+        }
+    }
+
+    /**
+     * Element node.
+     */
+    private static final class TreeElement extends TreeParent implements Element
+    {
+        final String name;
+        final String localName;
+        final String namespaceURI;
+        TreeAttr[] attributes = NO_ATTRIBUTES;
+
+        TreeElement(TreeDocument document, int order, String name, String localName, String namespaceURI)
+        {
+            super(document, order);
+            this.name = name;
+            this.localName = localName;
+            this.namespaceURI = namespaceURI;
+        }
+
+        public String getNodeName()
+        {
+            return name;
+        }
+
+        public short getNodeType()
+        {
+            return ELEMENT_NODE;
+        }
+
+        @Override
+        public NamedNodeMap getAttributes()
+        {
+            return new AttributeMap(this);
+        }
+
+        @Override
+        public boolean hasAttributes()
+        {
+            return attributes.length > 0;
+        }
+
+        @Override
+        public String getNamespaceURI()
+        {
+            return namespaceURI;
+        }
+
+        @Override
+        public String getPrefix()
+        {
+            return name.length() == localName.length() ? null : name.substring(0, name.length() - localName.length() - 1);
+        }
+
+        @Override
+        public String getLocalName()
+        {
+            return localName;
+        }
+
+        @Override
+        public String lookupPrefix(String uri)
+        {
+            if (uri == null)
+            {
+                return null;
+            }
+            for (TreeAttr attribute : attributes)
+            {
+                if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attribute.namespaceURI) &&
+                    uri.equals(attribute.value) && !"xmlns".equals(attribute.name))
+                {
+                    return attribute.localName;
+                }
+            }
+            return super.lookupPrefix(uri);
+        }
+
+        @Override
+        public String lookupNamespaceURI(String prefix)
+        {
+            String declaration = prefix == null ? "xmlns" : "xmlns:" + prefix;
+            for (TreeAttr attribute : attributes)
+            {
+                if (declaration.equals(attribute.name))
+                {
+                    return attribute.value.length() == 0 ? null : attribute.value;
+                }
+            }
+            return super.lookupNamespaceURI(prefix);
+        }
+
+        @Override
+        public boolean isEqualNode(Node other)
+        {
+            if (!super.isEqualNode(other))
+            {
+                return false;
+            }
+            NamedNodeMap otherAttributes = other.getAttributes();
+            if (otherAttributes.getLength() != attributes.length)
+            {
+                return false;
+            }
+            for (TreeAttr attribute : attributes)
+            {
+                Node otherAttribute = otherAttributes.getNamedItem(attribute.name);
+                if (otherAttribute == null || !attribute.isEqualNode(otherAttribute))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public String getTagName()
+        {
+            return name;
+        }
+
+        TreeAttr find(String attributeName)
+        {
+            for (TreeAttr attribute : attributes)
+            {
+                if (attribute.name.equals(attributeName))
+                {
+                    return attribute;
+                }
+            }
+            return null;
+        }
+
+        TreeAttr find(String uri, String attributeLocalName)
+        {
+            for (TreeAttr attribute : attributes)
+            {
+                if (attribute.localName.equals(attributeLocalName) && same(uri, attribute.namespaceURI))
+                {
+                    return attribute;
+                }
+            }
+            return null;
+        }
+
+        public String getAttribute(String attributeName)
+        {
+            TreeAttr attribute = find(attributeName);
+            return attribute == null ? "" : attribute.value;
+        }
+
+        public void setAttribute(String attributeName, String value)
+        {
+            throw readOnly();
+        }
+
+        public void removeAttribute(String attributeName)
+        {
+            throw readOnly();
+        }
+
+        public Attr getAttributeNode(String attributeName)
+        {
+            return find(attributeName);
+        }
+
+        public Attr setAttributeNode(Attr newAttr)
+        {
+            throw readOnly();
+        }
+
+        public Attr removeAttributeNode(Attr oldAttr)
+        {
+            throw readOnly();
+        }
+
+        public NodeList getElementsByTagName(String tagName)
+        {
+            return getElementsByTagName(null, tagName, false);
+        }
+
+        public String getAttributeNS(String uri, String attributeLocalName)
+        {
+            TreeAttr attribute = find(uri, attributeLocalName);
+            return attribute == null ? "" : attribute.value;
+        }
+
+        public void setAttributeNS(String uri, String qualifiedName, String value)
+        {
+            throw readOnly();
+        }
+
+        public void removeAttributeNS(String uri, String attributeLocalName)
+        {
+            throw readOnly();
+        }
+
+        public Attr getAttributeNodeNS(String uri, String attributeLocalName)
+        {
+            return find(uri, attributeLocalName);
+        }
+
+        public Attr setAttributeNodeNS(Attr newAttr)
+        {
+            throw readOnly();
+        }
+
+        public NodeList getElementsByTagNameNS(String uri, String elementLocalName)
+        {
+            return getElementsByTagName(uri, elementLocalName, true);
+        }
+
+        public boolean hasAttribute(String attributeName)
+        {
+            return find(attributeName) != null;
+        }
+
+        public boolean hasAttributeNS(String uri, String attributeLocalName)
+        {
+            return find(uri, attributeLocalName) != null;
+        }
+
+        public TypeInfo getSchemaTypeInfo()
+        {
+            return null;
+        }
+
+        public void setIdAttribute(String attributeName, boolean isId)
+        {
+            throw readOnly();
+        }
+
+        public void setIdAttributeNS(String uri, String attributeLocalName, boolean isId)
+        {
+            throw readOnly();
+        }
+
+        public void setIdAttributeNode(Attr idAttr, boolean isId)
+        {
+            throw readOnly();
+        }
+    }
+
+    /**
+     * Attributes of an element.
+     */
+    private static final class AttributeMap implements NamedNodeMap
+    {
+        private final TreeElement element;
+
+        AttributeMap(TreeElement element)
+        {
+            this.element = element;
+        }
+
+        public Node getNamedItem(String name)
+        {
+            return element.find(name);
+        }
+
+        public Node setNamedItem(Node arg)
+        {
+            throw readOnly();
+        }
+
+        public Node removeNamedItem(String name)
+        {
+            throw readOnly();
+        }
+
+        public Node item(int index)
+        {
+            return index >= 0 && index < element.attributes.length ? element.attributes[index] : null;
+        }
+
+        public int getLength()
+        {
+            return element.attributes.length;
+        }
+
+        public Node getNamedItemNS(String namespaceURI, String localName)
+        {
+            return element.find(namespaceURI, localName);
+        }
+
+        public Node setNamedItemNS(Node arg)
+        {
+            throw readOnly();
+        }
+
+        public Node removeNamedItemNS(String namespaceURI, String localName)
+        {
+            throw readOnly();
+        }
+    }
+
+    /**
+     * Attribute node.
+     */
+    private static final class TreeAttr extends TreeNode implements Attr
+    {
+        final String name;
+        final String localName;
+        final String namespaceURI;
+        final String value;
+
+        TreeAttr(TreeElement owner, int order, String name, String localName, String namespaceURI, String value)
+        {
+            super(owner.document, order);
+            this.parent = owner;
+            this.name = name;
+            this.localName = localName;
+            this.namespaceURI = namespaceURI;
+            this.value = value;
+        }
+
+        public String getNodeName()
+        {
+            return name;
+        }
+
+        public short getNodeType()
+        {
+            return ATTRIBUTE_NODE;
+        }
+
+        @Override
+        public String getNodeValue()
+        {
+            return value;
+        }
+
+        @Override
+        public Node getParentNode()
+        {
+            return null;
+        }
+
+        @Override
+        public String getNamespaceURI()
+        {
+            return namespaceURI;
+        }
+
+        @Override
+        public String getPrefix()
+        {
+            return name.length() == localName.length() ? null : name.substring(0, name.length() - localName.length() - 1);
+        }
+
+        @Override
+        public String getLocalName()
+        {
+            return localName;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public boolean getSpecified()
+        {
+            return true;
+        }
+
+        public String getValue()
+        {
+            return value;
+        }
+
+        public void setValue(String value)
+        {
+            throw readOnly();
+        }
+
+        public Element getOwnerElement()
+        {
+            return (TreeElement)parent;
+        }
+
+        public TypeInfo getSchemaTypeInfo()
+        {
+            return null;
+        }
+
+        public boolean isId()
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Text node.
+     */
+    private static final class TreeText extends TreeNode implements Text
+    {
+        final String data;
+
+        TreeText(TreeDocument document, int order, String data)
+        {
+            super(document, order);
+            this.data = data;
+        }
+
+        public String getNodeName()
+        {
+            return "#text";
+        }
+
+        public short getNodeType()
+        {
+            return TEXT_NODE;
+        }
+
+        @Override
+        public String getNodeValue()
+        {
+            return data;
+        }
+
+        public String getData()
+        {
+            return data;
+        }
+
+        public void setData(String data)
+        {
+            throw readOnly();
+        }
+
+        public int getLength()
+        {
+            return data.length();
+        }
+
+        public String substringData(int offset, int count)
+        {
+            if (offset < 0 || offset > data.length() || count < 0)
+            {
+                throw new DOMException(DOMException.INDEX_SIZE_ERR, "invalid offset or count");
+            }
+            return data.substring(offset, Math.min(data.length(), offset + count));
+        }
+
+        public void appendData(String arg)
+        {
+            throw readOnly();
+        }
+
+        public void insertData(int offset, String arg)
+        {
+            throw readOnly();
+        }
+
+        public void deleteData(int offset, int count)
+        {
+            throw readOnly();
+        }
+
+        public void replaceData(int offset, int count, String arg)
+        {
+            throw readOnly();
+        }
+
+        public Text splitText(int offset)
+        {
+            throw readOnly();
+        }
+
+        public boolean isElementContentWhitespace()
+        {
+            return false;
+        }
+
+        public String getWholeText()
+        {
+            return data;
+        }
+
+        public Text replaceWholeText(String content)
+        {
+            throw readOnly();
+        }
+    }
+}
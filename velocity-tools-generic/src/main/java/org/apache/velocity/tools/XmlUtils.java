@@ -36,14 +36,18 @@ import java.io.StringReader;
 import java.io.StringWriter;
 import java.lang.ref.SoftReference;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Stack;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.LongAdder;
 
 import javax.xml.XMLConstants;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
@@ -147,6 +151,21 @@ public final class XmlUtils
         return builderFactory;
     }
 
+    /**
+     * Creates a StAX input factory with the same protections as for DOM parsing,
+     * and which coalesces adjacent text and CDATA sections.
+     * @return new input factory
+     * @since VelocityTools 4.1
+     */
+    public static XMLInputFactory createXMLInputFactory()
+    {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+
     private static final ThreadLocal<DocumentBuilder> reusableBuilder
         = new ThreadLocal<DocumentBuilder>() {
         @Override
@@ -262,6 +281,79 @@ public final class XmlUtils
         builderPool.addLast(new SoftReference<DocumentBuilder>(builder));
     }
 
+    private static int xpathCacheSize = 256;
+    private static final String XPATH_CACHE_SIZE_KEY = "velocity.tools.xml.xpath.cache.size";
+    private static final LongAdder xpathCacheHits = new LongAdder();
+    private static final LongAdder xpathCacheMisses = new LongAdder();
+
+    static
+    {
+        try
+        {
+            String configuredSize = System.getProperty(XPATH_CACHE_SIZE_KEY);
+            if (configuredSize != null)
+            {
+                xpathCacheSize = Integer.parseInt(configuredSize);
+            }
+        }
+        catch(Exception e)
+        {
+            LOGGER.error("could not configure XPath expressions cache size", e);
+        }
+    }
+
+    /**
+     * Cache of compiled XPath expressions, used by one thread at a time,
+     * since neither XPath objects nor compiled expressions are thread-safe.
+     * The least recently used expressions are dropped past the configured size.
+     */
+    private static final class XPathCache extends LinkedHashMap<String, XPathExpression>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final XPath xpath = XPathFactory.newInstance().newXPath();
+
+        XPathCache()
+        {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, XPathExpression> eldest)
+        {
+            return size() > xpathCacheSize;
+        }
+    }
+
+    /* idle XPath expressions caches, most recently used first; a static pool rather than
+     * a thread local, so that container threads do not retain them after a redeployment */
+    private static final LinkedBlockingDeque<XPathCache> xpathCachePool =
+        new LinkedBlockingDeque<XPathCache>(2 * Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Get an XPath expressions cache
+     * @return idle XPath expressions cache
+     */
+    private static XPathCache getXPathCache()
+    {
+        XPathCache cache = xpathCachePool.pollFirst();
+        if (cache == null)
+        {
+            LOGGER.trace("Created a new XPath expressions cache");
+            cache = new XPathCache();
+        }
+        return cache;
+    }
+
+    /**
+     * Release the given XPath expressions cache, which is dropped if the pool is full
+     * @param cache XPath expressions cache
+     */
+    private static void releaseXPathCache(XPathCache cache)
+    {
+        xpathCachePool.offerFirst(cache);
+    }
+
     private XmlUtils() {}
 
     /**
@@ -401,12 +493,59 @@ public final class XmlUtils
      */
     public static NodeList search(String xpath, Node context) throws XPathExpressionException
     {
-        NodeList ret = null;
-            XPath xp = XPathFactory.newInstance().newXPath();
-            XPathExpression exp = xp.compile(xpath);
-            ret = (NodeList)exp.evaluate(context, XPathConstants.NODESET);
-        return ret;
+        XPathCache cache = getXPathCache();
+        try
+        {
+            XPathExpression exp = cache.get(xpath);
+            if (exp == null)
+            {
+                xpathCacheMisses.increment();
+                exp = cache.xpath.compile(xpath);
+                if (xpathCacheSize > 0)
+                {
+                    cache.put(xpath, exp);
+                }
+            }
+            else
+            {
+                xpathCacheHits.increment();
+            }
+            return (NodeList)exp.evaluate(context, XPathConstants.NODESET);
+        }
+        finally
+        {
+            releaseXPathCache(cache);
         }
+    }
+
+    /**
+     * @return number of XPath expressions found in the compiled expressions caches
+     * @since VelocityTools 4.1
+     */
+    public static long getXPathCacheHits()
+    {
+        return xpathCacheHits.sum();
+    }
+
+    /**
+     * @return number of XPath expressions which had to be compiled
+     * @since VelocityTools 4.1
+     */
+    public static long getXPathCacheMisses()
+    {
+        return xpathCacheMisses.sum();
+    }
+
+    /**
+     * @return ratio of XPath expressions found in the compiled expressions caches
+     * @since VelocityTools 4.1
+     */
+    public static double getXPathCacheHitRate()
+    {
+        long hits = getXPathCacheHits();
+        long total = hits + getXPathCacheMisses();
+        return total == 0 ? 0.0 : (double)hits / total;
+    }
 
     /**
      * Search for nodes using an XPath expression
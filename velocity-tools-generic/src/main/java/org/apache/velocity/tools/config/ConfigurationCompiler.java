@@ -0,0 +1,533 @@
+package org.apache.velocity.tools.config;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Compiles a tools configuration file into the Java source of a class
+ * which builds the same {@link FactoryConfiguration} directly: tool classes
+ * are referenced as class literals, property and data values are converted
+ * at build time, and tools are validated at build time, so that neither
+ * Digester nor the instantiation checks of {@link ToolConfiguration#validate()}
+ * are needed at runtime anymore.</p>
+ * <p>The generated class is named after the path the configuration is looked
+ * up with at runtime (see {@link ConfigurationUtils#getCompiledClassName(String)}),
+ * and provides the static <code>getConfiguration()</code> method expected by
+ * {@link ConfigurationUtils#getFromClass(Class)}. When it is in the classpath,
+ * {@link ConfigurationUtils#find(String)} and the view's configuration lookup
+ * use it instead of the file.</p>
+ * <p>It is meant to be run during the build, for instance with the
+ * exec-maven-plugin in the <code>process-classes</code> phase, once the
+ * tool classes of the module are compiled, with
+ * <code>org.apache.velocity.tools.config.ConfigurationCompiler</code> as main
+ * class and as arguments the output directory, then each configuration file,
+ * optionally followed by <code>=</code> and the path it is looked up with
+ * at runtime:</p>
+ * <pre>
+ * ${project.build.directory}/generated-sources/tools
+ * src/main/webapp/WEB-INF/tools.xml=/WEB-INF/tools.xml
+ * </pre>
+ * <p>The output directory then has to be compiled, for instance by another
+ * execution of the maven-compiler-plugin in the same phase; the showcase
+ * example webapp does so.
+ * Tools without a class, which get it from the default tools at runtime,
+ * are kept as is and only validated at runtime.
+ * A leading <code>--clean</code> argument removes invalid entries from the
+ * configurations, like the <code>cleanConfiguration</code> option does at
+ * runtime, instead of failing.</p>
+ *
+ * @since VelocityTools 4.1
+ * @version $Id$
+ */
+public class ConfigurationCompiler
+{
+    private static final String INDENT = "        ";
+
+    private boolean clean = false;
+
+    /**
+     * @param clean whether to remove invalid entries instead of failing
+     */
+    public void setClean(boolean clean)
+    {
+        this.clean = clean;
+    }
+
+    /**
+     * Reads a tools.xml or tools.properties configuration file.
+     * @param file configuration file
+     * @return configuration
+     * @throws IOException if the file cannot be read
+     * @throws ConfigurationException if the file type is unknown
+     */
+    public FactoryConfiguration read(File file) throws IOException
+    {
+        FileFactoryConfiguration config;
+        String source = "ConfigurationCompiler.read(" + file + ")";
+        if (file.getName().endsWith(".xml"))
+        {
+            config = new XmlFactoryConfiguration(source);
+        }
+        else if (file.getName().endsWith(".properties"))
+        {
+            config = new PropertiesFactoryConfiguration(source);
+        }
+        else
+        {
+            throw new ConfigurationException("Unknown configuration file type: " + file);
+        }
+        config.readImpl(file.toURI().toURL());
+        return config;
+    }
+
+    /**
+     * Compiles a configuration file into the output directory.
+     * @param file configuration file
+     * @param path path of the configuration at runtime
+     * @param outputDirectory root directory of the generated sources
+     * @return generated source file
+     * @throws IOException if the file cannot be read or the source written
+     */
+    public File compile(File file, String path, File outputDirectory) throws IOException
+    {
+        String className = ConfigurationUtils.getCompiledClassName(path);
+        File source = new File(outputDirectory, className.replace('.', File.separatorChar) + ".java");
+        source.getParentFile().mkdirs();
+        Writer out = new OutputStreamWriter(new FileOutputStream(source), "UTF-8");
+        try
+        {
+            out.write(compile(read(file), path));
+        }
+        finally
+        {
+            out.close();
+        }
+        return source;
+    }
+
+    /**
+     * Generates the source of the class building a configuration.
+     * @param config configuration, which gets validated or cleaned
+     * @param path path of the configuration at runtime
+     * @return Java source
+     * @throws ConfigurationException if the configuration is invalid
+     */
+    public String compile(FactoryConfiguration config, String path)
+    {
+        // tools without a class only configure the default tools they get
+        // merged with at runtime, and can only be validated then
+        Map<ToolboxConfiguration, List<ToolConfiguration>> partial =
+            new IdentityHashMap<ToolboxConfiguration, List<ToolConfiguration>>();
+        for (ToolboxConfiguration toolbox : config.getToolboxes())
+        {
+            List<ToolConfiguration> tools = new ArrayList<ToolConfiguration>();
+            for (ToolConfiguration tool : toolbox.getTools())
+            {
+                if (tool.getClassname() == null)
+                {
+                    tools.add(tool);
+                }
+            }
+            for (ToolConfiguration tool : tools)
+            {
+                toolbox.removeTool(tool);
+            }
+            partial.put(toolbox, tools);
+        }
+        if (clean)
+        {
+            ConfigurationUtils.clean(config);
+        }
+        else
+        {
+            config.validate();
+        }
+        for (Map.Entry<ToolboxConfiguration, List<ToolConfiguration>> entry : partial.entrySet())
+        {
+            for (ToolConfiguration tool : entry.getValue())
+            {
+                entry.getKey().addTool(tool);
+            }
+        }
+
+        String className = ConfigurationUtils.getCompiledClassName(path);
+        String simpleName = className.substring(className.lastIndexOf('.') + 1);
+        StringBuilder out = new StringBuilder();
+        out.append("package ").append(ConfigurationUtils.COMPILED_PACKAGE).append(";\n\n");
+        out.append("import org.apache.velocity.tools.config.Data;\n");
+        out.append("import org.apache.velocity.tools.config.FactoryConfiguration;\n");
+        out.append("import org.apache.velocity.tools.config.Property;\n");
+        out.append("import org.apache.velocity.tools.config.ToolConfiguration;\n");
+        out.append("import org.apache.velocity.tools.config.ToolboxConfiguration;\n\n");
+        out.append("/**\n");
+        out.append(" * Tools configuration compiled from ").append(path.replace("*/", "*&#47;")).append(".\n");
+        out.append(" * Generated by ").append(ConfigurationCompiler.class.getName()).append(", do not edit.\n");
+        out.append(" */\n");
+        out.append("public final class ").append(simpleName).append("\n{\n");
+        out.append("    private ").append(simpleName).append("()\n    {\n    }\n\n");
+        out.append("    public static FactoryConfiguration getConfiguration()\n    {\n");
+        out.append(INDENT).append("FactoryConfiguration config = new FactoryConfiguration(")
+            .append(quote("ConfigurationCompiler(" + path + ")")).append(");\n");
+        out.append(INDENT).append("Data data;\n");
+        out.append(INDENT).append("Property property;\n");
+        out.append(INDENT).append("ToolboxConfiguration toolbox;\n");
+        out.append(INDENT).append("ToolConfiguration tool;\n");
+
+        for (Property property : config.getProperties())
+        {
+            appendProperty(out, property, "config");
+        }
+        for (Data datum : config.getData())
+        {
+            out.append('\n');
+            out.append(INDENT).append("data = new Data();\n");
+            out.append(INDENT).append("data.setKey(").append(quote(datum.getKey())).append(");\n");
+            appendValue(out, datum, "data");
+            out.append(INDENT).append("config.addData(data);\n");
+        }
+        for (ToolboxConfiguration toolbox : config.getToolboxes())
+        {
+            out.append('\n');
+            out.append(INDENT).append("toolbox = new ToolboxConfiguration();\n");
+            out.append(INDENT).append("toolbox.setScope(").append(quote(toolbox.getScope())).append(");\n");
+            for (Property property : toolbox.getProperties())
+            {
+                // already set along with the scope
+                if (!"scope".equals(property.getName()))
+                {
+                    appendProperty(out, property, "toolbox");
+                }
+            }
+            for (ToolConfiguration tool : toolbox.getTools())
+            {
+                appendTool(out, tool);
+            }
+            out.append(INDENT).append("config.addToolbox(toolbox);\n");
+        }
+        out.append(INDENT).append("return config;\n");
+        out.append("    }\n}\n");
+        return out.toString();
+    }
+
+    protected void appendTool(StringBuilder out, ToolConfiguration tool)
+    {
+        out.append('\n');
+        out.append(INDENT).append("tool = new ToolConfiguration();\n");
+        if (tool.getClassname() == null)
+        {
+            // gets its class from the default tool with the same key
+            out.append(INDENT).append("tool.setKey(").append(quote(tool.getKey())).append(");\n");
+            appendToolAttributes(out, tool);
+            return;
+        }
+        String toolClass = classLiteral(tool.getToolClass());
+        String factoryClass = tool.getFactoryClassname() == null ?
+            "null" : classLiteral(tool.getFactory());
+        if (toolClass != null && factoryClass != null)
+        {
+            out.append(INDENT).append("tool.setValidatedClass(").append(toolClass)
+                .append(", ").append(factoryClass).append(");\n");
+        }
+        else
+        {
+            // not accessible from the generated class, left to runtime lookup
+            out.append(INDENT).append("tool.setClassname(")
+                .append(quote(tool.getClassname())).append(");\n");
+            if (tool.getFactoryClassname() != null)
+            {
+                out.append(INDENT).append("tool.setFactoryClassname(")
+                    .append(quote(tool.getFactoryClassname())).append(");\n");
+            }
+        }
+        if (!tool.getKey().equals(tool.getDefaultKey()))
+        {
+            out.append(INDENT).append("tool.setKey(").append(quote(tool.getKey())).append(");\n");
+        }
+        appendToolAttributes(out, tool);
+    }
+
+    private void appendToolAttributes(StringBuilder out, ToolConfiguration tool)
+    {
+        if (tool.getRestrictTo() != null)
+        {
+            out.append(INDENT).append("tool.setRestrictTo(").append(quote(tool.getRestrictTo())).append(");\n");
+        }
+        if (tool.getSkipSetters() != null)
+        {
+            out.append(INDENT).append("tool.setSkipSetters(Boolean.")
+                .append(tool.getSkipSetters() ? "TRUE" : "FALSE").append(");\n");
+        }
+        for (Property property : tool.getProperties())
+        {
+            appendProperty(out, property, "tool");
+        }
+        out.append(INDENT).append("toolbox.addTool(tool);\n");
+    }
+
+    protected void appendProperty(StringBuilder out, Property property, String owner)
+    {
+        out.append(INDENT).append("property = new Property();\n");
+        out.append(INDENT).append("property.setName(").append(quote(property.getName())).append(");\n");
+        appendValue(out, property, "property");
+        out.append(INDENT).append(owner).append(".addProperty(property);\n");
+    }
+
+    /**
+     * Appends the statements setting the value of a datum, converted
+     * at build time whenever the result can be written as a literal.
+     * @param out source being generated
+     * @param datum data or property
+     * @param variable name of the variable holding the datum
+     */
+    protected void appendValue(StringBuilder out, Data datum, String variable)
+    {
+        Object converted;
+        try
+        {
+            converted = datum.getConvertedValue();
+        }
+        catch (RuntimeException re)
+        {
+            converted = null;
+        }
+        String literal = converted == null ? null : literal(converted);
+        if (literal != null)
+        {
+            out.append(INDENT).append(variable).append(".setValue(").append(literal).append(");\n");
+            if (converted instanceof String &&
+                !(Data.Type.AUTO.value().equals(datum.getType()) && converted.equals(datum.getValue())))
+            {
+                // it must not be guessed again
+                out.append(INDENT).append(variable).append(".setType(\"string\");\n");
+            }
+            // other values go through the default conversion untouched
+            return;
+        }
+
+        // keep the conversion for runtime
+        literal = literal(datum.getValue());
+        if (literal == null)
+        {
+            throw new ConfigurationException(datum, "Cannot compile value of '" + datum.getKey() + "'");
+        }
+        out.append(INDENT).append(variable).append(".setValue(").append(literal).append(");\n");
+        Data.Type type = datum.getType() == null ? Data.Type.CUSTOM : Data.Type.get(datum.getType());
+        if (!type.isCustom())
+        {
+            out.append(INDENT).append(variable).append(".setType(").append(quote(datum.getType())).append(");\n");
+        }
+        if (datum.getTargetClass() != type.getTarget())
+        {
+            String target = classLiteral(datum.getTargetClass());
+            if (target == null)
+            {
+                throw new ConfigurationException(datum, "Cannot compile target class of '" + datum.getKey() + "'");
+            }
+            out.append(INDENT).append(variable).append(".setTargetClass(").append(target).append(");\n");
+        }
+        if (datum.getConverter() != type.getConverter())
+        {
+            String converter = classLiteral(datum.getConverter().getClass());
+            if (converter == null)
+            {
+                throw new ConfigurationException(datum, "Cannot compile converter of '" + datum.getKey() + "'");
+            }
+            out.append(INDENT).append(variable).append(".setConverter(").append(converter).append(");\n");
+        }
+    }
+
+    /**
+     * @param clazz class
+     * @return class literal, or <code>null</code> if the class
+     *         cannot be referenced from the generated class
+     */
+    protected String classLiteral(Class clazz)
+    {
+        if (clazz == null)
+        {
+            return null;
+        }
+        for (Class c = clazz; c != null; c = c.getEnclosingClass())
+        {
+            if (!Modifier.isPublic(c.getModifiers()))
+            {
+                return null;
+            }
+        }
+        String name = clazz.getCanonicalName();
+        return name == null ? null : name + ".class";
+    }
+
+    /**
+     * @param value configuration value
+     * @return Java expression for this value, or <code>null</code>
+     *         if it cannot be written as such
+     */
+    protected String literal(Object value)
+    {
+        if (value == null)
+        {
+            return "null";
+        }
+        else if (value instanceof String)
+        {
+            return quote((String)value);
+        }
+        else if (value instanceof Boolean)
+        {
+            return (Boolean)value ? "Boolean.TRUE" : "Boolean.FALSE";
+        }
+        else if (value instanceof Integer)
+        {
+            return "Integer.valueOf(" + value + ")";
+        }
+        else if (value instanceof Long)
+        {
+            return "Long.valueOf(" + value + "L)";
+        }
+        else if (value instanceof Short)
+        {
+            return "Short.valueOf((short)" + value + ")";
+        }
+        else if (value instanceof Byte)
+        {
+            return "Byte.valueOf((byte)" + value + ")";
+        }
+        else if (value instanceof Double)
+        {
+            Double d = (Double)value;
+            return d.isNaN() || d.isInfinite() ? null : "Double.valueOf(" + d + ")";
+        }
+        else if (value instanceof Float)
+        {
+            Float f = (Float)value;
+            return f.isNaN() || f.isInfinite() ? null : "Float.valueOf(" + f + "f)";
+        }
+        else if (value instanceof BigInteger || value instanceof BigDecimal)
+        {
+            return "new " + value.getClass().getName() + "(" + quote(value.toString()) + ")";
+        }
+        else if (value instanceof List)
+        {
+            StringBuilder list = new StringBuilder("java.util.Arrays.<Object>asList(");
+            boolean first = true;
+            for (Object item : (List)value)
+            {
+                String literal = literal(item);
+                if (literal == null)
+                {
+                    return null;
+                }
+                if (!first)
+                {
+                    list.append(", ");
+                }
+                list.append(literal);
+                first = false;
+            }
+            return list.append(')').toString();
+        }
+        return null;
+    }
+
+    protected static String quote(String value)
+    {
+        StringBuilder quoted = new StringBuilder(value.length() + 2);
+        quoted.append('"');
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            switch (c)
+            {
+                case '"':
+                    quoted.append("\\\"");
+                    break;
+                case '\\':
+                    quoted.append("\\\\");
+                    break;
+                case '\n':
+                    quoted.append("\\n");
+                    break;
+                case '\r':
+                    quoted.append("\\r");
+                    break;
+                case '\t':
+                    quoted.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c > 0x7e)
+                    {
+                        quoted.append(String.format("\\u%04x", (int)c));
+                    }
+                    else
+                    {
+                        quoted.append(c);
+                    }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * Compiles configuration files.
+     * @param args <code>[--clean] outputDirectory file[=path]...</code>
+     * @throws IOException if a file cannot be read or a source written
+     */
+    public static void main(String[] args) throws IOException
+    {
+        ConfigurationCompiler compiler = new ConfigurationCompiler();
+        int arg = 0;
+        if (args.length > 0 && "--clean".equals(args[0]))
+        {
+            compiler.setClean(true);
+            arg++;
+        }
+        if (args.length - arg < 2)
+        {
+            throw new IllegalArgumentException("Usage: ConfigurationCompiler [--clean] outputDirectory file[=path]...");
+        }
+        File outputDirectory = new File(args[arg++]);
+        for (; arg < args.length; arg++)
+        {
+            String file = args[arg];
+            String path = file;
+            int equals = file.lastIndexOf('=');
+            if (equals > 0)
+            {
+                path = file.substring(equals + 1);
+                file = file.substring(0, equals);
+            }
+            File source = compiler.compile(new File(file), path, outputDirectory);
+            System.out.println("Compiled " + file + " into " + source);
+        }
+    }
+}
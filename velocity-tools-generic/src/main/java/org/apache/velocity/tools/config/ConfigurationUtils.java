@@ -20,11 +20,15 @@ package org.apache.velocity.tools.config;
  */
 
 import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.net.JarURLConnection;
 import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.URLConnection;
 import java.util.List;
 
 import org.apache.velocity.app.VelocityEngine;
@@ -53,6 +57,13 @@ public class ConfigurationUtils
 
     public static final String SYSTEM_PROPERTY_KEY =
         "org.apache.velocity.tools";
+
+    /**
+     * Package of the configuration classes generated by the
+     * {@link ConfigurationCompiler}.
+     * @since VelocityTools 4.1
+     */
+    public static final String COMPILED_PACKAGE = "org.apache.velocity.tools.compiled";
     public static final ConfigurationUtils INSTANCE = new ConfigurationUtils();
 
     private ConfigurationUtils() {}
@@ -78,16 +89,37 @@ public class ConfigurationUtils
     {
         FileFactoryConfiguration config =
             new XmlFactoryConfiguration("ConfigurationUtils.getDefaultTools()");
-        config.read(GENERIC_DEFAULTS_PATH);
+        readDefaults(config, GENERIC_DEFAULTS_PATH, true);
 
         // view tools may not be available
-        config.read(VIEW_DEFAULTS_PATH, false);
+        readDefaults(config, VIEW_DEFAULTS_PATH, false);
 
         // defaults should *always* be clean!
         clean(config);
         return config;
     }
 
+    /**
+     * Reads default tools into a configuration, using their compiled
+     * configuration rather than their tools.xml if there is one in
+     * the classpath.
+     * @param config configuration to add the default tools to
+     * @param path classpath of the default tools.xml
+     * @param required whether the default tools are required
+     */
+    private static void readDefaults(FileFactoryConfiguration config, String path, boolean required)
+    {
+        FactoryConfiguration compiled = findCompiled(path);
+        if (compiled != null)
+        {
+            config.addConfiguration(compiled);
+        }
+        else
+        {
+            config.read(path, required);
+        }
+    }
+
     /**
      * Returns a {@link FactoryConfiguration} including all default
      * "GenericTools" available and no others.
@@ -97,7 +129,7 @@ public class ConfigurationUtils
     {
         FileFactoryConfiguration config =
             new XmlFactoryConfiguration("ConfigurationUtils.getGenericTools()");
-        config.read(GENERIC_DEFAULTS_PATH);
+        readDefaults(config, GENERIC_DEFAULTS_PATH, true);
 
         // defaults should *always* be clean!
         clean(config);
@@ -114,8 +146,8 @@ public class ConfigurationUtils
     {
         FileFactoryConfiguration config =
             new XmlFactoryConfiguration("ConfigurationUtils.getVelocityView()");
-        config.read(GENERIC_DEFAULTS_PATH);
-        config.read(VIEW_DEFAULTS_PATH);
+        readDefaults(config, GENERIC_DEFAULTS_PATH, true);
+        readDefaults(config, VIEW_DEFAULTS_PATH, true);
 
         // defaults should *always* be clean!
         clean(config);
@@ -199,11 +231,30 @@ public class ConfigurationUtils
      * configuration loaded from the file system is given precedence (i.e.
      * it is added onto the other).  If no match is found in either, then
      * this will return {@code null}.
+     * A configuration compiled from that path by the {@link ConfigurationCompiler}
+     * takes precedence over both, unless the file was modified after it was
+     * compiled.
      * @param path configuration classpath or filesystem path
      * @return new {@link FactoryConfiguration} for the given path
      */
     public static FactoryConfiguration find(String path)
     {
+        URL source;
+        File file = new File(path);
+        try
+        {
+            source = file.exists() ? file.toURI().toURL() : ClassUtils.getResource(path, INSTANCE);
+        }
+        catch (MalformedURLException mue)
+        {
+            throw new IllegalStateException("Could not convert existing file path \""+path+"\" to URL", mue);
+        }
+        FactoryConfiguration compiled = findCompiled(path, source);
+        if (compiled != null)
+        {
+            return compiled;
+        }
+
         FactoryConfiguration cp = findInClasspath(path);
         FactoryConfiguration fs = findInFileSystem(path);
         if (cp != null)
@@ -220,6 +271,114 @@ public class ConfigurationUtils
         }
     }
 
+    /**
+     * Returns the name of the class the {@link ConfigurationCompiler}
+     * generates for the configuration file at the specified path: the
+     * path, with all the characters which are not valid in a Java
+     * identifier replaced by underscores, in the {@link #COMPILED_PACKAGE}
+     * package. For instance, <code>/WEB-INF/tools.xml</code> gives
+     * <code>org.apache.velocity.tools.compiled.WEB_INF_tools_xml</code>.
+     * @param path configuration path, as given to {@link #find(String)}
+     * @return compiled configuration class name
+     * @since VelocityTools 4.1
+     */
+    public static String getCompiledClassName(String path)
+    {
+        if (path.startsWith("/"))
+        {
+            path = path.substring(1);
+        }
+        StringBuilder name = new StringBuilder(COMPILED_PACKAGE.length() + path.length() + 2);
+        name.append(COMPILED_PACKAGE).append('.');
+        if (path.length() == 0 || !Character.isJavaIdentifierStart(path.charAt(0)))
+        {
+            name.append('_');
+        }
+        for (int i = 0; i < path.length(); i++)
+        {
+            char c = path.charAt(i);
+            name.append(Character.isJavaIdentifierPart(c) ? c : '_');
+        }
+        return name.toString();
+    }
+
+    /**
+     * Returns the {@link FactoryConfiguration} compiled by the
+     * {@link ConfigurationCompiler} from the configuration file at the
+     * specified path, if its generated class is in the classpath.
+     * @param path configuration path
+     * @return compiled {@link FactoryConfiguration}, or {@code null}
+     * @since VelocityTools 4.1
+     */
+    public static FactoryConfiguration findCompiled(String path)
+    {
+        return findCompiled(path, null);
+    }
+
+    /**
+     * Returns the {@link FactoryConfiguration} compiled by the
+     * {@link ConfigurationCompiler} from the configuration file at the
+     * specified path, if its generated class is in the classpath and
+     * if the configuration file was not modified after the class was
+     * generated, for instance before a configuration reload.
+     * @param path configuration path
+     * @param source URL of the configuration file, or {@code null} if unknown
+     * @return compiled {@link FactoryConfiguration}, or {@code null}
+     * @since VelocityTools 4.1
+     */
+    public static FactoryConfiguration findCompiled(String path, URL source)
+    {
+        Class compiled;
+        try
+        {
+            compiled = ClassUtils.getClass(getCompiledClassName(path));
+        }
+        catch (ClassNotFoundException cnfe)
+        {
+            return null;
+        }
+        if (source != null)
+        {
+            URL classFile = compiled.getResource(compiled.getSimpleName() + ".class");
+            long compiledTime = classFile == null ? 0L : getLastModified(classFile);
+            if (compiledTime != 0L && getLastModified(source) > compiledTime)
+            {
+                // the compiled configuration is stale
+                return null;
+            }
+        }
+        return getFromClass(compiled);
+    }
+
+    /**
+     * Returns the last modification time of a resource.
+     * @param url resource URL
+     * @return last modification time, or 0 if unknown
+     */
+    private static long getLastModified(URL url)
+    {
+        try
+        {
+            if ("file".equals(url.getProtocol()))
+            {
+                return new File(url.toURI()).lastModified();
+            }
+            URLConnection connection = url.openConnection();
+            connection.setUseCaches(false);
+            long lastModified = connection.getLastModified();
+            if (!(connection instanceof JarURLConnection))
+            {
+                // some connections open the resource to get its date
+                connection.getInputStream().close();
+            }
+            return lastModified;
+        }
+        catch (IOException | URISyntaxException | IllegalArgumentException e)
+        {
+            return 0L;
+        }
+    }
+
     /**
      * Searches the file system for a configuration file matching the
      * specified path.  If found, it will read and return it as a
@@ -0,0 +1,219 @@
+package org.apache.velocity.tools.config;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Watches a set of configuration files (typically <code>tools.xml</code>
+ * or <code>tools.properties</code>) with a {@link WatchService}, and runs a
+ * reload action whenever one of them is created or modified.</p>
+ * <p>Since editors and deployment tools often touch a file several times in a
+ * row, events are coalesced: the reload only happens once no other event
+ * was received during a short quiet period. The reload action runs on the
+ * watcher's own daemon thread, and its failures are logged rather than
+ * propagated, so that a broken configuration file leaves the current
+ * configuration in place.</p>
+ *
+ * @since VelocityTools 4.1
+ * @version $Id$
+ */
+public class ConfigurationWatcher implements Runnable, Closeable
+{
+    /**
+     * Default quiet period, in milliseconds.
+     */
+    public static final long DEFAULT_QUIET_PERIOD = 500;
+
+    private final Set<Path> files = new HashSet<Path>();
+    private final Runnable reload;
+    private long quietPeriod = DEFAULT_QUIET_PERIOD;
+    private Logger log = LoggerFactory.getLogger(ConfigurationWatcher.class);
+    private WatchService watchService;
+    private Thread thread;
+
+    /**
+     * @param files configuration files to watch
+     * @param reload action to run upon modification
+     */
+    public ConfigurationWatcher(Collection<Path> files, Runnable reload)
+    {
+        for (Path file : files)
+        {
+            this.files.add(file.toAbsolutePath().normalize());
+        }
+        this.reload = reload;
+    }
+
+    public void setLog(Logger log)
+    {
+        if (log == null)
+        {
+            throw new NullPointerException("log should not be set to null");
+        }
+        this.log = log;
+    }
+
+    /**
+     * @param quietPeriod time without events to wait for before reloading,
+     *        in milliseconds
+     */
+    public void setQuietPeriod(long quietPeriod)
+    {
+        this.quietPeriod = quietPeriod;
+    }
+
+    /**
+     * Starts watching the configuration files.
+     * @throws IOException if the parent directories of the
+     *         files could not be registered
+     */
+    public synchronized void start() throws IOException
+    {
+        if (thread != null)
+        {
+            throw new IllegalStateException("ConfigurationWatcher is already started");
+        }
+        watchService = FileSystems.getDefault().newWatchService();
+        Set<Path> directories = new HashSet<Path>();
+        for (Path file : files)
+        {
+            Path directory = file.getParent();
+            if (directory != null && directories.add(directory))
+            {
+                directory.register(watchService,
+                                   StandardWatchEventKinds.ENTRY_CREATE,
+                                   StandardWatchEventKinds.ENTRY_MODIFY);
+            }
+        }
+        thread = new Thread(this, "velocity-tools-configuration-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        log.debug("Watching configuration files {}", files);
+    }
+
+    /**
+     * Stops watching the configuration files.
+     */
+    public synchronized void close()
+    {
+        if (watchService != null)
+        {
+            try
+            {
+                watchService.close();
+            }
+            catch (IOException ioe)
+            {
+                log.error("Failed to close configuration watch service", ioe);
+            }
+            watchService = null;
+        }
+        thread = null;
+    }
+
+    public void run()
+    {
+        WatchService service;
+        synchronized (this)
+        {
+            service = watchService;
+        }
+        try
+        {
+            while (true)
+            {
+                // block until something happens to one of our files
+                if (!isRelevant(service.take()))
+                {
+                    continue;
+                }
+                // then wait for things to settle down
+                WatchKey key;
+                while ((key = service.poll(quietPeriod, TimeUnit.MILLISECONDS)) != null)
+                {
+                    isRelevant(key);
+                }
+                reload();
+            }
+        }
+        catch (ClosedWatchServiceException cwse)
+        {
+            // we have been closed
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* consumes the events of this key, and tells
+       whether one of them concerns a watched file */
+    private boolean isRelevant(WatchKey key)
+    {
+        boolean relevant = false;
+        Path directory = (Path)key.watchable();
+        for (WatchEvent<?> event : key.pollEvents())
+        {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+            {
+                // events were lost, better safe than sorry
+                relevant = true;
+            }
+            else if (files.contains(directory.resolve((Path)event.context())))
+            {
+                relevant = true;
+            }
+        }
+        key.reset();
+        return relevant;
+    }
+
+    /**
+     * Runs the reload action, logging its failures.
+     */
+    protected void reload()
+    {
+        log.info("Configuration files modified, reloading");
+        try
+        {
+            reload.run();
+        }
+        catch (RuntimeException re)
+        {
+            log.error("Failed to reload configuration, keeping the current one", re);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package org.apache.velocity.tools.config;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * <p>Annotation declaring that a tool is immutable once configured, and
+ * that its state only depends upon its configured properties and upon
+ * the dynamic properties listed in {@link #keyedOn()}.</p>
+ * <p>The {@link org.apache.velocity.tools.ToolboxFactory} will then share
+ * one instance of such a tool per distinct tuple of those property values
+ * between all the request (or session) toolboxes, instead of creating one
+ * for each of them.</p>
+ * <p>This annotation is deliberately not inherited: subclasses have
+ * to declare it again.</p>
+ *
+ * @since VelocityTools 4.1
+ * @version $Id$
+ */
+@Documented
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ThreadSafe
+{
+    /**
+     * @return names of the properties the tool instances depend upon,
+     *         like <code>locale</code>
+     */
+    String[] keyedOn() default {};
+}
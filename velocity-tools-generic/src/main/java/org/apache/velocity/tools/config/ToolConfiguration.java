@@ -53,6 +53,9 @@ public class ToolConfiguration extends Configuration
     private Boolean skipSetters;
     private Status status;
     private Throwable problem;
+    /* classes given directly by compiled configurations */
+    private Class toolClass;
+    private Class factoryClass;
 
     public void setKey(String key)
     {
@@ -85,9 +88,32 @@ public class ToolConfiguration extends Configuration
     public void setClassname(String classname)
     {
         this.classname = classname;
+        this.toolClass = null;
         this.status = null;
     }
 
+    /**
+     * Sets the tool class and factory class of a configuration which has
+     * already been validated, typically at build time by the
+     * {@link ConfigurationCompiler}. Class lookups and the instantiation
+     * check of {@link #validate()} are then skipped.
+     * @param clazz tool class
+     * @param factory tool factory class, or <code>null</code>
+     * @since VelocityTools 4.1
+     */
+    public void setValidatedClass(Class clazz, Class factory)
+    {
+        setClassname(clazz.getName());
+        if (factory != null)
+        {
+            setFactoryClassname(factory.getName());
+        }
+        this.toolClass = clazz;
+        this.factoryClass = factory;
+        this.status = Status.VALID;
+        this.problem = null;
+    }
+
     public void setFactory(Class factory)
     {
         setFactoryClassname(factory.getName());
@@ -96,6 +122,7 @@ public class ToolConfiguration extends Configuration
     public void setFactoryClassname(String factoryClassname)
     {
         this.factoryClassname = factoryClassname;
+        this.factoryClass = null;
         this.status = null;
     }
 
@@ -172,6 +199,10 @@ public class ToolConfiguration extends Configuration
 
     public Class getToolClass()
     {
+        if (this.toolClass != null)
+        {
+            return this.toolClass;
+        }
         try
         {
             return ClassUtils.getClass(getClassname());
@@ -184,6 +215,10 @@ public class ToolConfiguration extends Configuration
 
     public Class getFactory()
     {
+        if (this.factoryClass != null)
+        {
+            return this.factoryClass;
+        }
         try
         {
             String factoryClassname = getFactoryClassname();
@@ -372,7 +407,11 @@ public class ToolConfiguration extends Configuration
         if (config instanceof ToolConfiguration)
         {
             ToolConfiguration that = (ToolConfiguration)config;
-            if (that.getClassname() != null)
+            if (that.toolClass != null)
+            {
+                setValidatedClass(that.toolClass, that.factoryClass);
+            }
+            else if (that.getClassname() != null)
             {
                 setClassname(that.getClassname());
             }
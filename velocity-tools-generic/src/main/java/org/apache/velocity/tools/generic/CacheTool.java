@@ -0,0 +1,380 @@
+package org.apache.velocity.tools.generic;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.velocity.tools.Scope;
+import org.apache.velocity.tools.config.DefaultKey;
+import org.apache.velocity.tools.config.ValidScope;
+
+/**
+ * <p>Tool memoizing rendered template fragments, like menus or footers,
+ * for a given time. The fragment to cache is best given as a block
+ * reference, defined with <code>#define</code> or passed to a block macro
+ * call: Velocity only renders such a reference when its string value is
+ * asked for, which this tool only does on a cache miss.</p>
+ * <p>Template example(s):</p>
+ * <pre>
+ * #define( $menu )
+ *   #foreach( $item in $menuItems ) ... #end
+ * #end
+ * $cache.render('menu', 600, $menu)
+ *
+ * #if( !$cache.get('footer') )
+ *   $cache.put('footer', $render.eval($footerTemplate))
+ * #end
+ * $cache.get('footer')
+ *
+ * Toolbox configuration:
+ * &lt;tools&gt;
+ *   &lt;toolbox scope="application"&gt;
+ *     &lt;tool class="org.apache.velocity.tools.generic.CacheTool"
+ *              maxEntries="1000" maxSize="1000000" defaultTTL="300"/&gt;
+ *   &lt;/toolbox&gt;
+ * &lt;/tools&gt;
+ * </pre>
+ *
+ * <p>The cache is bounded by a number of entries and a total number of
+ * chars, past which the least recently used fragments are evicted.
+ * Concurrent misses on the same key are coalesced: only one request
+ * renders the fragment, and the others wait for its output. A fragment
+ * asking for its own key while being rendered, for instance from a
+ * recursive macro, gets its body rendered again, without caching.</p>
+ *
+ * <p>This class is only designed for use as an application-scope tool.</p>
+ *
+ * @since VelocityTools 4.1
+ * @version $Id$
+ */
+@DefaultKey("cache")
+@ValidScope(Scope.APPLICATION)
+public class CacheTool extends SafeConfig
+{
+    /**
+     * Default time to live of the fragments, in seconds.
+     */
+    public static final long DEFAULT_TTL = 300;
+
+    /**
+     * Default maximum number of cached fragments.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    /**
+     * Default maximum total size of the cached fragments, in chars.
+     */
+    public static final long DEFAULT_MAX_SIZE = 1000000;
+
+    public static final String DEFAULT_TTL_KEY = "defaultTTL";
+    public static final String MAX_ENTRIES_KEY = "maxEntries";
+    public static final String MAX_SIZE_KEY = "maxSize";
+
+    private long defaultTTL = DEFAULT_TTL;
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+    private long maxSize = DEFAULT_MAX_SIZE;
+
+    private final LinkedHashMap<String,Fragment> fragments =
+        new LinkedHashMap<String,Fragment>(16, 0.75f, true);
+    private long size;
+    private final ConcurrentMap<String,Rendering> pending =
+        new ConcurrentHashMap<String,Rendering>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * Looks for the time to live and size bounds settings.
+     */
+    protected void configure(ValueParser parser)
+    {
+        defaultTTL = parser.getLong(DEFAULT_TTL_KEY, defaultTTL);
+        maxEntries = parser.getInteger(MAX_ENTRIES_KEY, maxEntries);
+        maxSize = parser.getLong(MAX_SIZE_KEY, maxSize);
+    }
+
+    /**
+     * @return default time to live of the fragments, in seconds
+     */
+    public long getDefaultTTL()
+    {
+        return defaultTTL;
+    }
+
+    /**
+     * Get a cached fragment.
+     * @param key fragment key
+     * @return the fragment, or <code>null</code> if it is not
+     *         in the cache or has expired
+     */
+    public String get(String key)
+    {
+        String content = lookup(key);
+        (content == null ? misses : hits).increment();
+        return content;
+    }
+
+    /**
+     * Caches a fragment for the default time to live.
+     * @param key fragment key
+     * @param value fragment, or block reference rendering it
+     */
+    public void put(String key, Object value)
+    {
+        put(key, value, defaultTTL);
+    }
+
+    /**
+     * Caches a fragment.
+     * @param key fragment key
+     * @param value fragment, or block reference rendering it
+     * @param ttl time to live, in seconds
+     */
+    public void put(String key, Object value, long ttl)
+    {
+        if (key == null || value == null)
+        {
+            return;
+        }
+        store(key, String.valueOf(value), ttl);
+    }
+
+    /**
+     * Returns a cached fragment, or renders and caches it for the default
+     * time to live.
+     * @param key fragment key
+     * @param body fragment, or block reference rendering it
+     * @return the fragment
+     */
+    public String render(String key, Object body)
+    {
+        return render(key, defaultTTL, body);
+    }
+
+    /**
+     * Returns a cached fragment, or renders and caches it. If another
+     * request is already rendering it, waits for its output instead.
+     * @param key fragment key
+     * @param ttl time to live, in seconds
+     * @param body fragment, or block reference rendering it
+     * @return the fragment, or <code>null</code> if the body
+     *         is null or its rendering failed
+     */
+    public String render(String key, long ttl, final Object body)
+    {
+        if (key == null)
+        {
+            return null;
+        }
+        String content = lookup(key);
+        if (content != null)
+        {
+            hits.increment();
+            return content;
+        }
+        misses.increment();
+        if (body == null)
+        {
+            return null;
+        }
+        Rendering task = new Rendering(new Callable<String>()
+        {
+            public String call()
+            {
+                return String.valueOf(body);
+            }
+        });
+        Rendering running = pending.putIfAbsent(key, task);
+        if (running != null && running.renderer == Thread.currentThread())
+        {
+            // nested render of the same key, waiting for ourselves would never end
+            return String.valueOf(body);
+        }
+        try
+        {
+            if (running == null)
+            {
+                try
+                {
+                    task.run();
+                    content = task.get();
+                    store(key, content, ttl);
+                }
+                finally
+                {
+                    pending.remove(key, task);
+                }
+            }
+            else
+            {
+                coalesced.increment();
+                content = running.get();
+            }
+            return content;
+        }
+        catch (ExecutionException ee)
+        {
+            getLog().error("could not render fragment '{}'", key, ee.getCause());
+            return null;
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Rendering of a fragment, which remembers the thread running it.
+     */
+    private static final class Rendering extends FutureTask<String>
+    {
+        final Thread renderer = Thread.currentThread();
+
+        Rendering(Callable<String> callable)
+        {
+            super(callable);
+        }
+    }
+
+    /**
+     * Removes a fragment from the cache.
+     * @param key fragment key
+     */
+    public synchronized void remove(String key)
+    {
+        Fragment fragment = fragments.remove(key);
+        if (fragment != null)
+        {
+            size -= fragment.content.length();
+        }
+    }
+
+    /**
+     * Removes all the fragments from the cache.
+     */
+    public synchronized void clear()
+    {
+        fragments.clear();
+        size = 0;
+    }
+
+    private synchronized String lookup(String key)
+    {
+        if (key == null)
+        {
+            return null;
+        }
+        Fragment fragment = fragments.get(key);
+        if (fragment == null)
+        {
+            return null;
+        }
+        if (fragment.expiration <= System.currentTimeMillis())
+        {
+            remove(key);
+            return null;
+        }
+        return fragment.content;
+    }
+
+    private synchronized void store(String key, String content, long ttl)
+    {
+        if (content.length() > maxSize)
+        {
+            return;
+        }
+        remove(key);
+        fragments.put(key, new Fragment(content, System.currentTimeMillis() + ttl * 1000));
+        size += content.length();
+        // the new fragment comes last and fits, so it is never evicted
+        Iterator<Fragment> eldest = fragments.values().iterator();
+        while (size > maxSize || fragments.size() > maxEntries)
+        {
+            size -= eldest.next().content.length();
+            eldest.remove();
+            evictions.increment();
+        }
+    }
+
+    /**
+     * @return number of cached fragments
+     */
+    public synchronized int getSize()
+    {
+        return fragments.size();
+    }
+
+    /**
+     * @return number of lookups which found their fragment
+     */
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+    /**
+     * @return number of lookups which did not find their fragment
+     */
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+    /**
+     * @return number of fragments evicted to make room for new ones
+     */
+    public long getEvictions()
+    {
+        return evictions.sum();
+    }
+
+    /**
+     * @return number of misses which waited for the rendering
+     *         of the same fragment by another request
+     */
+    public long getCoalesced()
+    {
+        return coalesced.sum();
+    }
+
+    /**
+     * A cached fragment.
+     */
+    private static final class Fragment
+    {
+        final String content;
+        final long expiration;
+
+        Fragment(String content, long expiration)
+        {
+            this.content = content;
+            this.expiration = expiration;
+        }
+    }
+}
@@ -21,6 +21,7 @@ package org.apache.velocity.tools.generic;
 
 import org.apache.commons.beanutils.PropertyUtils;
 import org.apache.velocity.tools.config.DefaultKey;
+import org.apache.velocity.tools.config.ThreadSafe;
 
 import java.io.Serializable;
 import java.util.ArrayList;
@@ -115,6 +116,7 @@ import java.util.Map;
  * @version $Id$
  */
 @DefaultKey("collection")
+@ThreadSafe
 public class CollectionTool extends SafeConfig implements Serializable
 {
     private static final long serialVersionUID = 1410809929945061865L;
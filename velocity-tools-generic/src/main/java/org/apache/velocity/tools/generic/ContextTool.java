@@ -20,6 +20,7 @@ package org.apache.velocity.tools.generic;
  */
 
 import java.io.Serializable;
+import java.util.AbstractSet;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -102,10 +103,65 @@ public class ContextTool extends SafeConfig implements Serializable
 
     /**
      * <p>Return a {@link Set} of the available reference keys in the current
-     * context.</p>
+     * context. Checking whether it contains a key does not gather all the
+     * keys, see {@link #containsKey}.</p>
      * @return keys set
      */
     public Set getKeys()
+    {
+        return new KeySet();
+    }
+
+    /**
+     * Tells whether a key is one of the {@link #getKeys} without
+     * gathering all of them.
+     * @param key context key
+     * @return <code>true</code> if the context chain contains this key
+     * @since VelocityTools 4.1
+     */
+    protected boolean containsKey(String key)
+    {
+        if (isSafeMode() && key.indexOf('.') >= 0)
+        {
+            return false;
+        }
+        Context velctx = this.context;
+        while (velctx != null)
+        {
+            if (containsKey(velctx, key))
+            {
+                return true;
+            }
+            if (velctx instanceof AbstractContext)
+            {
+                velctx = ((AbstractContext)velctx).getChainedContext();
+            }
+            else
+            {
+                velctx = null;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tells whether one context of the chain lists a key
+     * among its keys.
+     * @param velctx context of the chain
+     * @param key context key
+     * @return <code>true</code> if this context lists this key
+     * @since VelocityTools 4.1
+     */
+    protected boolean containsKey(Context velctx, String key)
+    {
+        return velctx.containsKey(key);
+    }
+
+    /**
+     * Gathers all the keys of the context
+     * @return new set of keys
+     */
+    protected Set collectKeys()
     {
         Set keys = new HashSet();
 
@@ -164,8 +220,7 @@ public class ContextTool extends SafeConfig implements Serializable
      */
     public Set getValues()
     {
-        //TODO: this could be a lot more efficient
-        Set keys = getKeys();
+        Set keys = collectKeys();
         Set values = new HashSet(keys.size());
         for (Iterator i = keys.iterator(); i.hasNext(); )
         {
@@ -202,4 +257,50 @@ public class ContextTool extends SafeConfig implements Serializable
         return this.context.get(key);
     }
 
+    /**
+     * Keys set which only gathers the keys of the context, in a mutable
+     * copy, when it is used for something else than membership checks.
+     */
+    private class KeySet extends AbstractSet
+    {
+        private Set keys = null;
+
+        private Set keys()
+        {
+            if (keys == null)
+            {
+                keys = collectKeys();
+            }
+            return keys;
+        }
+
+        @Override
+        public boolean contains(Object key)
+        {
+            if (keys == null)
+            {
+                return key instanceof String && containsKey((String)key);
+            }
+            return keys.contains(key);
+        }
+
+        @Override
+        public boolean add(Object key)
+        {
+            return keys().add(key);
+        }
+
+        @Override
+        public Iterator iterator()
+        {
+            return keys().iterator();
+        }
+
+        @Override
+        public int size()
+        {
+            return keys().size();
+        }
+    }
+
 }
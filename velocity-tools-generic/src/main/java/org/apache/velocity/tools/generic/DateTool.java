@@ -29,6 +29,7 @@ import java.util.Locale;
 import java.util.TimeZone;
 import org.apache.velocity.tools.ConversionUtils;
 import org.apache.velocity.tools.config.DefaultKey;
+import org.apache.velocity.tools.config.ThreadSafe;
 
 /**
  * <p>Tool for working with {@link Date} and {@link Calendar}
@@ -84,6 +85,7 @@ import org.apache.velocity.tools.config.DefaultKey;
  */
 
 @DefaultKey("date")
+@ThreadSafe(keyedOn = { "locale", "timezone" })
 public class DateTool extends FormatConfig implements Serializable
 {
     private static final long serialVersionUID = 2300448853392306057L;
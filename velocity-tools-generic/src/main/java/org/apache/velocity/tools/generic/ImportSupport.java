@@ -521,8 +521,32 @@ public class ImportSupport extends SafeConfig
     public Reader getResourceReader(String resource)
     {
         getLog().debug("get resource {}", resource);
-        URL url = null;
+        URL url = getResourceURL(resource);
         Reader reader = null;
+        if (url != null)
+        {
+            try
+            {
+                reader = openResource(url);
+            }
+            catch (Exception e)
+            {
+                getLog().error("could not get resource {}", resource, e);
+            }
+        }
+        return reader;
+    }
+
+    /**
+     * Get the URL of a local resource, first trying with a file (or a webapp resource for the view flavor)
+     * then with a classpath entry.
+     * @param resource the resource to locate
+     * @return the URL of the resource, or null if not found
+     * @since VelocityTools 4.1
+     */
+    public URL getResourceURL(String resource)
+    {
+        URL url = null;
         try
         {
             url = getFileResource(resource);
@@ -530,33 +554,41 @@ public class ImportSupport extends SafeConfig
             {
                 url = getClasspathResource(resource);
             }
-            if (url != null)
-            {
-                URLConnection uc = url.openConnection();
-                InputStream is = uc.getInputStream();
-                String charSet;
-                // charSet extracted according to RFC 2045, section 5.1
-                String contentType = uc.getContentType();
-                if (contentType != null)
-                {
-                    charSet = ImportSupport.getContentTypeAttribute(contentType, "charset");
-                    if (charSet == null)
-                    {
-                        charSet = RuntimeConstants.ENCODING_DEFAULT;
-                    }
-                }
-                else
-                {
-                    charSet = RuntimeConstants.ENCODING_DEFAULT;
-                }
-                reader = new InputStreamReader(is, charSet);
-            }
         }
         catch (Exception e)
         {
             getLog().error("could not get resource {}", resource, e);
         }
-        return reader;
+        return url;
+    }
+
+    /**
+     * Get a reader of a resource URL, using the charset of its content type if any.
+     * @param url the resource URL
+     * @return a reader of the resource
+     * @throws IOException if the resource could not be opened
+     * @since VelocityTools 4.1
+     */
+    protected Reader openResource(URL url) throws IOException
+    {
+        URLConnection uc = url.openConnection();
+        InputStream is = uc.getInputStream();
+        String charSet;
+        // charSet extracted according to RFC 2045, section 5.1
+        String contentType = uc.getContentType();
+        if (contentType != null)
+        {
+            charSet = ImportSupport.getContentTypeAttribute(contentType, "charset");
+            if (charSet == null)
+            {
+                charSet = RuntimeConstants.ENCODING_DEFAULT;
+            }
+        }
+        else
+        {
+            charSet = RuntimeConstants.ENCODING_DEFAULT;
+        }
+        return new InputStreamReader(is, charSet);
     }
 
     /**
@@ -0,0 +1,465 @@
+package org.apache.velocity.tools.generic;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+import com.github.cliftonlabs.json_simple.JsonArray;
+import com.github.cliftonlabs.json_simple.JsonObject;
+
+/**
+ * <p>Size-bounded cache of parsed JSON documents, shared by all the
+ * {@link JsonTool} instances of the application. Cached documents are
+ * frozen: their objects and arrays throw an
+ * {@link UnsupportedOperationException} on any modification attempt,
+ * so that they can be shared between threads.</p>
+ * <p>The maximum number of cached documents is given by the
+ * <code>velocity.tools.json.cache.size</code> system property, and
+ * defaults to 128.</p>
+ *
+ * @since VelocityTools 4.1
+ * @version $Id$
+ */
+final class JsonCache
+{
+    private static final int MAX_ENTRIES = Integer.getInteger("velocity.tools.json.cache.size", 128);
+
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder evictions = new LongAdder();
+
+    private static final Map<String, CachedDocument> entries = new LinkedHashMap<String, CachedDocument>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedDocument> eldest)
+        {
+            if (size() > MAX_ENTRIES)
+            {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private static final class CachedDocument
+    {
+        final Object root;
+        final long lastModified;
+        final long expiration;
+
+        CachedDocument(Object root, long lastModified, long expiration)
+        {
+            this.root = root;
+            this.lastModified = lastModified;
+            this.expiration = expiration;
+        }
+    }
+
+    private JsonCache() {}
+
+    /**
+     * Gets a cached document.
+     * @param key cache key
+     * @param lastModified current last modification time of the source, or 0 if unknown
+     * @return frozen root object or array, or null if not cached, modified or expired
+     */
+    static Object get(String key, long lastModified)
+    {
+        CachedDocument entry;
+        synchronized (entries)
+        {
+            entry = entries.get(key);
+        }
+        if (entry == null || entry.lastModified != lastModified ||
+            entry.expiration != 0L && entry.expiration <= System.currentTimeMillis())
+        {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.root;
+    }
+
+    /**
+     * Freezes and caches a document.
+     * @param key cache key
+     * @param root root object or array
+     * @param lastModified last modification time of the source, or 0 if unknown
+     * @param ttl time to live in milliseconds, or 0 to keep the document until it is modified or evicted
+     * @return frozen root object or array
+     */
+    static Object put(String key, Object root, long lastModified, long ttl)
+    {
+        Object frozen = freeze(root);
+        CachedDocument entry = new CachedDocument(frozen, lastModified, ttl > 0L ? System.currentTimeMillis() + ttl : 0L);
+        synchronized (entries)
+        {
+            entries.put(key, entry);
+        }
+        return frozen;
+    }
+
+    static int size()
+    {
+        synchronized (entries)
+        {
+            return entries.size();
+        }
+    }
+
+    static void clear()
+    {
+        synchronized (entries)
+        {
+            entries.clear();
+        }
+    }
+
+    static long getHits()
+    {
+        return hits.sum();
+    }
+
+    static long getMisses()
+    {
+        return misses.sum();
+    }
+
+    static long getEvictions()
+    {
+        return evictions.sum();
+    }
+
+    /**
+     * Returns a deep read-only copy of JSON objects and arrays.
+     * @param value JSON value
+     * @return read-only value
+     */
+    static Object freeze(Object value)
+    {
+        if (value instanceof FrozenObject || value instanceof FrozenArray)
+        {
+            return value;
+        }
+        else if (value instanceof JsonObject)
+        {
+            return new FrozenObject((JsonObject)value);
+        }
+        else if (value instanceof JsonArray)
+        {
+            return new FrozenArray((JsonArray)value);
+        }
+        return value;
+    }
+
+    private static UnsupportedOperationException readOnly()
+    {
+        return new UnsupportedOperationException("cached JSON content is read-only");
+    }
+
+    /**
+     * Read-only JSON object.
+     */
+    private static final class FrozenObject extends JsonObject
+    {
+        private static final long serialVersionUID = 4107522530813787427L;
+
+        private transient Map<String, Object> view;
+
+        FrozenObject(JsonObject source)
+        {
+            for (Map.Entry<String, Object> entry : source.entrySet())
+            {
+                super.put(entry.getKey(), freeze(entry.getValue()));
+            }
+        }
+
+        private Map<String, Object> view()
+        {
+            if (view == null)
+            {
+                view = Collections.unmodifiableMap(new AbstractMap<String, Object>()
+                {
+                    @Override
+                    public Set<Map.Entry<String, Object>> entrySet()
+                    {
+                        return FrozenObject.super.entrySet();
+                    }
+                });
+            }
+            return view;
+        }
+
+        @Override
+        public Set<String> keySet()
+        {
+            return Collections.unmodifiableSet(super.keySet());
+        }
+
+        @Override
+        public Collection<Object> values()
+        {
+            return Collections.unmodifiableCollection(super.values());
+        }
+
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet()
+        {
+            return view().entrySet();
+        }
+
+        @Override
+        public Object put(String key, Object value)
+        {
+            throw readOnly();
+        }
+
+        @Override
+        public void putAll(Map<? extends String, ?> map)
+        {
+            throw readOnly();
+        }
+
+        @Override
+        public Object remove(Object key)
+        {
+            throw readOnly();
+        }
+
+        @Override
+        public boolean remove(Object key, Object value)
+        {
+            throw readOnly();
+        }
+
+        @Override
+        public void clear()
+        {
+            throw readOnly();
+        }
+
+        @Override
+        public Object putIfAbsent(String key, Object value)
+        {
+            throw readOnly();
+        }
+
+        @Override
+        public boolean replace(String key, Object oldValue, Object newValue)
+        {
+            throw readOnly();
+        }
+
+        @Override
+        public Object replace(String key, Object value)
+        {
+            throw readOnly();
+        }
+
+        @Override
+        public void replaceAll(BiFunction<? super String, ? super Object, ?> function)
+        {
+            throw readOnly();
+        }
+
+        @Override
+        public Object computeIfAbsent(String key, Function<? super String, ?> mappingFunction)
+        {
+            throw readOnly();
+        }
+
+        @Override
+        public Object computeIfPresent(String key, BiFunction<? super String, ? super Object, ?> remappingFunction)
+        {
+            throw readOnly();
+        }
+
+        @Override
+        public Object compute(String key, BiFunction<? super String, ? super Object, ?> remappingFunction)
+        {
+            throw readOnly();
+        }
+
+        @Override
+        public Object merge(String key, Object value, BiFunction<? super Object, ? super Object, ?> remappingFunction)
+        {
+            throw readOnly();
+        }
+    }
+
+    /**
+     * Read-only JSON array.
+     */
+    private static final class FrozenArray extends JsonArray
+    {
+        private static final long serialVersionUID = -2816730862305613359L;
+
+        private transient List<Object> view;
+
+        FrozenArray(JsonArray source)
+        {
+            ensureCapacity(source.size());
+            for (Object value : source)
+            {
+                super.add(freeze(value));
+            }
+        }
+
+        private List<Object> view()
+        {
+            if (view == null)
+            {
+                view = Collections.unmodifiableList(new AbstractList<Object>()
+                {
+                    @Override
+                    public Object get(int index)
+                    {
+                        return FrozenArray.this.get(index);
+                    }
+
+                    @Override
+                    public int size()
+                    {
+                        return FrozenArray.this.size();
+                    }
+                });
+            }
+            return view;
+        }
+
+        @Override
+        public Iterator<Object> iterator()
+        {
+            return view().iterator();
+        }
+
+        @Override
+        public ListIterator<Object> listIterator()
+        {
+            return view().listIterator();
+        }
+
+        @Override
+        public ListIterator<Object> listIterator(int index)
+        {
+            return view().listIterator(index);
+        }
+
+        @Override
+        public List<Object> subList(int fromIndex, int toIndex)
+        {
+            return view().subList(fromIndex, toIndex);
+        }
+
+        @Override
+        public boolean add(Object value)
+        {
+            throw readOnly();
+        }
+
+        @Override
+        public void add(int index, Object value)
+        {
+            throw readOnly();
+        }
+
+        @Override
+        public boolean addAll(Collection<?> values)
+        {
+            throw readOnly();
+        }
+
+        @Override
+        public boolean addAll(int index, Collection<?> values)
+        {
+            throw readOnly();
+        }
+
+        @Override
+        public Object set(int index, Object value)
+        {
+            throw readOnly();
+        }
+
+        @Override
+        public Object remove(int index)
+        {
+            throw readOnly();
+        }
+
+        @Override
+        public boolean remove(Object value)
+        {
+            throw readOnly();
+        }
+
+        @Override
+        public boolean removeAll(Collection<?> values)
+        {
+            throw readOnly();
+        }
+
+        @Override
+        public boolean retainAll(Collection<?> values)
+        {
+            throw readOnly();
+        }
+
+        @Override
+        public boolean removeIf(Predicate<? super Object> filter)
+        {
+            throw readOnly();
+        }
+
+        @Override
+        public void clear()
+        {
+            throw readOnly();
+        }
+
+        @Override
+        public void replaceAll(UnaryOperator<Object> operator)
+        {
+            throw readOnly();
+        }
+
+        @Override
+        public void sort(Comparator<? super Object> comparator)
+        {
+            throw readOnly();
+        }
+    }
+}
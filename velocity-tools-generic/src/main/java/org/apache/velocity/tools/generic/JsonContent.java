@@ -20,17 +20,26 @@ package org.apache.velocity.tools.generic;
  */
 
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.github.cliftonlabs.json_simple.JsonArray;
 import com.github.cliftonlabs.json_simple.JsonObject;
 
 /**
- * Container for *either* an array *or* an object
+ * Container for *either* an array *or* an object, backed either by json-simple
+ * content, or by a lazily decoded JSON document. Syntax errors found while
+ * decoding lazy content are logged, and the faulty values are seen as null,
+ * as when eagerly parsing malformed content.
  */
 
 public class JsonContent
 {
+    private static final Logger log = LoggerFactory.getLogger(JsonContent.class);
+
     /**
      * JSONObject content
      */
@@ -41,6 +50,11 @@ public class JsonContent
      */
     private JsonArray jsonArray = null;
 
+    /**
+     * lazily decoded content
+     */
+    private final LazyJson.Node node;
+
     /**
      * wraps the object into an hybrid JSON container if necessary
      */
@@ -58,6 +72,11 @@ public class JsonContent
         {
             return new JsonContent((JsonObject)obj);
         }
+        else if (obj instanceof LazyJson.Node)
+        {
+            // lazy wrappers are memoized
+            return ((LazyJson.Node)obj).content();
+        }
         else
         {
             return obj;
@@ -71,6 +90,7 @@ public class JsonContent
     public JsonContent(JsonObject object)
     {
         jsonObject = object;
+        node = null;
     }
 
     /**
@@ -80,6 +100,17 @@ public class JsonContent
     public JsonContent(JsonArray array)
     {
         jsonArray = array;
+        node = null;
+    }
+
+    /**
+     * wraps a lazily decoded object or array
+     * @param node lazy JSON node to wrap
+     * @since VelocityTools 4.1
+     */
+    JsonContent(LazyJson.Node node)
+    {
+        this.node = node;
     }
 
     /**
@@ -98,6 +129,17 @@ public class JsonContent
         {
             ret = wrapIfNeeded(jsonObject.get(String.valueOf(index)));
         }
+        else if (node != null)
+        {
+            try
+            {
+                ret = wrapIfNeeded(node.isObject() ? node.get(String.valueOf(index)) : node.get(index));
+            }
+            catch (IllegalStateException ise)
+            {
+                malformed(ise);
+            }
+        }
         return ret;
     }
 
@@ -121,6 +163,25 @@ public class JsonContent
         {
             ret = wrapIfNeeded(jsonObject.get(key));
         }
+        else if (node != null)
+        {
+            try
+            {
+                if (node.isObject())
+                {
+                    ret = wrapIfNeeded(node.get(key));
+                }
+                else
+                {
+                    ret = wrapIfNeeded(node.get(Integer.parseInt(key)));
+                }
+            }
+            catch (NumberFormatException nfe) {}
+            catch (IllegalStateException ise)
+            {
+                malformed(ise);
+            }
+        }
         return ret;
     }
 
@@ -130,7 +191,8 @@ public class JsonContent
      */
     public Iterator<String> keys()
     {
-        return jsonObject == null ? null : jsonObject.keySet().iterator();
+        Set<String> keys = keySet();
+        return keys == null ? null : keys.iterator();
     }
 
     /**
@@ -139,6 +201,17 @@ public class JsonContent
      */
     public Set<String> keySet()
     {
+        if (node != null)
+        {
+            try
+            {
+                return node.keySet();
+            }
+            catch (IllegalStateException ise)
+            {
+                return malformed(ise);
+            }
+        }
         return jsonObject == null ? null : jsonObject.keySet();
     }
 
@@ -157,6 +230,47 @@ public class JsonContent
         {
             return jsonArray.iterator();
         }
+        else if (node != null)
+        {
+            if (node.isObject())
+            {
+                return keys();
+            }
+            final int size = size();
+            // array values are decoded as they are iterated, and contained objects or arrays are
+            // materialized into read-only json-simple content, as the eager iterator returns
+            return new Iterator()
+            {
+                private int index = 0;
+
+                public boolean hasNext()
+                {
+                    return index < size;
+                }
+
+                public Object next()
+                {
+                    if (index >= size)
+                    {
+                        throw new NoSuchElementException();
+                    }
+                    try
+                    {
+                        Object value = node.get(index++);
+                        return value instanceof LazyJson.Node ? ((LazyJson.Node)value).materialize() : value;
+                    }
+                    catch (IllegalStateException ise)
+                    {
+                        return malformed(ise);
+                    }
+                }
+
+                public void remove()
+                {
+                    throw new UnsupportedOperationException("lazy JSON content is read-only");
+                }
+            };
+        }
         return null;
     }
 
@@ -166,6 +280,18 @@ public class JsonContent
      */
     public int size()
     {
+        if (node != null)
+        {
+            try
+            {
+                return node.size();
+            }
+            catch (IllegalStateException ise)
+            {
+                malformed(ise);
+                return 0;
+            }
+        }
         return jsonObject == null ? jsonArray == null ? null : jsonArray.size() : jsonObject.size();
     }
 
@@ -175,6 +301,18 @@ public class JsonContent
      */
     public String toString()
     {
+        if (node != null)
+        {
+            try
+            {
+                return node.toString();
+            }
+            catch (IllegalStateException ise)
+            {
+                malformed(ise);
+                return "null";
+            }
+        }
         return jsonObject == null ? jsonArray == null ? "null" : jsonArray.toString() : jsonObject.toString();
     }
 
@@ -184,7 +322,7 @@ public class JsonContent
      */
     public boolean isNull()
     {
-        return jsonArray == null && jsonObject == null;
+        return jsonArray == null && jsonObject == null && node == null;
     }
 
     /**
@@ -193,7 +331,7 @@ public class JsonContent
      */
     public boolean isObject()
     {
-        return jsonObject != null;
+        return jsonObject != null || node != null && node.isObject();
     }
 
     /**
@@ -202,25 +340,58 @@ public class JsonContent
      */
     public boolean isArray()
     {
-        return jsonArray != null;
+        return jsonArray != null || node != null && !node.isObject();
     }
 
     /**
-     * Gives access to the wrapped JsonObject, if any
+     * Gives access to the wrapped JsonObject, if any. Lazily decoded content
+     * is fully decoded into a read-only JsonObject.
      * @return JsonObject or null
      */
     public JsonObject getObject()
     {
+        if (node != null && node.isObject())
+        {
+            try
+            {
+                return (JsonObject)node.materialize();
+            }
+            catch (IllegalStateException ise)
+            {
+                return malformed(ise);
+            }
+        }
         return jsonObject;
     }
 
     /**
-     * Gives acces to the wrapped JsonArray, if any
+     * Gives acces to the wrapped JsonArray, if any. Lazily decoded content
+     * is fully decoded into a read-only JsonArray.
      * @return JsonArray or null
      */
     public JsonArray getArray()
     {
+        if (node != null && !node.isObject())
+        {
+            try
+            {
+                return (JsonArray)node.materialize();
+            }
+            catch (IllegalStateException ise)
+            {
+                return malformed(ise);
+            }
+        }
         return jsonArray;
     }
 
+    /**
+     * logs a syntax error found in lazy content
+     */
+    private static <T> T malformed(IllegalStateException ise)
+    {
+        log.error("could not decode JSON content", ise);
+        return null;
+    }
+
 }
@@ -19,13 +19,19 @@ package org.apache.velocity.tools.generic;
  * under the License.
  */
 
+import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.Serializable;
 import java.io.StringReader;
+import java.io.Writer;
+import java.net.URL;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.Callable;
 
+import org.apache.velocity.context.InternalContextAdapter;
+import org.apache.velocity.runtime.Renderable;
 import org.apache.velocity.tools.Scope;
 import org.apache.velocity.tools.config.DefaultKey;
 import org.apache.velocity.tools.config.InvalidScope;
@@ -43,11 +49,24 @@ import com.github.cliftonlabs.json_simple.Jsoner;
  *     <li>$json.parse(<i>JSON string</i>)</li>
  *     <li>$json.read(<i>file or classpath resource</i>)</li>
  *     <li>$json.fetch(<i>URL</i>)</li>
+ *     <li>$json.write(<i>object</i>): streams the object as JSON into the template output, see {@link JsonWriter}</li>
  * </ul>
  * <p>Configuration parameters:</p>
  * <ul>
  *     <li><code>resource</code>=<i>file or classpath resource</i></li>
  *     <li><code>source</code>=<i>URL</i></li>
+ *     <li><code>cache</code>=<i>true/false</i> (default false): when true, parsed documents are kept
+ *     in a cache shared by all the tools of the application. Cached documents are read-only.</li>
+ *     <li><code>cacheTTL</code>=<i>seconds</i> (default 60): time to live of cached documents
+ *     fetched from remote URLs. Local resources stay cached until they are modified. Local URLs,
+ *     which may be resolved against the current request, are not cached.</li>
+ *     <li><code>lazy</code>=<i>true/false</i> (default false): when true, parsing only locates the
+ *     boundaries of objects and arrays, and values are decoded the first time they are accessed,
+ *     which pays off for big documents of which templates only use a few values. Lazily decoded
+ *     content is read-only, and iterating over an array gives wrapped objects and arrays.</li>
+ *     <li><code>writeBeans</code>=<i>true/false</i> (default false): when true, <code>$json.write()</code>
+ *     writes JavaBeans as JSON objects, calling all their public getters; otherwise they are written
+ *     as strings. Only enable it if templates can only write trusted objects.</li>
  * </ul>
  * <p>Example configuration:</p>
  * <pre>
@@ -70,6 +89,36 @@ public class JsonTool extends ImportSupport implements Iterable, Serializable
 {
     private static final long serialVersionUID = -6239459645862004347L;
 
+    /**
+     * Configuration key for the cache of parsed documents.
+     * @since VelocityTools 4.1
+     */
+    public static final String CACHE_KEY = "cache";
+
+    /**
+     * Configuration key for the time to live, in seconds, of cached remote documents.
+     * @since VelocityTools 4.1
+     */
+    public static final String CACHE_TTL_KEY = "cacheTTL";
+
+    /**
+     * Default time to live, in seconds, of cached remote documents.
+     * @since VelocityTools 4.1
+     */
+    public static final int DEFAULT_CACHE_TTL = 60;
+
+    /**
+     * Configuration key for lazy parsing.
+     * @since VelocityTools 4.1
+     */
+    public static final String LAZY_KEY = "lazy";
+
+    /**
+     * Configuration key for the serialization of JavaBeans by {@link #write(Object)}.
+     * @since VelocityTools 4.1
+     */
+    public static final String WRITE_BEANS_KEY = "writeBeans";
+
     /**
      * ImportSupport utility which provides underlying i/o
      */
@@ -90,6 +139,26 @@ public class JsonTool extends ImportSupport implements Iterable, Serializable
 
     private JsonContent root = null;
 
+    /**
+     * Whether parsed documents are cached.
+     */
+    private boolean cache = false;
+
+    /**
+     * Time to live of cached remote documents, in milliseconds.
+     */
+    private long cacheTTL = DEFAULT_CACHE_TTL * 1000L;
+
+    /**
+     * Whether documents are lazily decoded.
+     */
+    private boolean lazy = false;
+
+    /**
+     * Whether JavaBeans are written from their properties.
+     */
+    private boolean writeBeans = false;
+
     /**
      * Looks for the "file" parameter and automatically uses
      * {@link #initJSON(String)} to parse the file (searched in filesystem current path and classpath) and set the
@@ -100,6 +169,10 @@ public class JsonTool extends ImportSupport implements Iterable, Serializable
     {
         super.configure(values);
         initializeImportSupport(values);
+        cache = values.getBoolean(CACHE_KEY, false);
+        cacheTTL = values.getInt(CACHE_TTL_KEY, DEFAULT_CACHE_TTL) * 1000L;
+        lazy = values.getBoolean(LAZY_KEY, false);
+        writeBeans = values.getBoolean(WRITE_BEANS_KEY, false);
         String resource = values.getString(ImportSupport.RESOURCE_KEY);
         if (resource != null)
         {
@@ -139,21 +212,83 @@ public class JsonTool extends ImportSupport implements Iterable, Serializable
     {
         try
         {
-            Object result = Jsoner.deserialize(reader);
-            if (result instanceof JsonObject)
+            initRoot(deserialize(reader));
+        }
+        catch (Exception e)
+        {
+            getLog().error("error while setting up JSON source", e);
+            root = null;
+        }
+    }
+
+    /**
+     * Initialize JSON content from a cached document, parsing it with the given reader
+     * if it is not cached yet, or if it has been modified or has expired.
+     * @param key cache key
+     * @param lastModified last modification time of the source, or 0 if unknown
+     * @param ttl time to live in milliseconds, or 0 to keep the document until it is modified
+     * @param reader source reader provider, called only when needed
+     * @throws Exception if the source could not be opened
+     */
+    protected void initCachedJSON(String key, long lastModified, long ttl, Callable<Reader> reader)
+        throws Exception
+    {
+        if (lazy)
+        {
+            // lazy and eager documents are cached separately
+            key = "lazy:" + key;
+        }
+        Object cached = JsonCache.get(key, lastModified);
+        if (cached == null)
+        {
+            Reader source = reader.call();
+            if (source == null)
             {
-                root = new JsonContent((JsonObject)result);
+                return;
             }
-            else if (result instanceof JsonArray)
+            try
+            {
+                cached = JsonCache.put(key, deserialize(source), lastModified, ttl);
+            }
+            catch (Exception e)
+            {
+                getLog().error("error while setting up JSON source", e);
+                root = null;
+                return;
+            }
+            finally
             {
-                root = new JsonContent((JsonArray)result);
+                source.close();
             }
-            else throw new Exception("Expecting JSON array or object");
         }
-        catch (Exception e)
+        initRoot(cached);
+    }
+
+    private Object deserialize(Reader reader) throws Exception
+    {
+        if (lazy)
         {
-            getLog().error("error while setting up JSON source", e);
-            root = null;
+            return LazyJson.parse(reader);
+        }
+        Object result = Jsoner.deserialize(reader);
+        if (!(result instanceof JsonObject) && !(result instanceof JsonArray))
+        {
+            throw new Exception("Expecting JSON array or object");
+        }
+        return result;
+    }
+
+    private void initRoot(Object result)
+    {
+        if (result instanceof LazyJson.Node)
+        {
+            root = ((LazyJson.Node)result).content();
+        }
+        else
+        {
+            root = result instanceof JsonObject
+                ? new JsonContent((JsonObject)result)
+                : new JsonContent((JsonArray)result);
         }
     }
 
@@ -195,10 +330,30 @@ public class JsonTool extends ImportSupport implements Iterable, Serializable
                 {
                     initializeImportSupport(new ValueParser());
                 }
-                reader = importSupport.getResourceReader(resource);
-                if (reader != null)
+                if (cache)
                 {
-                    initJSON(reader);
+                    final URL url = importSupport.getResourceURL(resource);
+                    if (url != null)
+                    {
+                        // only files are checked for modifications, other resources
+                        // (typically classpath entries) are not expected to change
+                        long lastModified = "file".equals(url.getProtocol()) ? new File(url.toURI()).lastModified() : 0L;
+                        initCachedJSON("resource:" + url.toExternalForm(), lastModified, 0L, new Callable<Reader>()
+                        {
+                            public Reader call() throws Exception
+                            {
+                                return importSupport.openResource(url);
+                            }
+                        });
+                    }
+                }
+                else
+                {
+                    reader = importSupport.getResourceReader(resource);
+                    if (reader != null)
+                    {
+                        initJSON(reader);
+                    }
                 }
             }
             catch (Exception e)
@@ -225,7 +380,7 @@ public class JsonTool extends ImportSupport implements Iterable, Serializable
      * @param url resource URL
      * @return new JSonTool
      */
-    public JsonTool fetch(String url)
+    public JsonTool fetch(final String url)
     {
         if (url != null)
         {
@@ -236,10 +391,24 @@ public class JsonTool extends ImportSupport implements Iterable, Serializable
                 {
                     initializeImportSupport(new ValueParser());
                 }
-                reader = importSupport.acquireReader(url);
-                if (reader != null)
+                // local URLs depend on the current request in a view context
+                if (cache && isRemoteURL(url))
                 {
-                    initJSON(reader);
+                    initCachedJSON("url:" + url, 0L, cacheTTL, new Callable<Reader>()
+                    {
+                        public Reader call() throws Exception
+                        {
+                            return importSupport.acquireReader(url);
+                        }
+                    });
+                }
+                else
+                {
+                    reader = importSupport.acquireReader(url);
+                    if (reader != null)
+                    {
+                        initJSON(reader);
+                    }
                 }
             }
             catch (Exception e)
@@ -261,6 +430,73 @@ public class JsonTool extends ImportSupport implements Iterable, Serializable
         return this;
     }
 
+    /**
+     * Serializes an object as JSON. When rendered, the returned value streams
+     * the JSON representation of the object directly into the template output.
+     * @param value Map, Collection, array, {@link JsonContent}, scalar value, or JavaBean
+     *        if enabled by the <code>writeBeans</code> configuration parameter
+     * @return renderable JSON representation, whose <code>toString()</code> method gives the JSON string
+     * @since VelocityTools 4.1
+     */
+    public Renderable write(final Object value)
+    {
+        final boolean beans = writeBeans;
+        return new Renderable()
+        {
+            public boolean render(InternalContextAdapter context, Writer writer) throws IOException
+            {
+                JsonWriter.write(value, writer, beans);
+                return true;
+            }
+
+            @Override
+            public String toString()
+            {
+                return JsonWriter.toJson(value, beans);
+            }
+        };
+    }
+
+    /**
+     * Get the number of parsed documents found in the cache.
+     * @return cache hits
+     * @since VelocityTools 4.1
+     */
+    public static long getCacheHits()
+    {
+        return JsonCache.getHits();
+    }
+
+    /**
+     * Get the number of parsed documents not found in the cache, or found modified or expired.
+     * @return cache misses
+     * @since VelocityTools 4.1
+     */
+    public static long getCacheMisses()
+    {
+        return JsonCache.getMisses();
+    }
+
+    /**
+     * Get the number of parsed documents evicted from the full cache.
+     * @return cache evictions
+     * @since VelocityTools 4.1
+     */
+    public static long getCacheEvictions()
+    {
+        return JsonCache.getEvictions();
+    }
+
+    /**
+     * Get the number of cached documents.
+     * @return cache size
+     * @since VelocityTools 4.1
+     */
+    public static int getCacheSize()
+    {
+        return JsonCache.size();
+    }
+
     /**
      * Get JSON root object.
      * @return root object or array
@@ -0,0 +1,428 @@
+package org.apache.velocity.tools.generic;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.beans.IndexedPropertyDescriptor;
+import java.beans.PropertyDescriptor;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.beanutils.MethodUtils;
+import org.apache.commons.beanutils.PropertyUtils;
+
+import com.github.cliftonlabs.json_simple.Jsonable;
+
+/**
+ * <p>Streaming JSON serializer: values are written to the output writer as
+ * they are walked, without building intermediate strings or JSON trees.</p>
+ * <p>Supported values are:</p>
+ * <ul>
+ *     <li><code>null</code>, booleans and numbers (non finite floating point numbers are written as <code>null</code>)</li>
+ *     <li>character sequences, characters and enums, written as strings</li>
+ *     <li>{@link JsonContent}, {@link Map}s (keys are converted to strings), {@link Iterable}s,
+ *     {@link Iterator}s and arrays</li>
+ *     <li>other {@link Jsonable} objects, which serialize themselves</li>
+ *     <li>any other object, written as a string using its <code>toString()</code> method, unless beans
+ *     serialization is enabled, in which case objects which are not instances of <code>java.*</code>
+ *     classes are written as JSON objects from their readable JavaBeans properties, by property name</li>
+ * </ul>
+ * <p>Beans serialization calls every public getter of the written objects,
+ * without going through the Velocity uberspector and its restrictions, so it
+ * must only be enabled for trusted objects. Bean properties getters are looked
+ * up once per class. Cyclic values are rejected with an
+ * {@link IllegalArgumentException}.</p>
+ *
+ * @since VelocityTools 4.1
+ * @version $Id$
+ */
+public final class JsonWriter
+{
+    private static final ClassValue<Getter[]> GETTERS = new ClassValue<Getter[]>()
+    {
+        @Override
+        protected Getter[] computeValue(Class<?> type)
+        {
+            return getters(type);
+        }
+    };
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Writer writer;
+
+    private final boolean beans;
+
+    /* containers being written, to detect cycles */
+    private final Map<Object, Object> path = new IdentityHashMap<Object, Object>();
+
+    private JsonWriter(Writer writer, boolean beans)
+    {
+        this.writer = writer;
+        this.beans = beans;
+    }
+
+    /**
+     * Writes a value as JSON, without beans serialization.
+     * @param value value to write
+     * @param writer target writer
+     * @throws IOException if writing failed
+     */
+    public static void write(Object value, Writer writer) throws IOException
+    {
+        write(value, writer, false);
+    }
+
+    /**
+     * Writes a value as JSON.
+     * @param value value to write
+     * @param writer target writer
+     * @param beans whether to write beans from their properties
+     * @throws IOException if writing failed
+     */
+    public static void write(Object value, Writer writer, boolean beans) throws IOException
+    {
+        new JsonWriter(writer, beans).value(value);
+    }
+
+    /**
+     * Converts a value to JSON, without beans serialization.
+     * @param value value to convert
+     * @return JSON string
+     */
+    public static String toJson(Object value)
+    {
+        return toJson(value, false);
+    }
+
+    /**
+     * Converts a value to JSON.
+     * @param value value to convert
+     * @param beans whether to write beans from their properties
+     * @return JSON string
+     */
+    public static String toJson(Object value, boolean beans)
+    {
+        StringWriter writer = new StringWriter();
+        try
+        {
+            write(value, writer, beans);
+        }
+        catch (IOException ioe)
+        {
+            // cannot happen with a StringWriter
+            throw new IllegalStateException(ioe);
+        }
+        return writer.toString();
+    }
+
+    private void value(Object value) throws IOException
+    {
+        if (value == null)
+        {
+            writer.write("null");
+        }
+        else if (value instanceof CharSequence || value instanceof Character)
+        {
+            string(value.toString());
+        }
+        else if (value instanceof Boolean)
+        {
+            writer.write(((Boolean)value).booleanValue() ? "true" : "false");
+        }
+        else if (value instanceof Number)
+        {
+            number((Number)value);
+        }
+        else if (value instanceof Enum)
+        {
+            string(((Enum)value).name());
+        }
+        else
+        {
+            if (path.put(value, value) != null)
+            {
+                throw new IllegalArgumentException("cannot write cyclic value as JSON: " + value.getClass().getName());
+            }
+            if (value instanceof JsonContent)
+            {
+                content((JsonContent)value);
+            }
+            else if (value instanceof Map)
+            {
+                map((Map<?, ?>)value);
+            }
+            else if (value instanceof Iterable)
+            {
+                iterator(((Iterable<?>)value).iterator());
+            }
+            else if (value instanceof Iterator)
+            {
+                iterator((Iterator<?>)value);
+            }
+            else if (value.getClass().isArray())
+            {
+                array(value);
+            }
+            else if (value instanceof Jsonable)
+            {
+                ((Jsonable)value).toJson(writer);
+            }
+            else if (beans && !value.getClass().getName().startsWith("java."))
+            {
+                bean(value);
+            }
+            else
+            {
+                string(value.toString());
+            }
+            path.remove(value);
+        }
+    }
+
+    private void number(Number number) throws IOException
+    {
+        if (number instanceof Double || number instanceof Float)
+        {
+            double d = number.doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d))
+            {
+                writer.write("null");
+                return;
+            }
+        }
+        writer.write(number.toString());
+    }
+
+    private void content(JsonContent content) throws IOException
+    {
+        Set<String> keys = content.isObject() ? content.keySet() : null;
+        if (keys != null)
+        {
+            writer.write('{');
+            boolean first = true;
+            for (String key : keys)
+            {
+                first = member(first, key, content.get(key));
+            }
+            writer.write('}');
+        }
+        else if (content.isArray())
+        {
+            writer.write('[');
+            int size = content.size();
+            for (int i = 0; i < size; ++i)
+            {
+                if (i > 0)
+                {
+                    writer.write(',');
+                }
+                value(content.get(i));
+            }
+            writer.write(']');
+        }
+        else
+        {
+            writer.write("null");
+        }
+    }
+
+    private void map(Map<?, ?> map) throws IOException
+    {
+        writer.write('{');
+        boolean first = true;
+        for (Map.Entry<?, ?> entry : map.entrySet())
+        {
+            first = member(first, String.valueOf(entry.getKey()), entry.getValue());
+        }
+        writer.write('}');
+    }
+
+    private void iterator(Iterator<?> iterator) throws IOException
+    {
+        writer.write('[');
+        boolean first = true;
+        while (iterator.hasNext())
+        {
+            if (!first)
+            {
+                writer.write(',');
+            }
+            first = false;
+            value(iterator.next());
+        }
+        writer.write(']');
+    }
+
+    private void array(Object array) throws IOException
+    {
+        writer.write('[');
+        int length = Array.getLength(array);
+        for (int i = 0; i < length; ++i)
+        {
+            if (i > 0)
+            {
+                writer.write(',');
+            }
+            value(Array.get(array, i));
+        }
+        writer.write(']');
+    }
+
+    private void bean(Object bean) throws IOException
+    {
+        writer.write('{');
+        boolean first = true;
+        for (Getter getter : GETTERS.get(bean.getClass()))
+        {
+            first = member(first, getter.name, getter.get(bean));
+        }
+        writer.write('}');
+    }
+
+    private boolean member(boolean first, String key, Object value) throws IOException
+    {
+        if (!first)
+        {
+            writer.write(',');
+        }
+        string(key);
+        writer.write(':');
+        value(value);
+        return false;
+    }
+
+    private void string(String string) throws IOException
+    {
+        writer.write('"');
+        int length = string.length();
+        int start = 0;
+        for (int i = 0; i < length; ++i)
+        {
+            char c = string.charAt(i);
+            String escape;
+            switch (c)
+            {
+                case '"': escape = "\\\""; break;
+                case '\\': escape = "\\\\"; break;
+                case '\b': escape = "\\b"; break;
+                case '\f': escape = "\\f"; break;
+                case '\n': escape = "\\n"; break;
+                case '\r': escape = "\\r"; break;
+                case '\t': escape = "\\t"; break;
+                default:
+                    if (c >= 0x20 && c != '\u2028' && c != '\u2029')
+                    {
+                        continue;
+                    }
+                    // remaining control characters, and line separators which break javascript strings
+                    escape = new String(new char[] { '\\', 'u', HEX[c >> 12], HEX[(c >> 8) & 0xF], HEX[(c >> 4) & 0xF], HEX[c & 0xF] });
+                    break;
+            }
+            writer.write(string, start, i - start);
+            writer.write(escape);
+            start = i + 1;
+        }
+        writer.write(string, start, length - start);
+        writer.write('"');
+    }
+
+    /**
+     * Bound getter of a bean property.
+     */
+    private static final class Getter
+    {
+        private final String name;
+        private final MethodHandle handle;
+
+        Getter(String name, MethodHandle handle)
+        {
+            this.name = name;
+            this.handle = handle;
+        }
+
+        Object get(Object bean)
+        {
+            try
+            {
+                return handle.invokeExact(bean);
+            }
+            catch (RuntimeException | Error e)
+            {
+                throw e;
+            }
+            catch (Throwable t)
+            {
+                throw new IllegalStateException("could not get property " + name + " of " + bean.getClass().getName(), t);
+            }
+        }
+    }
+
+    private static Getter[] getters(Class<?> type)
+    {
+        List<Getter> getters = new ArrayList<Getter>();
+        for (PropertyDescriptor descriptor : PropertyUtils.getPropertyDescriptors(type))
+        {
+            if (descriptor instanceof IndexedPropertyDescriptor ||
+                descriptor.getReadMethod() == null ||
+                "class".equals(descriptor.getName()))
+            {
+                continue;
+            }
+            Method method = MethodUtils.getAccessibleMethod(type, descriptor.getReadMethod());
+            if (method != null)
+            {
+                try
+                {
+                    MethodHandle handle = MethodHandles.publicLookup().unreflect(method);
+                    getters.add(new Getter(descriptor.getName(), handle.asType(GETTER_TYPE)));
+                }
+                catch (IllegalAccessException iae)
+                {
+                    // not public, skipped
+                }
+            }
+        }
+        // deterministic output
+        Collections.sort(getters, new Comparator<Getter>()
+        {
+            public int compare(Getter left, Getter right)
+            {
+                return left.name.compareTo(right.name);
+            }
+        });
+        return getters.toArray(new Getter[getters.size()]);
+    }
+}
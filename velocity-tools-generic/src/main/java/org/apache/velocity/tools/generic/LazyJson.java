@@ -0,0 +1,473 @@
+package org.apache.velocity.tools.generic;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.github.cliftonlabs.json_simple.JsonException;
+import com.github.cliftonlabs.json_simple.Jsoner;
+
+/**
+ * <p>Lazily decoded JSON document. Parsing only reads the raw characters
+ * and matches the brackets of objects and arrays. The members of an object
+ * or array are located the first time one of them is accessed, and each
+ * member value is decoded the first time it is accessed. Decoded values
+ * and {@link JsonContent} wrappers are kept, so that nothing is decoded or
+ * allocated twice.</p>
+ * <p>Malformed brackets and strings are reported at parsing time, while
+ * other syntax errors are only reported, as an {@link IllegalStateException},
+ * when the faulty object or array is accessed; {@link JsonContent} logs them
+ * and gives null. Once parsed, a document is read-only and can be shared
+ * between threads.</p>
+ *
+ * @since VelocityTools 4.1
+ * @version $Id$
+ */
+final class LazyJson
+{
+    private final String text;
+
+    /* positions of opening brackets, in document order */
+    private final int[] opens;
+
+    /* positions of the matching closing brackets */
+    private final int[] closes;
+
+    private final int count;
+
+    private LazyJson(String text, int[] opens, int[] closes, int count)
+    {
+        this.text = text;
+        this.opens = opens;
+        this.closes = closes;
+        this.count = count;
+    }
+
+    /**
+     * Reads a JSON document and matches its brackets.
+     * @param reader JSON source
+     * @return root object or array node
+     * @throws IOException if the source could not be read
+     * @throws JsonException if the root is not an object or an array, or if brackets or strings are malformed
+     */
+    static Node parse(Reader reader) throws IOException, JsonException
+    {
+        StringBuilder builder = new StringBuilder();
+        char[] buffer = new char[8192];
+        int read;
+        while ((read = reader.read(buffer)) != -1)
+        {
+            builder.append(buffer, 0, read);
+        }
+        String text = builder.toString();
+
+        int[] opens = new int[16];
+        int[] closes = new int[16];
+        int count = 0;
+        int[] stack = new int[16];
+        int depth = 0;
+        int length = text.length();
+        for (int pos = 0; pos < length; ++pos)
+        {
+            char c = text.charAt(pos);
+            switch (c)
+            {
+                case '"':
+                    pos = skipString(text, pos);
+                    break;
+                case '{':
+                case '[':
+                    if (count == opens.length)
+                    {
+                        opens = Arrays.copyOf(opens, count * 2);
+                        closes = Arrays.copyOf(closes, count * 2);
+                    }
+                    if (depth == stack.length)
+                    {
+                        stack = Arrays.copyOf(stack, depth * 2);
+                    }
+                    opens[count] = pos;
+                    stack[depth++] = count++;
+                    break;
+                case '}':
+                case ']':
+                    if (depth == 0 || text.charAt(opens[stack[depth - 1]]) != (c == '}' ? '{' : '['))
+                    {
+                        throw new JsonException(pos, JsonException.Problems.UNEXPECTED_CHARACTER, c);
+                    }
+                    closes[stack[--depth]] = pos;
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (depth > 0)
+        {
+            throw new JsonException(length, JsonException.Problems.UNEXPECTED_TOKEN, "end of input");
+        }
+        int start = skipSpaces(text, 0, length);
+        if (count == 0 || opens[0] != start || skipSpaces(text, closes[0] + 1, length) != length)
+        {
+            throw new JsonException(start, JsonException.Problems.UNEXPECTED_TOKEN, "expecting JSON array or object");
+        }
+        return new LazyJson(text, opens, closes, count).node(start);
+    }
+
+    private static int skipString(String text, int pos) throws JsonException
+    {
+        int length = text.length();
+        for (++pos; pos < length; ++pos)
+        {
+            char c = text.charAt(pos);
+            if (c == '\\')
+            {
+                ++pos;
+            }
+            else if (c == '"')
+            {
+                return pos;
+            }
+        }
+        throw new JsonException(length, JsonException.Problems.UNEXPECTED_TOKEN, "unterminated string");
+    }
+
+    private static int skipSpaces(String text, int pos, int end)
+    {
+        while (pos < end && Character.isWhitespace(text.charAt(pos)))
+        {
+            ++pos;
+        }
+        return pos;
+    }
+
+    private int matchingClose(int open)
+    {
+        return closes[Arrays.binarySearch(opens, 0, count, open)];
+    }
+
+    private Node node(int open)
+    {
+        return new Node(open, matchingClose(open));
+    }
+
+    private IllegalStateException malformed(int pos, Object unexpected)
+    {
+        return new IllegalStateException("malformed JSON",
+            new JsonException(pos, JsonException.Problems.UNEXPECTED_CHARACTER, unexpected));
+    }
+
+    /**
+     * Members of an object or array, located on first access.
+     */
+    private static final class Index
+    {
+        /* object keys, in document order, or null for arrays */
+        final String[] keys;
+        /* object key positions, last duplicate wins */
+        final Map<String, Integer> positions;
+        /* object keys set, in document order */
+        final Set<String> keySet;
+        final int[] starts;
+        final int[] ends;
+        /* decoded values */
+        final AtomicReferenceArray<Object> values;
+
+        Index(String[] keys, int[] starts, int[] ends)
+        {
+            this.keys = keys;
+            this.starts = starts;
+            this.ends = ends;
+            values = new AtomicReferenceArray<Object>(starts.length);
+            if (keys == null)
+            {
+                positions = null;
+                keySet = null;
+            }
+            else
+            {
+                positions = new HashMap<String, Integer>(keys.length * 4 / 3 + 1);
+                for (int i = 0; i < keys.length; ++i)
+                {
+                    positions.put(keys[i], i);
+                }
+                keySet = Collections.unmodifiableSet(new LinkedHashSet<String>(Arrays.asList(keys)));
+            }
+        }
+    }
+
+    /**
+     * Placeholder for decoded null values.
+     */
+    private static final Object NULL = new Object();
+
+    /**
+     * Lazily decoded JSON object or array.
+     */
+    final class Node
+    {
+        private final int start;
+        private final int end;
+        private volatile Index index;
+        private volatile JsonContent content;
+        private volatile Object materialized;
+
+        private Node(int start, int end)
+        {
+            this.start = start;
+            this.end = end;
+        }
+
+        boolean isObject()
+        {
+            return text.charAt(start) == '{';
+        }
+
+        /**
+         * @return memoized wrapper
+         */
+        JsonContent content()
+        {
+            JsonContent wrapper = content;
+            if (wrapper == null)
+            {
+                content = wrapper = new JsonContent(this);
+            }
+            return wrapper;
+        }
+
+        int size()
+        {
+            return index().starts.length;
+        }
+
+        /**
+         * @return object keys in document order, or null for an array
+         */
+        Set<String> keySet()
+        {
+            return index().keySet;
+        }
+
+        /**
+         * @param key object key
+         * @return decoded value, child node, or null
+         */
+        Object get(String key)
+        {
+            Index idx = index();
+            if (idx.keys == null)
+            {
+                return null;
+            }
+            Integer position = idx.positions.get(key);
+            return position == null ? null : get(idx, position);
+        }
+
+        /**
+         * @param position array index, or object member position
+         * @return decoded value, child node, or null
+         */
+        Object get(int position)
+        {
+            Index idx = index();
+            return position < 0 || position >= idx.starts.length ? null : get(idx, position);
+        }
+
+        private Object get(Index idx, int position)
+        {
+            Object value = idx.values.get(position);
+            if (value == null)
+            {
+                value = decode(idx.starts[position], idx.ends[position]);
+                if (!idx.values.compareAndSet(position, null, value))
+                {
+                    value = idx.values.get(position);
+                }
+            }
+            return value == NULL ? null : value;
+        }
+
+        /**
+         * @return equivalent read-only json-simple object or array
+         */
+        Object materialize()
+        {
+            Object value = materialized;
+            if (value == null)
+            {
+                try
+                {
+                    materialized = value = JsonCache.freeze(Jsoner.deserialize(text.substring(start, end + 1)));
+                }
+                catch (JsonException je)
+                {
+                    throw new IllegalStateException("malformed JSON", je);
+                }
+            }
+            return value;
+        }
+
+        private Object decode(int from, int to)
+        {
+            char c = text.charAt(from);
+            if (c == '{' || c == '[')
+            {
+                return node(from);
+            }
+            if (c == '"' && !hasEscapes(from, to))
+            {
+                return text.substring(from + 1, to - 1);
+            }
+            try
+            {
+                Object value = Jsoner.deserialize(text.substring(from, to));
+                return value == null ? NULL : value;
+            }
+            catch (JsonException je)
+            {
+                throw new IllegalStateException("malformed JSON", je);
+            }
+        }
+
+        private boolean hasEscapes(int from, int to)
+        {
+            for (int pos = from + 1; pos < to - 1; ++pos)
+            {
+                if (text.charAt(pos) == '\\')
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private Index index()
+        {
+            Index idx = index;
+            if (idx == null)
+            {
+                index = idx = buildIndex();
+            }
+            return idx;
+        }
+
+        private Index buildIndex()
+        {
+            boolean object = isObject();
+            String[] keys = object ? new String[8] : null;
+            int[] starts = new int[8];
+            int[] ends = new int[8];
+            int size = 0;
+            int pos = skipSpaces(text, start + 1, end);
+            while (pos < end)
+            {
+                if (size == starts.length)
+                {
+                    starts = Arrays.copyOf(starts, size * 2);
+                    ends = Arrays.copyOf(ends, size * 2);
+                    if (object)
+                    {
+                        keys = Arrays.copyOf(keys, size * 2);
+                    }
+                }
+                if (object)
+                {
+                    if (text.charAt(pos) != '"')
+                    {
+                        throw malformed(pos, text.charAt(pos));
+                    }
+                    int keyEnd = skipStringUnchecked(pos) + 1;
+                    keys[size] = (String)decode(pos, keyEnd);
+                    pos = skipSpaces(text, keyEnd, end);
+                    if (pos == end || text.charAt(pos) != ':')
+                    {
+                        throw malformed(pos, text.charAt(pos));
+                    }
+                    pos = skipSpaces(text, pos + 1, end);
+                }
+                if (pos == end)
+                {
+                    throw malformed(pos, text.charAt(pos));
+                }
+                starts[size] = pos;
+                char c = text.charAt(pos);
+                if (c == '{' || c == '[')
+                {
+                    pos = matchingClose(pos) + 1;
+                }
+                else if (c == '"')
+                {
+                    pos = skipStringUnchecked(pos) + 1;
+                }
+                else
+                {
+                    while (pos < end && text.charAt(pos) != ',' && !Character.isWhitespace(text.charAt(pos)))
+                    {
+                        ++pos;
+                    }
+                }
+                ends[size++] = pos;
+                pos = skipSpaces(text, pos, end);
+                if (pos < end)
+                {
+                    if (text.charAt(pos) != ',')
+                    {
+                        throw malformed(pos, text.charAt(pos));
+                    }
+                    pos = skipSpaces(text, pos + 1, end);
+                    if (pos == end)
+                    {
+                        // trailing comma
+                        throw malformed(pos, text.charAt(pos));
+                    }
+                }
+            }
+            return new Index(object ? Arrays.copyOf(keys, size) : null,
+                             Arrays.copyOf(starts, size), Arrays.copyOf(ends, size));
+        }
+
+        private int skipStringUnchecked(int pos)
+        {
+            try
+            {
+                return skipString(text, pos);
+            }
+            catch (JsonException je)
+            {
+                // cannot happen, strings have been checked at parsing time
+                throw new IllegalStateException("malformed JSON", je);
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return materialize().toString();
+        }
+    }
+}
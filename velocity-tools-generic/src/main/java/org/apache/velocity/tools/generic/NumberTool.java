@@ -25,6 +25,7 @@ import java.util.Locale;
 
 import org.apache.velocity.tools.ConversionUtils;
 import org.apache.velocity.tools.config.DefaultKey;
+import org.apache.velocity.tools.config.ThreadSafe;
 
 /**
  * <p>Tool for working with {@link Number} in Velocity templates.
@@ -60,6 +61,7 @@ import org.apache.velocity.tools.config.DefaultKey;
  */
 
 @DefaultKey("number")
+@ThreadSafe(keyedOn = "locale")
 public class NumberTool extends FormatConfig implements Serializable
 {
     private static final long serialVersionUID = -4336524405835332577L;
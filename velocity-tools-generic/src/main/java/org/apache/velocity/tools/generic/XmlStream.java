@@ -0,0 +1,546 @@
+package org.apache.velocity.tools.generic;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.velocity.tools.XmlUtils;
+import org.slf4j.Logger;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * <p>Streaming view of an XML resource, returned by {@link XmlTool#stream(String)},
+ * for documents too large to be loaded as a whole. The document is read
+ * with StAX, and only the elements matching a path expression are built,
+ * one at a time, as small standalone documents wrapped in {@link XmlTool}s:</p>
+ * <pre>
+ * #foreach( $item in $xml.stream('catalog.xml').select("/catalog/item[@type='book']") )
+ *   $item.title.text ($item.attr('id'))
+ * #end
+ * </pre>
+ * <p>Path expressions are a small subset of XPath: a list of element names,
+ * or <code>*</code>, separated by <code>/</code> (child) or <code>//</code>
+ * (descendant) steps, each one optionally followed by attribute predicates,
+ * <code>[@name]</code> or <code>[@name='value']</code>. As with
+ * {@link XmlTool#find(String)}, a path without any '/' is looked for
+ * anywhere in the document. Elements nested within a selected element are
+ * not selected on their own.</p>
+ * <p>Each iteration reads the resource again, as it goes. The resource is
+ * closed once the iteration is over or has failed. Since Velocity does not
+ * tell when an iteration is stopped early, by <code>#break</code> or an
+ * error, the resources of abandoned iterations are closed once their
+ * iterators have been garbage collected, when a later iteration starts.</p>
+ *
+ * @since VelocityTools 4.1
+ * @version $Id$
+ */
+public class XmlStream
+{
+    private static final XMLInputFactory inputFactory = XmlUtils.createXMLInputFactory();
+
+    /* iterators which were garbage collected before being closed */
+    private static final ReferenceQueue<Object> abandoned = new ReferenceQueue<Object>();
+
+    /* open resources, kept reachable until closed */
+    private static final Set<Tracker> open = ConcurrentHashMap.newKeySet();
+
+    private final ImportSupport importSupport;
+    private final String resource;
+    private final Logger log;
+
+    /**
+     * @param importSupport I/O support
+     * @param resource local resource path
+     * @param log logger
+     */
+    public XmlStream(ImportSupport importSupport, String resource, Logger log)
+    {
+        this.importSupport = importSupport;
+        this.resource = resource;
+        this.log = log;
+    }
+
+    /**
+     * Opens the resource.
+     * @return reader of the resource, or <code>null</code> if not found
+     * @throws IOException if the resource cannot be read
+     */
+    protected Reader openReader() throws IOException
+    {
+        return importSupport.getResourceReader(resource);
+    }
+
+    /**
+     * Selects elements.
+     * @param path path expression
+     * @return iterable over the selected elements, reading the resource
+     *         on each iteration, or <code>null</code> if the expression is invalid
+     */
+    public Iterable<XmlTool> select(String path)
+    {
+        if (path == null || path.length() == 0)
+        {
+            return null;
+        }
+        final List<Step> steps;
+        try
+        {
+            steps = parse(path);
+        }
+        catch (IllegalArgumentException iae)
+        {
+            log.error("invalid XML path expression '{}'", path, iae);
+            return null;
+        }
+        return new Iterable<XmlTool>()
+        {
+            public Iterator<XmlTool> iterator()
+            {
+                return new Selection(steps);
+            }
+        };
+    }
+
+    @Override
+    public String toString()
+    {
+        return XmlStream.class.getName() + '[' + resource + ']';
+    }
+
+    /**
+     * Parses a path expression.
+     */
+    static List<Step> parse(String path)
+    {
+        if (path.indexOf('/') < 0)
+        {
+            path = "//" + path;
+        }
+        else if (!path.startsWith("/"))
+        {
+            throw new IllegalArgumentException("relative paths are not supported");
+        }
+        List<Step> steps = new ArrayList<Step>();
+        int pos = 0;
+        int length = path.length();
+        while (pos < length)
+        {
+            boolean descendant = path.startsWith("//", pos);
+            pos += descendant ? 2 : 1;
+            int end = pos;
+            while (end < length && path.charAt(end) != '/' && path.charAt(end) != '[')
+            {
+                ++end;
+            }
+            String name = path.substring(pos, end).trim();
+            if (name.length() == 0)
+            {
+                throw new IllegalArgumentException("missing element name at position " + pos);
+            }
+            for (int i = 0; i < name.length(); ++i)
+            {
+                if ("]@='\" \t(".indexOf(name.charAt(i)) >= 0)
+                {
+                    throw new IllegalArgumentException("invalid element name at position " + pos);
+                }
+            }
+            Step step = new Step(descendant, "*".equals(name) ? null : name);
+            pos = end;
+            while (pos < length && path.charAt(pos) == '[')
+            {
+                end = path.indexOf(']', pos);
+                if (end < 0 || path.charAt(pos + 1) != '@')
+                {
+                    throw new IllegalArgumentException("invalid predicate at position " + pos);
+                }
+                String predicate = path.substring(pos + 2, end);
+                int eq = predicate.indexOf('=');
+                if (eq < 0)
+                {
+                    step.predicates.add(new String[] { predicate.trim(), null });
+                }
+                else
+                {
+                    String value = predicate.substring(eq + 1).trim();
+                    if (value.length() < 2 || value.charAt(0) != value.charAt(value.length() - 1) ||
+                        (value.charAt(0) != '\'' && value.charAt(0) != '"'))
+                    {
+                        throw new IllegalArgumentException("invalid predicate value at position " + pos);
+                    }
+                    step.predicates.add(new String[] { predicate.substring(0, eq).trim(),
+                                                       value.substring(1, value.length() - 1) });
+                }
+                pos = end + 1;
+            }
+            if (pos < length && path.charAt(pos) != '/')
+            {
+                throw new IllegalArgumentException("unexpected character at position " + pos);
+            }
+            steps.add(step);
+        }
+        return steps;
+    }
+
+    /**
+     * Path expression step.
+     */
+    static final class Step
+    {
+        final boolean descendant;
+        final String name;
+        final List<String[]> predicates = new ArrayList<String[]>();
+
+        Step(boolean descendant, String name)
+        {
+            this.descendant = descendant;
+            this.name = name;
+        }
+
+        boolean matches(Frame frame)
+        {
+            if (name != null && !name.equals(frame.name))
+            {
+                return false;
+            }
+            for (String[] predicate : predicates)
+            {
+                String value = frame.attributes.get(predicate[0]);
+                if (value == null || predicate[1] != null && !predicate[1].equals(value))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Name and attributes of an ancestor of the current element.
+     */
+    static final class Frame
+    {
+        final String name;
+        final Map<String, String> attributes;
+
+        Frame(XMLStreamReader reader)
+        {
+            name = qualifiedName(reader.getPrefix(), reader.getLocalName());
+            int count = reader.getAttributeCount();
+            attributes = new HashMap<String, String>(count * 2);
+            for (int i = 0; i < count; ++i)
+            {
+                attributes.put(qualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i)),
+                               reader.getAttributeValue(i));
+            }
+        }
+    }
+
+    private static String qualifiedName(String prefix, String localName)
+    {
+        return prefix == null || prefix.length() == 0 ? localName : prefix + ':' + localName;
+    }
+
+    /**
+     * Closes the resources of the abandoned iterators.
+     */
+    private static void closeAbandoned()
+    {
+        Reference<?> reference;
+        while ((reference = abandoned.poll()) != null)
+        {
+            Tracker tracker = (Tracker)reference;
+            open.remove(tracker);
+            tracker.close();
+        }
+    }
+
+    /**
+     * Resource opened by an iterator, closed along with its StAX reader
+     * when the iterator is done or has been garbage collected. It must not
+     * reference the iterator.
+     */
+    private static final class Tracker extends PhantomReference<Object>
+    {
+        private final Reader source;
+        private final XMLStreamReader reader;
+        private final String resource;
+        private final Logger log;
+
+        Tracker(Object iterator, Reader source, XMLStreamReader reader, String resource, Logger log)
+        {
+            super(iterator, abandoned);
+            this.source = source;
+            this.reader = reader;
+            this.resource = resource;
+            this.log = log;
+        }
+
+        void close()
+        {
+            try
+            {
+                reader.close();
+                source.close();
+            }
+            catch (Exception e)
+            {
+                log.debug("could not close XML resource {}", resource, e);
+            }
+        }
+    }
+
+    /**
+     * Iterator over the selected elements, reading the document
+     * as the iteration goes.
+     */
+    private class Selection implements Iterator<XmlTool>
+    {
+        private final List<Step> steps;
+        private final List<Frame> frames = new ArrayList<Frame>();
+        private Tracker tracker;
+        private XMLStreamReader reader;
+        private DocumentBuilder builder;
+        private XmlTool next;
+        private boolean done;
+
+        Selection(List<Step> steps)
+        {
+            this.steps = steps;
+        }
+
+        public boolean hasNext()
+        {
+            if (next == null && !done)
+            {
+                boolean failed = true;
+                try
+                {
+                    next = advance();
+                    failed = false;
+                }
+                catch (Exception e)
+                {
+                    log.error("could not stream XML resource {}", resource, e);
+                }
+                finally
+                {
+                    if (failed || next == null)
+                    {
+                        next = null;
+                        done = true;
+                        close();
+                    }
+                }
+            }
+            return next != null;
+        }
+
+        public XmlTool next()
+        {
+            if (!hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+            XmlTool result = next;
+            next = null;
+            return result;
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        private XmlTool advance() throws IOException, XMLStreamException, ParserConfigurationException
+        {
+            if (reader == null)
+            {
+                closeAbandoned();
+                Reader source = openReader();
+                if (source == null)
+                {
+                    log.error("could not find XML resource {}", resource);
+                    return null;
+                }
+                try
+                {
+                    synchronized (inputFactory)
+                    {
+                        reader = inputFactory.createXMLStreamReader(source);
+                    }
+                }
+                finally
+                {
+                    if (reader == null)
+                    {
+                        source.close();
+                    }
+                }
+                tracker = new Tracker(this, source, reader, resource, log);
+                open.add(tracker);
+                builder = XmlUtils.createDocumentBuilderFactory().newDocumentBuilder();
+            }
+            while (reader.hasNext())
+            {
+                switch (reader.next())
+                {
+                    case XMLStreamConstants.START_ELEMENT:
+                        frames.add(new Frame(reader));
+                        if (matches(0, 0))
+                        {
+                            // the element end is consumed along with its content
+                            frames.remove(frames.size() - 1);
+                            Document document = builder.newDocument();
+                            document.appendChild(buildElement(document));
+                            return new XmlTool(document.getDocumentElement());
+                        }
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        frames.remove(frames.size() - 1);
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return null;
+        }
+
+        /* whether steps from the given one match the
+           ancestors frames from the given depth */
+        private boolean matches(int step, int depth)
+        {
+            if (step == steps.size())
+            {
+                return depth == frames.size();
+            }
+            if (depth == frames.size())
+            {
+                return false;
+            }
+            Step current = steps.get(step);
+            if (current.descendant)
+            {
+                for (int d = depth; d < frames.size(); ++d)
+                {
+                    if (current.matches(frames.get(d)) && matches(step + 1, d + 1))
+                    {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            return current.matches(frames.get(depth)) && matches(step + 1, depth + 1);
+        }
+
+        /* builds the element the reader is positioned on, with its content */
+        private Element buildElement(Document document) throws XMLStreamException
+        {
+            Element element = createElement(document);
+            Node parent = element;
+            int depth = 1;
+            while (depth > 0)
+            {
+                switch (reader.next())
+                {
+                    case XMLStreamConstants.START_ELEMENT:
+                        Element child = createElement(document);
+                        parent.appendChild(child);
+                        parent = child;
+                        ++depth;
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        parent = parent.getParentNode();
+                        --depth;
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.SPACE:
+                        parent.appendChild(document.createTextNode(reader.getText()));
+                        break;
+                    case XMLStreamConstants.CDATA:
+                        parent.appendChild(document.createCDATASection(reader.getText()));
+                        break;
+                    case XMLStreamConstants.COMMENT:
+                        parent.appendChild(document.createComment(reader.getText()));
+                        break;
+                    case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                        parent.appendChild(document.createProcessingInstruction(reader.getPITarget(), reader.getPIData()));
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return element;
+        }
+
+        private Element createElement(Document document)
+        {
+            Element element = document.createElementNS(reader.getNamespaceURI(),
+                                                        qualifiedName(reader.getPrefix(), reader.getLocalName()));
+            for (int i = 0; i < reader.getNamespaceCount(); ++i)
+            {
+                String prefix = reader.getNamespacePrefix(i);
+                element.setAttributeNS("http://www.w3.org/2000/xmlns/",
+                                       prefix == null || prefix.length() == 0 ? "xmlns" : "xmlns:" + prefix,
+                                       reader.getNamespaceURI(i));
+            }
+            for (int i = 0; i < reader.getAttributeCount(); ++i)
+            {
+                String uri = reader.getAttributeNamespace(i);
+                element.setAttributeNS(uri == null || uri.length() == 0 ? null : uri,
+                                       qualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i)),
+                                       reader.getAttributeValue(i));
+            }
+            return element;
+        }
+
+        private void close()
+        {
+            if (tracker != null)
+            {
+                open.remove(tracker);
+                tracker.clear();
+                tracker.close();
+                tracker = null;
+            }
+            reader = null;
+        }
+    }
+}
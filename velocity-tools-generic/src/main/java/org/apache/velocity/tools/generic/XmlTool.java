@@ -19,16 +19,20 @@ package org.apache.velocity.tools.generic;
  * under the License.
  */
 
+import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.Serializable;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.velocity.tools.XmlTree;
 import org.apache.velocity.tools.XmlUtils;
 
 import org.apache.velocity.tools.ConversionUtils;
@@ -50,6 +54,9 @@ import javax.xml.xpath.XPathExpressionException;
  * <ul>
  *     <li><code>resource</code>=<i>file or classpath resource</i></li>
  *     <li><code>source</code>=<i>URL</i></li>
+ *     <li><code>cache</code>=<i>true/false</i> (default false): when true, resources read
+ *     with {@link #read(String)} are parsed once into a compact read-only tree shared by all
+ *     the tools of the application, and parsed again only when a file resource is modified.</li>
  * </ul>
  *
  * <p>Here's a short example:</p>
@@ -79,6 +86,10 @@ import javax.xml.xpath.XPathExpressionException;
  * under the key "xml". You can read  but unless you set safeMode="false" for it, you will
  * only be able to parse XML strings.  Safe mode is on by default and blocks
  * access to the {@link #read(String)} method.</p>
+ * <p>Large documents can be streamed rather than read, so that only the
+ * elements matching a path expression are loaded, one at a time:
+ * {@code $xml.stream('catalog.xml').select("/catalog/item[@type='book']")}.
+ * See {@link XmlStream}.</p>
  *
  * @author Nathan Bubna
  * @author Claude Brisson
@@ -91,6 +102,47 @@ public class XmlTool extends SafeConfig implements Serializable
 {
     private static final long serialVersionUID = 8217744660691416595L;
 
+    /**
+     * Configuration key for the cache of read resources.
+     * @since VelocityTools 4.1
+     */
+    public static final String CACHE_KEY = "cache";
+
+    /**
+     * Maximum number of cached documents.
+     */
+    private static final int MAX_CACHED_DOCUMENTS = 64;
+
+    /**
+     * Read-only documents parsed from resources, by URL, shared by all instances.
+     */
+    private static final Map<String, CachedDocument> documentCache =
+        new LinkedHashMap<String, CachedDocument>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedDocument> eldest)
+            {
+                return size() > MAX_CACHED_DOCUMENTS;
+            }
+        };
+
+    private static final class CachedDocument
+    {
+        final long lastModified;
+        final Document document;
+
+        CachedDocument(long lastModified, Document document)
+        {
+            this.lastModified = lastModified;
+            this.document = document;
+        }
+    }
+
+    /**
+     * Whether read resources are cached.
+     */
+    private boolean cache = false;
+
     /**
      * ImportSupport utility which provides underlying i/o
      */
@@ -117,6 +169,7 @@ public class XmlTool extends SafeConfig implements Serializable
     {
         super.configure(values);
         initializeImportSupport(values);
+        cache = values.getBoolean(CACHE_KEY, false);
         String resource = values.getString(ImportSupport.RESOURCE_KEY);
         if (resource != null)
         {
@@ -221,10 +274,21 @@ public class XmlTool extends SafeConfig implements Serializable
             {
                 initializeImportSupport(new ValueParser());
             }
-            reader = importSupport.getResourceReader(resource);
-            if (reader != null)
+            if (cache)
             {
-                setRoot(XmlUtils.parse(reader));
+                URL url = importSupport.getResourceURL(resource);
+                if (url != null)
+                {
+                    setRoot(getCachedDocument(url));
+                }
+            }
+            else
+            {
+                reader = importSupport.getResourceReader(resource);
+                if (reader != null)
+                {
+                    setRoot(XmlUtils.parse(reader));
+                }
             }
         }
         catch (Exception e)
@@ -245,6 +309,44 @@ public class XmlTool extends SafeConfig implements Serializable
         return this;
     }
 
+    /**
+     * Gets the read-only document of a resource from the cache, parsing it
+     * if it is not cached yet or if its file has been modified since.
+     * @param url resource URL
+     * @return cached document
+     * @throws Exception if the resource could not be read or parsed
+     */
+    protected Document getCachedDocument(URL url) throws Exception
+    {
+        String key = url.toExternalForm();
+        // only files are checked for modifications, other resources
+        // (typically classpath entries) are not expected to change
+        long lastModified = "file".equals(url.getProtocol()) ? new File(url.toURI()).lastModified() : 0L;
+        CachedDocument cached;
+        synchronized (documentCache)
+        {
+            cached = documentCache.get(key);
+        }
+        if (cached != null && cached.lastModified == lastModified)
+        {
+            return cached.document;
+        }
+        Reader reader = importSupport.openResource(url);
+        try
+        {
+            cached = new CachedDocument(lastModified, XmlTree.parse(reader));
+        }
+        finally
+        {
+            reader.close();
+        }
+        synchronized (documentCache)
+        {
+            documentCache.put(key, cached);
+        }
+        return cached.document;
+    }
+
     /**
      * Reads and parses a remote or local URL
      * @param url resource URL
@@ -283,6 +385,26 @@ public class XmlTool extends SafeConfig implements Serializable
         return this;
     }
 
+    /**
+     * Opens a local resource for streaming, without parsing it as a whole.
+     * @param resource resource path
+     * @return streaming view of the resource
+     * @see XmlStream
+     * @since VelocityTools 4.1
+     */
+    public XmlStream stream(String resource)
+    {
+        if (resource == null)
+        {
+            return null;
+        }
+        if (importSupport == null)
+        {
+            initializeImportSupport(new ValueParser());
+        }
+        return new XmlStream(importSupport, resource, getLog());
+    }
+
     /**
      * This will first attempt to find an attribute with the
      * specified name and return its value.  If no such attribute
@@ -19,12 +19,26 @@ package org.apache.velocity.tools.generic;
  * under the License.
  */
 
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.app.VelocityEngine;
 import org.junit.Test;
 
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
 
 /**
  * <p>Tests for {@link JsonTool}</p>
@@ -44,4 +58,236 @@ public class JsonToolTests
         jsonTool.configure(config);
         assertEquals(jsonTool.get("foo"), "bar");
     }
+
+    public @Test void testCachedJson() throws Exception
+    {
+        Map config = new HashMap();
+        config.put("resource", "foo.json");
+        config.put(JsonTool.CACHE_KEY, "true");
+        long hits = JsonTool.getCacheHits();
+        JsonTool first = new JsonTool();
+        first.configure(config);
+        JsonTool second = new JsonTool();
+        second.configure(config);
+        assertEquals("bar", second.get("foo"));
+        assertEquals("foo2", ((JsonContent)second.get("array")).get(1));
+        assertEquals(hits + 1, JsonTool.getCacheHits());
+        // parsed once, then shared read-only
+        JsonContent root = (JsonContent)second.root();
+        assertSame(((JsonContent)first.root()).getObject(), root.getObject());
+        try
+        {
+            root.getObject().put("foo", "baz");
+            fail("cached JSON content modified");
+        }
+        catch (UnsupportedOperationException uoe) {}
+        try
+        {
+            ((JsonContent)root.get("array")).getArray().iterator().remove();
+            fail("cached JSON content modified");
+        }
+        catch (UnsupportedOperationException uoe) {}
+    }
+
+    public @Test void testLocalURLsAreNotCached() throws Exception
+    {
+        // local URLs may resolve differently from one request to another
+        final int[] reads = new int[1];
+        Map config = new HashMap();
+        config.put(JsonTool.CACHE_KEY, "true");
+        for (int i = 1; i <= 2; i++)
+        {
+            JsonTool jsonTool = new JsonTool()
+            {
+                @Override
+                protected synchronized void initializeImportSupport(ValueParser config)
+                {
+                    importSupport = new ImportSupport()
+                    {
+                        @Override
+                        protected Reader acquireLocalURLReader(String url)
+                        {
+                            return new StringReader("{ \"read\": " + (++reads[0]) + " }");
+                        }
+                    };
+                    importSupport.configure(config);
+                }
+            };
+            jsonTool.configure(config);
+            jsonTool.fetch("data.json");
+            assertEquals(new BigDecimal(i), jsonTool.get("read"));
+        }
+    }
+
+    public @Test void testLazyJson() throws Exception
+    {
+        String json = "{ \"foo\": \"bar\", \"esc\": \"a\\\"b\\u0021\", \"num\": 12.5, \"nil\": null," +
+            " \"obj\": { \"arr\": [ true, { \"x\": 1 }, [ ] ] } }";
+        Map config = new HashMap();
+        config.put(JsonTool.LAZY_KEY, "true");
+        JsonTool lazy = new JsonTool();
+        lazy.configure(config);
+        lazy.parse(json);
+        JsonTool eager = new JsonTool();
+        eager.configure(new HashMap());
+        eager.parse(json);
+
+        assertEquals(eager.keySet(), lazy.keySet());
+        assertEquals("bar", lazy.get("foo"));
+        assertEquals("a\"b!", lazy.get("esc"));
+        assertEquals(new BigDecimal("12.5"), lazy.get("num"));
+        assertNull(lazy.get("nil"));
+        assertNull(lazy.get("missing"));
+        // wrappers are memoized
+        JsonContent obj = (JsonContent)lazy.get("obj");
+        assertSame(obj, lazy.get("obj"));
+        JsonContent arr = (JsonContent)obj.get("arr");
+        assertEquals(3, arr.size());
+        assertEquals(Boolean.TRUE, arr.get(0));
+        assertEquals(Boolean.TRUE, arr.get("0"));
+        assertEquals(new BigDecimal(1), ((JsonContent)arr.get(1)).get("x"));
+        assertNull(arr.get(3));
+        Iterator it = arr.iterator();
+        assertEquals(Boolean.TRUE, it.next());
+        assertEquals(((JsonContent)arr.get(1)).getObject(), it.next());
+        assertEquals(0, ((List)it.next()).size());
+        assertFalse(it.hasNext());
+        assertEquals(((JsonContent)eager.get("obj")).getObject(), obj.getObject());
+        assertEquals(eager.toString(), lazy.toString());
+    }
+
+    public @Test void testLazyJsonIteration() throws Exception
+    {
+        String json = "[ { \"a\": 1, \"b\": [ 2 ] }, [ 3, 4 ], \"c\" ]";
+        String template =
+            "#foreach($item in $json)" +
+            "#if($item.entrySet())#foreach($e in $item.entrySet())$e.key=$e.value #end$item.containsKey('a')" +
+            "#elseif($item.size())$item.subList(1, 2)#else$item#end;" +
+            "#end";
+        VelocityEngine engine = new VelocityEngine();
+        engine.init();
+        String eager = null;
+        for (String lazy : Arrays.asList("false", "true"))
+        {
+            Map config = new HashMap();
+            config.put(JsonTool.LAZY_KEY, lazy);
+            JsonTool jsonTool = new JsonTool();
+            jsonTool.configure(config);
+            jsonTool.parse(json);
+            VelocityContext context = new VelocityContext();
+            context.put("json", jsonTool);
+            StringWriter writer = new StringWriter();
+            engine.evaluate(context, writer, "iteration", template);
+            if (eager == null)
+            {
+                eager = writer.toString();
+                assertEquals("a=1 b=[2] true;[4];c;", eager);
+            }
+            else
+            {
+                // both backends give the same results
+                assertEquals(eager, writer.toString());
+            }
+        }
+    }
+
+    public @Test void testMalformedLazyJson() throws Exception
+    {
+        Map config = new HashMap();
+        config.put(JsonTool.LAZY_KEY, "true");
+        JsonTool lazy = new JsonTool();
+        lazy.configure(config);
+        // brackets match, so the error is only found when the object is accessed
+        lazy.parse("{ \"ok\": [ 1, 2 ], \"bad\": { 1: 2 }, \"num\": 1x }");
+        assertEquals(new BigDecimal(1), ((JsonContent)lazy.get("ok")).get(0));
+        JsonContent bad = (JsonContent)lazy.get("bad");
+        assertNull(bad.get("1"));
+        assertNull(bad.keySet());
+        assertEquals(0, bad.size());
+        assertNull(bad.getObject());
+        assertEquals("null", bad.toString());
+        assertNull(lazy.get("num"));
+    }
+
+    public static class Bean
+    {
+        public String getName()
+        {
+            return "b\"\n\u2028";
+        }
+
+        public int[] getValues()
+        {
+            return new int[] { 1, 2 };
+        }
+
+        public Bean getSelf()
+        {
+            return this;
+        }
+    }
+
+    public static class Item
+    {
+        public double getRatio()
+        {
+            return Double.NaN;
+        }
+
+        public Thread.State getState()
+        {
+            return Thread.State.NEW;
+        }
+    }
+
+    public @Test void testWrite() throws Exception
+    {
+        Map config = new HashMap();
+        config.put(JsonTool.WRITE_BEANS_KEY, "true");
+        JsonTool json = new JsonTool();
+        json.configure(config);
+        Map data = new LinkedHashMap();
+        data.put("list", Arrays.asList("a", null, true, 12L));
+        data.put(1, new Item());
+        data.put("content", new JsonTool().parse("{\"x\":[1]}").root());
+
+        VelocityEngine engine = new VelocityEngine();
+        engine.init();
+        VelocityContext context = new VelocityContext();
+        context.put("json", json);
+        context.put("data", data);
+        StringWriter writer = new StringWriter();
+        engine.evaluate(context, writer, "test", "$json.write($data)");
+        String expected = "{\"list\":[\"a\",null,true,12],\"1\":{\"ratio\":null,\"state\":\"NEW\"},\"content\":{\"x\":[1]}}";
+        assertEquals(expected, writer.toString());
+        assertEquals(expected, json.write(data).toString());
+        try
+        {
+            json.write(new Bean()).toString();
+            fail("cyclic bean written");
+        }
+        catch (IllegalArgumentException iae) {}
+        Map bean = new HashMap();
+        bean.put("name", new Bean().getName());
+        assertEquals("{\"name\":\"b\\\"\\n\\u2028\"}", json.write(bean).toString());
+
+        // beans are only serialized on demand, their getters are not called otherwise
+        JsonTool safe = new JsonTool();
+        safe.configure(new HashMap());
+        Bean unsafe = new Bean()
+        {
+            @Override
+            public String getName()
+            {
+                throw new IllegalStateException("getter called");
+            }
+
+            @Override
+            public String toString()
+            {
+                return "bean";
+            }
+        };
+        assertEquals("[\"bean\"]", safe.write(Arrays.asList(unsafe)).toString());
+    }
 }
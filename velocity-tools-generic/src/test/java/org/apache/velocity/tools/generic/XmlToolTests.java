@@ -27,11 +27,19 @@ import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
+import org.apache.velocity.tools.XmlUtils;
 import org.junit.Test;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.DOMException;
 import org.w3c.dom.Node;
 
 /**
@@ -313,6 +321,105 @@ public class XmlToolTests {
         assertEquals("<baz>woogie</baz><baz>wiggie</baz>", baz.toString());
     }
 
+    public @Test void methodFind_CachedExpression() throws Exception
+    {
+        XmlTool xml = stringBased();
+        // compiled once, then found in the cache
+        xml.find("//baz[text()='wiggie']");
+        long hits = XmlUtils.getXPathCacheHits();
+        long misses = XmlUtils.getXPathCacheMisses();
+        assertEquals("wiggie", xml.find("//baz[text()='wiggie']").getText());
+        assertEquals(hits + 1, XmlUtils.getXPathCacheHits());
+        assertEquals(misses, XmlUtils.getXPathCacheMisses());
+        assertTrue(XmlUtils.getXPathCacheHitRate() > 0.0);
+        assertNull(xml.find("//baz["));
+    }
+
+    public @Test void methodStream() throws Exception
+    {
+        XmlTool xml = new XmlTool();
+        xml.configure(new ValueParser());
+        XmlStream stream = xml.stream(XML_FILE);
+        StringBuilder texts = new StringBuilder();
+        for (XmlTool baz : stream.select("/foo/baz"))
+        {
+            assertEquals("baz", baz.getName());
+            texts.append(baz.getText());
+        }
+        assertEquals("woogiewiggie", texts.toString());
+        Iterator<XmlTool> bar = stream.select("bar[@name='a']").iterator();
+        assertTrue(bar.hasNext());
+        assertEquals("a", bar.next().attr("name"));
+        assertFalse(bar.hasNext());
+        assertFalse(stream.select("//baz[@name]").iterator().hasNext());
+        // nested elements are not selected on their own
+        Iterator<XmlTool> all = stream.select("//*").iterator();
+        assertEquals(3, all.next().children().size());
+        assertFalse(all.hasNext());
+        assertNull(stream.select("foo/bar"));
+        assertNull(stream.select("/foo/bar]"));
+
+        // resources are closed once iterations are over, or abandoned
+        final List<Boolean> closed = Collections.synchronizedList(new ArrayList<Boolean>());
+        XmlStream tracked = new XmlStream(null, "tracked", LoggerFactory.getLogger(XmlToolTests.class))
+        {
+            @Override
+            protected Reader openReader()
+            {
+                final int index = closed.size();
+                closed.add(false);
+                return new StringReader("<foo><bar>a</bar><bar>b</bar></foo>")
+                {
+                    @Override
+                    public void close()
+                    {
+                        closed.set(index, true);
+                        super.close();
+                    }
+                };
+            }
+        };
+        Iterator<XmlTool> lazy = tracked.select("//bar").iterator();
+        assertEquals("a", lazy.next().getText());
+        assertFalse(closed.get(0));
+        assertEquals("b", lazy.next().getText());
+        assertFalse(lazy.hasNext());
+        assertTrue(closed.get(0));
+        lazy = tracked.select("//bar").iterator();
+        assertEquals("a", lazy.next().getText());
+        lazy = null;
+        for (int i = 0; i < 100 && !closed.get(1); i++)
+        {
+            System.gc();
+            Thread.sleep(10);
+            tracked.select("//none").iterator().hasNext();
+        }
+        assertTrue(closed.get(1));
+    }
 
+    public @Test void methodRead_Cached() throws Exception
+    {
+        Map<String,Object> config = new HashMap<String,Object>();
+        config.put(XmlTool.CACHE_KEY, "true");
+        XmlTool xml = new XmlTool();
+        xml.configure(new ValueParser(config));
+        xml.read(XML_FILE);
+        assertEquals(fileBased().toString(), xml.toString());
+        assertEquals(3, xml.children().size());
+        assertEquals("a", xml.find("bar").attr("name"));
+        assertEquals("wiggie", xml.find("//baz[2]").getText());
+        assertEquals("foo", xml.find("bar").getParent().getName());
+
+        // parsed once, then shared
+        XmlTool other = new XmlTool();
+        other.configure(new ValueParser(config));
+        other.read(XML_FILE);
+        assertSame(xml.node().getOwnerDocument(), other.node().getOwnerDocument());
+        try
+        {
+            xml.node().setTextContent("modified");
+            fail("cached document modified");
+        }
+        catch (DOMException e) {}
+    }
 }
-        
@@ -19,10 +19,16 @@ package org.apache.velocity.tools.test.whitebox;
  * under the License.
  */
 
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
 import org.junit.*;
 import static org.junit.Assert.*;
 import org.apache.commons.beanutils.Converter;
@@ -148,10 +154,87 @@ public class ConfigTests {
         assertConfigEquals(getBaseConfig(), java);
     }
 
+    public @Test void testCompiledConfig() throws Exception
+    {
+        assertEquals("org.apache.velocity.tools.compiled.WEB_INF_tools_xml",
+                     ConfigurationUtils.getCompiledClassName("/WEB-INF/tools.xml"));
+        assertEquals("org.apache.velocity.tools.compiled._1_tools_xml",
+                     ConfigurationUtils.getCompiledClassName("1/tools.xml"));
+
+        // compile tools.test.xml, then the generated source
+        File directory = Files.createTempDirectory("compiled").toFile();
+        File xml = new File(getClass().getResource("/" + XML_PATH).toURI());
+        File source = new ConfigurationCompiler().compile(xml, XML_PATH, directory);
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        assertEquals(0, javac.run(null, null, null, "-classpath", System.getProperty("java.class.path"),
+                                  "-d", directory.getPath(), source.getPath()));
+
+        ClassLoader previous = Thread.currentThread().getContextClassLoader();
+        URLClassLoader loader = new URLClassLoader(new URL[] { directory.toURI().toURL() },
+                                                   getClass().getClassLoader());
+        Thread.currentThread().setContextClassLoader(loader);
+        try
+        {
+            // the compiled configuration is preferred to the file
+            FactoryConfiguration compiled = ConfigurationUtils.find(XML_PATH);
+            assertTrue(compiled.getSource().contains("ConfigurationCompiler"));
+            assertValid(compiled);
+            FileFactoryConfiguration read = new XmlFactoryConfiguration();
+            read.read(XML_PATH);
+            // values are converted at build time, so only compare the results
+            for (Data datum : read.getData())
+            {
+                assertEquals(datum.getConvertedValue(), compiled.getData(datum.getKey()).getConvertedValue());
+            }
+            for (ToolboxConfiguration toolbox : read.getToolboxes())
+            {
+                ToolboxConfiguration other = compiled.getToolbox(toolbox.getScope());
+                assertEquals(toolbox.getPropertyMap(), other.getPropertyMap());
+                for (ToolConfiguration tool : toolbox.getTools())
+                {
+                    ToolConfiguration compiledTool = other.getTool(tool.getKey());
+                    assertSame(tool.getToolClass(), compiledTool.getToolClass());
+                    assertEquals(tool.getPropertyMap(), compiledTool.getPropertyMap());
+                }
+            }
+
+            // but not when the file was modified after it was compiled
+            File classFile = new File(directory, ConfigurationUtils.getCompiledClassName(XML_PATH).replace('.', '/') + ".class");
+            File copy = new File(directory, "tools.xml");
+            Files.copy(xml.toPath(), copy.toPath());
+            assertTrue(copy.setLastModified(classFile.lastModified() - 10000));
+            assertNotNull(ConfigurationUtils.findCompiled(XML_PATH, copy.toURI().toURL()));
+            assertTrue(copy.setLastModified(classFile.lastModified() + 10000));
+            assertNull(ConfigurationUtils.findCompiled(XML_PATH, copy.toURI().toURL()));
+        }
+        finally
+        {
+            Thread.currentThread().setContextClassLoader(previous);
+            loader.close();
+            deleteAll(directory);
+        }
+    }
+
+    protected static void deleteAll(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+            {
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+
     public @Test void testDefaultConfig()
     {
         FactoryConfiguration def = ConfigurationUtils.getDefaultTools();
         assertValid(def);
+
+        // the default tools.xml is compiled at build time
+        assertNotNull(ConfigurationUtils.findCompiled(ConfigurationUtils.GENERIC_DEFAULTS_PATH));
     }
 
     public @Test void testAutoConfig()
@@ -26,14 +26,17 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import java.io.StringWriter;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.List;
 import java.util.Locale;
 
+import org.apache.velocity.app.VelocityEngine;
 import org.apache.velocity.tools.ToolContext;
 import org.apache.velocity.tools.ToolManager;
+import org.apache.velocity.tools.generic.CacheTool;
 import org.apache.velocity.tools.generic.ComparisonDateTool;
 import org.apache.velocity.tools.generic.DateTool;
 import org.apache.velocity.tools.generic.EscapeTool;
@@ -242,4 +245,46 @@ public class GenericToolsTests {
         assertEquals(11l, whenIs.getMonths());
         assertEquals(25l, whenIs.getDays());
     }
+
+    public @Test void testCacheTool() {
+        CacheTool cacheTool = (CacheTool)toolbox.get("cache");
+        assertNotNull(cacheTool);
+        ToolContext context = new ToolContext();
+        context.put("cache", cacheTool);
+        context.put("count", new int[1]);
+        String template = "#define($body)#set($count[0] = $count[0] + 1)body $count[0]#end$cache.render('frag', $body)";
+        VelocityEngine engine = new VelocityEngine();
+        StringWriter first = new StringWriter();
+        engine.evaluate(context, first, "test", template);
+        assertEquals("body 1", first.toString());
+        /* the block reference is only rendered on misses */
+        StringWriter second = new StringWriter();
+        engine.evaluate(context, second, "test", template);
+        assertEquals("body 1", second.toString());
+        assertEquals(1l, cacheTool.getHits());
+        assertEquals(1l, cacheTool.getMisses());
+
+        /* expired fragments are dropped */
+        cacheTool.put("expired", "value", 0);
+        assertNull(cacheTool.get("expired"));
+
+        /* the toolbox config bounds the cache to two fragments */
+        cacheTool.put("one", "1");
+        cacheTool.put("two", "2");
+        assertEquals(2, cacheTool.getSize());
+        assertNull(cacheTool.get("frag"));
+        assertEquals("1", cacheTool.get("one"));
+        assertEquals(1l, cacheTool.getEvictions());
+        cacheTool.clear();
+        assertEquals(0, cacheTool.getSize());
+
+        /* a fragment rendering its own key renders its body again instead of waiting for itself */
+        context.put("depth", new int[1]);
+        String nested = "#define($body)#set($depth[0] = $depth[0] + 1)<$depth[0]#if($depth[0] < 2)$cache.render('nested', $body)#end>#end$cache.render('nested', $body)";
+        StringWriter writer = new StringWriter();
+        engine.evaluate(context, writer, "test", nested);
+        assertEquals("<1<2>>", writer.toString());
+        assertEquals("<1<2>>", cacheTool.get("nested"));
+        cacheTool.clear();
+    }
 }
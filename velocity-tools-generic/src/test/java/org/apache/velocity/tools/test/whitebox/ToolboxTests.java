@@ -0,0 +1,611 @@
+package org.apache.velocity.tools.test.whitebox;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.apache.velocity.tools.IndexedToolbox;
+import org.apache.velocity.tools.PathRestrictions;
+import org.apache.velocity.tools.Scope;
+import org.apache.velocity.tools.ToolContext;
+import org.apache.velocity.tools.ToolInfo;
+import org.apache.velocity.tools.Toolbox;
+import org.apache.velocity.tools.ToolboxFactory;
+import org.apache.velocity.tools.ToolManager;
+import org.apache.velocity.tools.ToolMetrics;
+import org.apache.velocity.tools.config.ConfigurationWatcher;
+import org.apache.velocity.tools.config.EasyFactoryConfiguration;
+import org.apache.velocity.tools.config.ThreadSafe;
+import org.apache.velocity.tools.generic.NumberTool;
+import org.junit.Test;
+
+/**
+ * <p>Toolbox and ToolInfo tests.</p>
+ *
+ * @version $Id$
+ */
+public class ToolboxTests
+{
+    public static class CountedTool
+    {
+        static final AtomicInteger created = new AtomicInteger();
+
+        public void configure(Map<String,Object> props)
+        {
+            created.incrementAndGet();
+            try
+            {
+                // give the other threads time to pile up
+                Thread.sleep(50);
+            }
+            catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public static class BlockingTool
+    {
+        static CountDownLatch entered;
+        static CountDownLatch release;
+
+        public void configure(Map<String,Object> props) throws InterruptedException
+        {
+            entered.countDown();
+            release.await();
+        }
+    }
+
+    public static class FailingTool
+    {
+        static final AtomicInteger attempts = new AtomicInteger();
+
+        public void configure(Map<String,Object> props)
+        {
+            if (attempts.incrementAndGet() == 1)
+            {
+                throw new IllegalStateException("first attempt fails");
+            }
+        }
+    }
+
+    public static class ReentrantTool
+    {
+        static Toolbox toolbox;
+
+        public void configure(Map<String,Object> props)
+        {
+            toolbox.get("reentrant");
+        }
+    }
+
+    public static class PlainTool
+    {
+    }
+
+    public static class PropertiesTool
+    {
+        String name;
+        int size;
+        Object other;
+
+        public void setName(String name)
+        {
+            this.name = name;
+        }
+
+        public void setSize(int size)
+        {
+            this.size = size;
+        }
+
+        public void setOther(Object other)
+        {
+            this.other = other;
+        }
+    }
+
+    @ThreadSafe(keyedOn = "locale")
+    public static class LocalizedTool
+    {
+        Locale locale;
+
+        public void setLocale(Locale locale)
+        {
+            this.locale = locale;
+        }
+    }
+
+    protected Toolbox createToolbox(ToolInfo... infos)
+    {
+        Map<String,ToolInfo> infoMap = new HashMap<String,ToolInfo>();
+        for (ToolInfo info : infos)
+        {
+            infoMap.put(info.getKey(), info);
+        }
+        return new Toolbox(infoMap);
+    }
+
+    public @Test void testCreatedOnlyOnce() throws Exception
+    {
+        CountedTool.created.set(0);
+        final Toolbox toolbox = createToolbox(new ToolInfo("counted", CountedTool.class));
+        final CountDownLatch start = new CountDownLatch(1);
+        int threads = 32;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            List<Future<Object>> results = new ArrayList<Future<Object>>();
+            for (int i = 0; i < threads; i++)
+            {
+                results.add(executor.submit(new Callable<Object>()
+                {
+                    public Object call() throws Exception
+                    {
+                        start.await();
+                        return toolbox.get("counted");
+                    }
+                }));
+            }
+            start.countDown();
+            Object first = results.get(0).get(10, TimeUnit.SECONDS);
+            assertNotNull(first);
+            for (Future<Object> result : results)
+            {
+                assertSame(first, result.get(10, TimeUnit.SECONDS));
+            }
+            assertEquals(1, CountedTool.created.get());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    public @Test void testOtherKeysNotBlocked() throws Exception
+    {
+        BlockingTool.entered = new CountDownLatch(1);
+        BlockingTool.release = new CountDownLatch(1);
+        final Toolbox toolbox = createToolbox(new ToolInfo("blocking", BlockingTool.class),
+                                              new ToolInfo("plain", PlainTool.class));
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try
+        {
+            Future<Object> blocking = executor.submit(new Callable<Object>()
+            {
+                public Object call()
+                {
+                    return toolbox.get("blocking");
+                }
+            });
+            assertTrue(BlockingTool.entered.await(10, TimeUnit.SECONDS));
+
+            // another key must not wait for the blocked creation
+            Future<Object> plain = executor.submit(new Callable<Object>()
+            {
+                public Object call()
+                {
+                    return toolbox.get("plain");
+                }
+            });
+            assertTrue(plain.get(10, TimeUnit.SECONDS) instanceof PlainTool);
+
+            BlockingTool.release.countDown();
+            assertTrue(blocking.get(10, TimeUnit.SECONDS) instanceof BlockingTool);
+        }
+        finally
+        {
+            BlockingTool.release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    public @Test void testConfiguredPropertiesWin()
+    {
+        ToolInfo info = new ToolInfo("props", PropertiesTool.class);
+        info.putProperty("name", "configured");
+        Map<String,Object> dynamic = new HashMap<String,Object>();
+        dynamic.put("name", "dynamic");
+        dynamic.put("size", 3);
+        dynamic.put("other", "other");
+        dynamic.put("unknown", "ignored");
+
+        PropertiesTool tool = (PropertiesTool)info.create(dynamic);
+        assertEquals("configured", tool.name);
+        assertEquals(3, tool.size);
+        assertEquals("other", tool.other);
+
+        // properties changed after a first creation are taken into account
+        info.putProperty("size", 5);
+        tool = (PropertiesTool)info.create(dynamic);
+        assertEquals("configured", tool.name);
+        assertEquals(5, tool.size);
+
+        // ...even when changed directly in the properties map
+        info.getProperties().put("name", "changed");
+        tool = (PropertiesTool)info.create(dynamic);
+        assertEquals("changed", tool.name);
+    }
+
+    public @Test void testOverriddenSetPropertyIsCalled()
+    {
+        final List<String> set = new ArrayList<String>();
+        ToolInfo info = new ToolInfo("props", PropertiesTool.class)
+        {
+            @Override
+            protected void setProperty(Object tool, String name, Object value) throws Exception
+            {
+                set.add(name);
+                super.setProperty(tool, name, value);
+            }
+        };
+        info.putProperty("name", "configured");
+        PropertiesTool tool = (PropertiesTool)info.create(Collections.<String,Object>emptyMap());
+        assertEquals("configured", tool.name);
+        assertTrue(set.contains("name"));
+    }
+
+    public @Test void testIndexedToolbox()
+    {
+        Map<String,ToolInfo> infos = new HashMap<String,ToolInfo>();
+        for (int i = 0; i < 40; i++)
+        {
+            ToolInfo info = new ToolInfo("tool" + i, PlainTool.class);
+            if (i % 2 == 0)
+            {
+                info.restrictTo("/admin/*");
+            }
+            infos.put(info.getKey(), info);
+        }
+        IndexedToolbox.Index index = new IndexedToolbox.Index(infos);
+        assertEquals(40, index.size());
+        for (int i = 0; i < 40; i++)
+        {
+            assertEquals("tool" + i, index.getInfo(index.slot("tool" + i)).getKey());
+        }
+        assertEquals(-1, index.slot("tool40"));
+        assertEquals(-1, index.slot(null));
+
+        Toolbox toolbox = index.createToolbox(null);
+        Object tool = toolbox.get("tool1", "/index.vm");
+        assertTrue(tool instanceof PlainTool);
+        assertSame(tool, toolbox.get("tool1"));
+        assertNull(toolbox.get("tool2", "/index.vm"));
+        assertNotNull(toolbox.get("tool2", "/admin/index.vm"));
+        assertNull(toolbox.get("tool40"));
+        assertEquals(40, toolbox.getAll(null).size());
+    }
+
+    public @Test void testFactoryRequestToolbox()
+    {
+        EasyFactoryConfiguration config = new EasyFactoryConfiguration();
+        config.data("version", "string", "4.1");
+        config.toolbox(Scope.REQUEST).tool("plain", PlainTool.class);
+        ToolboxFactory factory = new ToolboxFactory();
+        factory.configure(config);
+
+        Toolbox first = factory.createToolbox(Scope.REQUEST);
+        Toolbox second = factory.createToolbox(Scope.REQUEST);
+        assertTrue(first instanceof IndexedToolbox);
+        assertTrue(first.get("plain") instanceof PlainTool);
+        assertTrue(first.get("plain") != second.get("plain"));
+        // with a single scope, data comes along
+        assertEquals("4.1", first.get("version"));
+    }
+
+    protected ToolInfo restricted(String key, String path)
+    {
+        ToolInfo info = new ToolInfo(key, PlainTool.class);
+        info.restrictTo(path);
+        return info;
+    }
+
+    public @Test void testPathRestrictions()
+    {
+        PathRestrictions restrictions = PathRestrictions.compile(Arrays.asList(
+            new ToolInfo("all", PlainTool.class),
+            restricted("admin", "/admin/*"),
+            restricted("adminIndex", "/admin/index.vm"),
+            restricted("api", "api/*"),
+            restricted("apiV2", "/api/v2/*"),
+            restricted("star", "*")));
+
+        // "*" is turned into "/*"
+        assertEquals(new HashSet<String>(Arrays.asList("admin", "adminIndex", "api", "apiV2", "star")),
+                     restrictions.getRestrictedKeys());
+        assertEquals(new HashSet<String>(Arrays.asList("api", "apiV2")),
+                     restrictions.getUnavailableKeys("/admin/index.vm"));
+        assertEquals(new HashSet<String>(Arrays.asList("adminIndex", "api", "apiV2")),
+                     restrictions.getUnavailableKeys("/admin/users.vm"));
+        assertEquals(new HashSet<String>(Arrays.asList("admin", "adminIndex")),
+                     restrictions.getUnavailableKeys("/api/v2/items.vm"));
+        assertEquals(new HashSet<String>(Arrays.asList("admin", "adminIndex", "apiV2")),
+                     restrictions.getUnavailableKeys("/api/v1/items.vm"));
+        assertEquals(new HashSet<String>(Arrays.asList("admin", "adminIndex", "api", "apiV2")),
+                     restrictions.getUnavailableKeys("/index.vm"));
+        assertEquals(restrictions.getRestrictedKeys(), restrictions.getUnavailableKeys("index.vm"));
+        assertEquals(Collections.emptySet(),
+                     PathRestrictions.compile(Arrays.asList(new ToolInfo("all", PlainTool.class)))
+                     .getUnavailableKeys("/index.vm"));
+    }
+
+    public @Test void testContextPathRestrictions()
+    {
+        Toolbox toolbox = createToolbox(new ToolInfo("all", PlainTool.class),
+                                        restricted("admin", "/admin/*"));
+        ToolContext context = new ToolContext();
+        context.addToolbox(toolbox);
+        context.putToolProperty(ToolContext.PATH_KEY, "/index.vm");
+        assertNotNull(context.get("all"));
+        assertNull(context.get("admin"));
+        context.putToolProperty(ToolContext.PATH_KEY, "/admin/index.vm");
+        assertNotNull(context.get("admin"));
+    }
+
+    public @Test void testContextKeys()
+    {
+        ToolContext context = new ToolContext();
+        context.addToolbox(createToolbox(new ToolInfo("plain", PlainTool.class)));
+        context.put("local", "value");
+        assertTrue(context.containsKey("plain"));
+        assertTrue(context.containsKey("local"));
+        assertTrue(!context.containsKey("missing"));
+        assertTrue(context.keySet().contains("plain"));
+        assertEquals(new HashSet<String>(Arrays.asList("plain", "local")), context.keySet());
+        context.put("other", "value");
+        assertTrue(context.keySet().contains("other"));
+        assertEquals(3, context.getKeys().length);
+        // keySet() returns a copy
+        context.keySet().remove("other");
+        assertTrue(context.containsKey("other"));
+    }
+
+    public @Test void testFailedCreationIsRetried()
+    {
+        FailingTool.attempts.set(0);
+        Toolbox toolbox = createToolbox(new ToolInfo("failing", FailingTool.class));
+        try
+        {
+            toolbox.get("failing");
+            fail("first creation should have failed");
+        }
+        catch (RuntimeException re)
+        {
+            // expected
+        }
+        assertTrue(toolbox.get("failing") instanceof FailingTool);
+        assertEquals(2, FailingTool.attempts.get());
+    }
+
+    public @Test(timeout = 10000) void testReentrantCreationFails()
+    {
+        Toolbox toolbox = createToolbox(new ToolInfo("reentrant", ReentrantTool.class));
+        ReentrantTool.toolbox = toolbox;
+        try
+        {
+            toolbox.get("reentrant");
+            fail("reentrant creation should have failed");
+        }
+        catch (RuntimeException re)
+        {
+            // expected, rather than a deadlock
+        }
+        finally
+        {
+            ReentrantTool.toolbox = null;
+        }
+    }
+
+    protected Object getTool(Toolbox toolbox, String key, Locale locale)
+    {
+        Map<String,Object> props = new HashMap<String,Object>();
+        props.put(ToolContext.LOCALE_KEY, locale);
+        return toolbox.get(key, null, props);
+    }
+
+    public @Test void testSharedInstances()
+    {
+        EasyFactoryConfiguration config = new EasyFactoryConfiguration();
+        config.toolbox(Scope.REQUEST)
+            .tool("localized", LocalizedTool.class)
+            .tool("number", NumberTool.class)
+            .tool("unlocked", NumberTool.class).property("lockConfig", "false")
+            .tool("plain", PlainTool.class);
+        ToolboxFactory factory = new ToolboxFactory();
+        factory.configure(config);
+        assertEquals(2, factory.getSharedTools().size());
+
+        Toolbox first = factory.createToolbox(Scope.REQUEST);
+        Toolbox second = factory.createToolbox(Scope.REQUEST);
+        Toolbox third = factory.createToolbox(Scope.REQUEST);
+        LocalizedTool tool = (LocalizedTool)getTool(first, "localized", Locale.FRANCE);
+        assertEquals(Locale.FRANCE, tool.locale);
+        assertSame(tool, getTool(second, "localized", Locale.FRANCE));
+        LocalizedTool other = (LocalizedTool)getTool(third, "localized", Locale.US);
+        assertEquals(Locale.US, other.locale);
+        assertSame(getTool(first, "number", Locale.FRANCE), getTool(second, "number", Locale.FRANCE));
+        assertTrue(getTool(first, "unlocked", Locale.FRANCE) != getTool(second, "unlocked", Locale.FRANCE));
+        assertTrue(getTool(first, "plain", Locale.FRANCE) != getTool(second, "plain", Locale.FRANCE));
+    }
+
+    public @Test void testReconfigure()
+    {
+        EasyFactoryConfiguration config = new EasyFactoryConfiguration();
+        config.toolbox(Scope.APPLICATION).tool("plain", PlainTool.class);
+        ToolManager manager = new ToolManager(false, false);
+        manager.configure(config);
+        Toolbox before = manager.getApplicationToolbox();
+        Object plain = before.get("plain");
+        assertEquals(0, manager.getConfigurationVersion());
+
+        EasyFactoryConfiguration reloaded = new EasyFactoryConfiguration();
+        reloaded.toolbox(Scope.APPLICATION).tool("other", PlainTool.class);
+        manager.reconfigure(reloaded, true);
+        assertEquals(1, manager.getConfigurationVersion());
+        Toolbox after = manager.getApplicationToolbox();
+        assertTrue(after != before);
+        // pre-warmed, and not added to the previous configuration
+        assertEquals(Collections.singleton("other"), after.getAll(null).keySet());
+        assertNull(after.get("plain"));
+        // the previous toolbox is left as it was
+        assertSame(plain, before.get("plain"));
+    }
+
+    public @Test void testMetrics() throws Exception
+    {
+        EasyFactoryConfiguration config = new EasyFactoryConfiguration();
+        config.toolbox(Scope.APPLICATION).tool("app", PlainTool.class);
+        config.toolbox(Scope.REQUEST).tool("plain", PlainTool.class);
+        ToolManager manager = new ToolManager(false, false);
+        ToolMetrics metrics = new ToolMetrics();
+        manager.setMetrics(metrics);
+        manager.configure(config);
+
+        for (int i = 0; i < 3; i++)
+        {
+            ToolContext context = manager.createContext();
+            assertNotNull(context.get("plain"));
+            assertNotNull(context.get("plain"));
+            assertNotNull(context.get("app"));
+            assertNull(context.get("missing"));
+        }
+
+        ToolMetrics.ToolStatistics plain = metrics.getStatistics(Scope.REQUEST, "plain");
+        assertEquals(3, plain.getCreations());
+        assertEquals(3, plain.getCacheHits());
+        assertEquals(3, plain.getCacheMisses());
+        assertEquals(3, plain.getNewInstance().getCount());
+        assertEquals(3, plain.getConfigure().getCount());
+        assertEquals(6, plain.getLookup().getCount());
+        ToolMetrics.ToolStatistics app = metrics.getStatistics(Scope.APPLICATION, "app");
+        assertEquals(1, app.getCreations());
+        assertEquals(2, app.getCacheHits());
+        assertEquals(3, metrics.getUnmatchedLookups().getCount());
+        assertEquals(2, metrics.getSnapshot().size());
+
+        // also readable through JMX
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.apache.velocity.tools:type=ToolMetrics,name=test");
+        server.registerMBean(metrics, name);
+        try
+        {
+            CompositeData[] snapshot = (CompositeData[])server.getAttribute(name, "Snapshot");
+            assertEquals(2, snapshot.length);
+            assertEquals("app", snapshot[0].get("key"));
+            assertEquals(1L, snapshot[0].get("creations"));
+            server.invoke(name, "reset", null, null);
+            assertEquals(0, metrics.getStatistics(Scope.REQUEST, "plain").getCreations());
+        }
+        finally
+        {
+            server.unregisterMBean(name);
+        }
+    }
+
+    public @Test void testConfigurationWatcher() throws Exception
+    {
+        Path directory = Files.createTempDirectory("tools");
+        Path file = directory.resolve("tools.xml");
+        Files.write(file, "<tools/>".getBytes("UTF-8"));
+        final CountDownLatch reloaded = new CountDownLatch(1);
+        ConfigurationWatcher watcher = new ConfigurationWatcher(Collections.singleton(file), new Runnable()
+        {
+            public void run()
+            {
+                reloaded.countDown();
+            }
+        });
+        watcher.setQuietPeriod(50);
+        watcher.start();
+        try
+        {
+            // other files are ignored
+            Files.write(directory.resolve("other.xml"), "<tools/>".getBytes("UTF-8"));
+            assertTrue(!reloaded.await(300, TimeUnit.MILLISECONDS));
+            Files.write(file, "<tools><toolbox/></tools>".getBytes("UTF-8"));
+            assertTrue(reloaded.await(10, TimeUnit.SECONDS));
+        }
+        finally
+        {
+            watcher.close();
+            Files.delete(directory.resolve("other.xml"));
+            Files.delete(file);
+            Files.delete(directory);
+        }
+    }
+
+    public @Test void testSerializedCache() throws Exception
+    {
+        // toolboxes serialized by previous versions hold a HashMap cache
+        Toolbox toolbox = new Toolbox(new HashMap<String,ToolInfo>());
+        Map<String,Object> cache = new HashMap<String,Object>();
+        cache.put("foo", "bar");
+        cache.put("nil", null);
+        Field field = Toolbox.class.getDeclaredField("cache");
+        field.setAccessible(true);
+        field.set(toolbox, cache);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(toolbox);
+        out.close();
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        Toolbox read = (Toolbox)in.readObject();
+        in.close();
+
+        assertTrue(field.get(read) instanceof ConcurrentMap);
+        assertEquals("bar", read.get("foo"));
+        assertNull(read.get("nil"));
+    }
+}
@@ -0,0 +1,368 @@
+package org.apache.velocity.tools.view;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.velocity.context.InternalContextAdapter;
+import org.apache.velocity.runtime.Renderable;
+
+/**
+ * <p>Writer buffering its content in chunks taken from a {@link ChunkPool}.
+ * Unlike a <code>StringWriter</code>, it never copies what was already
+ * written when it grows, and its content can be written to another writer
+ * chunk by chunk, without building an intermediate String.</p>
+ * <p>The {@link #getContent()} view of the buffer can be put in a Velocity
+ * context: when referenced, it renders its chunks straight into the
+ * template writer.</p>
+ * <p>A buffer can be given a target writer and a spill threshold: once
+ * more than this threshold has been written, the buffered content is
+ * written to the target, and subsequent writes go straight to it.</p>
+ * <p>Instances are not thread-safe, and must be {@link #release() released}
+ * once their content is no longer needed, so that their chunks go back
+ * to the pool.</p>
+ *
+ * @since VelocityTools 4.1
+ * @version $Id$
+ */
+public class ChunkedWriter extends Writer
+{
+    private final ChunkPool pool;
+    private final int chunkSize;
+    private final List<char[]> chunks = new ArrayList<char[]>();
+    private char[] current;
+    private int position;
+    private long size;
+    /* incremented whenever the buffered content is discarded */
+    private int generation;
+    private Content content;
+    private final Writer target;
+    private final long threshold;
+    private boolean spilled;
+
+    /**
+     * @param pool pool providing the chunks
+     */
+    public ChunkedWriter(ChunkPool pool)
+    {
+        this(pool, null, 0);
+    }
+
+    /**
+     * @param pool pool providing the chunks
+     * @param target writer receiving the content past the threshold
+     * @param threshold number of chars past which the content is
+     *        spilled to the target, or zero to always buffer
+     */
+    public ChunkedWriter(ChunkPool pool, Writer target, long threshold)
+    {
+        this.pool = pool;
+        this.chunkSize = pool.getChunkSize();
+        this.target = threshold > 0 ? target : null;
+        this.threshold = threshold;
+    }
+
+    /**
+     * @return number of chars currently buffered
+     */
+    public long size()
+    {
+        return size;
+    }
+
+    /**
+     * @return whether the spill threshold was crossed, in which case the
+     *         content written so far already went to the target writer
+     */
+    public boolean isSpilled()
+    {
+        return spilled;
+    }
+
+    /**
+     * Checks whether some content should go to the target writer
+     * rather than to the chunks, spilling the buffer if needed.
+     * @param length length of the content about to be written
+     * @return whether the content must go to the target writer
+     */
+    private boolean spill(int length) throws IOException
+    {
+        if (target == null)
+        {
+            return false;
+        }
+        if (!spilled && size + length > threshold)
+        {
+            writeTo(target);
+            release();
+            spilled = true;
+        }
+        return spilled;
+    }
+
+    @Override
+    public void write(int c) throws IOException
+    {
+        if (spill(1))
+        {
+            target.write(c);
+            return;
+        }
+        ensureRoom();
+        current[position++] = (char)c;
+        ++size;
+    }
+
+    @Override
+    public void write(char[] buffer, int offset, int length) throws IOException
+    {
+        if (spill(length))
+        {
+            target.write(buffer, offset, length);
+            return;
+        }
+        while (length > 0)
+        {
+            ensureRoom();
+            int count = Math.min(length, chunkSize - position);
+            System.arraycopy(buffer, offset, current, position, count);
+            position += count;
+            offset += count;
+            length -= count;
+            size += count;
+        }
+    }
+
+    @Override
+    public void write(String str, int offset, int length) throws IOException
+    {
+        if (spill(length))
+        {
+            target.write(str, offset, length);
+            return;
+        }
+        while (length > 0)
+        {
+            ensureRoom();
+            int count = Math.min(length, chunkSize - position);
+            str.getChars(offset, offset + count, current, position);
+            position += count;
+            offset += count;
+            length -= count;
+            size += count;
+        }
+    }
+
+    private void ensureRoom()
+    {
+        if (current == null || position == chunkSize)
+        {
+            current = pool.acquire();
+            chunks.add(current);
+            position = 0;
+        }
+    }
+
+    /**
+     * Writes the buffered content to another writer, one chunk at a time.
+     * @param writer target writer
+     * @throws IOException if thrown by the target writer
+     */
+    public void writeTo(Writer writer) throws IOException
+    {
+        int last = chunks.size() - 1;
+        for (int i = 0; i <= last; i++)
+        {
+            writer.write(chunks.get(i), 0, i == last ? position : chunkSize);
+        }
+    }
+
+    /**
+     * Discards the buffered content, giving back all the chunks but
+     * the first one, which is kept for subsequent writes. Content
+     * already spilled to the target writer is not affected.
+     */
+    public void reset()
+    {
+        for (int i = chunks.size() - 1; i > 0; i--)
+        {
+            pool.release(chunks.remove(i));
+        }
+        current = chunks.isEmpty() ? null : chunks.get(0);
+        position = 0;
+        size = 0;
+        ++generation;
+    }
+
+    /**
+     * Discards the buffered content and gives all the chunks back
+     * to the pool.
+     */
+    public void release()
+    {
+        for (char[] chunk : chunks)
+        {
+            pool.release(chunk);
+        }
+        chunks.clear();
+        current = null;
+        position = 0;
+        size = 0;
+        ++generation;
+    }
+
+    /**
+     * Flushes the target writer once spilled, and otherwise does
+     * nothing: the content stays in the buffer.
+     * @throws IOException if thrown by the target writer
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        if (spilled)
+        {
+            target.flush();
+        }
+    }
+
+    /**
+     * Does nothing, see {@link #release()}.
+     */
+    @Override
+    public void close()
+    {
+    }
+
+    /**
+     * Get a view of the buffered content, meant to be put in a Velocity
+     * context. The view reflects later writes, and is only valid
+     * until the writer is reset or released.
+     * @return a {@link Renderable} {@link CharSequence} of the content
+     */
+    public CharSequence getContent()
+    {
+        if (content == null)
+        {
+            content = new Content();
+        }
+        return content;
+    }
+
+    private char charAt(long index)
+    {
+        if (index < 0 || index >= size)
+        {
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+        }
+        return chunks.get((int)(index / chunkSize))[(int)(index % chunkSize)];
+    }
+
+    /**
+     * @return the buffered content
+     */
+    @Override
+    public String toString()
+    {
+        return toString(0, (int)Math.min(size, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Copies a range of the buffered content, chunk by chunk.
+     * @param start start index, inclusive
+     * @param end end index, exclusive
+     * @return buffered content range
+     */
+    private String toString(int start, int end)
+    {
+        if (start < 0 || end > size || start > end)
+        {
+            throw new IndexOutOfBoundsException("[" + start + ", " + end + ")");
+        }
+        StringBuilder builder = new StringBuilder(end - start);
+        while (start < end)
+        {
+            int offset = start % chunkSize;
+            int count = Math.min(end - start, chunkSize - offset);
+            builder.append(chunks.get(start / chunkSize), offset, count);
+            start += count;
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Renderable view of the buffered content. It only implements
+     * {@link CharSequence}: the String converted content is built on the
+     * first call to {@link #toString()}, and then kept as long as the
+     * content does not change.
+     */
+    private class Content implements Renderable, CharSequence
+    {
+        private String string;
+        private long stringSize;
+        private int stringGeneration;
+
+        public boolean render(InternalContextAdapter context, Writer writer)
+            throws IOException
+        {
+            writeTo(writer);
+            return true;
+        }
+
+        public int length()
+        {
+            return (int)Math.min(size, Integer.MAX_VALUE);
+        }
+
+        public char charAt(int index)
+        {
+            return ChunkedWriter.this.charAt(index);
+        }
+
+        public CharSequence subSequence(int start, int end)
+        {
+            if (isCurrent())
+            {
+                return string.substring(start, end);
+            }
+            // only copy the requested range
+            return ChunkedWriter.this.toString(start, end);
+        }
+
+        @Override
+        public String toString()
+        {
+            if (!isCurrent())
+            {
+                string = ChunkedWriter.this.toString();
+                stringSize = size;
+                stringGeneration = generation;
+            }
+            return string;
+        }
+
+        private boolean isCurrent()
+        {
+            return string != null && stringSize == size && stringGeneration == generation;
+        }
+    }
+}
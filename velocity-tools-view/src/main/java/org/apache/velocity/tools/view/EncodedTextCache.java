@@ -0,0 +1,194 @@
+package org.apache.velocity.tools.view;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.lang.ref.WeakReference;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.runtime.parser.node.ASTText;
+import org.apache.velocity.runtime.parser.node.Node;
+
+/**
+ * <p>Cache of the encoded bytes of the static text blocks of templates,
+ * by template and output charset. The blocks are the String instances
+ * held by the text nodes of the parsed template, which hand them as is
+ * to the writer: an {@link EncodingWriter} recognizes them by identity,
+ * and copies their bytes rather than encoding them again.</p>
+ * <p>Only blocks of at least {@link #getMinLength()} chars are cached,
+ * and at most {@link #getMaxEntries()} per template and charset. Entries
+ * go away along with their template, and are rebuilt when the template
+ * is parsed again.</p>
+ *
+ * @since VelocityTools 4.1
+ * @version $Id$
+ */
+public class EncodedTextCache
+{
+    /**
+     * Default minimum length of the cached text blocks, in chars. The
+     * parser splits static text at line ends, so blocks are rather short.
+     */
+    public static final int DEFAULT_MIN_LENGTH = 32;
+
+    /**
+     * Default maximum number of cached text blocks per template and charset.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 4096;
+
+    private final int minLength;
+    private final int maxEntries;
+    private final Map<Template,ConcurrentMap<Charset,Texts>> templates =
+        Collections.synchronizedMap(new WeakHashMap<Template,ConcurrentMap<Charset,Texts>>());
+
+    public EncodedTextCache()
+    {
+        this(DEFAULT_MIN_LENGTH, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param minLength minimum length of the cached text blocks, in chars
+     * @param maxEntries maximum number of cached blocks per template and charset
+     */
+    public EncodedTextCache(int minLength, int maxEntries)
+    {
+        this.minLength = minLength;
+        this.maxEntries = maxEntries;
+    }
+
+    public int getMinLength()
+    {
+        return minLength;
+    }
+
+    public int getMaxEntries()
+    {
+        return maxEntries;
+    }
+
+    /**
+     * Get the encoded text blocks of a template for a charset,
+     * encoding them if needed.
+     * @param template rendered template
+     * @param charset output charset
+     * @return encoded text blocks
+     */
+    public Texts getTexts(Template template, Charset charset)
+    {
+        ConcurrentMap<Charset,Texts> byCharset = templates.get(template);
+        if (byCharset == null)
+        {
+            byCharset = new ConcurrentHashMap<Charset,Texts>();
+            ConcurrentMap<Charset,Texts> previous;
+            synchronized (templates)
+            {
+                previous = templates.get(template);
+                if (previous == null)
+                {
+                    templates.put(template, byCharset);
+                }
+            }
+            if (previous != null)
+            {
+                byCharset = previous;
+            }
+        }
+        Object data = template.getData();
+        Texts texts = byCharset.get(charset);
+        if (texts == null || texts.data.get() != data)
+        {
+            // first rendering, or the template was parsed again
+            texts = new Texts(data, charset);
+            byCharset.put(charset, texts);
+        }
+        return texts;
+    }
+
+    /**
+     * Drops all the cached text blocks.
+     */
+    public void clear()
+    {
+        templates.clear();
+    }
+
+    /**
+     * Encoded text blocks of one parsed template, for one charset.
+     * Instances are immutable. The parsed template is only weakly
+     * referenced: its nodes reference the template, which must stay
+     * collectable while it is a key of the cache.
+     */
+    public final class Texts
+    {
+        private final WeakReference<Object> data;
+        private final Map<String,byte[]> blocks = new IdentityHashMap<String,byte[]>();
+
+        Texts(Object data, Charset charset)
+        {
+            this.data = new WeakReference<Object>(data);
+            if (data instanceof Node)
+            {
+                collect((Node)data, charset);
+            }
+        }
+
+        private void collect(Node node, Charset charset)
+        {
+            if (blocks.size() >= maxEntries)
+            {
+                return;
+            }
+            if (node instanceof ASTText)
+            {
+                String text = ((ASTText)node).getCtext();
+                if (text != null && text.length() >= minLength)
+                {
+                    blocks.put(text, text.getBytes(charset));
+                }
+            }
+            for (int i = 0; i < node.jjtGetNumChildren(); i++)
+            {
+                collect(node.jjtGetChild(i), charset);
+            }
+        }
+
+        /**
+         * Get the encoded bytes of a text block.
+         * @param text text block, as handed to the writer
+         * @return encoded bytes, or <code>null</code> if this String
+         *         instance is not a cached static block
+         */
+        public byte[] get(String text)
+        {
+            return blocks.get(text);
+        }
+
+        public int size()
+        {
+            return blocks.size();
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package org.apache.velocity.tools.view;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * <p>Recyclable writer encoding its content into an output stream, with
+ * its own encoder and buffers. It plays the part of both the
+ * {@link org.apache.velocity.io.VelocityWriter} and the response writer
+ * when templates are merged directly into the response output stream.</p>
+ * <p>Static text blocks found in the {@link EncodedTextCache.Texts} given
+ * at recycling time are copied as bytes instead of being encoded.</p>
+ * <p>Like the encoders of the JDK, unmappable and malformed input is
+ * replaced. Instances are not thread-safe.</p>
+ *
+ * @since VelocityTools 4.1
+ * @version $Id$
+ */
+public class EncodingWriter extends Writer
+{
+    /**
+     * Default size of the byte buffer.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+
+    private static final int CHAR_BUFFER_SIZE = 1024;
+
+    private final Charset charset;
+    private final CharsetEncoder encoder;
+    private final CharBuffer chars = CharBuffer.allocate(CHAR_BUFFER_SIZE);
+    private final ByteBuffer bytes;
+    private OutputStream output;
+    private EncodedTextCache.Texts texts;
+
+    /**
+     * @param charset output charset
+     */
+    public EncodingWriter(Charset charset)
+    {
+        this(charset, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param charset output charset
+     * @param bufferSize size of the byte buffer
+     */
+    public EncodingWriter(Charset charset, int bufferSize)
+    {
+        this.charset = charset;
+        this.encoder = charset.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        // a heap buffer, since output streams only take arrays
+        this.bytes = ByteBuffer.allocate(Math.max(bufferSize, 16));
+    }
+
+    public Charset getCharset()
+    {
+        return charset;
+    }
+
+    /**
+     * Points this writer to another output stream.
+     * @param output target output stream, or <code>null</code>
+     *        to release the previous one
+     * @param texts encoded static text blocks of the rendered
+     *        template, or <code>null</code>
+     */
+    public void recycle(OutputStream output, EncodedTextCache.Texts texts)
+    {
+        this.output = output;
+        this.texts = texts;
+        encoder.reset();
+        chars.clear();
+        bytes.clear();
+    }
+
+    @Override
+    public void write(int c) throws IOException
+    {
+        if (!chars.hasRemaining())
+        {
+            encode(false);
+        }
+        chars.put((char)c);
+    }
+
+    @Override
+    public void write(char[] buffer, int offset, int length) throws IOException
+    {
+        while (length > 0)
+        {
+            if (!chars.hasRemaining())
+            {
+                encode(false);
+            }
+            int count = Math.min(length, chars.remaining());
+            chars.put(buffer, offset, count);
+            offset += count;
+            length -= count;
+        }
+    }
+
+    @Override
+    public void write(String str) throws IOException
+    {
+        byte[] encoded = texts == null ? null : texts.get(str);
+        if (encoded != null)
+        {
+            // any pending char must be encoded first
+            if (chars.position() > 0)
+            {
+                encode(false);
+            }
+            if (chars.position() == 0)
+            {
+                writeBytes(encoded);
+                return;
+            }
+        }
+        write(str, 0, str.length());
+    }
+
+    @Override
+    public void write(String str, int offset, int length) throws IOException
+    {
+        while (length > 0)
+        {
+            if (!chars.hasRemaining())
+            {
+                encode(false);
+            }
+            int count = Math.min(length, chars.remaining());
+            chars.put(str, offset, offset + count);
+            offset += count;
+            length -= count;
+        }
+    }
+
+    private void writeBytes(byte[] encoded) throws IOException
+    {
+        if (encoded.length <= bytes.remaining())
+        {
+            bytes.put(encoded);
+        }
+        else
+        {
+            flushBytes();
+            output.write(encoded);
+        }
+    }
+
+    /**
+     * Encodes the buffered chars, leaving in the char buffer
+     * an incomplete surrogate pair, if any.
+     */
+    private void encode(boolean endOfInput) throws IOException
+    {
+        chars.flip();
+        while (true)
+        {
+            CoderResult result = encoder.encode(chars, bytes, endOfInput);
+            if (result.isOverflow())
+            {
+                flushBytes();
+            }
+            else
+            {
+                break;
+            }
+        }
+        chars.compact();
+    }
+
+    private void flushBytes() throws IOException
+    {
+        if (bytes.position() > 0)
+        {
+            output.write(bytes.array(), bytes.arrayOffset(), bytes.position());
+            bytes.clear();
+        }
+    }
+
+    /**
+     * Encodes and writes all the buffered content, then
+     * flushes the output stream.
+     * @throws IOException if thrown by the output stream
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        encode(false);
+        flushBytes();
+        output.flush();
+    }
+
+    /**
+     * Ends the encoding of the content, and writes
+     * all of it to the output stream, which is not flushed.
+     * @throws IOException if thrown by the output stream
+     */
+    public void finish() throws IOException
+    {
+        encode(true);
+        while (encoder.flush(bytes).isOverflow())
+        {
+            flushBytes();
+        }
+        flushBytes();
+        encoder.reset();
+    }
+
+    /**
+     * Finishes the encoding, but does not close the output stream.
+     * @throws IOException if thrown by the output stream
+     */
+    @Override
+    public void close() throws IOException
+    {
+        finish();
+    }
+}
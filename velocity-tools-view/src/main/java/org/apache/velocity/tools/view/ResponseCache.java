@@ -0,0 +1,663 @@
+package org.apache.velocity.tools.view;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * <p>Cache of whole rendered responses, used by {@link VelocityViewServlet}.
+ * Responses are kept as encoded bytes, keyed by request path and by the
+ * values of a configured set of request parameters and headers. Each entry
+ * carries a strong ETag, computed from its content, and the response
+ * headers set while rendering it.</p>
+ * <p>Requests with a session, or carrying <code>Authorization</code> or
+ * <code>Cookie</code> headers which are not part of the key, may get a
+ * private response and are not cached. Concurrent requests for a response
+ * which is not cached yet wait for the first one to render it.</p>
+ * <p>Entries expire after a time to live, and the least recently used ones
+ * are evicted when the total size of the cached responses exceeds a
+ * maximum number of bytes.</p>
+ *
+ * @since VelocityTools 4.1
+ * @version $Id$
+ */
+public class ResponseCache
+{
+    /**
+     * Default time to live of the entries, in seconds.
+     */
+    public static final long DEFAULT_TTL = 60;
+
+    /**
+     * Default maximum total size of the cached responses, in bytes.
+     */
+    public static final long DEFAULT_MAX_BYTES = 16L * 1024 * 1024;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final long ttlMillis;
+    private final long maxBytes;
+    private final String[] parameters;
+    private final String[] headers;
+    private final String vary;
+    private final boolean keyedOnAuthorization;
+    private final boolean keyedOnCookie;
+    private final LinkedHashMap<String,Entry> entries =
+        new LinkedHashMap<String,Entry>(16, 0.75f, true);
+    private long bytes;
+
+    /* responses being rendered, by key */
+    private final ConcurrentMap<String,CountDownLatch> rendering =
+        new ConcurrentHashMap<String,CountDownLatch>();
+
+    /**
+     * @param ttl time to live of the entries, in seconds
+     * @param maxBytes maximum total size of the cached responses
+     * @param parameters names of the request parameters the responses depend on
+     * @param headers names of the request headers the responses depend on
+     */
+    public ResponseCache(long ttl, long maxBytes, String[] parameters, String[] headers)
+    {
+        this.ttlMillis = ttl * 1000;
+        this.maxBytes = maxBytes;
+        this.parameters = parameters == null ? new String[0] : parameters;
+        this.headers = headers == null ? new String[0] : headers;
+        this.vary = this.headers.length == 0 ? null : String.join(", ", this.headers);
+        this.keyedOnAuthorization = isKeyedOn("Authorization");
+        this.keyedOnCookie = isKeyedOn("Cookie");
+    }
+
+    private boolean isKeyedOn(String header)
+    {
+        for (String name : headers)
+        {
+            if (name.equalsIgnoreCase(header))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether the response to a request can be looked up in and
+     * stored into the cache: the request must not have a session, and must
+     * not carry credentials or cookies, unless the corresponding headers
+     * are part of the cache key.
+     * @param request client request
+     * @return whether the response can be cached
+     */
+    public boolean isCacheable(HttpServletRequest request)
+    {
+        return request.getSession(false) == null &&
+            (keyedOnAuthorization || request.getHeader("Authorization") == null) &&
+            (keyedOnCookie || request.getHeader("Cookie") == null);
+    }
+
+    /**
+     * @return value of the <code>Vary</code> header of the cached responses,
+     *         or <code>null</code> if they do not depend on request headers
+     */
+    public String getVary()
+    {
+        return vary;
+    }
+
+    /**
+     * Builds the cache key of a request.
+     * @param request client request
+     * @return cache key
+     */
+    public String getKey(HttpServletRequest request)
+    {
+        StringBuilder key = new StringBuilder(ServletUtils.getPath(request));
+        for (String name : parameters)
+        {
+            key.append('\n').append(name).append('=');
+            String[] values = request.getParameterValues(name);
+            if (values != null)
+            {
+                for (String value : values)
+                {
+                    key.append(value).append('\u0000');
+                }
+            }
+        }
+        for (String name : headers)
+        {
+            key.append('\n').append(name).append(':');
+            String value = request.getHeader(name);
+            if (value != null)
+            {
+                key.append(value);
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * @param key cache key
+     * @return the cached response, or <code>null</code> if
+     *         there is none or if it expired
+     */
+    public synchronized Entry get(String key)
+    {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.isExpired(System.currentTimeMillis()))
+        {
+            remove(key);
+            entry = null;
+        }
+        return entry;
+    }
+
+    /**
+     * Registers the calling request as rendering the response for a key,
+     * unless another request already does. A registered request must call
+     * {@link #endRendering(String)} once done, whether it cached the
+     * response or not.
+     * @param key cache key
+     * @return <code>true</code> if the calling request is now registered
+     */
+    public boolean startRendering(String key)
+    {
+        return rendering.putIfAbsent(key, new CountDownLatch(1)) == null;
+    }
+
+    /**
+     * Waits for the request rendering the response for a key to be done.
+     * @param key cache key
+     * @return the cached response, or <code>null</code> if it was not
+     *         cached, or if the calling thread was interrupted
+     */
+    public Entry awaitRendering(String key)
+    {
+        CountDownLatch latch = rendering.get(key);
+        if (latch != null)
+        {
+            try
+            {
+                latch.await();
+            }
+            catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        return get(key);
+    }
+
+    /**
+     * Releases the requests waiting for the response for a key.
+     * @param key cache key
+     */
+    public void endRendering(String key)
+    {
+        CountDownLatch latch = rendering.remove(key);
+        if (latch != null)
+        {
+            latch.countDown();
+        }
+    }
+
+    /**
+     * Caches a response, evicting the least recently used ones if needed.
+     * Responses larger than the cache are not kept.
+     * @param key cache key
+     * @param contentType response content type
+     * @param content encoded response content
+     * @return the new entry
+     */
+    public Entry put(String key, String contentType, byte[] content)
+    {
+        return put(key, contentType, null, content);
+    }
+
+    /**
+     * Caches a recorded response, evicting the least recently used ones
+     * if needed. Responses larger than the cache are not kept.
+     * @param key cache key
+     * @param response recorded response
+     * @return the new entry
+     */
+    public Entry put(String key, Recorder response)
+    {
+        return put(key, response.getContentType(), response.headers, response.getContent());
+    }
+
+    private Entry put(String key, String contentType, List<Header> headers, byte[] content)
+    {
+        Entry entry = new Entry(contentType, content,
+                                headers == null ? new Header[0] : headers.toArray(new Header[headers.size()]),
+                                System.currentTimeMillis() + ttlMillis);
+        if (content.length > maxBytes)
+        {
+            return entry;
+        }
+        synchronized (this)
+        {
+            remove(key);
+            entries.put(key, entry);
+            bytes += content.length;
+            // the new entry comes last and fits, so it is never evicted
+            Iterator<Map.Entry<String,Entry>> eldest = entries.entrySet().iterator();
+            while (bytes > maxBytes)
+            {
+                bytes -= eldest.next().getValue().getContent().length;
+                eldest.remove();
+            }
+        }
+        return entry;
+    }
+
+    private void remove(String key)
+    {
+        Entry previous = entries.remove(key);
+        if (previous != null)
+        {
+            bytes -= previous.getContent().length;
+        }
+    }
+
+    /**
+     * Drops all the cached responses.
+     */
+    public synchronized void clear()
+    {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * @return number of cached responses
+     */
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * @return total size of the cached responses, in bytes
+     */
+    public synchronized long getBytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * Computes the strong ETag of some content.
+     * @param content response content
+     * @return quoted entity tag
+     */
+    public static String computeETag(byte[] content)
+    {
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder etag = new StringBuilder(34).append('"');
+            for (int i = 0; i < 16; i++)
+            {
+                etag.append(HEX[(digest[i] >> 4) & 0xF]).append(HEX[digest[i] & 0xF]);
+            }
+            return etag.append('"').toString();
+        }
+        catch (NoSuchAlgorithmException nsae)
+        {
+            // SHA-256 is mandatory in all JREs
+            throw new IllegalStateException(nsae);
+        }
+    }
+
+    /**
+     * Checks an <code>If-None-Match</code> header against an ETag.
+     * @param ifNoneMatch header value, or <code>null</code>
+     * @param etag quoted entity tag
+     * @return whether the header matches
+     */
+    public static boolean matches(String ifNoneMatch, String etag)
+    {
+        if (ifNoneMatch == null)
+        {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(","))
+        {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/"))
+            {
+                // weak comparison
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A cached response.
+     */
+    public static final class Entry
+    {
+        private final String contentType;
+        private final byte[] content;
+        private final Header[] headers;
+        private final String etag;
+        private final long expiration;
+
+        Entry(String contentType, byte[] content, Header[] headers, long expiration)
+        {
+            this.contentType = contentType;
+            this.content = content;
+            this.headers = headers;
+            this.etag = computeETag(content);
+            this.expiration = expiration;
+        }
+
+        /**
+         * Sets the response headers which were set while rendering
+         * the cached response.
+         * @param response client response
+         */
+        public void applyHeaders(HttpServletResponse response)
+        {
+            for (Header header : headers)
+            {
+                header.apply(response);
+            }
+        }
+
+        public String getContentType()
+        {
+            return contentType;
+        }
+
+        public byte[] getContent()
+        {
+            return content;
+        }
+
+        public String getETag()
+        {
+            return etag;
+        }
+
+        boolean isExpired(long now)
+        {
+            return now >= expiration;
+        }
+    }
+
+    /**
+     * Response header set while rendering a response.
+     */
+    static final class Header
+    {
+        private final String name;
+        private final Object value;
+        private final boolean add;
+
+        Header(String name, Object value, boolean add)
+        {
+            this.name = name;
+            this.value = value;
+            this.add = add;
+        }
+
+        void apply(HttpServletResponse response)
+        {
+            if (value instanceof Long)
+            {
+                if (add)
+                {
+                    response.addDateHeader(name, (Long)value);
+                }
+                else
+                {
+                    response.setDateHeader(name, (Long)value);
+                }
+            }
+            else if (value instanceof Integer)
+            {
+                if (add)
+                {
+                    response.addIntHeader(name, (Integer)value);
+                }
+                else
+                {
+                    response.setIntHeader(name, (Integer)value);
+                }
+            }
+            else if (add)
+            {
+                response.addHeader(name, (String)value);
+            }
+            else
+            {
+                response.setHeader(name, (String)value);
+            }
+        }
+    }
+
+    /**
+     * <p>Response wrapper recording a response which may be cached: its
+     * content, written either through its writer or through its output
+     * stream, is kept in memory, while the headers set on it are recorded
+     * and passed on to the wrapped response.</p>
+     */
+    public static class Recorder extends HttpServletResponseWrapper
+    {
+        private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        private final List<Header> headers = new ArrayList<Header>();
+        private PrintWriter writer;
+        private ServletOutputStream output;
+
+        /**
+         * @param response wrapped response
+         */
+        public Recorder(HttpServletResponse response)
+        {
+            super(response);
+        }
+
+        /**
+         * @return the recorded content
+         */
+        public byte[] getContent()
+        {
+            if (writer != null)
+            {
+                writer.flush();
+            }
+            return content.toByteArray();
+        }
+
+        /**
+         * @return the response being recorded
+         */
+        public HttpServletResponse getRecordedResponse()
+        {
+            return (HttpServletResponse)getResponse();
+        }
+
+        private void record(String name, Object value, boolean add)
+        {
+            // the cache sets these headers itself
+            if (!"Content-Length".equalsIgnoreCase(name) && !"ETag".equalsIgnoreCase(name))
+            {
+                headers.add(new Header(name, value, add));
+            }
+        }
+
+        @Override
+        public void setHeader(String name, String value)
+        {
+            super.setHeader(name, value);
+            record(name, value, false);
+        }
+
+        @Override
+        public void addHeader(String name, String value)
+        {
+            super.addHeader(name, value);
+            record(name, value, true);
+        }
+
+        @Override
+        public void setDateHeader(String name, long date)
+        {
+            super.setDateHeader(name, date);
+            record(name, date, false);
+        }
+
+        @Override
+        public void addDateHeader(String name, long date)
+        {
+            super.addDateHeader(name, date);
+            record(name, date, true);
+        }
+
+        @Override
+        public void setIntHeader(String name, int value)
+        {
+            super.setIntHeader(name, value);
+            record(name, value, false);
+        }
+
+        @Override
+        public void addIntHeader(String name, int value)
+        {
+            super.addIntHeader(name, value);
+            record(name, value, true);
+        }
+
+        @Override
+        public void setContentLength(int length)
+        {
+            // set along with the recorded content
+        }
+
+        @Override
+        public void setContentLengthLong(long length)
+        {
+            // set along with the recorded content
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream()
+        {
+            if (output == null)
+            {
+                output = new ServletOutputStream()
+                {
+                    @Override
+                    public void write(int b)
+                    {
+                        flushWriter();
+                        content.write(b);
+                    }
+
+                    @Override
+                    public void write(byte[] bytes, int offset, int length)
+                    {
+                        flushWriter();
+                        content.write(bytes, offset, length);
+                    }
+
+                    @Override
+                    public boolean isReady()
+                    {
+                        return true;
+                    }
+
+                    @Override
+                    public void setWriteListener(WriteListener listener)
+                    {
+                        throw new UnsupportedOperationException("recorded responses are not written asynchronously");
+                    }
+                };
+            }
+            return output;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException
+        {
+            if (writer == null)
+            {
+                // content written to the output stream and to the writer
+                // is kept in order, so both can be used
+                writer = new PrintWriter(new OutputStreamWriter(content, getCharacterEncoding()));
+            }
+            return writer;
+        }
+
+        private void flushWriter()
+        {
+            if (writer != null)
+            {
+                writer.flush();
+            }
+        }
+
+        @Override
+        public void flushBuffer()
+        {
+            // nothing is committed before the response is complete
+            flushWriter();
+        }
+
+        @Override
+        public void resetBuffer()
+        {
+            flushWriter();
+            content.reset();
+        }
+
+        @Override
+        public void reset()
+        {
+            super.reset();
+            resetBuffer();
+            headers.clear();
+        }
+    }
+}
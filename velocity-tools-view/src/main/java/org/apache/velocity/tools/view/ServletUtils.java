@@ -32,6 +32,7 @@ import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpSession;
 import org.apache.velocity.tools.ClassUtils;
 import org.apache.velocity.tools.Toolbox;
+import org.apache.velocity.tools.config.ConfigurationUtils;
 import org.apache.velocity.tools.config.FactoryConfiguration;
 import org.apache.velocity.tools.config.FileFactoryConfiguration;
 import org.apache.velocity.tools.config.PropertiesFactoryConfiguration;
@@ -407,13 +408,22 @@ public class ServletUtils
 
     public static FactoryConfiguration getConfiguration(final String path, final ServletContext application)
     {
-        // first make sure we can even get such a file
         URL url = getURL(path, application);
+
+        // first make sure we can even get such a file
         if (url == null)
         {
             return null;
         }
 
+        // a configuration compiled from this file at build time wins,
+        // unless the file was modified since, e.g. before a reload
+        FactoryConfiguration compiled = ConfigurationUtils.findCompiled(path, url);
+        if (compiled != null)
+        {
+            return compiled;
+        }
+
         // then make sure it's a file type we recognize
         FileFactoryConfiguration config = null;
         String source = "ServletUtils.getConfiguration("+path+",ServletContext)";
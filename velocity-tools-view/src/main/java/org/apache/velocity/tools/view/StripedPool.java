@@ -0,0 +1,116 @@
+package org.apache.velocity.tools.view;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>Bounded lock-free object pool, replacing the synchronized
+ * <code>SimplePool</code> of the engine. Idle objects sit in slots grouped
+ * in stripes, and each thread only looks at the stripe its id hashes to,
+ * so that threads rarely compete for the same slots and an object
+ * usually goes back to the thread which last used it.</p>
+ * <p>When its stripe is empty, {@link #get()} returns <code>null</code>,
+ * and when its stripe is full, {@link #put(Object)} drops the object.</p>
+ *
+ * @param <T> pooled objects class
+ * @since VelocityTools 4.1
+ * @version $Id$
+ */
+public class StripedPool<T>
+{
+    /**
+     * Default number of slots per stripe.
+     */
+    public static final int DEFAULT_SLOTS = 4;
+
+    private final AtomicReferenceArray<T> slots;
+    private final int slotsPerStripe;
+    private final int stripeMask;
+
+    /**
+     * Creates a pool with about two stripes per processor.
+     */
+    public StripedPool()
+    {
+        this(2 * Runtime.getRuntime().availableProcessors(), DEFAULT_SLOTS);
+    }
+
+    /**
+     * @param stripes number of stripes, rounded up to a power of two
+     * @param slotsPerStripe number of slots per stripe
+     */
+    public StripedPool(int stripes, int slotsPerStripe)
+    {
+        int count = stripes <= 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+        this.stripeMask = count - 1;
+        this.slotsPerStripe = Math.max(slotsPerStripe, 1);
+        this.slots = new AtomicReferenceArray<T>(count * this.slotsPerStripe);
+    }
+
+    /**
+     * @return total number of slots
+     */
+    public int getCapacity()
+    {
+        return slots.length();
+    }
+
+    private int stripe()
+    {
+        long id = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return ((int)(id >>> 32) & stripeMask) * slotsPerStripe;
+    }
+
+    /**
+     * @return an idle object of the current thread stripe,
+     *         or <code>null</code> if there is none
+     */
+    public T get()
+    {
+        int base = stripe();
+        for (int i = base; i < base + slotsPerStripe; i++)
+        {
+            T item = slots.get(i);
+            if (item != null && slots.compareAndSet(i, item, null))
+            {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param item object given back to the pool
+     * @return whether the object was kept
+     */
+    public boolean put(T item)
+    {
+        int base = stripe();
+        for (int i = base; i < base + slotsPerStripe; i++)
+        {
+            if (slots.get(i) == null && slots.compareAndSet(i, null, item))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+}
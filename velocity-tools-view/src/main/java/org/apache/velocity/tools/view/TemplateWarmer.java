@@ -0,0 +1,373 @@
+package org.apache.velocity.tools.view;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import jakarta.servlet.ServletContext;
+
+import org.apache.velocity.app.VelocityEngine;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Loads all the templates of a webapp into the resource cache of a
+ * {@link VelocityEngine}, so that the first requests after a deployment
+ * do not pay for template parsing.</p>
+ * <p>Templates are looked for under the paths of the
+ * {@link WebappResourceLoader}, through
+ * {@link ServletContext#getResourcePaths(String)}, and kept if their name
+ * (relative to the loader path) matches one of the configured glob
+ * patterns. Directories are walked and templates loaded in parallel, on a
+ * dedicated {@link ForkJoinPool} which is shut down once done. Its worker
+ * threads get the context class loader of the thread which created the
+ * warmer, so that templates are parsed as they would be by the webapp.</p>
+ * <p>Warming up only helps if the webapp resource loader caches templates,
+ * that is if its <code>cache</code> property is true.</p>
+ *
+ * @since VelocityTools 4.1
+ * @version $Id$
+ */
+public class TemplateWarmer
+{
+    /**
+     * Default glob pattern of the templates to load.
+     */
+    public static final String DEFAULT_PATTERN = "**.vm";
+
+    private static final Logger log = LoggerFactory.getLogger(TemplateWarmer.class);
+
+    private final VelocityEngine velocity;
+    private final ServletContext servletContext;
+    private final String[] roots;
+    private final List<PathMatcher> matchers = new ArrayList<PathMatcher>();
+    private final ForkJoinPool pool;
+    private final ConcurrentMap<String,Long> parseTimes = new ConcurrentHashMap<String,Long>();
+    private final ConcurrentMap<String,String> failures = new ConcurrentHashMap<String,String>();
+    private ForkJoinTask<Report> task;
+
+    /**
+     * @param velocity initialized engine
+     * @param servletContext servlet context
+     * @param roots template root paths, as configured for the webapp loader
+     * @param patterns glob patterns of the templates to load
+     * @param parallelism number of worker threads
+     */
+    public TemplateWarmer(VelocityEngine velocity, ServletContext servletContext,
+                          String[] roots, String[] patterns, int parallelism)
+    {
+        this.velocity = velocity;
+        this.servletContext = servletContext;
+        this.roots = new String[roots.length];
+        for (int i = 0; i < roots.length; i++)
+        {
+            String root = roots[i].trim();
+            if (!root.startsWith("/"))
+            {
+                root = '/' + root;
+            }
+            this.roots[i] = root.endsWith("/") ? root : root + '/';
+        }
+        for (String pattern : patterns)
+        {
+            matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + pattern.trim()));
+        }
+        this.pool = new ForkJoinPool(Math.max(parallelism, 1),
+                                     new WorkerFactory(Thread.currentThread().getContextClassLoader()),
+                                     null, false);
+    }
+
+    /**
+     * Worker threads factory propagating a context class loader, since
+     * the default one sets the system class loader.
+     */
+    private static class WorkerFactory implements ForkJoinPool.ForkJoinWorkerThreadFactory
+    {
+        private final ClassLoader classLoader;
+
+        WorkerFactory(ClassLoader classLoader)
+        {
+            this.classLoader = classLoader;
+        }
+
+        @Override
+        public ForkJoinWorkerThread newThread(ForkJoinPool pool)
+        {
+            ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) {};
+            thread.setContextClassLoader(classLoader);
+            return thread;
+        }
+    }
+
+    /**
+     * Gets the template root paths of the {@link WebappResourceLoader}s
+     * configured in an engine.
+     * @param velocity initialized engine
+     * @return root paths, empty if there is no webapp resource loader
+     */
+    public static String[] getWebappRoots(VelocityEngine velocity)
+    {
+        List<String> roots = new ArrayList<String>();
+        for (String loader : getStrings(velocity.getProperty(RuntimeConstants.RESOURCE_LOADERS)))
+        {
+            String prefix = RuntimeConstants.RESOURCE_LOADER + '.' + loader + '.';
+            Object loaderClass = velocity.getProperty(prefix + RuntimeConstants.RESOURCE_LOADER_CLASS);
+            if (loaderClass != null && WebappResourceLoader.class.getName().equals(String.valueOf(loaderClass).trim()))
+            {
+                List<String> paths = getStrings(velocity.getProperty(prefix + "path"));
+                if (paths.isEmpty())
+                {
+                    // same default as the loader itself
+                    paths = Collections.singletonList("/");
+                }
+                roots.addAll(paths);
+            }
+        }
+        return roots.toArray(new String[roots.size()]);
+    }
+
+    private static List<String> getStrings(Object value)
+    {
+        List<String> strings = new ArrayList<String>();
+        if (value instanceof Collection)
+        {
+            for (Object item : (Collection<?>)value)
+            {
+                strings.add(String.valueOf(item).trim());
+            }
+        }
+        else if (value != null)
+        {
+            for (String item : String.valueOf(value).split(","))
+            {
+                strings.add(item.trim());
+            }
+        }
+        return strings;
+    }
+
+    /**
+     * Starts loading the templates in the background.
+     * @return pending report
+     */
+    public synchronized ForkJoinTask<Report> start()
+    {
+        if (task == null)
+        {
+            task = pool.submit(new Warmup());
+        }
+        return task;
+    }
+
+    /**
+     * Loads the templates and waits for completion.
+     * @return warm-up report
+     */
+    public Report warm()
+    {
+        return start().join();
+    }
+
+    /**
+     * Stops loading templates.
+     */
+    public void cancel()
+    {
+        pool.shutdownNow();
+    }
+
+    private boolean matches(String name)
+    {
+        for (PathMatcher matcher : matchers)
+        {
+            if (matcher.matches(Paths.get(name)))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Root task, walking all the template roots.
+     */
+    private class Warmup extends RecursiveTask<Report>
+    {
+        @Override
+        protected Report compute()
+        {
+            long start = System.nanoTime();
+            try
+            {
+                List<Walk> walks = new ArrayList<Walk>();
+                for (String root : roots)
+                {
+                    walks.add(new Walk(root, root));
+                }
+                invokeAll(walks);
+                Report report = new Report(parseTimes, failures, System.nanoTime() - start);
+                log.info("Warmed up {} templates in {} ms ({} failed)",
+                         report.getParseTimes().size(), report.getElapsed() / 1000000,
+                         report.getFailures().size());
+                return report;
+            }
+            finally
+            {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Walks a directory, forking a task for each subdirectory and for
+     * each matching template.
+     */
+    private class Walk extends RecursiveAction
+    {
+        private final String root;
+        private final String directory;
+
+        Walk(String root, String directory)
+        {
+            this.root = root;
+            this.directory = directory;
+        }
+
+        @Override
+        protected void compute()
+        {
+            Set<String> children = servletContext.getResourcePaths(directory);
+            if (children == null)
+            {
+                return;
+            }
+            List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+            for (String child : children)
+            {
+                if (child.endsWith("/"))
+                {
+                    tasks.add(new Walk(root, child));
+                }
+                else if (child.startsWith(root))
+                {
+                    String name = child.substring(root.length());
+                    if (matches(name))
+                    {
+                        tasks.add(new Load(name));
+                    }
+                }
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    /**
+     * Loads a single template.
+     */
+    private class Load extends RecursiveAction
+    {
+        private final String name;
+
+        Load(String name)
+        {
+            this.name = name;
+        }
+
+        @Override
+        protected void compute()
+        {
+            // the same name may be found under several roots,
+            // the loader will only ever serve the first one
+            if (parseTimes.containsKey(name) || failures.containsKey(name))
+            {
+                return;
+            }
+            long start = System.nanoTime();
+            try
+            {
+                velocity.getTemplate(name);
+                parseTimes.put(name, System.nanoTime() - start);
+                log.debug("Warmed up template {}", name);
+            }
+            catch (RuntimeException re)
+            {
+                failures.put(name, String.valueOf(re.getMessage()));
+                log.warn("Could not warm up template {}", name, re);
+            }
+        }
+    }
+
+    /**
+     * Outcome of a warm-up.
+     */
+    public static final class Report
+    {
+        private final Map<String,Long> parseTimes;
+        private final Map<String,String> failures;
+        private final long elapsed;
+
+        Report(Map<String,Long> parseTimes, Map<String,String> failures, long elapsed)
+        {
+            this.parseTimes = Collections.unmodifiableMap(new TreeMap<String,Long>(parseTimes));
+            this.failures = Collections.unmodifiableMap(new TreeMap<String,String>(failures));
+            this.elapsed = elapsed;
+        }
+
+        /**
+         * @return load and parse time of each template, in nanoseconds
+         */
+        public Map<String,Long> getParseTimes()
+        {
+            return parseTimes;
+        }
+
+        /**
+         * @return error message of each template which could not be loaded
+         */
+        public Map<String,String> getFailures()
+        {
+            return failures;
+        }
+
+        /**
+         * @return total warm-up time, in nanoseconds
+         */
+        public long getElapsed()
+        {
+            return elapsed;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package org.apache.velocity.tools.view;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Watches template directory trees with a {@link WatchService}, and
+ * records when each template, identified by its name relative to the
+ * root directories, was last created, modified or deleted.</p>
+ * <p>Modification times are taken from a strictly increasing clock, so
+ * that two successive changes never get the same time. Templates which
+ * did not change since the watcher started are reported as modified at
+ * the start time, and so are all the templates when events were lost.</p>
+ *
+ * @since VelocityTools 4.1
+ * @version $Id$
+ */
+public class TemplateWatcher implements Runnable, Closeable
+{
+    private final List<Path> roots = new ArrayList<Path>();
+    private final ConcurrentMap<String,Long> modifications = new ConcurrentHashMap<String,Long>();
+    private final ConcurrentMap<WatchKey,Path> directories = new ConcurrentHashMap<WatchKey,Path>();
+    private final AtomicLong clock = new AtomicLong();
+    private volatile long globalModification;
+    private volatile boolean watching;
+    private Logger log = LoggerFactory.getLogger(TemplateWatcher.class);
+    private WatchService watchService;
+    private Thread thread;
+
+    /**
+     * @param roots template root directories
+     */
+    public TemplateWatcher(Collection<Path> roots)
+    {
+        for (Path root : roots)
+        {
+            this.roots.add(root.toAbsolutePath().normalize());
+        }
+        globalModification = tick();
+    }
+
+    public void setLog(Logger log)
+    {
+        if (log == null)
+        {
+            throw new NullPointerException("log should not be set to null");
+        }
+        this.log = log;
+    }
+
+    /**
+     * Starts watching the template directories.
+     * @throws IOException if the directories could not be registered
+     */
+    public synchronized void start() throws IOException
+    {
+        if (thread != null)
+        {
+            throw new IllegalStateException("TemplateWatcher is already started");
+        }
+        watchService = FileSystems.getDefault().newWatchService();
+        for (Path root : roots)
+        {
+            register(watchService, root, false);
+        }
+        watching = true;
+        thread = new Thread(this, "velocity-tools-template-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        log.debug("Watching template directories {}", roots);
+    }
+
+    /**
+     * Stops watching the template directories.
+     */
+    public synchronized void close()
+    {
+        watching = false;
+        if (watchService != null)
+        {
+            try
+            {
+                watchService.close();
+            }
+            catch (IOException ioe)
+            {
+                log.error("Failed to close template watch service", ioe);
+            }
+            watchService = null;
+        }
+        directories.clear();
+        thread = null;
+    }
+
+    /**
+     * @return whether the template directories are being watched,
+     *         that is whether modification times are reliable
+     */
+    public boolean isWatching()
+    {
+        return watching;
+    }
+
+    /**
+     * @param name template name, relative to the root directories
+     * @return time of the last change of the template
+     */
+    public long getModified(String name)
+    {
+        Long modified = modifications.get(name);
+        long global = globalModification;
+        return modified == null ? global : Math.max(modified, global);
+    }
+
+    public void run()
+    {
+        WatchService service;
+        synchronized (this)
+        {
+            service = watchService;
+        }
+        try
+        {
+            while (true)
+            {
+                WatchKey key = service.take();
+                Path directory = directories.get(key);
+                for (WatchEvent<?> event : key.pollEvents())
+                {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW || directory == null)
+                    {
+                        // events were lost, better safe than sorry
+                        globalModification = tick();
+                        continue;
+                    }
+                    Path file = directory.resolve((Path)event.context());
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(file))
+                    {
+                        // templates may have come along with the directory
+                        register(service, file, true);
+                    }
+                    else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE && directories.containsValue(file))
+                    {
+                        // a whole directory is gone, along with its templates
+                        globalModification = tick();
+                    }
+                    else
+                    {
+                        modified(file);
+                    }
+                }
+                if (!key.reset())
+                {
+                    // the directory is gone
+                    directories.remove(key);
+                }
+            }
+        }
+        catch (ClosedWatchServiceException cwse)
+        {
+            // we have been closed
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (IOException ioe)
+        {
+            log.error("Failed to watch new template directory, no longer watching templates", ioe);
+            globalModification = tick();
+            close();
+        }
+    }
+
+    /* registers a directory tree, and optionally marks
+       all the files it contains as modified */
+    private void register(final WatchService service, Path start, final boolean created)
+        throws IOException
+    {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes)
+                throws IOException
+            {
+                WatchKey key = directory.register(service,
+                                                  StandardWatchEventKinds.ENTRY_CREATE,
+                                                  StandardWatchEventKinds.ENTRY_MODIFY,
+                                                  StandardWatchEventKinds.ENTRY_DELETE);
+                directories.put(key, directory);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+            {
+                if (created)
+                {
+                    modified(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void modified(Path file)
+    {
+        long now = tick();
+        // roots may be nested, so a file may have several names
+        for (Path root : roots)
+        {
+            if (file.startsWith(root))
+            {
+                String name = root.relativize(file).toString().replace(File.separatorChar, '/');
+                modifications.put(name, now);
+                log.debug("Template {} modified", name);
+            }
+        }
+    }
+
+    private long tick()
+    {
+        while (true)
+        {
+            long previous = clock.get();
+            long next = Math.max(System.currentTimeMillis(), previous + 1);
+            if (clock.compareAndSet(previous, next))
+            {
+                return next;
+            }
+        }
+    }
+}
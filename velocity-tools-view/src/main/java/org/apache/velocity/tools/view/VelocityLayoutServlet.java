@@ -32,6 +32,8 @@ import org.apache.velocity.exception.MethodInvocationException;
 /**
  * Extension of the VelocityViewServlet to perform "two-pass"
  * layout rendering and allow for a customized error screen.
+ * The screen content can optionally be streamed into the layout,
+ * see {@link #PROPERTY_STREAMING}.
  *
  * @author Nathan Bubna
  * @version $Id$
@@ -123,9 +125,26 @@ public class VelocityLayoutServlet extends VelocityViewServlet
     public static final String PROPERTY_DYNAMIC_LAYOUT =
         "tools.view.servlet.layout.dynamic";
 
+    /**
+     * <p>The velocity.properties key for specifying whether the screen
+     * content is kept in a pooled chunked buffer and streamed into the
+     * layout, rather than stored as a String. The default is false.</p>
+     * <p>This is an explicit opt-in because <code>$screen_content</code>
+     * is then a {@link CharSequence} rather than a String: layouts can
+     * render it and use <code>length()</code>, <code>charAt()</code> and
+     * <code>subSequence()</code>, but String methods like
+     * <code>trim()</code> or <code>replace()</code> have to go through
+     * <code>$screen_content.toString()</code>, which builds the full
+     * String once.</p>
+     * @since VelocityTools 4.1
+     */
+    public static final String PROPERTY_STREAMING =
+        "tools.view.servlet.layout.streaming";
+
     protected String errorTemplate;
     protected String layoutDir;
     protected String defaultLayout;
+    protected boolean streaming;
 
     /**
      * Initializes Velocity, the view servlet and checks for changes to
@@ -145,6 +164,8 @@ public class VelocityLayoutServlet extends VelocityViewServlet
             getVelocityProperty(PROPERTY_LAYOUT_DIR, DEFAULT_LAYOUT_DIR);
         defaultLayout =
             getVelocityProperty(PROPERTY_DEFAULT_LAYOUT, DEFAULT_DEFAULT_LAYOUT);
+        streaming =
+            Boolean.parseBoolean(getVelocityProperty(PROPERTY_STREAMING, "false"));
 
         // preventive error checking! directory must end in /
         if (!layoutDir.endsWith("/"))
@@ -156,6 +177,7 @@ public class VelocityLayoutServlet extends VelocityViewServlet
         getLog().info("VelocityLayoutServlet: Error screen is '{}'", errorTemplate);
         getLog().info("VelocityLayoutServlet: Layout directory is '{}'", layoutDir);
         getLog().info("VelocityLayoutServlet: Default layout template is '{}'", defaultLayout);
+        getLog().info("VelocityLayoutServlet: Screen content streaming is {}", streaming ? "on" : "off");
 
         // for efficiency's sake, make defaultLayout a full path now
         defaultLayout = layoutDir + defaultLayout;
@@ -208,11 +230,50 @@ public class VelocityLayoutServlet extends VelocityViewServlet
         // this section is based on Tim Colson's "two pass render"
         //
         // Render the screen content
-        StringWriter sw = new StringWriter();
-        template.merge(context, sw);
-        // Add the resulting content to the context
-        context.put(KEY_SCREEN_CONTENT, sw.toString());
+        ChunkedWriter screen = streaming ? getVelocityView().createBuffer() : null;
+        try
+        {
+            if (screen != null)
+            {
+                // the layout will write the buffered chunks when
+                // referencing $screen_content, without any String copy
+                template.merge(context, screen);
+                context.put(KEY_SCREEN_CONTENT, screen.getContent());
+            }
+            else
+            {
+                StringWriter sw = new StringWriter();
+                template.merge(context, sw);
+                // Add the resulting content to the context
+                context.put(KEY_SCREEN_CONTENT, sw.toString());
+            }
+
+            mergeLayout(context, request, response);
+        }
+        finally
+        {
+            if (screen != null)
+            {
+                // the chunks go back to the pool
+                context.remove(KEY_SCREEN_CONTENT);
+                screen.release();
+            }
+        }
+    }
 
+    /**
+     * Renders the layout of the current request, once the
+     * screen content is in the context.
+     * @param context Velocity context
+     * @param request servlet request
+     * @param response servlet response
+     * @throws IOException
+     * @since VelocityTools 4.1
+     */
+    protected void mergeLayout(Context context, HttpServletRequest request,
+                               HttpServletResponse response)
+        throws IOException
+    {
         // Check for an alternate layout
         //
         // we check after merging the screen template so the screen
@@ -231,6 +292,7 @@ public class VelocityLayoutServlet extends VelocityViewServlet
             layout = layoutDir + layout;
         }
 
+        Template template = null;
         try
         {
             //load the layout template
@@ -21,27 +21,42 @@ package org.apache.velocity.tools.view;
 
 import java.io.InputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinTask;
 import jakarta.servlet.FilterConfig;
 import jakarta.servlet.ServletConfig;
 import jakarta.servlet.ServletContext;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.apache.velocity.Template;
 import org.apache.velocity.app.VelocityEngine;
 import org.apache.velocity.context.Context;
 import org.apache.velocity.exception.ResourceNotFoundException;
 import org.apache.velocity.io.VelocityWriter;
+import org.apache.velocity.tools.ToolMetrics;
 import org.apache.velocity.tools.ToolboxFactory;
 import org.apache.velocity.tools.config.ConfigurationCleaner;
 import org.apache.velocity.tools.config.ConfigurationUtils;
+import org.apache.velocity.tools.config.ConfigurationWatcher;
 import org.apache.velocity.tools.config.FactoryConfiguration;
 import org.apache.velocity.util.ExtProperties;
-import org.apache.velocity.util.SimplePool;
 
 /**
  * <p>The class provides the following features:</p>
@@ -69,6 +84,24 @@ import org.apache.velocity.util.SimplePool;
  *     '/WEB-INF/velocity.properties'.  If no file is found there, then
  *     Velocity is initialized with the settings in the classpath at
  *     'org.apache.velocity.tools.view.velocity.properties'.</dd>
+ *   <dt>org.apache.velocity.tools.reloadConfiguration</dt>
+ *   <dd>Whether to watch the toolbox configuration files, and to reload
+ *     the tools configuration whenever they change. The default is false.</dd>
+ *   <dt>org.apache.velocity.tools.prewarmApplicationTools</dt>
+ *   <dd>Whether to create all the application tools of a reloaded
+ *     configuration before it is put to use. The default is false.</dd>
+ *   <dt>org.apache.velocity.tools.metrics</dt>
+ *   <dd>Whether to record per-tool metrics, which are then published
+ *     as a JMX MBean along with the writer pool statistics. The default
+ *     is false.</dd>
+ *   <dt>org.apache.velocity.tools.minWriterBuffer</dt>
+ *   <dt>org.apache.velocity.tools.maxWriterBuffer</dt>
+ *   <dd>Bounds of the buffer size of the writers templates are merged into.
+ *     Within those bounds, the size follows the output size of each
+ *     template. The defaults are 4096 and 65536 chars.</dd>
+ *   <dt>org.apache.velocity.tools.maxPooledWriters</dt>
+ *   <dd>Maximum total buffer size of the idle pooled writers, past which
+ *     writers are dropped instead of pooled. The default is 524288 chars.</dd>
  * </dl>
  *
  * @author Dave Bryson
@@ -160,8 +193,104 @@ public class VelocityView extends ViewToolManager
     public static final String USER_OVERWRITE_KEY =
         "org.apache.velocity.tools.userCanOverwriteTools";
 
-    private static SimplePool writerPool = new SimplePool(40);
+    /**
+     * Controls whether the toolbox configuration files are watched for
+     * changes, in which case the tools configuration is reloaded and
+     * swapped in without interrupting requests.
+     * The default is false; set to {@code true} to turn this feature on.
+     * @since VelocityTools 4.1
+     */
+    public static final String RELOAD_CONFIGURATION_KEY =
+        "org.apache.velocity.tools.reloadConfiguration";
+
+    /**
+     * Controls whether application tools of a reloaded configuration
+     * are all created before the new configuration is swapped in.
+     * The default is false; set to {@code true} to turn this feature on.
+     * @since VelocityTools 4.1
+     */
+    public static final String PREWARM_TOOLS_KEY =
+        "org.apache.velocity.tools.prewarmApplicationTools";
+
+    /**
+     * Controls whether per-tool metrics are recorded and published
+     * through JMX, under the {@link #METRICS_DOMAIN} domain.
+     * The default is false; set to {@code true} to turn this feature on.
+     * @since VelocityTools 4.1
+     */
+    public static final String METRICS_KEY =
+        "org.apache.velocity.tools.metrics";
+
+    /**
+     * JMX domain of the tool metrics MBeans.
+     * @since VelocityTools 4.1
+     */
+    public static final String METRICS_DOMAIN = "org.apache.velocity.tools";
+
+    /**
+     * Minimum buffer size, in chars, of the writers templates are merged
+     * into. The default is {@link WriterPool#DEFAULT_MIN_BUFFER_SIZE}.
+     * @since VelocityTools 4.1
+     */
+    public static final String MIN_WRITER_BUFFER_KEY =
+        "org.apache.velocity.tools.minWriterBuffer";
+
+    /**
+     * Maximum buffer size, in chars, of the writers templates are merged
+     * into. The default is {@link WriterPool#DEFAULT_MAX_BUFFER_SIZE}.
+     * @since VelocityTools 4.1
+     */
+    public static final String MAX_WRITER_BUFFER_KEY =
+        "org.apache.velocity.tools.maxWriterBuffer";
+
+    /**
+     * Maximum total buffer size, in chars, of the idle pooled writers.
+     * The default is {@link WriterPool#DEFAULT_MAX_POOLED_SIZE}.
+     * @since VelocityTools 4.1
+     */
+    public static final String MAX_POOLED_WRITERS_KEY =
+        "org.apache.velocity.tools.maxPooledWriters";
+
+    /**
+     * Controls whether all the webapp templates are loaded when the view
+     * is initialized: {@code blocking} makes the initialization wait for
+     * them, {@code background} loads them while requests are served.
+     * The default is to not load any template beforehand.
+     * @see TemplateWarmer
+     * @since VelocityTools 4.1
+     */
+    public static final String WARMUP_KEY =
+        "org.apache.velocity.tools.warmup";
+
+    /**
+     * Comma separated glob patterns of the templates to load at
+     * initialization. The default is {@link TemplateWarmer#DEFAULT_PATTERN}.
+     * @since VelocityTools 4.1
+     */
+    public static final String WARMUP_PATTERNS_KEY =
+        "org.apache.velocity.tools.warmup.patterns";
+
+    /**
+     * Number of threads loading the templates at initialization.
+     * The default is the number of available processors.
+     * @since VelocityTools 4.1
+     */
+    public static final String WARMUP_THREADS_KEY =
+        "org.apache.velocity.tools.warmup.threads";
+
+    private WriterPool writerPool = new WriterPool();
     private String defaultContentType = DEFAULT_CONTENT_TYPE;
+    private JeeConfig config;
+    private List<String> configurationPaths = new ArrayList<String>();
+    private ConfigurationWatcher watcher;
+    private ObjectName metricsName;
+    private ObjectName writerPoolName;
+    private TemplateWarmer warmer;
+    private volatile ForkJoinTask<TemplateWarmer.Report> warmup;
+    private final ChunkPool chunkPool = new ChunkPool();
+    private final EncodedTextCache textCache = new EncodedTextCache();
+    private final ConcurrentMap<Charset,StripedPool<EncodingWriter>> encodingWriterPools =
+        new ConcurrentHashMap<Charset,StripedPool<EncodingWriter>>();
 
     public VelocityView(ServletConfig config)
     {
@@ -220,6 +349,41 @@ public class VelocityView extends ViewToolManager
         }
     }
 
+    /**
+     * @return the pool of the writers templates are merged into
+     * @since VelocityTools 4.1
+     */
+    public WriterPool getWriterPool()
+    {
+        return writerPool;
+    }
+
+    /**
+     * Creates a buffer for rendered content, drawing its chunks from
+     * the pool of this view. The buffer must be released after use.
+     * @return new chunked buffer
+     * @since VelocityTools 4.1
+     */
+    public ChunkedWriter createBuffer()
+    {
+        return new ChunkedWriter(chunkPool);
+    }
+
+    /**
+     * Creates a buffer for rendered content which spills to a target
+     * writer past a threshold, drawing its chunks from the pool of this
+     * view. The buffer must be released after use.
+     * @param target writer receiving the content past the threshold
+     * @param threshold number of chars past which the content is
+     *        spilled to the target, or zero to always buffer
+     * @return new chunked buffer
+     * @since VelocityTools 4.1
+     */
+    public ChunkedWriter createBuffer(Writer target, long threshold)
+    {
+        return new ChunkedWriter(chunkPool, target, threshold);
+    }
+
     /**
      * Simplifies process of getting a property from VelocityEngine,
      * because the VelocityEngine interface sucks compared to the singleton's.
@@ -254,6 +418,9 @@ public class VelocityView extends ViewToolManager
      */
     protected void init(JeeConfig config)
     {
+        // kept for configuration reloads
+        this.config = config;
+
         // create an engine if none is set yet
         // (servletContext and factory should already be set by now
         if (this.velocity == null)
@@ -267,14 +434,96 @@ public class VelocityView extends ViewToolManager
             setUserCanOverwriteTools(false);
         }
 
+        String minBuffer = config.findInitParameter(MIN_WRITER_BUFFER_KEY);
+        String maxBuffer = config.findInitParameter(MAX_WRITER_BUFFER_KEY);
+        String maxPooled = config.findInitParameter(MAX_POOLED_WRITERS_KEY);
+        if (minBuffer != null || maxBuffer != null || maxPooled != null)
+        {
+            try
+            {
+                writerPool = new WriterPool(
+                    minBuffer == null ? WriterPool.DEFAULT_MIN_BUFFER_SIZE : Integer.parseInt(minBuffer.trim()),
+                    maxBuffer == null ? WriterPool.DEFAULT_MAX_BUFFER_SIZE : Integer.parseInt(maxBuffer.trim()),
+                    maxPooled == null ? WriterPool.DEFAULT_MAX_POOLED_SIZE : Long.parseLong(maxPooled.trim()));
+            }
+            catch (NumberFormatException nfe)
+            {
+                getLog().error("Invalid writer buffer size, using defaults", nfe);
+            }
+        }
+
         // configure and initialize the VelocityEngine
         init(config, velocity);
 
+        // metrics have to be set before toolboxes get created
+        String metrics = config.findInitParameter(METRICS_KEY);
+        if ("true".equalsIgnoreCase(metrics))
+        {
+            registerMetrics(new ToolMetrics());
+        }
+
         // configure the ToolboxFactory
         configure(config, factory);
 
         // set encoding & content-type
         setEncoding(config);
+
+        String warmupMode = config.findInitParameter(WARMUP_KEY);
+        if ("blocking".equalsIgnoreCase(warmupMode) || "background".equalsIgnoreCase(warmupMode))
+        {
+            warmTemplates(config, "blocking".equalsIgnoreCase(warmupMode));
+        }
+    }
+
+    /**
+     * Loads all the webapp templates matching the configured patterns
+     * into the engine resource cache.
+     * @param config configuration values container
+     * @param blocking whether to wait for all the templates to be loaded
+     * @see #WARMUP_KEY
+     * @since VelocityTools 4.1
+     */
+    protected synchronized void warmTemplates(JeeConfig config, boolean blocking)
+    {
+        String[] roots = TemplateWarmer.getWebappRoots(velocity);
+        if (roots.length == 0)
+        {
+            getLog().warn("No webapp resource loader, no template to warm up");
+            return;
+        }
+        String patterns = config.findInitParameter(WARMUP_PATTERNS_KEY);
+        String threads = config.findInitParameter(WARMUP_THREADS_KEY);
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        if (threads != null)
+        {
+            try
+            {
+                parallelism = Integer.parseInt(threads.trim());
+            }
+            catch (NumberFormatException nfe)
+            {
+                getLog().error("Invalid number of warm-up threads, using {}", parallelism, nfe);
+            }
+        }
+        warmer = new TemplateWarmer(velocity, servletContext, roots,
+                                    patterns == null ? new String[] { TemplateWarmer.DEFAULT_PATTERN } : patterns.split(","),
+                                    parallelism);
+        warmup = warmer.start();
+        if (blocking)
+        {
+            warmup.join();
+        }
+    }
+
+    /**
+     * @return the outcome of the template warm-up, or <code>null</code>
+     *         if it is disabled or still running
+     * @since VelocityTools 4.1
+     */
+    public TemplateWarmer.Report getWarmupReport()
+    {
+        ForkJoinTask<TemplateWarmer.Report> task = warmup;
+        return task == null || !task.isDone() || task.isCompletedAbnormally() ? null : task.getRawResult();
     }
 
     /**
@@ -391,8 +640,29 @@ public class VelocityView extends ViewToolManager
      * @param factory toolbox factory instance
      */
     protected void configure(final JeeConfig config, final ToolboxFactory factory)
+    {
+        // apply this configuration to the specified factory
+        configure(getFactoryConfiguration(config));
+
+        String reload = config.findInitParameter(RELOAD_CONFIGURATION_KEY);
+        if ("true".equalsIgnoreCase(reload))
+        {
+            watchConfiguration();
+        }
+    }
+
+    /**
+     * Gathers the tools configuration from all the places listed in
+     * {@link #configure(JeeConfig, ToolboxFactory)}, and remembers the
+     * paths of the configuration files found along the way.
+     * @param config configuration values container
+     * @return complete tools configuration
+     * @since VelocityTools 4.1
+     */
+    protected FactoryConfiguration getFactoryConfiguration(final JeeConfig config)
     {
         FactoryConfiguration factoryConfig = new FactoryConfiguration("VelocityView.configure(config,factory)");
+        List<String> paths = new ArrayList<String>();
 
         String loadDefaults = config.findInitParameter(LOAD_DEFAULTS_KEY);
         if (loadDefaults == null || "false".equalsIgnoreCase(loadDefaults))
@@ -414,6 +684,7 @@ public class VelocityView extends ViewToolManager
         {
             FactoryConfiguration appToolsConfig = getConfiguration(appToolsPath, true);
             factoryConfig.addConfiguration(appToolsConfig);
+            paths.add(appToolsPath);
             getLog().debug("Loaded configuration from: {}", appToolsPath);
         }
 
@@ -423,6 +694,7 @@ public class VelocityView extends ViewToolManager
         {
             FactoryConfiguration servletToolsConfig = getConfiguration(servletToolsPath, true);
             factoryConfig.addConfiguration(servletToolsConfig);
+            paths.add(servletToolsPath);
             getLog().debug("Loaded configuration from: {}", servletToolsPath);
         }
 
@@ -436,6 +708,8 @@ public class VelocityView extends ViewToolManager
                 factoryConfig.addConfiguration(standardLocationConfiguration);
                 getLog().debug("Loaded configuration from: {}", USER_TOOLS_PATH);
             }
+            // watched even if missing, it may show up later
+            paths.add(USER_TOOLS_PATH);
         }
 
         // check for "injected" configuration in application attributes
@@ -456,9 +730,154 @@ public class VelocityView extends ViewToolManager
             cleaner.clean(factoryConfig);
         }
 
-        // apply this configuration to the specified factory
+        this.configurationPaths = paths;
         getLog().debug("Configuring factory with: {}", factoryConfig);
-        configure(factoryConfig);
+        return factoryConfig;
+    }
+
+    /**
+     * Reads the tools configuration again, and swaps it in place
+     * of the current one. Requests being processed keep the tools
+     * they already have.
+     * @see #reconfigure(FactoryConfiguration, boolean)
+     * @since VelocityTools 4.1
+     */
+    public void reloadConfiguration()
+    {
+        String prewarm = config.findInitParameter(PREWARM_TOOLS_KEY);
+        reconfigure(getFactoryConfiguration(config), "true".equalsIgnoreCase(prewarm));
+    }
+
+    /**
+     * Starts watching the toolbox configuration files which lie
+     * in the file system, so that they are reloaded on change.
+     * @since VelocityTools 4.1
+     */
+    protected synchronized void watchConfiguration()
+    {
+        if (watcher != null)
+        {
+            return;
+        }
+        List<Path> files = new ArrayList<Path>();
+        for (String path : configurationPaths)
+        {
+            String realPath = servletContext.getRealPath(path);
+            if (realPath == null)
+            {
+                getLog().debug("Cannot watch configuration at {}: not in the file system", path);
+            }
+            else
+            {
+                Path file = Paths.get(realPath);
+                if (file.getParent() != null && Files.isDirectory(file.getParent()))
+                {
+                    files.add(file);
+                }
+            }
+        }
+        if (files.isEmpty())
+        {
+            getLog().warn("Configuration reloading was requested, but there is no configuration file to watch");
+            return;
+        }
+        watcher = new ConfigurationWatcher(files, new Runnable()
+        {
+            public void run()
+            {
+                reloadConfiguration();
+            }
+        });
+        watcher.setLog(getLog());
+        try
+        {
+            watcher.start();
+        }
+        catch (IOException ioe)
+        {
+            getLog().error("Failed to watch configuration files {}", files, ioe);
+            watcher.close();
+            watcher = null;
+        }
+    }
+
+    /**
+     * Starts recording per-tool metrics, and registers them in the
+     * platform MBean server. Failing to register them is not fatal.
+     * @param metrics tool metrics
+     * @since VelocityTools 4.1
+     */
+    protected synchronized void registerMetrics(ToolMetrics metrics)
+    {
+        setMetrics(metrics);
+        metricsName = registerMBean(metrics, "ToolMetrics");
+        writerPoolName = registerMBean(writerPool, "WriterPool");
+    }
+
+    private ObjectName registerMBean(Object bean, String type)
+    {
+        try
+        {
+            String context = servletContext.getContextPath();
+            ObjectName name = new ObjectName(METRICS_DOMAIN + ":type=" + type + ",context=" +
+                                             ObjectName.quote(context == null ? "" : context) +
+                                             ",name=" + ObjectName.quote(String.valueOf(config.getName())));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(bean, name);
+            getLog().debug("{} registered as {}", type, name);
+            return name;
+        }
+        catch (JMException | RuntimeException e)
+        {
+            getLog().warn("Could not register {} MBean", type, e);
+            return null;
+        }
+    }
+
+    private void unregisterMBean(ObjectName name)
+    {
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        }
+        catch (JMException jme)
+        {
+            getLog().debug("Could not unregister MBean {}", name, jme);
+        }
+    }
+
+    /**
+     * Releases the resources held by this VelocityView,
+     * like the configuration files watcher and the metrics MBean.
+     * @since VelocityTools 4.1
+     */
+    public synchronized void destroy()
+    {
+        if (warmer != null)
+        {
+            warmer.cancel();
+            warmer = null;
+        }
+        Object templateWatcher = velocity.getApplicationAttribute(TemplateWatcher.class.getName());
+        if (templateWatcher instanceof TemplateWatcher)
+        {
+            ((TemplateWatcher)templateWatcher).close();
+        }
+        if (watcher != null)
+        {
+            watcher.close();
+            watcher = null;
+        }
+        if (metricsName != null)
+        {
+            unregisterMBean(metricsName);
+            metricsName = null;
+        }
+        if (writerPoolName != null)
+        {
+            unregisterMBean(writerPoolName);
+            writerPoolName = null;
+        }
     }
 
     protected FactoryConfiguration getDefaultToolsConfiguration()
@@ -799,18 +1218,10 @@ public class VelocityView extends ViewToolManager
     public void merge(Template template, Context context, Writer writer)
         throws IOException
     {
-        VelocityWriter vw = null;
+        WriterPool.Lease lease = writerPool.acquire(template.getName(), writer);
         try
         {
-            vw = (VelocityWriter)writerPool.get();
-            if (vw == null)
-            {
-                vw = new VelocityWriter(writer, 4 * 1024, true);
-            }
-            else
-            {
-                vw.recycle(writer);
-            }
+            VelocityWriter vw = lease.getWriter();
             performMerge(template, context, vw);
 
             // flush writer but don't close to allow us to play nicely with others.
@@ -818,22 +1229,63 @@ public class VelocityView extends ViewToolManager
         }
         finally
         {
-            if (vw != null)
+            writerPool.release(lease);
+        }
+    }
+
+
+    /**
+     * Merges the template with the context directly into an output stream,
+     * rather than into a writer. The chars are encoded by a pooled encoder,
+     * and the long static text blocks of the template are copied from
+     * pre-encoded bytes.
+     *
+     * @param template template being rendered
+     * @param context Context created by the {@link #createContext}
+     * @param output into which the encoded content is rendered
+     * @param encoding output encoding, or <code>null</code> for the
+     *        configured output encoding
+     * @throws IOException if thrown by underling code
+     * @since VelocityTools 4.1
+     */
+    public void merge(Template template, Context context, OutputStream output, String encoding)
+        throws IOException
+    {
+        if (encoding == null)
+        {
+            encoding = getProperty(OUTPUT_ENCODING_KEY, DEFAULT_OUTPUT_ENCODING);
+        }
+        Charset charset = Charset.forName(encoding);
+        StripedPool<EncodingWriter> pool = encodingWriterPools.get(charset);
+        if (pool == null)
+        {
+            pool = new StripedPool<EncodingWriter>();
+            StripedPool<EncodingWriter> previous = encodingWriterPools.putIfAbsent(charset, pool);
+            if (previous != null)
             {
-                try
-                {
-                    /* This hack sets the VelocityWriter's internal ref to the
-                     * PrintWriter to null to keep memory free while
-                     * the writer is pooled. See bug report #18951 */
-                    vw.recycle(null);
-                    writerPool.put(vw);
-                }
-                catch (Exception e)
-                {
-                    getLog().error("Trouble releasing VelocityWriter: ", e);
-                }
+                pool = previous;
             }
         }
+        EncodingWriter ew = pool.get();
+        if (ew == null)
+        {
+            ew = new EncodingWriter(charset);
+        }
+        try
+        {
+            ew.recycle(output, textCache.getTexts(template, charset));
+            performMerge(template, context, ew);
+
+            // flush output but don't close it
+            ew.finish();
+            output.flush();
+        }
+        finally
+        {
+            // drop the output stream reference while pooled
+            ew.recycle(null, null);
+            pool.put(ew);
+        }
     }
 
 
@@ -181,7 +181,11 @@ public class VelocityViewFilter implements Filter
 
     public void destroy()
     {
-        // do anything else?
+        // stop watching configuration files, if we were
+        if (this.view != null)
+        {
+            this.view.destroy();
+        }
         this.view = null;
         this.config = null;
         this.contextKey = null;
@@ -94,7 +94,44 @@ import org.apache.commons.lang3.StringEscapeUtils;
  *     method to be overridden to return a "500 Internal Server Error" or
  *     at least not return any of the failed request content. Essentially,
  *     setting this to {@code true} degrades performance in order to enable
- *     a more "correct" error response"</dd>
+ *     a more "correct" error response". The output is buffered in pooled
+ *     chunks, which are drained one by one into the response.</dd>
+ *   <dt>org.apache.velocity.tools.bufferOutput.threshold</dt>
+ *   <dd>When output is buffered, the number of chars past which the buffered
+ *     output is written to the response, and the remaining output streamed
+ *     directly. Errors occurring past this point can then no longer replace
+ *     the page. By default, this is {@code 0}, meaning that the whole output
+ *     is always buffered.</dd>
+ *   <dt>org.apache.velocity.tools.byteOutput</dt>
+ *   <dd>By default, {@code false}. If set to {@code true}, templates
+ *     are merged into the response's output stream rather than into its
+ *     writer, and the long static text blocks of the templates are written
+ *     from pre-encoded bytes. The response writer must then not be used
+ *     by other means. This parameter is ignored when output is buffered.</dd>
+ *   <dt>org.apache.velocity.tools.responseCache</dt>
+ *   <dd>By default, {@code false}. If set to {@code true}, the rendered
+ *     responses to GET requests are cached as encoded bytes, along with
+ *     a strong ETag, and served again without rendering, or answered
+ *     with a 304 status when the request's If-None-Match header matches.
+ *     The headers set while rendering are stored and sent again, and
+ *     concurrent requests for a response being rendered wait for it.
+ *     Requests with a session, or with an Authorization or Cookie header
+ *     which is not part of the cache key, and responses which set cookies
+ *     or whose status is not 200, are not cached. A template can prevent
+ *     caching of its response with <code>#set($response_cache = false)</code>.
+ *     The cache is configured by the following parameters:
+ *     <ul>
+ *       <li>org.apache.velocity.tools.responseCache.ttl: time to live
+ *       of the cached responses, in seconds; defaults to 60</li>
+ *       <li>org.apache.velocity.tools.responseCache.maxBytes: maximum size
+ *       of all the cached responses, past which the least recently used
+ *       ones are evicted; defaults to 16 MB</li>
+ *       <li>org.apache.velocity.tools.responseCache.parameters and
+ *       org.apache.velocity.tools.responseCache.headers: comma separated
+ *       names of the request parameters and headers which, along with the
+ *       request path, identify a response; cached responses carry a
+ *       Vary header listing the configured headers</li>
+ *     </ul></dd>
  *   <dt>org.apache.velocity.tools.view.class</dt>
  *   <dd>Allows to specify a custom class (inheriting from VelocityView) as
  *   the View class.</dd>
@@ -107,10 +144,42 @@ public class VelocityViewServlet extends HttpServlet
 {
     public static final String BUFFER_OUTPUT_PARAM =
         "org.apache.velocity.tools.bufferOutput";
+
+    /**
+     * Number of chars past which buffered output is streamed to the response.
+     * @since VelocityTools 4.1
+     */
+    public static final String BUFFER_THRESHOLD_PARAM =
+        "org.apache.velocity.tools.bufferOutput.threshold";
+
+    /**
+     * Whether templates are merged into the response output stream.
+     * @since VelocityTools 4.1
+     */
+    public static final String BYTE_OUTPUT_PARAM =
+        "org.apache.velocity.tools.byteOutput";
+
+    /**
+     * Whether rendered responses are cached, and prefix of the
+     * response cache configuration parameters.
+     * @since VelocityTools 4.1
+     */
+    public static final String RESPONSE_CACHE_PARAM =
+        "org.apache.velocity.tools.responseCache";
+
+    /**
+     * The context key which, if set to false by the template,
+     * prevents the caching of the response.
+     * @since VelocityTools 4.1
+     */
+    public static final String KEY_RESPONSE_CACHE = "response_cache";
     private static final long serialVersionUID = -3329444102562079189L;
 
     private transient VelocityView view;
     private boolean bufferOutput = false;
+    private long bufferThreshold = 0;
+    private boolean byteOutput = false;
+    private transient ResponseCache responseCache;
 
     /**
      * <p>Initializes servlet and VelocityView used to process requests.
@@ -130,10 +199,66 @@ public class VelocityViewServlet extends HttpServlet
         {
             this.bufferOutput = true;
             getLog().debug("VelocityViewServlet will buffer mergeTemplate output.");
+
+            String threshold = findInitParameter(config, BUFFER_THRESHOLD_PARAM);
+            if (threshold != null && threshold.length() > 0)
+            {
+                try
+                {
+                    this.bufferThreshold = Long.parseLong(threshold.trim());
+                    getLog().debug("VelocityViewServlet will stream output past {} chars.", bufferThreshold);
+                }
+                catch (NumberFormatException nfe)
+                {
+                    getLog().error("Invalid {} value: {}", BUFFER_THRESHOLD_PARAM, threshold);
+                }
+            }
+        }
+        else if ("true".equals(findInitParameter(config, BYTE_OUTPUT_PARAM)))
+        {
+            this.byteOutput = true;
+            getLog().debug("VelocityViewServlet will merge templates into the response output stream.");
+        }
+
+        if ("true".equals(findInitParameter(config, RESPONSE_CACHE_PARAM)))
+        {
+            try
+            {
+                String ttl = findInitParameter(config, RESPONSE_CACHE_PARAM + ".ttl");
+                String maxBytes = findInitParameter(config, RESPONSE_CACHE_PARAM + ".maxBytes");
+                String parameters = findInitParameter(config, RESPONSE_CACHE_PARAM + ".parameters");
+                String headers = findInitParameter(config, RESPONSE_CACHE_PARAM + ".headers");
+                this.responseCache = new ResponseCache(
+                    ttl == null ? ResponseCache.DEFAULT_TTL : Long.parseLong(ttl.trim()),
+                    maxBytes == null ? ResponseCache.DEFAULT_MAX_BYTES : Long.parseLong(maxBytes.trim()),
+                    parameters == null ? null : parameters.trim().split("\\s*,\\s*"),
+                    headers == null ? null : headers.trim().split("\\s*,\\s*"));
+                getLog().debug("VelocityViewServlet will cache rendered responses.");
+            }
+            catch (NumberFormatException nfe)
+            {
+                throw new ServletException("Invalid response cache configuration", nfe);
+            }
         }
     }
 
 
+    /**
+     * <p>Releases the resources of the VelocityView, like its
+     * configuration files watcher. Called by the servlet container
+     * on unloading.</p>
+     */
+    @Override
+    public void destroy()
+    {
+        if (this.view != null)
+        {
+            this.view.destroy();
+        }
+        super.destroy();
+    }
+
+
     /**
      * Looks up an init parameter with the specified key in either the
      * ServletConfig or, failing that, in the ServletContext.
@@ -217,8 +342,63 @@ public class VelocityViewServlet extends HttpServlet
      */
     protected void doRequest(HttpServletRequest request, HttpServletResponse response)
         throws IOException
+    {
+        String cacheKey = null;
+        boolean rendering = false;
+        if (responseCache != null && "GET".equals(request.getMethod()) &&
+            responseCache.isCacheable(request))
+        {
+            cacheKey = responseCache.getKey(request);
+            ResponseCache.Entry cached = responseCache.get(cacheKey);
+            if (cached == null)
+            {
+                rendering = responseCache.startRendering(cacheKey);
+                // another request may have cached it meanwhile, or be rendering it
+                cached = rendering ? responseCache.get(cacheKey) : responseCache.awaitRendering(cacheKey);
+            }
+            if (cached != null)
+            {
+                if (rendering)
+                {
+                    responseCache.endRendering(cacheKey);
+                }
+                sendCachedResponse(request, response, cached);
+                return;
+            }
+        }
+        if (cacheKey == null)
+        {
+            processRequest(request, response);
+            return;
+        }
+        ResponseCache.Recorder recorder = new ResponseCache.Recorder(response);
+        try
+        {
+            Context context = processRequest(request, recorder);
+            sendRecordedResponse(request, recorder, context, cacheKey);
+        }
+        finally
+        {
+            if (rendering)
+            {
+                responseCache.endRendering(cacheKey);
+            }
+        }
+    }
+
+    /**
+     * Renders the response to a request.
+     * @param request client request
+     * @param response client response
+     * @return the context of the rendered template, or <code>null</code>
+     *         if the rendering failed
+     * @throws IOException from underlying processing
+     */
+    private Context processRequest(HttpServletRequest request, HttpServletResponse response)
+        throws IOException
     {
         Context context = null;
+        boolean rendered = false;
         try
         {
             // prepare needed request and response attributes and properties
@@ -237,6 +417,7 @@ public class VelocityViewServlet extends HttpServlet
 
             // merge the template and context into the response
             mergeTemplate(template, context, request, response);
+            rendered = true;
         } catch (IOException e) {
             error(request, response, e);
             throw e;
@@ -253,7 +434,18 @@ public class VelocityViewServlet extends HttpServlet
         finally
         {
             requestCleanup(request, response, context);
+            if (!rendered && response instanceof ResponseCache.Recorder)
+            {
+                // send the error page, if any, without caching it
+                ResponseCache.Recorder recorder = (ResponseCache.Recorder)response;
+                byte[] content = recorder.getContent();
+                if (content.length > 0)
+                {
+                    recorder.getRecordedResponse().getOutputStream().write(content);
+                }
+            }
         }
+        return rendered ? context : null;
     }
 
     /**
@@ -382,13 +574,132 @@ public class VelocityViewServlet extends HttpServlet
     protected void mergeTemplate(Template template, Context context, HttpServletRequest request, HttpServletResponse response)
         throws IOException
     {
+        if (byteOutput)
+        {
+            getVelocityView().merge(template, context, response.getOutputStream(),
+                                    response.getCharacterEncoding());
+            return;
+        }
         Writer writer = getOutputWriter(request, response);
-        getVelocityView().merge(template, context, writer);
-        Boolean buffered = request == null ? Boolean.FALSE : (Boolean)request.getAttribute(BUFFER_OUTPUT_PARAM);
-        if (buffered != null && buffered)
+        try
+        {
+            getVelocityView().merge(template, context, writer);
+            Boolean buffered = request == null ? Boolean.FALSE : (Boolean)request.getAttribute(BUFFER_OUTPUT_PARAM);
+            if (buffered != null && buffered)
+            {
+                if (writer instanceof ChunkedWriter)
+                {
+                    // drain what was not already spilled, chunk by chunk
+                    ((ChunkedWriter)writer).writeTo(response.getWriter());
+                }
+                else
+                {
+                    response.getWriter().write(writer.toString());
+                }
+            }
+        }
+        finally
+        {
+            if (writer instanceof ChunkedWriter)
+            {
+                // on error, the partial output is simply discarded
+                ((ChunkedWriter)writer).release();
+            }
+        }
+    }
+
+    /**
+     * Caches a rendered response unless the template or the response rule
+     * it out, then sends it to the client.
+     * @param request client request
+     * @param recorder recorded response
+     * @param context context of the rendered template, or <code>null</code>
+     *        if the rendering failed
+     * @param key response cache key
+     * @throws IOException
+     * @since VelocityTools 4.1
+     */
+    protected void sendRecordedResponse(HttpServletRequest request, ResponseCache.Recorder recorder,
+                                        Context context, String key)
+        throws IOException
+    {
+        if (context == null)
+        {
+            // the error page, if any, was already sent
+            return;
+        }
+        HttpServletResponse response = recorder.getRecordedResponse();
+        Object flag = context.get(KEY_RESPONSE_CACHE);
+        boolean cacheable = (flag == null || !"false".equals(String.valueOf(flag))) &&
+            recorder.getStatus() == HttpServletResponse.SC_OK &&
+            !recorder.containsHeader("Set-Cookie") &&
+            request.getSession(false) == null;
+        if (cacheable)
+        {
+            ResponseCache.Entry entry = responseCache.put(key, recorder);
+            // the recorded headers were already set
+            sendCachedContent(request, response, entry);
+        }
+        else if (!response.isCommitted())
+        {
+            byte[] content = recorder.getContent();
+            response.setContentLength(content.length);
+            response.getOutputStream().write(content);
+        }
+    }
+
+    /**
+     * Sends a cached response, with the headers set while rendering it,
+     * or a 304 status if the client has it already.
+     * @param request client request
+     * @param response client response
+     * @param entry cached response
+     * @throws IOException
+     * @since VelocityTools 4.1
+     */
+    protected void sendCachedResponse(HttpServletRequest request, HttpServletResponse response,
+                                      ResponseCache.Entry entry)
+        throws IOException
+    {
+        entry.applyHeaders(response);
+        sendCachedContent(request, response, entry);
+    }
+
+    /**
+     * Sends the content of a cached response, or a 304 status if the
+     * client has it already, along with its ETag and Vary headers.
+     * @param request client request
+     * @param response client response
+     * @param entry cached response
+     * @throws IOException
+     */
+    private void sendCachedContent(HttpServletRequest request, HttpServletResponse response,
+                                   ResponseCache.Entry entry)
+        throws IOException
+    {
+        String vary = responseCache.getVary();
+        if (vary != null)
         {
-            response.getWriter().write(writer.toString());            
+            response.addHeader("Vary", vary);
         }
+        response.setHeader("ETag", entry.getETag());
+        if (ResponseCache.matches(request.getHeader("If-None-Match"), entry.getETag()))
+        {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        response.setContentType(entry.getContentType());
+        response.setContentLength(entry.getContent().length);
+        response.getOutputStream().write(entry.getContent());
+    }
+
+    /**
+     * @return the response cache, or <code>null</code> if responses are not cached
+     * @since VelocityTools 4.1
+     */
+    protected ResponseCache getResponseCache()
+    {
+        return responseCache;
     }
 
     /**
@@ -406,7 +717,9 @@ public class VelocityViewServlet extends HttpServlet
         Writer writer;
         if (this.bufferOutput)
         {
-            writer = new StringWriter();
+            writer = bufferThreshold > 0 ?
+                getVelocityView().createBuffer(response.getWriter(), bufferThreshold) :
+                getVelocityView().createBuffer();
             request.setAttribute(BUFFER_OUTPUT_PARAM, true);
         }
         else
@@ -489,7 +802,15 @@ public class VelocityViewServlet extends HttpServlet
             html.append("</pre>\n");
             html.append("</body>\n");
             html.append("</html>");
-            response.getWriter().write(html.toString());
+            if (byteOutput)
+            {
+                // the writer is not available once the output stream was used
+                response.getOutputStream().write(html.toString().getBytes(response.getCharacterEncoding()));
+            }
+            else
+            {
+                response.getWriter().write(html.toString());
+            }
         }
         catch (Exception e2)
         {
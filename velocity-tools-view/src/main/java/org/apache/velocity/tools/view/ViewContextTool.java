@@ -24,6 +24,7 @@ import java.util.Set;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpSession;
 import jakarta.servlet.ServletContext;
+import org.apache.velocity.context.Context;
 import org.apache.velocity.tools.generic.ContextTool;
 import org.apache.velocity.tools.generic.ValueParser;
 
@@ -72,6 +73,35 @@ public class ViewContextTool extends ContextTool
         this.application = (ServletContext)parser.getValue(ViewContext.SERVLET_CONTEXT_KEY);
     }
 
+    @Override
+    protected boolean containsKey(String key)
+    {
+        if (isSafeMode() && key.indexOf('.') >= 0)
+        {
+            return false;
+        }
+        if (super.containsKey(key))
+        {
+            return true;
+        }
+        return request.getAttribute(key) != null ||
+            session != null && session.getAttribute(key) != null ||
+            application.getAttribute(key) != null;
+    }
+
+    @Override
+    protected boolean containsKey(Context velctx, String key)
+    {
+        if (velctx instanceof ViewToolContext &&
+            (ViewContext.REQUEST.equals(key) || ViewContext.RESPONSE.equals(key) ||
+             ViewContext.SESSION.equals(key) || ViewContext.APPLICATION.equals(key)))
+        {
+            // the view tool context contains these keys, but does not list them
+            return ((ViewToolContext)velctx).containsListedKey(key);
+        }
+        return super.containsKey(velctx, key);
+    }
+
     @Override
     protected void fillKeyset(Set keys)
     {
@@ -344,4 +344,18 @@ public class ViewToolContext extends ToolContext implements ViewContext
            || key.equals(APPLICATION) && application != null;
      }
 
+    /**
+     * Indicates whether the specified key is one of the keys listed by
+     * {@link #getKeys()}, which do not include the servlet API objects
+     * nor the attributes.
+     *
+     * @param key The key to look for.
+     * @return    Whether the key is listed by this context.
+     * @since VelocityTools 4.1
+     */
+    protected boolean containsListedKey(String key)
+    {
+        return super.containsKey(key);
+    }
+
 }
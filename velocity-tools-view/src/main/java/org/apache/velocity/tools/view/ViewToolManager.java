@@ -54,7 +54,7 @@ public class ViewToolManager extends ToolManager
     protected ServletContext servletContext;
     private boolean createSession = true;
     private boolean publishToolboxes = true;
-    private boolean appToolsPublished = false;
+    private volatile boolean appToolsPublished = false;
     private String toolboxKey = DEFAULT_TOOLBOX_KEY;
 
     /**
@@ -212,7 +212,7 @@ public class ViewToolManager extends ToolManager
     /**
      * Removes any published {@link Scope#APPLICATION} Toolbox.
      */
-    protected void unpublishApplicationTools()
+    protected synchronized void unpublishApplicationTools()
     {
         if (appToolsPublished)
         {
@@ -232,6 +232,28 @@ public class ViewToolManager extends ToolManager
         updateGlobalProperties();
     }
 
+    @Override
+    public void reconfigure(FactoryConfiguration config, boolean prewarm)
+    {
+        super.reconfigure(config, prewarm);
+        updateGlobalProperties();
+    }
+
+    @Override
+    protected void reconfigured()
+    {
+        // the published application toolbox is now stale
+        unpublishApplicationTools();
+    }
+
+    @Override
+    protected Map<String,Object> getPrewarmProperties()
+    {
+        Map<String,Object> props = super.getPrewarmProperties();
+        props.put(ViewContext.SERVLET_CONTEXT_KEY, servletContext);
+        return props;
+    }
+
     @Override
     protected FactoryConfiguration findConfig(String path)
     {
@@ -284,6 +306,7 @@ public class ViewToolManager extends ToolManager
                 context.putVelocityEngine(engine);
             }
             context.setUserCanOverwriteTools(getUserCanOverwriteTools());
+            context.setMetrics(getMetrics());
         }
         else
         {
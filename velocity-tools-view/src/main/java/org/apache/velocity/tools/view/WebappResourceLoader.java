@@ -20,11 +20,20 @@ package org.apache.velocity.tools.view;
  */
 
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
-import java.util.HashMap;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import jakarta.servlet.ServletContext;
 import org.apache.velocity.exception.ResourceNotFoundException;
 import org.apache.velocity.runtime.resource.Resource;
@@ -49,6 +58,22 @@ import org.apache.velocity.util.ExtProperties;
  * set in the velocity.properties file ... auto-reloading of global macros
  * requires the resource.loader.webapp.cache property to be set to 'false'.
  *
+ * When caching is on, the loader remembers under which path each template
+ * was found, and which templates could not be found, so that repeated
+ * lookups of a template do not probe all the paths again. Missing
+ * templates are looked for again after the modification check interval,
+ * and are not remembered at all if this interval is not positive and the
+ * template directories are not watched. At most
+ * resource.loader.webapp.missing_cache_size of them (1000 by default) are
+ * remembered.
+ *
+ * Setting resource.loader.webapp.watch to 'true' makes the loader watch
+ * the template directories for changes instead of checking the modification
+ * time of the template files, so that modification checks become cheap
+ * enough for a very short modification check interval. This requires the
+ * template paths to be actual directories: when they are not, as in a
+ * packed war file, the loader falls back to checking modification times.
+ *
  * @author <a href="mailto:geirm@optonline.net">Geir Magnusson Jr.</a>
  * @author Nathan Bubna
  * @author <a href="mailto:claude@savoirweb.com">Claude Brisson</a>
@@ -56,10 +81,32 @@ import org.apache.velocity.util.ExtProperties;
 
 public class WebappResourceLoader extends ResourceLoader
 {
+    /**
+     * Default maximum number of remembered missing templates.
+     * @since VelocityTools 4.1
+     */
+    public static final int DEFAULT_MISSING_CACHE_SIZE = 1000;
+
     /** The root paths for templates (relative to webapp's root). */
     protected String[] paths = null;
-    protected HashMap templatePaths = null;
+    /** The root path under which each template was found. */
+    protected ConcurrentMap<String,String> templatePaths = null;
+    /**
+     * The time at which each missing template was looked for.
+     * @since VelocityTools 4.1
+     */
+    protected ConcurrentMap<String,Long> missingTemplates = null;
+    protected int missingCacheSize = DEFAULT_MISSING_CACHE_SIZE;
     protected ServletContext servletContext = null;
+    /**
+     * The template directories watcher, if any.
+     * @since VelocityTools 4.1
+     */
+    protected TemplateWatcher watcher = null;
+
+    /* template name and modification time at the
+       beginning of its loading by the current thread */
+    private final ThreadLocal<Map.Entry<String,Long>> loading = new ThreadLocal<Map.Entry<String,Long>>();
 
 
     /**
@@ -107,12 +154,57 @@ public class WebappResourceLoader extends ResourceLoader
             log.error("WebappResourceLoader: unable to retrieve ServletContext");
         }
 
-        /* init the template paths map */
-        templatePaths = new HashMap();
+        /* init the template paths and missing templates maps */
+        templatePaths = new ConcurrentHashMap<String,String>();
+        missingTemplates = new ConcurrentHashMap<String,Long>();
+        missingCacheSize = configuration.getInt("missing_cache_size", DEFAULT_MISSING_CACHE_SIZE);
+
+        if (configuration.getBoolean("watch", false))
+        {
+            watch();
+        }
 
         log.trace("WebappResourceLoader: initialization complete.");
     }
 
+    /**
+     * Starts watching the template directories, unless
+     * one of the template paths is not a directory.
+     */
+    private void watch()
+    {
+        List<Path> roots = new ArrayList<Path>();
+        for (String path : paths)
+        {
+            String realPath = servletContext == null ? null : servletContext.getRealPath(path);
+            if (realPath == null || !Files.isDirectory(Paths.get(realPath)))
+            {
+                log.info("WebappResourceLoader: cannot watch template path '{}', checking modification times instead", path);
+                return;
+            }
+            roots.add(Paths.get(realPath));
+        }
+        TemplateWatcher templateWatcher = new TemplateWatcher(roots);
+        templateWatcher.setLog(log);
+        try
+        {
+            templateWatcher.start();
+            watcher = templateWatcher;
+            /* let the VelocityView stop it */
+            rsvc.setApplicationAttribute(TemplateWatcher.class.getName(), watcher);
+        }
+        catch (IOException ioe)
+        {
+            log.error("WebappResourceLoader: could not watch template paths, checking modification times instead", ioe);
+            templateWatcher.close();
+        }
+    }
+
+    private boolean isWatching()
+    {
+        return watcher != null && watcher.isWatching();
+    }
+
     /**
      * Get Reader so that the Runtime can build a
      * template with it.
@@ -124,11 +216,9 @@ public class WebappResourceLoader extends ResourceLoader
      *         in  classpath.
      * @since 2.0
      */
-    public synchronized Reader getResourceReader(String name, String encoding)
+    public Reader getResourceReader(String name, String encoding)
             throws ResourceNotFoundException
     {
-        Reader result = null;
-
         if (name == null || name.length() == 0)
         {
             throw new ResourceNotFoundException("WebappResourceLoader: No template name provided");
@@ -136,9 +226,55 @@ public class WebappResourceLoader extends ResourceLoader
 
         /* since the paths always ends in '/',
          * make sure the name never starts with one */
-        while (name.startsWith("/"))
+        name = normalize(name);
+
+        if (isWatching())
         {
-            name = name.substring(1);
+            /* any change from now on has to be caught by isSourceModified() */
+            loading.set(new AbstractMap.SimpleImmutableEntry<String,Long>(name, watcher.getModified(name)));
+        }
+
+        try
+        {
+            return findResourceReader(name, encoding);
+        }
+        catch (RuntimeException re)
+        {
+            /* no template will be built, hence no modification check */
+            loading.remove();
+            throw re;
+        }
+    }
+
+    private Reader findResourceReader(String name, String encoding)
+            throws ResourceNotFoundException
+    {
+        Reader result = null;
+
+        /* first try the path the template was last found under, unless
+         * caching is off: then paths are probed in order on each load,
+         * so that a template added under a preceding path is picked up */
+        String savedPath = isCachingOn() ? templatePaths.get(name) : null;
+        if (savedPath != null)
+        {
+            InputStream rawStream = getResourceAsStream(savedPath + name);
+            if (rawStream != null)
+            {
+                try
+                {
+                    return buildReader(rawStream, encoding);
+                }
+                catch (Exception e)
+                {
+                    close(rawStream);
+                    log.debug("WebappResourceLoader: Could not load {}", savedPath + name, e);
+                }
+            }
+            templatePaths.remove(name, savedPath);
+        }
+        else if (isKnownMissing(name))
+        {
+            throw new ResourceNotFoundException("WebappResourceLoader: Resource '" + name + "' not found.");
         }
 
         Exception exception = null;
@@ -148,22 +284,7 @@ public class WebappResourceLoader extends ResourceLoader
             InputStream rawStream = null;
             try
             {
-                if (System.getSecurityManager() != null)
-                {
-                    rawStream = AccessController.doPrivileged(
-                        new PrivilegedAction<InputStream>()
-                        {
-                            @Override
-                            public InputStream run()
-                            {
-                                return servletContext.getResourceAsStream(path);
-                            }
-                        });
-                }
-                else
-                {
-                    rawStream = servletContext.getResourceAsStream(path);
-                }
+                rawStream = getResourceAsStream(path);
                 if (rawStream != null)
                 {
                     result = buildReader(rawStream, encoding);
@@ -173,6 +294,7 @@ public class WebappResourceLoader extends ResourceLoader
                 if (result != null)
                 {
                     templatePaths.put(name, paths[i]);
+                    missingTemplates.remove(name);
                     break;
                 }
             }
@@ -183,14 +305,7 @@ public class WebappResourceLoader extends ResourceLoader
             }
             catch (Exception e)
             {
-                if (rawStream != null)
-                {
-                    try
-                    {
-                        rawStream.close();
-                    }
-                    catch(Exception ee) {}
-                }
+                close(rawStream);
                 /* only save the first one for later throwing */
                 if (exception == null)
                 {
@@ -208,6 +323,7 @@ public class WebappResourceLoader extends ResourceLoader
             /* convert to a general Velocity ResourceNotFoundException */
             if (exception == null)
             {
+                rememberMissing(name);
                 throw new ResourceNotFoundException(msg);
             }
             else
@@ -219,28 +335,175 @@ public class WebappResourceLoader extends ResourceLoader
         return result;
     }
 
+    /**
+     * Checks whether a template exists, using and feeding the same
+     * caches as {@link #getResourceReader(String, String)}.
+     *
+     * @param name name of the template
+     * @return whether the template exists
+     * @since VelocityTools 4.1
+     */
+    @Override
+    public boolean resourceExists(String name)
+    {
+        if (name == null || name.length() == 0)
+        {
+            return false;
+        }
+        name = normalize(name);
+        String savedPath = isCachingOn() ? templatePaths.get(name) : null;
+        if (savedPath != null)
+        {
+            if (exists(savedPath + name))
+            {
+                return true;
+            }
+            templatePaths.remove(name, savedPath);
+        }
+        else if (isKnownMissing(name))
+        {
+            return false;
+        }
+        for (int i = 0; i < paths.length; i++)
+        {
+            if (exists(paths[i] + name))
+            {
+                templatePaths.put(name, paths[i]);
+                missingTemplates.remove(name);
+                return true;
+            }
+        }
+        rememberMissing(name);
+        return false;
+    }
+
+    private boolean exists(String path)
+    {
+        InputStream rawStream = getResourceAsStream(path);
+        close(rawStream);
+        return rawStream != null;
+    }
+
+    private static String normalize(String name)
+    {
+        while (name.startsWith("/"))
+        {
+            name = name.substring(1);
+        }
+        return name;
+    }
+
+    private InputStream getResourceAsStream(final String path)
+    {
+        if (System.getSecurityManager() != null)
+        {
+            return AccessController.doPrivileged(
+                new PrivilegedAction<InputStream>()
+                {
+                    @Override
+                    public InputStream run()
+                    {
+                        return servletContext.getResourceAsStream(path);
+                    }
+                });
+        }
+        else
+        {
+            return servletContext.getResourceAsStream(path);
+        }
+    }
+
+    private static void close(InputStream stream)
+    {
+        if (stream != null)
+        {
+            try
+            {
+                stream.close();
+            }
+            catch(Exception ee) {}
+        }
+    }
+
+    /**
+     * Missing templates are only remembered when caching is on, and
+     * for no longer than the modification check interval, like
+     * the templates which were found, or until they get created
+     * when the template directories are watched. Without a positive
+     * interval nor watching, they are never remembered, since nothing
+     * would tell when they get created.
+     */
+    private boolean isKnownMissing(String name)
+    {
+        Long missed = missingTemplates.get(name);
+        if (missed == null)
+        {
+            return false;
+        }
+        if (isWatching())
+        {
+            if (watcher.getModified(name) >= missed)
+            {
+                missingTemplates.remove(name, missed);
+                return false;
+            }
+            return true;
+        }
+        if (System.currentTimeMillis() - missed >= modificationCheckInterval * 1000)
+        {
+            missingTemplates.remove(name, missed);
+            return false;
+        }
+        return true;
+    }
+
+    private void rememberMissing(String name)
+    {
+        if (isCachingOn() && missingCacheSize > 0 &&
+            (modificationCheckInterval > 0 || isWatching()))
+        {
+            if (missingTemplates.size() >= missingCacheSize)
+            {
+                // keeps the map bounded whatever the requested names
+                missingTemplates.clear();
+            }
+            missingTemplates.put(name, System.currentTimeMillis());
+        }
+    }
+
     private File getCachedFile(String rootPath, String fileName)
     {
         // we do this when we cache a resource,
         // so do it again to ensure a match
-        while (fileName.startsWith("/"))
-        {
-            fileName = fileName.substring(1);
-        }
+        fileName = normalize(fileName);
 
-        String savedPath = (String)templatePaths.get(fileName);
-        return new File(rootPath + savedPath, fileName);
+        String savedPath = templatePaths.get(fileName);
+        return savedPath == null ? null : new File(rootPath + savedPath, fileName);
     }
 
 
     /**
      * Checks to see if a resource has been deleted, moved or modified.
+     * When the template directories are watched, only the time of the
+     * last change seen by the watcher is checked. The path the resource was found under is forgotten if it has been
+     * deleted or moved, as well as all the missing templates.
      *
      * @param resource Resource  The resource to check for modification
      * @return boolean  True if the resource has been modified
      */
     public boolean isSourceModified(Resource resource)
     {
+        if (isWatching())
+        {
+            String name = normalize(resource.getName());
+            if (watcher.getModified(name) != resource.getLastModified())
+            {
+                forget(name);
+                return true;
+            }
+            return false;
+        }
+
         String rootPath = servletContext.getRealPath("/");
         if (rootPath == null) {
             // rootPath is null if the servlet container cannot translate the
@@ -250,11 +513,12 @@ public class WebappResourceLoader extends ResourceLoader
         }
 
         // first, try getting the previously found file
-        String fileName = resource.getName();
+        String fileName = normalize(resource.getName());
         File cachedFile = getCachedFile(rootPath, fileName);
-        if (!cachedFile.exists())
+        if (cachedFile == null || !cachedFile.exists())
         {
             /* then the source has been moved and/or deleted */
+            forget(fileName);
             return true;
         }
 
@@ -282,10 +546,26 @@ public class WebappResourceLoader extends ResourceLoader
         {
             /* we found a new file for the resource
              * or the resource is no longer readable. */
+            forget(fileName);
             return true;
         }
     }
 
+    /**
+     * Forgets where a moved or deleted template was found, so that it
+     * gets looked for again. Since templates come and go together
+     * (think of a deployment), missing templates are looked for again too,
+     * unless the watcher tells which ones were created.
+     */
+    private void forget(String name)
+    {
+        templatePaths.remove(name);
+        if (!isWatching())
+        {
+            missingTemplates.clear();
+        }
+    }
+
     /**
      * Checks to see when a resource was last modified
      *
@@ -294,6 +574,14 @@ public class WebappResourceLoader extends ResourceLoader
      */
     public long getLastModified(Resource resource)
     {
+        if (isWatching())
+        {
+            String name = normalize(resource.getName());
+            Map.Entry<String,Long> loaded = loading.get();
+            loading.remove();
+            return loaded != null && loaded.getKey().equals(name) ? loaded.getValue() : watcher.getModified(name);
+        }
+
         String rootPath = servletContext.getRealPath("/");
         if (rootPath == null) {
             // rootPath is null if the servlet container cannot translate the
@@ -303,7 +591,7 @@ public class WebappResourceLoader extends ResourceLoader
         }
 
         File cachedFile = getCachedFile(rootPath, resource.getName());
-        if (cachedFile.canRead())
+        if (cachedFile != null && cachedFile.canRead())
         {
             return cachedFile.lastModified();
         }
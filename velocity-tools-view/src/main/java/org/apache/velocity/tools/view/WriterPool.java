@@ -0,0 +1,342 @@
+package org.apache.velocity.tools.view;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.velocity.io.VelocityWriter;
+
+/**
+ * <p>Pool of the {@link VelocityWriter}s into which {@link VelocityView}
+ * merges templates. The buffer size of the writer handed out for a template
+ * follows a running estimate of the output size of this template: it is the
+ * smallest power of two holding the estimate, within configured bounds, so
+ * that most pages reach the container in a single write.</p>
+ * <p>There is one {@link StripedPool} per buffer size, so taking and giving
+ * back writers never locks. The total buffer size of the idle writers is
+ * bounded by a budget, past which given back writers are dropped.</p>
+ *
+ * @since VelocityTools 4.1
+ * @version $Id$
+ */
+public class WriterPool implements WriterPoolMXBean
+{
+    /**
+     * Default minimum buffer size, in chars.
+     */
+    public static final int DEFAULT_MIN_BUFFER_SIZE = 4 * 1024;
+
+    /**
+     * Default maximum buffer size, in chars.
+     */
+    public static final int DEFAULT_MAX_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Default maximum total buffer size of the idle writers, in chars.
+     */
+    public static final long DEFAULT_MAX_POOLED_SIZE = 512 * 1024;
+
+    private final int minBufferSize;
+    private final int maxBufferSize;
+    private final long maxPooledSize;
+    private final AtomicLong pooledSize = new AtomicLong();
+    private final StripedPool<Lease>[] pools;
+    private final ConcurrentMap<String,Estimate> estimates =
+        new ConcurrentHashMap<String,Estimate>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public WriterPool()
+    {
+        this(DEFAULT_MIN_BUFFER_SIZE, DEFAULT_MAX_BUFFER_SIZE);
+    }
+
+    /**
+     * @param minBufferSize minimum buffer size, rounded up to a power of two
+     * @param maxBufferSize maximum buffer size, rounded up to a power of two
+     */
+    public WriterPool(int minBufferSize, int maxBufferSize)
+    {
+        this(minBufferSize, maxBufferSize, DEFAULT_MAX_POOLED_SIZE);
+    }
+
+    /**
+     * @param minBufferSize minimum buffer size, rounded up to a power of two
+     * @param maxBufferSize maximum buffer size, rounded up to a power of two
+     * @param maxPooledSize maximum total buffer size of the idle writers
+     */
+    @SuppressWarnings("unchecked")
+    public WriterPool(int minBufferSize, int maxBufferSize, long maxPooledSize)
+    {
+        this.maxPooledSize = Math.max(maxPooledSize, 0);
+        this.minBufferSize = roundUp(Math.max(minBufferSize, 16));
+        this.maxBufferSize = Math.max(roundUp(maxBufferSize), this.minBufferSize);
+        int classes = Integer.numberOfTrailingZeros(this.maxBufferSize) -
+            Integer.numberOfTrailingZeros(this.minBufferSize) + 1;
+        this.pools = new StripedPool[classes];
+        for (int i = 0; i < classes; i++)
+        {
+            pools[i] = new StripedPool<Lease>();
+        }
+    }
+
+    private static int roundUp(int size)
+    {
+        int rounded = Integer.highestOneBit(size);
+        return rounded == size ? size : rounded << 1;
+    }
+
+    /**
+     * Takes a writer for the rendering of a template.
+     * @param template template name
+     * @param target writer receiving the output
+     * @return writer lease, to be given back through {@link #release(Lease)}
+     */
+    public Lease acquire(String template, Writer target)
+    {
+        Estimate estimate = estimates.get(template);
+        if (estimate == null)
+        {
+            estimate = new Estimate();
+            Estimate previous = estimates.putIfAbsent(template, estimate);
+            if (previous != null)
+            {
+                estimate = previous;
+            }
+        }
+        int sizeClass = sizeClass(estimate.size);
+        Lease lease = pools[sizeClass].get();
+        if (lease == null)
+        {
+            misses.increment();
+            lease = new Lease(sizeClass, minBufferSize << sizeClass);
+        }
+        else
+        {
+            hits.increment();
+            pooledSize.addAndGet(-lease.bufferSize);
+        }
+        lease.counter.count = 0;
+        lease.counter.target = target;
+        lease.writer.recycle(lease.counter);
+        lease.estimate = estimate;
+        return lease;
+    }
+
+    /**
+     * Gives a writer back, and records the size of the output.
+     * @param lease writer lease
+     */
+    public void release(Lease lease)
+    {
+        lease.estimate.record(lease.counter.count);
+        /* This hack sets the VelocityWriter's internal ref to the
+         * PrintWriter to null to keep memory free while
+         * the writer is pooled. See bug report #18951 */
+        lease.writer.recycle(null);
+        lease.counter.target = null;
+        lease.estimate = null;
+        // only keep the writer if it fits in the budget
+        if (pooledSize.addAndGet(lease.bufferSize) > maxPooledSize ||
+            !pools[lease.sizeClass].put(lease))
+        {
+            pooledSize.addAndGet(-lease.bufferSize);
+        }
+    }
+
+    private int sizeClass(long size)
+    {
+        if (size <= minBufferSize)
+        {
+            return 0;
+        }
+        if (size >= maxBufferSize)
+        {
+            return pools.length - 1;
+        }
+        return 32 - Integer.numberOfLeadingZeros((int)size - 1) -
+            Integer.numberOfTrailingZeros(minBufferSize);
+    }
+
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+    public double getHitRate()
+    {
+        long hits = getHits();
+        long total = hits + getMisses();
+        return total == 0 ? 0.0 : (double)hits / total;
+    }
+
+    public int getMinBufferSize()
+    {
+        return minBufferSize;
+    }
+
+    public int getMaxBufferSize()
+    {
+        return maxBufferSize;
+    }
+
+    public long getMaxPooledSize()
+    {
+        return maxPooledSize;
+    }
+
+    public long getPooledSize()
+    {
+        return pooledSize.get();
+    }
+
+    public Map<String,Long> getOutputSizes()
+    {
+        Map<String,Long> sizes = new TreeMap<String,Long>();
+        for (Map.Entry<String,Estimate> entry : estimates.entrySet())
+        {
+            sizes.put(entry.getKey(), entry.getValue().size);
+        }
+        return sizes;
+    }
+
+    public Map<String,Integer> getBufferSizes()
+    {
+        Map<String,Integer> sizes = new TreeMap<String,Integer>();
+        for (Map.Entry<String,Estimate> entry : estimates.entrySet())
+        {
+            sizes.put(entry.getKey(), getBufferSize(entry.getKey()));
+        }
+        return sizes;
+    }
+
+    /**
+     * @param template template name
+     * @return buffer size of the writers handed out for this template
+     */
+    public int getBufferSize(String template)
+    {
+        Estimate estimate = estimates.get(template);
+        return minBufferSize << sizeClass(estimate == null ? 0 : estimate.size);
+    }
+
+    public void reset()
+    {
+        hits.reset();
+        misses.reset();
+    }
+
+    /**
+     * A pooled writer, along with what it takes to measure its output.
+     */
+    public static final class Lease
+    {
+        private final int sizeClass;
+        private final int bufferSize;
+        private final Counter counter = new Counter();
+        private final VelocityWriter writer;
+        private Estimate estimate;
+
+        Lease(int sizeClass, int bufferSize)
+        {
+            this.sizeClass = sizeClass;
+            this.bufferSize = bufferSize;
+            this.writer = new VelocityWriter(counter, bufferSize, true);
+        }
+
+        /**
+         * @return the writer templates are merged into
+         */
+        public VelocityWriter getWriter()
+        {
+            return writer;
+        }
+    }
+
+    /**
+     * Running estimate of the output size of a template, as an exponential
+     * moving average. Concurrent updates may get lost, which only makes the
+     * estimate a little slower to follow.
+     */
+    static final class Estimate
+    {
+        volatile long size;
+
+        void record(long output)
+        {
+            long current = size;
+            size = current == 0 ? output : current + (output - current) / 8;
+        }
+    }
+
+    /**
+     * Counts the chars flushed by a writer to its target.
+     */
+    static final class Counter extends Writer
+    {
+        Writer target;
+        long count;
+
+        @Override
+        public void write(int c) throws IOException
+        {
+            ++count;
+            target.write(c);
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int length) throws IOException
+        {
+            count += length;
+            target.write(buffer, offset, length);
+        }
+
+        @Override
+        public void write(String str, int offset, int length) throws IOException
+        {
+            count += length;
+            target.write(str, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            target.flush();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            target.close();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package org.apache.velocity.tools.view;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.Map;
+
+/**
+ * JMX management interface of {@link WriterPool}.
+ *
+ * @since VelocityTools 4.1
+ * @version $Id$
+ */
+public interface WriterPoolMXBean
+{
+    /**
+     * @return number of writers taken from the pool
+     */
+    long getHits();
+
+    /**
+     * @return number of writers which had to be created
+     */
+    long getMisses();
+
+    /**
+     * @return ratio of the writer requests served by the pool
+     */
+    double getHitRate();
+
+    int getMinBufferSize();
+
+    int getMaxBufferSize();
+
+    /**
+     * @return maximum total buffer size of the idle writers, in chars
+     */
+    long getMaxPooledSize();
+
+    /**
+     * @return current total buffer size of the idle writers, in chars
+     */
+    long getPooledSize();
+
+    /**
+     * @return estimated output size of each rendered template, in chars
+     */
+    Map<String,Long> getOutputSizes();
+
+    /**
+     * @return buffer size currently chosen for each rendered template
+     */
+    Map<String,Integer> getBufferSizes();
+
+    /**
+     * Zeroes the hit and miss counters.
+     */
+    void reset();
+}
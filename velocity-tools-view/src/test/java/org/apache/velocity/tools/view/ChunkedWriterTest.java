@@ -0,0 +1,107 @@
+package org.apache.velocity.tools.view;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.app.VelocityEngine;
+import org.junit.Test;
+
+/**
+ * <p>Tests for ChunkedWriter</p>
+ *
+ * @since VelocityTools 4.1
+ * @version $Id$
+ */
+public class ChunkedWriterTest
+{
+    @Test
+    public void testChunks() throws Exception
+    {
+        ChunkPool pool = new ChunkPool(4, 2);
+        ChunkedWriter writer = new ChunkedWriter(pool);
+        writer.write("abcdef");
+        writer.write('g');
+        writer.write("hijklmnop".toCharArray(), 1, 7);
+        assertEquals(14, writer.size());
+        assertEquals("abcdefgijklmno", writer.toString());
+        assertEquals('i', writer.getContent().charAt(7));
+        assertEquals(14, writer.getContent().length());
+        assertEquals("fgijkl", writer.getContent().subSequence(5, 11).toString());
+        assertTrue(writer.getContent().toString() == writer.getContent().toString());
+
+        StringWriter target = new StringWriter();
+        writer.writeTo(target);
+        assertEquals("abcdefgijklmno", target.toString());
+
+        writer.reset();
+        assertEquals(0, writer.size());
+        assertEquals("", writer.toString());
+        assertEquals(2, pool.getIdleChunks());
+        writer.write("xyz");
+        assertEquals("xyz", writer.toString());
+
+        writer.release();
+        assertEquals(2, pool.getIdleChunks());
+    }
+
+    @Test
+    public void testSpill() throws Exception
+    {
+        StringWriter target = new StringWriter();
+        ChunkedWriter writer = new ChunkedWriter(new ChunkPool(4, 2), target, 6);
+        writer.write("abcd");
+        writer.write('e');
+        assertFalse(writer.isSpilled());
+        assertEquals("", target.toString());
+        writer.write("fgh");
+        assertTrue(writer.isSpilled());
+        assertEquals(0, writer.size());
+        writer.write("ij");
+        writer.writeTo(target);
+        assertEquals("abcdefghij", target.toString());
+        writer.release();
+    }
+
+    @Test
+    public void testRenderContent() throws Exception
+    {
+        ChunkedWriter screen = new ChunkedWriter(new ChunkPool(8, 16));
+        VelocityEngine engine = new VelocityEngine();
+        engine.init();
+        VelocityContext context = new VelocityContext();
+        context.put("name", "screen");
+        engine.evaluate(context, screen, "test", "<p>Some $name content</p>");
+
+        context.put("screen_content", screen.getContent());
+        StringWriter page = new StringWriter();
+        engine.evaluate(context, page, "test", "<body>#if($screen_content)$screen_content#end</body>");
+        assertEquals("<body><p>Some screen content</p></body>", page.toString());
+        page = new StringWriter();
+        engine.evaluate(context, page, "test", "$screen_content.toString().replace('screen', 'layout')");
+        assertEquals("<p>Some layout content</p>", page.toString());
+        screen.release();
+    }
+}
@@ -0,0 +1,110 @@
+package org.apache.velocity.tools.view;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.lang.ref.WeakReference;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.runtime.RuntimeInstance;
+import org.junit.Test;
+
+/**
+ * <p>Tests for EncodingWriter</p>
+ *
+ * @since VelocityTools 4.1
+ * @version $Id$
+ */
+public class EncodingWriterTest
+{
+    protected byte[] render(Template template, EncodedTextCache cache, Charset charset)
+        throws Exception
+    {
+        VelocityContext context = new VelocityContext();
+        context.put("name", "café 😀");
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        EncodingWriter writer = new EncodingWriter(charset, 16);
+        writer.recycle(output, cache.getTexts(template, charset));
+        template.merge(context, writer);
+        writer.finish();
+        writer.recycle(null, null);
+        return output.toByteArray();
+    }
+
+    protected Template parse(RuntimeInstance velocity, String source) throws Exception
+    {
+        Template template = new Template();
+        template.setRuntimeServices(velocity);
+        template.setData(velocity.parse(new StringReader(source), template));
+        template.initDocument();
+        return template;
+    }
+
+    @Test
+    public void testStaticText() throws Exception
+    {
+        String header = "<html><head><title>été</title></head><body>";
+        String source = header + "\n<p>$name</p>\n</body></html>";
+
+        RuntimeInstance velocity = new RuntimeInstance();
+        velocity.init();
+        Template template = parse(velocity, source);
+
+        EncodedTextCache cache = new EncodedTextCache(16, 100);
+        String expected = header + "\n<p>café 😀</p>\n</body></html>";
+        assertArrayEquals(expected.getBytes(StandardCharsets.UTF_8),
+                          render(template, cache, StandardCharsets.UTF_8));
+        assertEquals(1, cache.getTexts(template, StandardCharsets.UTF_8).size());
+
+        // unmappable chars are replaced
+        assertArrayEquals(expected.getBytes(StandardCharsets.ISO_8859_1),
+                          render(template, cache, StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    public void testTemplatesAreReleased() throws Exception
+    {
+        RuntimeInstance velocity = new RuntimeInstance();
+        velocity.init();
+        EncodedTextCache cache = new EncodedTextCache(16, 100);
+        Template template = parse(velocity, "<html><head><title>released</title></head>$name</html>");
+        EncodedTextCache.Texts texts = cache.getTexts(template, StandardCharsets.UTF_8);
+        assertEquals(1, texts.size());
+
+        // the cached texts do not keep the template reachable
+        WeakReference<Template> reference = new WeakReference<Template>(template);
+        template = null;
+        for (int i = 0; i < 100 && reference.get() != null; i++)
+        {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(reference.get());
+        assertEquals(1, texts.size());
+    }
+}
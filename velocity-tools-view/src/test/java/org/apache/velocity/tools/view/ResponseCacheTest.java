@@ -0,0 +1,183 @@
+package org.apache.velocity.tools.view;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.PrintWriter;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+
+/**
+ * <p>Tests for ResponseCache</p>
+ *
+ * @since VelocityTools 4.1
+ * @version $Id$
+ */
+public class ResponseCacheTest
+{
+    @Test
+    public void testKey() throws Exception
+    {
+        ResponseCache cache = new ResponseCache(60, 100,
+                                                new String[] { "page" },
+                                                new String[] { "Accept-Language" });
+        HttpServletRequest request = createMock(HttpServletRequest.class);
+        expect(request.getAttribute("jakarta.servlet.include.servlet_path")).andReturn(null);
+        expect(request.getAttribute("jakarta.servlet.include.path_info")).andReturn(null);
+        expect(request.getServletPath()).andReturn("/index.vm");
+        expect(request.getPathInfo()).andReturn(null);
+        expect(request.getParameterValues("page")).andReturn(new String[] { "2" });
+        expect(request.getHeader("Accept-Language")).andReturn("fr");
+        replay(request);
+        assertEquals("/index.vm\npage=2\u0000\nAccept-Language:fr", cache.getKey(request));
+    }
+
+    @Test
+    public void testEviction() throws Exception
+    {
+        ResponseCache cache = new ResponseCache(60, 100, null, null);
+        ResponseCache.Entry one = cache.put("one", "text/html", new byte[40]);
+        cache.put("two", "text/html", new byte[40]);
+        assertEquals(80, cache.getBytes());
+        // makes "two" the least recently used
+        assertNotNull(cache.get("one"));
+        cache.put("three", "text/html", new byte[40]);
+        assertEquals(2, cache.size());
+        assertNull(cache.get("two"));
+        assertEquals(one, cache.get("one"));
+
+        // too large to be kept
+        cache.put("four", "text/html", new byte[101]);
+        assertNull(cache.get("four"));
+        assertEquals(80, cache.getBytes());
+
+        ResponseCache expiring = new ResponseCache(0, 100, null, null);
+        expiring.put("one", "text/html", new byte[10]);
+        assertNull(expiring.get("one"));
+        assertEquals(0, expiring.getBytes());
+    }
+
+    @Test
+    public void testETag() throws Exception
+    {
+        String etag = ResponseCache.computeETag("hello".getBytes("UTF-8"));
+        assertEquals(34, etag.length());
+        assertNotEquals(etag, ResponseCache.computeETag("hello!".getBytes("UTF-8")));
+        assertTrue(ResponseCache.matches(etag, etag));
+        assertTrue(ResponseCache.matches("\"other\", W/" + etag, etag));
+        assertTrue(ResponseCache.matches("*", etag));
+        assertFalse(ResponseCache.matches("\"other\"", etag));
+        assertFalse(ResponseCache.matches(null, etag));
+    }
+
+    @Test
+    public void testCacheable() throws Exception
+    {
+        ResponseCache cache = new ResponseCache(60, 100, null, new String[] { "Accept-Language", "cookie" });
+        assertEquals("Accept-Language, cookie", cache.getVary());
+        assertNull(new ResponseCache(60, 100, null, null).getVary());
+
+        HttpServletRequest anonymous = createMock(HttpServletRequest.class);
+        expect(anonymous.getSession(false)).andReturn(null);
+        expect(anonymous.getHeader("Authorization")).andReturn(null);
+        replay(anonymous);
+        assertTrue(cache.isCacheable(anonymous));
+
+        HttpServletRequest authorized = createMock(HttpServletRequest.class);
+        expect(authorized.getSession(false)).andReturn(null);
+        expect(authorized.getHeader("Authorization")).andReturn("Basic dXNlcjpwYXNz");
+        replay(authorized);
+        assertFalse(cache.isCacheable(authorized));
+
+        HttpServletRequest withCookie = createMock(HttpServletRequest.class);
+        expect(withCookie.getSession(false)).andReturn(null);
+        expect(withCookie.getHeader("Authorization")).andReturn(null);
+        expect(withCookie.getHeader("Cookie")).andReturn("theme=dark");
+        replay(withCookie);
+        assertFalse(new ResponseCache(60, 100, null, null).isCacheable(withCookie));
+    }
+
+    @Test
+    public void testRecorder() throws Exception
+    {
+        HttpServletResponse response = createNiceMock(HttpServletResponse.class);
+        expect(response.getCharacterEncoding()).andReturn("UTF-8").anyTimes();
+        expect(response.getContentType()).andReturn("text/html;charset=UTF-8").anyTimes();
+        replay(response);
+        ResponseCache.Recorder recorder = new ResponseCache.Recorder(response);
+        recorder.setHeader("Cache-Control", "max-age=60");
+        recorder.addDateHeader("Last-Modified", 1000L);
+        recorder.setHeader("ETag", "\"ignored\"");
+        PrintWriter writer = recorder.getWriter();
+        writer.write("caf\u00e9 ");
+        recorder.getOutputStream().write(new byte[] { 'o', 'k' });
+        writer.write('!');
+        assertEquals("caf\u00e9 ok!", new String(recorder.getContent(), "UTF-8"));
+
+        ResponseCache cache = new ResponseCache(60, 100, null, null);
+        ResponseCache.Entry entry = cache.put("key", recorder);
+        assertEquals("text/html;charset=UTF-8", entry.getContentType());
+
+        HttpServletResponse replayed = createMock(HttpServletResponse.class);
+        replayed.setHeader("Cache-Control", "max-age=60");
+        replayed.addDateHeader("Last-Modified", 1000L);
+        replay(replayed);
+        entry.applyHeaders(replayed);
+        verify(replayed);
+    }
+
+    @Test
+    public void testCoalescing() throws Exception
+    {
+        final ResponseCache cache = new ResponseCache(60, 100, null, null);
+        assertTrue(cache.startRendering("key"));
+        assertFalse(cache.startRendering("key"));
+        final ResponseCache.Entry[] awaited = new ResponseCache.Entry[1];
+        Thread waiting = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                awaited[0] = cache.awaitRendering("key");
+            }
+        };
+        waiting.start();
+        ResponseCache.Entry entry = cache.put("key", "text/html", new byte[10]);
+        cache.endRendering("key");
+        waiting.join(10000);
+        assertFalse(waiting.isAlive());
+        assertEquals(entry, awaited[0]);
+        assertTrue(cache.startRendering("key"));
+        cache.endRendering("key");
+    }
+}
@@ -0,0 +1,138 @@
+package org.apache.velocity.tools.view;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ForkJoinTask;
+import jakarta.servlet.ServletContext;
+
+import org.apache.velocity.app.VelocityEngine;
+import org.apache.velocity.runtime.resource.loader.StringResourceLoader;
+import org.apache.velocity.runtime.resource.util.StringResourceRepository;
+import org.easymock.IAnswer;
+import org.junit.Test;
+
+/**
+ * <p>Tests for TemplateWarmer</p>
+ *
+ * @since VelocityTools 4.1
+ * @version $Id$
+ */
+public class TemplateWarmerTest
+{
+    @Test
+    public void testWarmup() throws Exception
+    {
+        VelocityEngine velocity = new VelocityEngine();
+        velocity.setProperty("resource.loaders", "string");
+        velocity.setProperty("resource.loader.string.class", StringResourceLoader.class.getName());
+        velocity.setProperty("resource.loader.string.cache", "true");
+        velocity.init();
+        StringResourceRepository repository = StringResourceLoader.getRepository();
+        repository.putStringResource("index.vm", "Hello $name");
+        repository.putStringResource("sub/page.vm", "#foreach($i in [1..3])$i#end");
+        repository.putStringResource("sub/broken.vm", "#if(");
+
+        ServletContext servletContext = createMock(ServletContext.class);
+        expect(servletContext.getResourcePaths("/templates/"))
+            .andReturn(new HashSet<String>(Arrays.asList("/templates/index.vm", "/templates/readme.txt", "/templates/sub/")));
+        expect(servletContext.getResourcePaths("/templates/sub/"))
+            .andReturn(new HashSet<String>(Arrays.asList("/templates/sub/page.vm", "/templates/sub/broken.vm")));
+        replay(servletContext);
+
+        TemplateWarmer warmer = new TemplateWarmer(velocity, servletContext,
+                                                   new String[] { "templates" },
+                                                   new String[] { TemplateWarmer.DEFAULT_PATTERN }, 2);
+        TemplateWarmer.Report report = warmer.warm();
+        assertEquals(2, report.getParseTimes().size());
+        assertTrue(report.getParseTimes().containsKey("index.vm"));
+        assertTrue(report.getParseTimes().containsKey("sub/page.vm"));
+        assertEquals(1, report.getFailures().size());
+        assertTrue(report.getFailures().containsKey("sub/broken.vm"));
+    }
+
+    @Test
+    public void testWebappRoots() throws Exception
+    {
+        VelocityEngine velocity = new VelocityEngine();
+        velocity.setProperty("resource.loaders", "webapp,string");
+        velocity.setProperty("resource.loader.webapp.class", WebappResourceLoader.class.getName());
+        velocity.setProperty("resource.loader.webapp.path", "/WEB-INF/views/,/shared/");
+        assertArrayEquals(new String[] { "/WEB-INF/views/", "/shared/" }, TemplateWarmer.getWebappRoots(velocity));
+        velocity.clearProperty("resource.loader.webapp.path");
+        assertArrayEquals(new String[] { "/" }, TemplateWarmer.getWebappRoots(velocity));
+    }
+
+    @Test
+    public void testContextClassLoader() throws Exception
+    {
+        VelocityEngine velocity = new VelocityEngine();
+        velocity.setProperty("resource.loaders", "string");
+        velocity.setProperty("resource.loader.string.class", StringResourceLoader.class.getName());
+        velocity.init();
+        final ClassLoader[] seen = new ClassLoader[1];
+        ServletContext servletContext = createNiceMock(ServletContext.class);
+        expect(servletContext.getResourcePaths("/")).andAnswer(new IAnswer<Set<String>>()
+        {
+            public Set<String> answer()
+            {
+                seen[0] = Thread.currentThread().getContextClassLoader();
+                return null;
+            }
+        });
+        replay(servletContext);
+
+        Thread current = Thread.currentThread();
+        ClassLoader previous = current.getContextClassLoader();
+        ClassLoader webapp = new URLClassLoader(new URL[0], previous);
+        TemplateWarmer warmer;
+        current.setContextClassLoader(webapp);
+        try
+        {
+            warmer = new TemplateWarmer(velocity, servletContext, new String[] { "/" },
+                                        new String[] { TemplateWarmer.DEFAULT_PATTERN }, 1);
+        }
+        finally
+        {
+            current.setContextClassLoader(previous);
+        }
+        // do not join, which could run the task in this thread
+        ForkJoinTask<TemplateWarmer.Report> task = warmer.start();
+        for (int i = 0; i < 1000 && !task.isDone(); i++)
+        {
+            Thread.sleep(10);
+        }
+        assertTrue(task.isDone());
+        assertSame(webapp, seen[0]);
+    }
+}
@@ -69,6 +69,9 @@ public class VelocityViewTest extends BaseWebappMockTest
 
         expect(config.getServletContext()).andAnswer(eval(servletContext));
         expect(config.findInitParameter(VelocityView.USER_OVERWRITE_KEY)).andAnswer(eval(null));
+        expect(config.findInitParameter(VelocityView.MIN_WRITER_BUFFER_KEY)).andAnswer(eval(null));
+        expect(config.findInitParameter(VelocityView.MAX_WRITER_BUFFER_KEY)).andAnswer(eval(null));
+        expect(config.findInitParameter(VelocityView.MAX_POOLED_WRITERS_KEY)).andAnswer(eval(null));
         expect(config.findInitParameter(VelocityView.LOAD_DEFAULTS_KEY)).andAnswer(eval("false"));
         expect(servletContext.getInitParameter(VelocityView.PROPERTIES_KEY)).andAnswer(eval(null));
         expect(servletContext.getResourceAsStream(VelocityView.USER_PROPERTIES_PATH))
@@ -80,6 +83,9 @@ public class VelocityViewTest extends BaseWebappMockTest
         expect(config.getInitParameter(VelocityView.TOOLS_KEY)).andAnswer(eval(null));
         expect(servletContext.getAttribute(ServletUtils.CONFIGURATION_KEY)).andAnswer(eval((String)null));
         expect(servletContext.getResource(VelocityView.USER_TOOLS_PATH)).andAnswer(eval(null));
+        expect(config.findInitParameter(VelocityView.RELOAD_CONFIGURATION_KEY)).andAnswer(eval(null));
+        expect(config.findInitParameter(VelocityView.METRICS_KEY)).andAnswer(eval(null));
+        expect(config.findInitParameter(VelocityView.WARMUP_KEY)).andAnswer(eval(null));
         expect(request.getAttribute("jakarta.servlet.include.servlet_path")).andAnswer(eval("/charset-test.vm"));
         expect(request.getAttribute("jakarta.servlet.include.path_info")).andAnswer(eval((String)null));
 
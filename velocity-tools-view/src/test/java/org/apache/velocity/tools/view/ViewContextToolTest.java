@@ -0,0 +1,92 @@
+package org.apache.velocity.tools.view;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import org.apache.velocity.app.VelocityEngine;
+import org.apache.velocity.tools.ToolContext;
+import org.easymock.IAnswer;
+import org.junit.Test;
+
+/**
+ * <p>Tests for ViewContextTool</p>
+ *
+ * @since VelocityTools 4.1
+ * @version $Id$
+ */
+public class ViewContextToolTest
+{
+    @Test
+    public void testContainsKey() throws Exception
+    {
+        HttpServletRequest request = createNiceMock(HttpServletRequest.class);
+        expect(request.getAttribute("foo")).andReturn("bar").anyTimes();
+        expect(request.getAttribute(ViewContext.SESSION)).andReturn("attribute").anyTimes();
+        expect(request.getAttributeNames()).andAnswer(new IAnswer<Enumeration<String>>()
+        {
+            public Enumeration<String> answer()
+            {
+                return Collections.enumeration(Arrays.asList("foo", ViewContext.SESSION));
+            }
+        }).anyTimes();
+        ServletContext application = createNiceMock(ServletContext.class);
+        expect(application.getAttributeNames()).andReturn(Collections.<String>emptyEnumeration()).anyTimes();
+        HttpServletResponse response = createNiceMock(HttpServletResponse.class);
+        replay(request, application, response);
+
+        ViewToolContext context = new ViewToolContext(new VelocityEngine(), request, response, application);
+        context.put("local", "value");
+        Map<String,Object> config = new HashMap<String,Object>();
+        config.put(ToolContext.CONTEXT_KEY, context);
+        config.put(ViewContext.REQUEST, request);
+        config.put(ViewContext.SERVLET_CONTEXT_KEY, application);
+        ViewContextTool tool = new ViewContextTool();
+        tool.configure(config);
+
+        // looking a key up agrees with the gathered keys
+        Set listed = new HashSet(tool.getKeys());
+        for (String key : new String[] { "local", "foo", "missing", ViewContext.REQUEST, ViewContext.SESSION })
+        {
+            assertEquals(key, listed.contains(key), tool.getKeys().contains(key));
+        }
+        assertTrue(tool.getKeys().contains("foo"));
+        // servlet API objects are found under their keys, but are not listed
+        assertFalse(tool.getKeys().contains(ViewContext.REQUEST));
+        // unless an attribute has the same key
+        assertTrue(tool.getKeys().contains(ViewContext.SESSION));
+    }
+}
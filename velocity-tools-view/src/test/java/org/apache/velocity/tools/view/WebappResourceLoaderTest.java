@@ -0,0 +1,196 @@
+package org.apache.velocity.tools.view;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import jakarta.servlet.ServletContext;
+
+import org.apache.velocity.exception.ResourceNotFoundException;
+import org.apache.velocity.runtime.RuntimeInstance;
+import org.apache.velocity.util.ExtProperties;
+import org.easymock.IAnswer;
+import org.junit.Test;
+
+/**
+ * <p>Tests for WebappResourceLoader</p>
+ *
+ * @since VelocityTools 4.1
+ * @version $Id$
+ */
+public class WebappResourceLoaderTest
+{
+    protected static IAnswer<InputStream> content(final String content)
+    {
+        return new IAnswer<InputStream>()
+        {
+            public InputStream answer()
+            {
+                return new ByteArrayInputStream(content.getBytes());
+            }
+        };
+    }
+
+    @Test
+    public void testResolutionCaches() throws Exception
+    {
+        ServletContext servletContext = createMock(ServletContext.class);
+        // found templates are only looked for once under the first path
+        expect(servletContext.getResourceAsStream("/first/page.vm")).andReturn(null).once();
+        expect(servletContext.getResourceAsStream("/second/page.vm")).andAnswer(content("page")).times(3);
+        // missing templates are only looked for once
+        expect(servletContext.getResourceAsStream("/first/missing.vm")).andReturn(null).once();
+        expect(servletContext.getResourceAsStream("/second/missing.vm")).andReturn(null).once();
+        replay(servletContext);
+
+        RuntimeInstance runtime = new RuntimeInstance();
+        runtime.setApplicationAttribute(ServletContext.class.getName(), servletContext);
+        ExtProperties configuration = new ExtProperties();
+        configuration.setProperty("path", "/first,/second");
+        configuration.setProperty("cache", "true");
+        configuration.setProperty("modification_check_interval", "60");
+        WebappResourceLoader loader = new WebappResourceLoader();
+        loader.commonInit(runtime, configuration);
+        loader.init(configuration);
+
+        for (int i = 0; i < 2; i++)
+        {
+            Reader reader = loader.getResourceReader("/page.vm", "UTF-8");
+            assertEquals('p', reader.read());
+            reader.close();
+        }
+        assertEquals("/second/", loader.templatePaths.get("page.vm"));
+
+        try
+        {
+            loader.getResourceReader("missing.vm", "UTF-8");
+            fail("missing template found");
+        }
+        catch (ResourceNotFoundException rnfe) {}
+        assertFalse(loader.resourceExists("missing.vm"));
+        assertTrue(loader.resourceExists("page.vm"));
+        verify(servletContext);
+    }
+
+    @Test
+    public void testMissingWithoutCheckInterval() throws Exception
+    {
+        ServletContext servletContext = createMock(ServletContext.class);
+        // without a check interval, a template created after a miss must be found
+        expect(servletContext.getResourceAsStream("/late.vm")).andReturn(null).once();
+        expect(servletContext.getResourceAsStream("/late.vm")).andAnswer(content("late")).once();
+        replay(servletContext);
+
+        RuntimeInstance runtime = new RuntimeInstance();
+        runtime.setApplicationAttribute(ServletContext.class.getName(), servletContext);
+        ExtProperties configuration = new ExtProperties();
+        configuration.setProperty("path", "/");
+        configuration.setProperty("cache", "true");
+        WebappResourceLoader loader = new WebappResourceLoader();
+        loader.commonInit(runtime, configuration);
+        loader.init(configuration);
+
+        assertFalse(loader.resourceExists("late.vm"));
+        assertTrue(loader.resourceExists("late.vm"));
+        verify(servletContext);
+    }
+
+    @Test
+    public void testPrecedenceWithoutCache() throws Exception
+    {
+        ServletContext servletContext = createMock(ServletContext.class);
+        // without caching, a template added under the first path takes precedence
+        expect(servletContext.getResourceAsStream("/first/page.vm")).andReturn(null).once();
+        expect(servletContext.getResourceAsStream("/second/page.vm")).andAnswer(content("second")).once();
+        expect(servletContext.getResourceAsStream("/first/page.vm")).andAnswer(content("first")).once();
+        replay(servletContext);
+
+        RuntimeInstance runtime = new RuntimeInstance();
+        runtime.setApplicationAttribute(ServletContext.class.getName(), servletContext);
+        ExtProperties configuration = new ExtProperties();
+        configuration.setProperty("path", "/first,/second");
+        configuration.setProperty("cache", "false");
+        WebappResourceLoader loader = new WebappResourceLoader();
+        loader.commonInit(runtime, configuration);
+        loader.init(configuration);
+
+        Reader reader = loader.getResourceReader("page.vm", "UTF-8");
+        assertEquals('s', reader.read());
+        reader.close();
+        reader = loader.getResourceReader("page.vm", "UTF-8");
+        assertEquals('f', reader.read());
+        reader.close();
+        verify(servletContext);
+    }
+
+    protected long awaitModification(TemplateWatcher watcher, String name, long previous) throws Exception
+    {
+        for (int i = 0; i < 200 && watcher.getModified(name) == previous; i++)
+        {
+            Thread.sleep(50);
+        }
+        return watcher.getModified(name);
+    }
+
+    @Test
+    public void testWatcher() throws Exception
+    {
+        Path root = Files.createTempDirectory("templates");
+        Files.write(root.resolve("page.vm"), "page".getBytes());
+        TemplateWatcher watcher = new TemplateWatcher(Collections.singleton(root));
+        watcher.start();
+        try
+        {
+            assertTrue(watcher.isWatching());
+            long started = watcher.getModified("page.vm");
+            assertEquals(started, watcher.getModified("other.vm"));
+
+            Files.write(root.resolve("page.vm"), "modified page".getBytes());
+            long modified = awaitModification(watcher, "page.vm", started);
+            assertNotEquals(started, modified);
+            assertEquals(started, watcher.getModified("other.vm"));
+
+            // templates of new directories are seen too
+            Path directory = root.resolve("sub");
+            Files.createDirectory(directory);
+            Files.write(directory.resolve("new.vm"), "new".getBytes());
+            assertNotEquals(started, awaitModification(watcher, "sub/new.vm", started));
+        }
+        finally
+        {
+            watcher.close();
+        }
+        assertFalse(watcher.isWatching());
+    }
+}
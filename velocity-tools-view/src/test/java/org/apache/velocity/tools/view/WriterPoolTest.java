@@ -0,0 +1,117 @@
+package org.apache.velocity.tools.view;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * <p>Tests for WriterPool</p>
+ *
+ * @since VelocityTools 4.1
+ * @version $Id$
+ */
+public class WriterPoolTest
+{
+    protected void render(WriterPool pool, String template, int length) throws Exception
+    {
+        char[] page = new char[length];
+        Arrays.fill(page, 'x');
+        StringWriter target = new StringWriter();
+        WriterPool.Lease lease = pool.acquire(template, target);
+        lease.getWriter().write(page);
+        lease.getWriter().flush();
+        pool.release(lease);
+        assertEquals(length, target.getBuffer().length());
+    }
+
+    @Test
+    public void testAdaptiveBufferSize() throws Exception
+    {
+        WriterPool pool = new WriterPool(1000, 10000);
+        assertEquals(1024, pool.getMinBufferSize());
+        assertEquals(16384, pool.getMaxBufferSize());
+
+        assertEquals(1024, pool.getBufferSize("small.vm"));
+        render(pool, "small.vm", 100);
+        assertEquals(1024, pool.getBufferSize("small.vm"));
+
+        render(pool, "large.vm", 5000);
+        assertEquals(Long.valueOf(5000), pool.getOutputSizes().get("large.vm"));
+        assertEquals(8192, pool.getBufferSize("large.vm"));
+        assertEquals(Integer.valueOf(8192), pool.getBufferSizes().get("large.vm"));
+        WriterPool.Lease lease = pool.acquire("large.vm", new StringWriter());
+        assertEquals(8192, lease.getWriter().getBufferSize());
+        pool.release(lease);
+
+        render(pool, "huge.vm", 100000);
+        assertEquals(16384, pool.getBufferSize("huge.vm"));
+
+        // first renderings get the smallest writer, which is pooled
+        // after the first one, while the first larger writer is new
+        assertEquals(2, pool.getMisses());
+        assertEquals(2, pool.getHits());
+        assertEquals(0.5, pool.getHitRate(), 0.001);
+        pool.reset();
+        assertEquals(0, pool.getMisses());
+    }
+
+    @Test
+    public void testPooledSizeBudget() throws Exception
+    {
+        WriterPool pool = new WriterPool(1024, 4096, 5000);
+        assertEquals(5000, pool.getMaxPooledSize());
+        render(pool, "large.vm", 4000);
+        assertEquals(1024, pool.getPooledSize());
+        WriterPool.Lease first = pool.acquire("small.vm", new StringWriter());
+        WriterPool.Lease second = pool.acquire("small.vm", new StringWriter());
+        WriterPool.Lease large = pool.acquire("large.vm", new StringWriter());
+        assertEquals(4096, large.getWriter().getBufferSize());
+        assertEquals(0, pool.getPooledSize());
+        pool.release(first);
+        pool.release(second);
+        assertEquals(2048, pool.getPooledSize());
+        // the larger writer does not fit in the budget, so it is dropped
+        pool.release(large);
+        assertEquals(2048, pool.getPooledSize());
+        pool.acquire("small.vm", new StringWriter());
+        assertEquals(1024, pool.getPooledSize());
+    }
+
+    @Test
+    public void testStripedPool() throws Exception
+    {
+        StripedPool<String> pool = new StripedPool<String>(3, 2);
+        assertEquals(8, pool.getCapacity());
+        String one = "one";
+        String two = "two";
+        assertEquals(true, pool.put(one));
+        assertEquals(true, pool.put(two));
+        assertEquals(false, pool.put("three"));
+        assertSame(one, pool.get());
+        assertSame(two, pool.get());
+        assertEquals(null, pool.get());
+    }
+}